@@ -16,15 +16,13 @@ import android.support.annotation.NonNull;
 import android.util.Log;
 
 import android.bluetooth.le.ScanSettings; // EG: to configure our own settings
-import android.os.SystemClock; // EG: for sntp
 import android.provider.Settings.Secure;  // EG: for androi_id
 import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.Toast;
 
 
-import java.io.IOException;
-
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
@@ -32,6 +30,16 @@ import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 
+import ch.ubiment.sensors.sensordemo.Communication.BeaconSample;
+import ch.ubiment.sensors.sensordemo.Communication.FrameSerializer;
+import ch.ubiment.sensors.sensordemo.Communication.FrameSerializers;
+import ch.ubiment.sensors.sensordemo.Communication.MessageSender;
+import ch.ubiment.sensors.sensordemo.Communication.SendQueue;
+import ch.ubiment.sensors.sensordemo.Communication.SntpClient;
+import ch.ubiment.sensors.sensordemo.Communication.TcpClientSend;
+import ch.ubiment.sensors.sensordemo.Communication.UdpClientSend;
+import ch.ubiment.sensors.sensordemo.Platform.AndroidPlatform;
+
 import static android.R.attr.id;
 import static ch.heia.mobiledev.beacondetector.R.styleable.View;
 import static java.security.AccessController.getContext;
@@ -56,13 +64,47 @@ public class BeaconActivity extends Activity implements BeaconScanner.BeaconScan
     private final Handler mHandler = new Handler();
 
     // EG
-    private UdpClientSend udpClient;
+    // UdpClientSend, or TcpClientSend in recording mode (every message is acknowledged, nothing is lost).
+    // A long click on the IP button switches between them, the choice is saved.
+    private MessageSender udpClient;
+    private boolean useTcpRecording = false;
+    // format of the messages (see Communication/FrameSerializers): json for the python scripts (default), binary or delta.
+    // Saved in the preferences, set it when starting the app: adb shell am start -n <activity> -e frame_format delta
+    private static final String EXTRA_FRAME_FORMAT = "frame_format";
+    private FrameSerializer<BeaconSample> serializer;
+    private final BeaconSample beaconSample = new BeaconSample();
     private SntpClient sntpClient;
     private boolean isSntpTimeSet = false;
     private ScanSettings scanSettings;
     private String udp_ip;
     private int udp_port = 7582;
+    private int tcp_port = 7583;
     private String android_id;
+    private int sequence = 0;   // sequence number of the datagrams, raw or aggregated
+
+    // one report per beacon and per window instead of one datagram per advertisement (see BeaconAggregator).
+    // A window of 0 ms sends every advertisement as it is received (raw mode). Both settings are saved in the
+    // preferences, set them when starting the app:
+    // adb shell am start -n <activity> --ei report_window_ms 0 [--ei evict_after_windows 10]
+    private static final String EXTRA_REPORT_WINDOW_MS = "report_window_ms";
+    private static final String EXTRA_EVICT_AFTER_WINDOWS = "evict_after_windows";
+    private static final int DEFAULT_REPORT_WINDOW_MS = 1000;
+    private static final int DEFAULT_EVICT_AFTER_WINDOWS = 10;
+    private long reportWindowMs = 0;
+    private BeaconAggregator beaconAggregator;  // null in raw mode
+    private final Runnable reportTask = new Runnable() {
+        @Override
+        public void run() {
+            beaconAggregator.flush(reportSender);
+            mHandler.postDelayed(this, reportWindowMs);
+        }
+    };
+    private final BeaconAggregator.ReportListener reportSender = new BeaconAggregator.ReportListener() {
+        @Override
+        public void onReport(BeaconAggregator.Report report) {
+            sendReport(report);
+        }
+    };
 
     private boolean useFilters = false;
     private List<ScanFilter> filters = new ArrayList<ScanFilter>();
@@ -139,27 +181,74 @@ public class BeaconActivity extends Activity implements BeaconScanner.BeaconScan
             }).start();
 
         }
-        long now = sntpClient.getNtpTime() + SystemClock.elapsedRealtime() - sntpClient.getNtpTimeReference();
-        Log.v(TAG, "NOW: " + now);
-        Log.v(TAG, "android id: " + android_id);
+        long now = sntpClient.now();
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.v(TAG, "NOW: " + now);
+            Log.v(TAG, "android id: " + android_id);
+        }
+
+
+        if (beaconAggregator != null) {
+            beaconAggregator.add(beacon, now);
+        } else {
+            sendAdvertisement(beacon, now);
+        }
+    }
 
+    /**
+     * Raw mode: one datagram per advertisement
+     */
+    private void sendAdvertisement(Beacon beacon, long now) {
+        beaconSample.setAdvertisement(sequence, now, beacon.getAddress(), beacon.getUUID(), beacon.getMajor(),
+                beacon.getMinor(), beacon.getTxPower(), beacon.getRSSI());
+        send(beaconSample);
+    }
 
+    /**
+     * Aggregated mode: one datagram per beacon and per window. The fields of the raw message are kept
+     * (PositionTS is the last advertisement, RSSI the rounded mean), so the receivers expecting raw messages still work.
+     */
+    private void sendReport(BeaconAggregator.Report report) {
+        beaconSample.setAdvertisement(sequence, report.getLastTimestamp(), report.getAddress(), report.getUUID(),
+                report.getMajor(), report.getMinor(), report.getTxPower(), 0);
+        beaconSample.setReport(report.getCount(), report.getMeanRSSI(), report.getMinRSSI(), report.getMaxRSSI(),
+                report.getLastRSSI(), report.getFirstTimestamp());
+        send(beaconSample);
+    }
 
-        String msg =
-                "{\"PositionTS\":\"" + now +
-                        "\",\"Address\":\"" + beacon.getAddress() +
-                        "\",\"UUID\":\"" + beacon.getUUID() +
-                        "\",\"Major\":\"" + beacon.getMajor() +
-                        "\",\"Minor\":\"" + beacon.getMinor() +
-                        "\",\"TxPower\":\"" + beacon.getTxPower() +
-                        "\",\"Phone_ID\":\"" + android_id +
-                        "\",\"RSSI\":\"" + beacon.getRSSI() + "\"}";
+    /**
+     * Encode the message directly into a pooled buffer of the client
+     */
+    private void send(BeaconSample sample) {
+        SendQueue.Slot slot = udpClient.claim();
+        if (slot == null) return;
         try {
-            udpClient.send(msg);
-        } catch (IOException e) {
-            e.printStackTrace();
+            serializer.write(sample, slot.buffer());
+        } catch (RuntimeException e) {
+            // BufferOverflowException, or an address which is not a MAC address in the binary formats
+            Log.w(TAG, "cannot encode the message: " + e);
+            udpClient.cancel(slot);
+            return;
         }
+        sequence++;
+        udpClient.publish(slot);
+    }
+
+    /**
+     * The value of an int extra, which is then saved, or the saved value when the extra is not given
+     */
+    private int intSetting(SharedPreferences sharedPref, String extra, int key, int defaultValue) {
+        if (getIntent().hasExtra(extra)) {
+            int value = getIntent().getIntExtra(extra, defaultValue);
+            sharedPref.edit().putInt(getString(key), value).commit();
+            return value;
+        }
+        return sharedPref.getInt(getString(key), defaultValue);
+    }
 
+    private MessageSender newSender(String ip) {
+        if (useTcpRecording) return new TcpClientSend(ip, tcp_port, AndroidPlatform.LOGGER);
+        return new UdpClientSend(ip, udp_port, AndroidPlatform.LOGGER);
     }
 
     @Override
@@ -177,8 +266,31 @@ public class BeaconActivity extends Activity implements BeaconScanner.BeaconScan
         udp_ip = sharedPref.getString(getString(R.string.udp_ip_saved), defaultValue);
         Log.d(TAG, "Saved IP is " + udp_ip);
 
-        udpClient = new UdpClientSend(udp_ip, udp_port);
-        sntpClient = new SntpClient();
+        useTcpRecording = sharedPref.getBoolean(getString(R.string.tcp_recording_saved), false);
+        String frameFormat = getIntent().getStringExtra(EXTRA_FRAME_FORMAT);
+        if (frameFormat != null) {
+            sharedPref.edit().putString(getString(R.string.frame_format_saved), frameFormat).commit();
+        } else {
+            frameFormat = sharedPref.getString(getString(R.string.frame_format_saved), FrameSerializers.JSON);
+        }
+        serializer = FrameSerializers.beacon(frameFormat, android_id);
+        Log.d(TAG, "Frame format is " + serializer.getName());
+        reportWindowMs = intSetting(sharedPref, EXTRA_REPORT_WINDOW_MS, R.string.report_window_saved,
+                DEFAULT_REPORT_WINDOW_MS);
+        int evictAfterWindows = intSetting(sharedPref, EXTRA_EVICT_AFTER_WINDOWS, R.string.evict_after_windows_saved,
+                DEFAULT_EVICT_AFTER_WINDOWS);
+        if (reportWindowMs > 0) {
+            beaconAggregator = new BeaconAggregator(Math.max(1, evictAfterWindows));
+            Log.d(TAG, "One report per beacon every " + reportWindowMs + " ms, beacons forgotten after "
+                    + evictAfterWindows + " windows");
+        } else {
+            Log.d(TAG, "One message per advertisement");
+        }
+        udpClient = newSender(udp_ip);
+        sntpClient = new SntpClient(AndroidPlatform.CLOCK, AndroidPlatform.LOGGER);
+        if (beaconAggregator != null) {
+            mHandler.postDelayed(reportTask, reportWindowMs);
+        }
 
         if (useFilters && addressList.length > 0) {
             for (int k = 0; k<addressList.length; k++) {
@@ -208,9 +320,11 @@ public class BeaconActivity extends Activity implements BeaconScanner.BeaconScan
                 //String new_udp_ip = getResources().getString(R.string.udp_ip);
                 String new_udp_ip = udpIpEntry.getText().toString();
                 if (!udp_ip.equals(new_udp_ip)) {
+                    Log.d(TAG, "udp send latency: " + udpClient.getQueueLatency());
                     udpClient.close();
                     udp_ip = new_udp_ip;
-                    udpClient = new UdpClientSend(udp_ip, udp_port);
+                    udpClient = newSender(udp_ip);
+                    serializer.reset();
                     Log.d(TAG, "New udp client created with ip " + udp_ip);
 
                     SharedPreferences sharedPref = getPreferences(Context.MODE_PRIVATE);
@@ -221,6 +335,23 @@ public class BeaconActivity extends Activity implements BeaconScanner.BeaconScan
                 }
             }
         });
+        udpIpButton.setOnLongClickListener(new android.view.View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                useTcpRecording = !useTcpRecording;
+                Log.d(TAG, "send latency: " + udpClient.getQueueLatency());
+                udpClient.close();
+                udpClient = newSender(udp_ip);
+                serializer.reset();
+                Log.d(TAG, "New " + (useTcpRecording ? "tcp" : "udp") + " client created with ip " + udp_ip);
+
+                SharedPreferences.Editor editor = getPreferences(Context.MODE_PRIVATE).edit();
+                editor.putBoolean(getString(R.string.tcp_recording_saved), useTcpRecording);
+                editor.commit();
+                Toast.makeText(BeaconActivity.this, useTcpRecording ? "TCP recording" : "UDP", Toast.LENGTH_SHORT).show();
+                return true;
+            }
+        });
         //WifiManager m_wm = (WifiManager) getApplicationContext().getSystemService(Context.WIFI_SERVICE);
         //m_wlanMacAdd = m_wm.getConnectionInfo().getMacAddress();
 
@@ -263,7 +394,10 @@ public class BeaconActivity extends Activity implements BeaconScanner.BeaconScan
     public void onDestroy() {
         super.onDestroy();
         Log.d(TAG, "onStop()");
+        mHandler.removeCallbacks(reportTask);
         mBeaconScanner.stopScan(mHandler);
+        // stops the sender thread and closes its socket
+        udpClient.close();
     }
 
     private void showMessageOKCancel(DialogInterface.OnClickListener okListener) {
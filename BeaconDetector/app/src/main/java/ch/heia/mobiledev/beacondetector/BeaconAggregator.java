@@ -0,0 +1,184 @@
+package ch.heia.mobiledev.beacondetector;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Aggregates the advertisements of every beacon over a time window, so that a single report per beacon
+ * and per window is sent instead of one datagram per advertisement.
+ *
+ * The scan callback calls add() for every advertisement, a timer calls flush() at the end of every window.
+ * The reports are kept per address and reused from one window to the next: only a newly seen beacon allocates.
+ * A beacon which is not seen during evictAfterWindows consecutive windows is forgotten.
+ */
+public class BeaconAggregator {
+
+    /**
+     * Statistics of one beacon over one window
+     */
+    public static class Report {
+        private final String address;
+        private String uuid;
+        private int major;
+        private int minor;
+        private int txPower;
+
+        private int count = 0;
+        private long rssiSum = 0;
+        private int rssiMin;
+        private int rssiMax;
+        private int rssiLast;
+        private long firstTimestamp;
+        private long lastTimestamp;
+        private int idleWindows = 0;
+
+        private Report(String address) {
+            this.address = address;
+        }
+
+        private void add(String uuid, int major, int minor, int txPower, int rssi, long timestamp) {
+            if (count == 0) {
+                rssiMin = rssi;
+                rssiMax = rssi;
+                firstTimestamp = timestamp;
+            } else {
+                if (rssi < rssiMin) rssiMin = rssi;
+                if (rssi > rssiMax) rssiMax = rssi;
+            }
+            count++;
+            rssiSum += rssi;
+            rssiLast = rssi;
+            lastTimestamp = timestamp;
+            // the identifiers and the TxPower of the last advertisement win
+            this.uuid = uuid;
+            this.major = major;
+            this.minor = minor;
+            this.txPower = txPower;
+        }
+
+        private void reset() {
+            count = 0;
+            rssiSum = 0;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public String getUUID() {
+            return uuid;
+        }
+
+        public int getMajor() {
+            return major;
+        }
+
+        public int getMinor() {
+            return minor;
+        }
+
+        public int getTxPower() {
+            return txPower;
+        }
+
+        /**
+         * Number of advertisements received during the window
+         */
+        public int getCount() {
+            return count;
+        }
+
+        public float getMeanRSSI() {
+            return (count == 0) ? 0 : rssiSum / (float) count;
+        }
+
+        public int getMinRSSI() {
+            return rssiMin;
+        }
+
+        public int getMaxRSSI() {
+            return rssiMax;
+        }
+
+        public int getLastRSSI() {
+            return rssiLast;
+        }
+
+        public long getFirstTimestamp() {
+            return firstTimestamp;
+        }
+
+        public long getLastTimestamp() {
+            return lastTimestamp;
+        }
+    }
+
+    /**
+     * Receives the reports of a window. The report is reset after the call: copy what you need to keep.
+     */
+    public interface ReportListener {
+        void onReport(Report report);
+    }
+
+    private final Map<String, Report> reports = new HashMap<>();
+    private final int evictAfterWindows;
+
+    /**
+     * @param evictAfterWindows: number of consecutive windows without advertisement after which a beacon is forgotten
+     */
+    public BeaconAggregator(int evictAfterWindows) {
+        if (evictAfterWindows <= 0) throw new IllegalArgumentException("evictAfterWindows must be positive: " + evictAfterWindows);
+        this.evictAfterWindows = evictAfterWindows;
+    }
+
+    /**
+     * Account an advertisement
+     * @param timestamp: reception time of the advertisement, in milliseconds
+     */
+    public void add(Beacon beacon, long timestamp) {
+        add(beacon.getAddress(), beacon.getUUID(), beacon.getMajor(), beacon.getMinor(), beacon.getTxPower(),
+                beacon.getRSSI(), timestamp);
+    }
+
+    /**
+     * Same as add(Beacon, long), with the fields of the advertisement
+     */
+    public synchronized void add(String address, String uuid, int major, int minor, int txPower, int rssi, long timestamp) {
+        Report report = reports.get(address);
+        if (report == null) {
+            report = new Report(address);
+            reports.put(address, report);
+        }
+        report.add(uuid, major, minor, txPower, rssi, timestamp);
+    }
+
+    /**
+     * End the current window: give the report of every beacon seen during the window to the listener, then start
+     * a new window.
+     * @return the number of reports
+     */
+    public synchronized int flush(ReportListener listener) {
+        int n = 0;
+        Iterator<Report> it = reports.values().iterator();
+        while (it.hasNext()) {
+            Report report = it.next();
+            if (report.count == 0) {
+                if (++report.idleWindows >= evictAfterWindows) it.remove();
+                continue;
+            }
+            listener.onReport(report);
+            report.reset();
+            report.idleWindows = 0;
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Number of beacons currently tracked
+     */
+    public synchronized int size() {
+        return reports.size();
+    }
+}
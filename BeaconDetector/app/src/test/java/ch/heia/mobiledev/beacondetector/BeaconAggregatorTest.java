@@ -0,0 +1,138 @@
+package ch.heia.mobiledev.beacondetector;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The reports of BeaconAggregator over successive windows
+ */
+public class BeaconAggregatorTest {
+    private static final String A = "D1:E2:F3:04:15:26";
+    private static final String B = "AA:BB:CC:DD:EE:FF";
+
+    /**
+     * Copies the reports, which are reset after onReport()
+     */
+    private static class Reports implements BeaconAggregator.ReportListener {
+        final List<String> addresses = new ArrayList<>();
+        final List<int[]> values = new ArrayList<>();      // count, min, max, last, major, minor, txPower
+        final List<float[]> means = new ArrayList<>();
+        final List<long[]> timestamps = new ArrayList<>(); // first, last
+        final List<String> uuids = new ArrayList<>();
+
+        @Override
+        public void onReport(BeaconAggregator.Report report) {
+            addresses.add(report.getAddress());
+            values.add(new int[]{report.getCount(), report.getMinRSSI(), report.getMaxRSSI(), report.getLastRSSI(),
+                    report.getMajor(), report.getMinor(), report.getTxPower()});
+            means.add(new float[]{report.getMeanRSSI()});
+            timestamps.add(new long[]{report.getFirstTimestamp(), report.getLastTimestamp()});
+            uuids.add(report.getUUID());
+        }
+
+        int indexOf(String address) {
+            return addresses.indexOf(address);
+        }
+    }
+
+    @Test
+    public void statisticsOfAWindow() {
+        BeaconAggregator aggregator = new BeaconAggregator(10);
+        aggregator.add(A, "uuid-a", 1, 2, -59, -70, 1000);
+        aggregator.add(B, "uuid-b", 3, 4, -60, -90, 1010);
+        aggregator.add(A, "uuid-a", 1, 2, -59, -75, 1100);
+        aggregator.add(A, "uuid-a2", 5, 6, -58, -66, 1250);
+
+        Reports reports = new Reports();
+        assertEquals(2, aggregator.flush(reports));
+        int a = reports.indexOf(A);
+        // count, min, max, last, and the identifiers of the last advertisement
+        assertEquals(3, reports.values.get(a)[0]);
+        assertEquals(-75, reports.values.get(a)[1]);
+        assertEquals(-66, reports.values.get(a)[2]);
+        assertEquals(-66, reports.values.get(a)[3]);
+        assertEquals(5, reports.values.get(a)[4]);
+        assertEquals(6, reports.values.get(a)[5]);
+        assertEquals(-58, reports.values.get(a)[6]);
+        assertEquals("uuid-a2", reports.uuids.get(a));
+        assertEquals((-70 - 75 - 66) / 3f, reports.means.get(a)[0], 1e-6f);
+        assertEquals(1000, reports.timestamps.get(a)[0]);
+        assertEquals(1250, reports.timestamps.get(a)[1]);
+
+        int b = reports.indexOf(B);
+        assertEquals(1, reports.values.get(b)[0]);
+        assertEquals(-90, reports.values.get(b)[1]);
+        assertEquals(-90, reports.values.get(b)[2]);
+        assertEquals(-90f, reports.means.get(b)[0], 0f);
+        assertEquals(1010, reports.timestamps.get(b)[0]);
+        assertEquals(1010, reports.timestamps.get(b)[1]);
+    }
+
+    @Test
+    public void windowsStartAfresh() {
+        BeaconAggregator aggregator = new BeaconAggregator(10);
+        aggregator.add(A, "uuid", 1, 2, -59, -40, 1000);
+        aggregator.add(A, "uuid", 1, 2, -59, -100, 1500);
+        aggregator.flush(new Reports());
+
+        // nothing of the previous window is left: count, sum, min, max and first timestamp
+        aggregator.add(A, "uuid", 1, 2, -59, -70, 2100);
+        aggregator.add(A, "uuid", 1, 2, -59, -80, 2200);
+        Reports reports = new Reports();
+        assertEquals(1, aggregator.flush(reports));
+        assertEquals(2, reports.values.get(0)[0]);
+        assertEquals(-80, reports.values.get(0)[1]);
+        assertEquals(-70, reports.values.get(0)[2]);
+        assertEquals(-80, reports.values.get(0)[3]);
+        assertEquals(-75f, reports.means.get(0)[0], 0f);
+        assertEquals(2100, reports.timestamps.get(0)[0]);
+        assertEquals(2200, reports.timestamps.get(0)[1]);
+
+        // a window without advertisement gives no report
+        reports = new Reports();
+        assertEquals(0, aggregator.flush(reports));
+        assertEquals(0, reports.addresses.size());
+    }
+
+    @Test
+    public void idleBeaconsAreForgotten() {
+        int evictAfterWindows = 3;
+        BeaconAggregator aggregator = new BeaconAggregator(evictAfterWindows);
+        aggregator.add(A, "uuid", 1, 2, -59, -70, 1000);
+        aggregator.add(B, "uuid", 1, 3, -59, -70, 1000);
+        aggregator.flush(new Reports());
+        assertEquals(2, aggregator.size());
+
+        for (int window = 1; window < evictAfterWindows; window++) {
+            // B keeps advertising, A is idle
+            aggregator.add(B, "uuid", 1, 3, -59, -70, 1000 + 1000 * window);
+            aggregator.flush(new Reports());
+            assertEquals(2, aggregator.size());
+        }
+        // an advertisement resets the idle windows of A
+        aggregator.add(A, "uuid", 1, 2, -59, -70, 4000);
+        aggregator.add(B, "uuid", 1, 3, -59, -70, 4000);
+        aggregator.flush(new Reports());
+        for (int window = 1; window < evictAfterWindows; window++) {
+            aggregator.flush(new Reports());
+            assertEquals(2, aggregator.size());
+        }
+        aggregator.flush(new Reports());
+        assertEquals(0, aggregator.size());
+
+        // a forgotten beacon is tracked again when it is seen again
+        aggregator.add(A, "uuid", 1, 2, -59, -70, 9000);
+        Reports reports = new Reports();
+        assertEquals(1, aggregator.flush(reports));
+        assertEquals(1, reports.values.get(0)[0]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void evictionNeedsAtLeastOneWindow() {
+        new BeaconAggregator(0);
+    }
+}
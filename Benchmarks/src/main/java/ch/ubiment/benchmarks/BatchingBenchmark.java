@@ -0,0 +1,103 @@
+package ch.ubiment.benchmarks;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.ubiment.sensors.sensordemo.Algebra.Quaternion;
+import ch.ubiment.sensors.sensordemo.Communication.ImuFrameEncoder;
+import ch.ubiment.sensors.sensordemo.Communication.SendQueue;
+import ch.ubiment.sensors.sensordemo.Communication.UdpClientSend;
+
+/**
+ * One datagram per IMU frame against batched datagrams, through UdpClientSend over the loopback interface.
+ * An operation publishes BURST frames and waits until the sender thread has written all of them, so the time
+ * per frame includes the system calls saved by batching. The queue blocks when full: no frame is dropped.
+ * The last partial batch of a burst waits up to MAX_LATENCY_MS, less than 0.1 us per frame.
+ *
+ * ./gradlew jmhAll --args="BatchingBenchmark"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchingBenchmark {
+    static final int BURST = 10000;
+    static final int MTU = 1472;
+    static final long MAX_LATENCY_MS = 1;
+
+    @Param({"false", "true"})
+    public boolean batching;
+
+    private DatagramSocket receiver;
+    private Thread receiverThread;
+    private UdpClientSend client;
+    private final ImuFrameEncoder encoder = new ImuFrameEncoder("0123456789abcdef");
+    private final float[] acc = {0.1f, 0.2f, 9.81f};
+    private final float[] gyro = {0.01f, -0.02f, 0.03f};
+    private final Quaternion q = new Quaternion(0.1, 0.2, 0.3, 0.93).normalized();
+    private int sequence = 0;
+
+    @Setup
+    public void setUp() throws SocketException {
+        receiver = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        receiver.setReceiveBufferSize(1 << 22);
+        receiverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                DatagramPacket packet = new DatagramPacket(new byte[65536], 65536);
+                try {
+                    while (true) receiver.receive(packet);
+                } catch (Exception e) {
+                    // closed
+                }
+            }
+        }, "receiver");
+        receiverThread.start();
+
+        client = new UdpClientSend("127.0.0.1", receiver.getLocalPort(), UdpClientSend.DEFAULT_QUEUE_CAPACITY,
+                UdpClientSend.DEFAULT_SLOT_SIZE, SendQueue.OverflowPolicy.BLOCK);
+        if (batching) client.enableBatching(MTU, MAX_LATENCY_MS);
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        client.close();
+        receiver.close();
+        receiverThread.join();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public long sendBurst() {
+        long target = client.getSentCount() + BURST;
+        for (int i = 0; i < BURST; i++) {
+            SendQueue.Slot slot = client.claim();
+            encoder.encode(slot.buffer(), sequence++, System.nanoTime(),
+                    acc, acc, acc, acc, gyro, q, q, q, false, false);
+            client.publish(slot);
+        }
+        while (client.getSentCount() < target) {
+            Thread.yield();
+        }
+        return client.getDatagramCount();
+    }
+}
@@ -0,0 +1,60 @@
+package ch.ubiment.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.ubiment.sensors.sensordemo.Communication.BeaconSample;
+import ch.ubiment.sensors.sensordemo.Communication.FrameSerializer;
+import ch.ubiment.sensors.sensordemo.Communication.FrameSerializers;
+
+/**
+ * Time to serialize one report of the beacon trace into a pooled buffer, as BeaconActivity does at the end
+ * of every window.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BeaconSerializerBenchmark {
+    static final int TRACE_WINDOWS = 300;        // five minutes of one second windows
+    static final int TRACE_BEACONS = 12;
+    static final long SEED = 42;
+    static final String PHONE_ID = "8e1d2c3b4a596877";
+
+    @Param({FrameSerializers.JSON, FrameSerializers.BINARY, FrameSerializers.DELTA})
+    public String format;
+
+    private BeaconSample[] trace;
+    private FrameSerializer<BeaconSample> serializer;
+    private final ByteBuffer slot = ByteBuffer.allocateDirect(2048);
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        trace = Traces.beacons(TRACE_WINDOWS, TRACE_BEACONS, SEED);
+        serializer = FrameSerializers.beacon(format, PHONE_ID);
+    }
+
+    @Benchmark
+    public int serialize() {
+        BeaconSample sample = trace[next];
+        if (++next == trace.length) next = 0;
+        slot.clear();
+        serializer.write(sample, slot);
+        return slot.position();
+    }
+}
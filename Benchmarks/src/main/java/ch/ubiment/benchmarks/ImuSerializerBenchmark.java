@@ -0,0 +1,59 @@
+package ch.ubiment.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.ubiment.sensors.sensordemo.Communication.FrameSerializer;
+import ch.ubiment.sensors.sensordemo.Communication.FrameSerializers;
+import ch.ubiment.sensors.sensordemo.Communication.ImuSample;
+
+/**
+ * Time to serialize one sample of the walking trace into a pooled buffer, as MainActivity does for every
+ * sensor event. The samples are taken in order, so the delta format sees the same differences as on the phone.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImuSerializerBenchmark {
+    static final int TRACE_LENGTH = 3000;        // one minute at 50 Hz
+    static final long SEED = 42;
+    static final String DEVICE_ID = "8e1d2c3b4a596877";
+
+    @Param({FrameSerializers.JSON, FrameSerializers.BINARY, FrameSerializers.DELTA})
+    public String format;
+
+    private ImuSample[] trace;
+    private FrameSerializer<ImuSample> serializer;
+    private final ByteBuffer slot = ByteBuffer.allocateDirect(2048);
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        trace = Traces.imu(TRACE_LENGTH, SEED);
+        serializer = FrameSerializers.imu(format, DEVICE_ID, 0);
+    }
+
+    @Benchmark
+    public int serialize() {
+        ImuSample sample = trace[next];
+        if (++next == trace.length) next = 0;
+        slot.clear();
+        serializer.write(sample, slot);
+        return slot.position();
+    }
+}
@@ -0,0 +1,72 @@
+package ch.ubiment.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.ubiment.sensors.sensordemo.Communication.FrameSerializers;
+import ch.ubiment.sensors.sensordemo.Communication.ImuSample;
+import ch.ubiment.sensors.sensordemo.Sensors.ImuPipeline;
+import ch.ubiment.sensors.sensordemo.Sensors.ImuProcessor;
+import ch.ubiment.sensors.sensordemo.Sensors.SensorRateConfig;
+import ch.ubiment.sensors.sensordemo.Sensors.SensorSample;
+import ch.ubiment.sensors.sensordemo.Sensors.SyntheticSensorSource;
+
+/**
+ * Time per sensor event of the whole IMU chain without Android: synchronization, fusion, step detection and
+ * encoding of the events of a SyntheticSensorSource (see ImuProcessor). The sensors run at the rates of the app
+ * with the gyroscope at 200 Hz; the inverse of the score is the number of events one core can process per second.
+ *
+ * ./gradlew jmhAll --args="ImuThroughputBenchmark"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImuThroughputBenchmark {
+    static final long S = 1000000000L;
+    static final SensorRateConfig RATES = SensorRateConfig.parse("gyroscope=5000");
+
+    @Param({FrameSerializers.JSON, FrameSerializers.BINARY, FrameSerializers.DELTA})
+    public String format;
+
+    private ImuProcessor processor;
+    private SyntheticSensorSource source;
+    private final SensorSample event = new SensorSample();
+    private final ImuProcessor.FrameSink sink = new ImuProcessor.FrameSink() {
+        @Override
+        public void onFrame(ImuSample sample, ByteBuffer frame) {
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        processor = new ImuProcessor(new ImuPipeline(), FrameSerializers.imu(format, "0123456789abcdef", 0),
+                1600000000L * S);
+        // one endless source: the timestamps of the pipeline can not go back
+        source = new SyntheticSensorSource(RATES, Long.MAX_VALUE, 1);
+    }
+
+    /**
+     * @return number of frames written for this event
+     */
+    @Benchmark
+    public int processEvent() throws IOException {
+        source.next(event);
+        return processor.accept(event, sink);
+    }
+}
@@ -0,0 +1,129 @@
+package ch.ubiment.benchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.ubiment.sensors.sensordemo.Communication.FloatFormat;
+import ch.ubiment.sensors.sensordemo.Communication.JsonWriter;
+
+/**
+ * The json message of MainActivity.send_values() built by string concatenation, as it formerly was, against
+ * JsonWriter; and a single float printed by Float.toString() against FloatFormat. JsonWriterTest checks that
+ * both give the same bytes.
+ *
+ * ./gradlew jmhAll --args="JsonWriterBenchmark"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonWriterBenchmark {
+    static final String PHONE_ID = "8e1d5a3b2c4f6a7b";
+    static final int VECTORS = 1024;
+
+    private float[][] vectors;
+    private final float[] accelerometer = new float[3];
+    private final float[] linearAcceleration = new float[3];
+    private final float[] gravity = new float[3];
+    private final float[] magneticField = new float[3];
+    private final float[] gyroscope = new float[3];
+    private final JsonWriter writer = new JsonWriter(1024);
+    private final byte[] floatBuffer = new byte[FloatFormat.MAX_LENGTH];
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        vectors = new float[VECTORS][];
+        for (int i = 0; i < VECTORS; i++) {
+            vectors[i] = new float[]{(float) random.nextGaussian() * 10, (float) random.nextGaussian(),
+                    (float) random.nextGaussian() * 0.01f, (float) random.nextGaussian()};
+        }
+    }
+
+    private int next() {
+        int i = next;
+        next = (next + 1) & (VECTORS - 1);
+        return i;
+    }
+
+    @Benchmark
+    public byte[] concatenation() {
+        int i = next();
+        float[][] v = vectors;
+        String message = "{\"timestamp\":\"" + (1591012345678L + i) +
+                "\",\"Phone_ID\":\"" + PHONE_ID +
+                "\",\"accelerometer\":\"" + floatVector2String(Arrays.copyOf(v[i], 3)) +
+                "\",\"linearAcceleration\":\"" + floatVector2String(Arrays.copyOf(v[(i + 1) & 1023], 3)) +
+                "\",\"gravity\":\"" + floatVector2String(Arrays.copyOf(v[(i + 2) & 1023], 3)) +
+                "\",\"magneticField\":\"" + floatVector2String(Arrays.copyOf(v[(i + 3) & 1023], 3)) +
+                "\",\"gyroscope\":\"" + floatVector2String(Arrays.copyOf(v[(i + 4) & 1023], 3)) +
+                "\",\"orientationQuaterionXYZW\":\"" + floatVector2String(v[(i + 5) & 1023]) +
+                "\",\"orientationGravAccGyroQuaterionXYZW\":\"" + floatVector2String(v[(i + 6) & 1023]) +
+                "\",\"orientationAccGyroQuaterionXYZW\":\"" + floatVector2String(v[(i + 7) & 1023]) +
+                "\",\"isStepDetectedSensor\":\"" + (((i & 1) == 0) ? 1 : 0) +
+                "\",\"isStepDetected\":\"" + (((i & 2) == 0) ? 1 : 0) +
+                "\"}";
+        return message.getBytes();
+    }
+
+    @Benchmark
+    public int jsonWriter() {
+        int i = next();
+        float[][] v = vectors;
+        // the sensor vectors of MainActivity are len-3 arrays, updated in place
+        System.arraycopy(v[i], 0, accelerometer, 0, 3);
+        System.arraycopy(v[(i + 1) & 1023], 0, linearAcceleration, 0, 3);
+        System.arraycopy(v[(i + 2) & 1023], 0, gravity, 0, 3);
+        System.arraycopy(v[(i + 3) & 1023], 0, magneticField, 0, 3);
+        System.arraycopy(v[(i + 4) & 1023], 0, gyroscope, 0, 3);
+        writer.beginObject()
+                .field("timestamp", 1591012345678L + i)
+                .field("Phone_ID", PHONE_ID)
+                .field("accelerometer", accelerometer)
+                .field("linearAcceleration", linearAcceleration)
+                .field("gravity", gravity)
+                .field("magneticField", magneticField)
+                .field("gyroscope", gyroscope)
+                .field("orientationQuaterionXYZW", v[(i + 5) & 1023])
+                .field("orientationGravAccGyroQuaterionXYZW", v[(i + 6) & 1023])
+                .field("orientationAccGyroQuaterionXYZW", v[(i + 7) & 1023])
+                .field("isStepDetectedSensor", (i & 1) == 0)
+                .field("isStepDetected", (i & 2) == 0)
+                .endObject();
+        return writer.size();
+    }
+
+    @Benchmark
+    public byte[] floatToString() {
+        return Float.toString(vectors[next()][0]).getBytes();
+    }
+
+    @Benchmark
+    public int floatFormat() {
+        return FloatFormat.write(vectors[next()][0], floatBuffer, 0);
+    }
+
+    private static String floatVector2String(float[] vector) {
+        String msg = "[" + vector[0];
+        for (int i = 1; i < vector.length; i++) {
+            msg += ", " + vector[i];
+        }
+        msg += "]";
+        return msg;
+    }
+}
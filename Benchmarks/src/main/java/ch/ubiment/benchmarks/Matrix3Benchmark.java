@@ -0,0 +1,95 @@
+package ch.ubiment.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.ubiment.sensors.sensordemo.Algebra.Matrix3;
+import ch.ubiment.sensors.sensordemo.Algebra.Quaternion;
+
+/**
+ * The Matrix3 methods that create their result against the kernels writing into a caller array:
+ * matrix product, product with a float vector, and the rotation matrix of a quaternion.
+ *
+ * ./gradlew jmhAll --args="Matrix3Benchmark"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Matrix3Benchmark {
+    private Quaternion q;
+    private double[] xyzw;
+    private Matrix3 a;
+    private Matrix3 b;
+    private double[] am;
+    private double[] bm;
+    private final double[] product = new double[9];
+    private final float[] v = {0.3f, -0.2f, 9.81f};
+    private final float[] out = new float[3];
+
+    @Setup
+    public void setUp() {
+        q = new Quaternion(1.2, new double[]{0.3, -0.5, 0.8});
+        xyzw = q.getDoubleArrayXYZW();
+        am = q.getRotationMatrix();
+        bm = new Quaternion(0.4, new double[]{1, 0, 0}).getRotationMatrix();
+        a = new Matrix3(am);
+        b = new Matrix3(bm);
+    }
+
+    @Benchmark
+    public Matrix3 multiplyMatrix() {
+        return a.multiply(b);
+    }
+
+    @Benchmark
+    public double[] multiplyMM() {
+        Matrix3.multiplyMM(am, bm, product);
+        return product;
+    }
+
+    @Benchmark
+    public float[] multiplyVector() {
+        return a.multiply(v);
+    }
+
+    @Benchmark
+    public float[] multiplyMV() {
+        Matrix3.multiplyMV(am, v, out);
+        return out;
+    }
+
+    @Benchmark
+    public float[] transposedMultiplyVector() {
+        return a.transposed().multiply(v);
+    }
+
+    @Benchmark
+    public float[] multiplyTransposedMV() {
+        Matrix3.multiplyTransposedMV(am, v, out);
+        return out;
+    }
+
+    @Benchmark
+    public Matrix3 matrixOfQuaternion() {
+        return new Matrix3(q);
+    }
+
+    @Benchmark
+    public double[] fromQuaternion() {
+        Matrix3.fromQuaternion(xyzw, product);
+        return product;
+    }
+}
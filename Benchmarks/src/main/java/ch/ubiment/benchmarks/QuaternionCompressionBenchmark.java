@@ -0,0 +1,71 @@
+package ch.ubiment.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.ubiment.sensors.sensordemo.Algebra.QuaternionCompression;
+
+/**
+ * Time to pack and to unpack one quaternion with QuaternionCompression, three times per IMU frame of version 2.
+ * The orientations are uniformly distributed, so the dropped component is not predictable.
+ * QuaternionCompressionReport prints the accuracy of each number of bits.
+ *
+ * ./gradlew jmhAll --args="QuaternionCompressionBenchmark"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QuaternionCompressionBenchmark {
+    static final int QUATERNIONS = 1024;
+
+    @Param({"10", "12", "14", "16"})
+    public int bits;
+
+    private QuaternionCompression compression;
+    private final float[][] quaternions = new float[QUATERNIONS][];
+    private final long[] packed = new long[QUATERNIONS];
+    private final float[] decoded = new float[4];
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        compression = new QuaternionCompression(bits);
+        Random random = new Random(1);
+        for (int i = 0; i < QUATERNIONS; i++) {
+            quaternions[i] = QuaternionCompressionReport.randomUnitQuaternion(random);
+            packed[i] = compression.pack(quaternions[i]);
+        }
+    }
+
+    private int next() {
+        int i = next;
+        next = (next + 1) & (QUATERNIONS - 1);
+        return i;
+    }
+
+    @Benchmark
+    public long pack() {
+        return compression.pack(quaternions[next()]);
+    }
+
+    @Benchmark
+    public float[] unpack() {
+        compression.unpack(packed[next()], decoded);
+        return decoded;
+    }
+}
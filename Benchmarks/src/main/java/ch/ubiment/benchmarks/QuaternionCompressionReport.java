@@ -0,0 +1,89 @@
+package ch.ubiment.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import ch.ubiment.sensors.sensordemo.Algebra.Quaternion;
+import ch.ubiment.sensors.sensordemo.Algebra.QuaternionCompression;
+import ch.ubiment.sensors.sensordemo.Communication.ImuFrame;
+import ch.ubiment.sensors.sensordemo.Communication.ImuFrameDecoder;
+import ch.ubiment.sensors.sensordemo.Communication.ImuFrameEncoder;
+
+/**
+ * Accuracy versus size of QuaternionCompression, for every supported number of bits.
+ * The angular error is the angle of the rotation between the original and the decoded quaternion,
+ * over uniformly distributed random orientations. QuaternionCompressionTest checks the component errors,
+ * QuaternionCompressionBenchmark the time to pack and unpack.
+ *
+ * ./gradlew quaternionReport                    1000000 orientations
+ * ./gradlew quaternionReport --args="100000"    quick run
+ */
+public class QuaternionCompressionReport {
+
+    public static void main(String[] args) {
+        int samples = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+        Random random = new Random(1);
+        float[][] quaternions = new float[samples][];
+        for (int i = 0; i < samples; i++) {
+            quaternions[i] = randomUnitQuaternion(random);
+        }
+
+        System.out.println("bits  bytes/quaternion  frame[bytes]  max component error  angular error [deg]: mean      p99       max");
+        System.out.println(String.format("  32  %16d  %12d  %19s", 16, ImuFrame.FRAME_SIZE, "float"));
+        float[] decoded = new float[4];
+        double[] errors = new double[samples];
+        for (int bits = QuaternionCompression.MIN_BITS; bits <= QuaternionCompression.MAX_BITS; bits++) {
+            QuaternionCompression compression = new QuaternionCompression(bits);
+            double sum = 0;
+            for (int i = 0; i < samples; i++) {
+                compression.unpack(compression.pack(quaternions[i]), decoded);
+                errors[i] = angleDegrees(quaternions[i], decoded);
+                sum += errors[i];
+            }
+            Arrays.sort(errors);
+            System.out.println(String.format("  %2d  %16d  %12d  %19.1e  %30.4f  %8.4f  %8.4f",
+                    bits, compression.getPackedBytes(), ImuFrame.compressedFrameSize(compression.getPackedBytes()),
+                    compression.getMaxComponentError(), sum / samples, errors[(int) (0.99 * samples)], errors[samples - 1]));
+            checkFrame(bits, quaternions[0]);
+        }
+    }
+
+    /**
+     * Encode and decode a whole frame, to check that the decoder reads what the encoder wrote
+     */
+    private static void checkFrame(int bits, float[] xyzw) {
+        ImuFrameEncoder encoder = new ImuFrameEncoder("report");
+        encoder.setQuaternionBits(bits);
+        float[] v = {1, 2, 3};
+        Quaternion q = new Quaternion(xyzw[0], xyzw[1], xyzw[2], xyzw[3]);
+        ByteBuffer frame = encoder.encode(7, 123456789L, v, v, v, v, v, q, q, q, true, false);
+        if (frame.remaining() != encoder.getFrameSize()) {
+            throw new AssertionError("frame size " + frame.remaining() + " != " + encoder.getFrameSize());
+        }
+        ImuFrameDecoder decoder = new ImuFrameDecoder();
+        if (!decoder.decode(frame) || frame.hasRemaining() || decoder.getSequence() != 7
+                || angleDegrees(xyzw, decoder.getOrientationAccGyroXYZW()) > 1.0) {
+            throw new AssertionError("frame with " + bits + " bits not decoded");
+        }
+    }
+
+    static double angleDegrees(float[] a, float[] b) {
+        double dot = Math.abs((double) a[0] * b[0] + (double) a[1] * b[1] + (double) a[2] * b[2] + (double) a[3] * b[3]);
+        double na = Math.sqrt((double) a[0] * a[0] + (double) a[1] * a[1] + (double) a[2] * a[2] + (double) a[3] * a[3]);
+        double nb = Math.sqrt((double) b[0] * b[0] + (double) b[1] * b[1] + (double) b[2] * b[2] + (double) b[3] * b[3]);
+        return Math.toDegrees(2.0 * Math.acos(Math.min(1.0, dot / (na * nb))));
+    }
+
+    /**
+     * Uniform random rotation (K. Shoemake, Graphics Gems III)
+     */
+    static float[] randomUnitQuaternion(Random random) {
+        double u1 = random.nextDouble();
+        double u2 = 2 * Math.PI * random.nextDouble();
+        double u3 = 2 * Math.PI * random.nextDouble();
+        double a = Math.sqrt(1 - u1);
+        double b = Math.sqrt(u1);
+        return new float[]{(float) (a * Math.sin(u2)), (float) (a * Math.cos(u2)), (float) (b * Math.sin(u3)), (float) (b * Math.cos(u3))};
+    }
+}
@@ -0,0 +1,103 @@
+package ch.ubiment.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.ubiment.sensors.sensordemo.Algebra.Quaternion;
+
+/**
+ * Time to rotate one vector with a Quaternion: the product of quaternions that rotateVector() used to compute,
+ * its closed form into a new or into a caller array, and the batch rotation of packed vectors. Also the up vector
+ * of the step detector, through the double array of getUpVector() as before and into a caller array.
+ *
+ * ./gradlew jmhAll --args="QuaternionRotationBenchmark"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QuaternionRotationBenchmark {
+    static final int VECTORS = 1024;
+
+    private Quaternion q;
+    private final float[] packed = new float[3 * VECTORS];
+    private final float[] rotated = new float[3 * VECTORS];
+    private final float[] v = new float[3];
+    private final float[] out = new float[3];
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        q = new Quaternion(1.2, new double[]{0.3, -0.5, 0.8});
+        for (int i = 0; i < packed.length; i++) packed[i] = (float) (10 * random.nextGaussian());
+    }
+
+    private float[] nextVector() {
+        System.arraycopy(packed, next, v, 0, 3);
+        next += 3;
+        if (next == packed.length) next = 0;
+        return v;
+    }
+
+    /**
+     * rotateVector() before the closed form: a pure quaternion, a conjugate and two products
+     */
+    @Benchmark
+    public float[] products() {
+        float[] vec3 = nextVector();
+        Quaternion p = q.conjugate().times(new Quaternion(vec3[0], vec3[1], vec3[2], 0.0)).times(q);
+        double[] xyzw = p.getDoubleArrayXYZW();
+        return new float[]{(float) xyzw[0], (float) xyzw[1], (float) xyzw[2]};
+    }
+
+    @Benchmark
+    public float[] closedForm() {
+        return q.rotateVector(nextVector());
+    }
+
+    @Benchmark
+    public float[] closedFormInto() {
+        q.rotateVector(nextVector(), out);
+        return out;
+    }
+
+    /**
+     * Per vector of the batch
+     */
+    @Benchmark
+    @OperationsPerInvocation(VECTORS)
+    public float[] batch() {
+        q.rotateVectors(packed, 0, rotated, 0, VECTORS);
+        return rotated;
+    }
+
+    /**
+     * getUpVectorFloat() before: through the double array of getUpVector()
+     */
+    @Benchmark
+    public float[] upVectorThroughDoubles() {
+        double[] up = q.getUpVector();
+        return new float[]{(float) up[0], (float) up[1], (float) up[2]};
+    }
+
+    @Benchmark
+    public float[] upVectorInto() {
+        q.getUpVectorFloat(out);
+        return out;
+    }
+}
@@ -0,0 +1,110 @@
+package ch.ubiment.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Map;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.BenchmarkResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import ch.ubiment.sensors.sensordemo.Communication.BeaconSample;
+import ch.ubiment.sensors.sensordemo.Communication.FrameSerializer;
+import ch.ubiment.sensors.sensordemo.Communication.FrameSerializers;
+import ch.ubiment.sensors.sensordemo.Communication.ImuSample;
+
+/**
+ * Runs the serializer benchmarks with the GC profiler and prints, for every format and trace:
+ * the time per frame, the size of the frames on the wire and the bytes allocated per frame.
+ *
+ * ./gradlew jmh                      full run, about 4 minutes
+ * ./gradlew jmh --args="-wi 1 -i 2"  quick run. Any option of the JMH command line can be given.
+ */
+public class SerializerReport {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(ImuSerializerBenchmark.class.getSimpleName())
+                .include(BeaconSerializerBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        Collection<RunResult> results = new Runner(options).run();
+
+        ImuSample[] imu = Traces.imu(ImuSerializerBenchmark.TRACE_LENGTH, ImuSerializerBenchmark.SEED);
+        BeaconSample[] beacons = Traces.beacons(BeaconSerializerBenchmark.TRACE_WINDOWS,
+                BeaconSerializerBenchmark.TRACE_BEACONS, BeaconSerializerBenchmark.SEED);
+
+        System.out.println();
+        System.out.println(String.format("%-8s %-8s %12s %12s %14s", "trace", "format", "ns/frame", "bytes/frame",
+                "alloc B/frame"));
+        for (String format : FrameSerializers.NAMES) {
+            double size = imuFrameSize(FrameSerializers.imu(format, ImuSerializerBenchmark.DEVICE_ID, 0), imu);
+            print("imu", format, size, find(results, ImuSerializerBenchmark.class, format));
+        }
+        for (String format : FrameSerializers.NAMES) {
+            double size = beaconFrameSize(FrameSerializers.beacon(format, BeaconSerializerBenchmark.PHONE_ID), beacons);
+            print("beacon", format, size, find(results, BeaconSerializerBenchmark.class, format));
+        }
+    }
+
+    private static double imuFrameSize(FrameSerializer<ImuSample> serializer, ImuSample[] trace) {
+        ByteBuffer slot = ByteBuffer.allocate(2048);
+        long total = 0;
+        for (ImuSample sample : trace) {
+            slot.clear();
+            serializer.write(sample, slot);
+            total += slot.position();
+        }
+        return total / (double) trace.length;
+    }
+
+    private static double beaconFrameSize(FrameSerializer<BeaconSample> serializer, BeaconSample[] trace) {
+        ByteBuffer slot = ByteBuffer.allocate(2048);
+        long total = 0;
+        for (BeaconSample sample : trace) {
+            slot.clear();
+            serializer.write(sample, slot);
+            total += slot.position();
+        }
+        return total / (double) trace.length;
+    }
+
+    private static RunResult find(Collection<RunResult> results, Class<?> benchmark, String format) {
+        for (RunResult result : results) {
+            if (result.getParams().getBenchmark().startsWith(benchmark.getName())
+                    && format.equals(result.getParams().getParam("format"))) {
+                return result;
+            }
+        }
+        return null;
+    }
+
+    private static void print(String trace, String format, double size, RunResult result) {
+        String time = "-";
+        String alloc = "-";
+        if (result != null) {
+            time = String.format("%.1f", result.getPrimaryResult().getScore());
+            Result allocation = secondary(result, "gc.alloc.rate.norm");
+            if (allocation != null) alloc = String.format("%.1f", allocation.getScore());
+        }
+        System.out.println(String.format("%-8s %-8s %12s %12.1f %14s", trace, format, time, size, alloc));
+    }
+
+    /**
+     * The secondary results of the profilers are prefixed with a middle dot before JMH 1.34
+     */
+    private static Result secondary(RunResult result, String label) {
+        BenchmarkResult aggregated = result.getAggregatedResult();
+        Map<String, Result> secondary = aggregated.getSecondaryResults();
+        if (secondary.containsKey(label)) return secondary.get(label);
+        return secondary.get("\u00b7" + label);
+    }
+}
@@ -0,0 +1,131 @@
+package ch.ubiment.benchmarks;
+
+import java.util.Random;
+
+import ch.ubiment.sensors.sensordemo.Algebra.Quaternion;
+import ch.ubiment.sensors.sensordemo.Communication.BeaconSample;
+import ch.ubiment.sensors.sensordemo.Communication.ImuSample;
+
+/**
+ * Synthetic but realistic input of the serializers, always the same for a given seed.
+ *
+ * IMU: a phone held in the hand by someone walking at 1.8 steps/s, sampled at 50 Hz like SENSOR_DELAY_GAME.
+ * The heading turns slowly, the phone sways with the steps, and every sensor has its usual noise level.
+ * The two fused quaternions drift a little away from the android one, as they do on the phones.
+ *
+ * Beacons: the reports of one window per second for 12 beacons, as sent by the beacon app with its default settings.
+ * The RSSI follows a random walk between -95 and -55 dBm, a few beacons are out of range from time to time.
+ */
+public final class Traces {
+    private static final double SAMPLE_PERIOD_S = 0.02;
+    private static final double STEP_FREQUENCY_HZ = 1.8;
+    private static final float[] EARTH_GRAVITY = {0f, 0f, 9.81f};
+    private static final float[] EARTH_MAGNETIC_FIELD = {0f, 22f, -42f};     // uT, central Europe
+
+    private Traces() {
+    }
+
+    public static ImuSample[] imu(int samples, long seed) {
+        Random random = new Random(seed);
+        ImuSample[] trace = new ImuSample[samples];
+        long t0 = 1591012345678000000L;
+        double heading = 0;
+        double headingRate = 0;
+        Quaternion previous = null;
+        double driftGravAccGyro = 0;
+        double driftAccGyro = 0;
+        for (int i = 0; i < samples; i++) {
+            double t = i * SAMPLE_PERIOD_S;
+            double phase = 2 * Math.PI * STEP_FREQUENCY_HZ * t;
+
+            // slow turns, and sway of the phone with the steps
+            headingRate = 0.995 * headingRate + 0.002 * random.nextGaussian();
+            heading += headingRate;
+            double pitch = 0.25 + 0.05 * Math.sin(phase);
+            double roll = 0.04 * Math.sin(phase / 2);
+            Quaternion orientation = new Quaternion(heading, new double[]{0, 0, 1})
+                    .times(new Quaternion(pitch, new double[]{1, 0, 0}))
+                    .times(new Quaternion(roll, new double[]{0, 1, 0}));
+
+            ImuSample sample = new ImuSample();
+            sample.sequence = i;
+            // the sensor events are not exactly periodic
+            sample.timestampNanos = t0 + (long) (t * 1e9) + (long) (random.nextGaussian() * 300000);
+
+            float[] gravity = orientation.rotateVector(EARTH_GRAVITY);
+            float[] linear = {
+                    (float) (0.3 * Math.sin(phase / 2) + 0.05 * random.nextGaussian()),
+                    (float) (0.6 * Math.sin(phase + 0.5) + 0.05 * random.nextGaussian()),
+                    (float) (1.5 * Math.sin(phase) + 0.05 * random.nextGaussian())};
+            float[] magnetic = orientation.rotateVector(EARTH_MAGNETIC_FIELD);
+            for (int k = 0; k < 3; k++) {
+                sample.gravity[k] = gravity[k];
+                sample.linearAcceleration[k] = linear[k];
+                sample.accelerometer[k] = gravity[k] + linear[k] + (float) (0.02 * random.nextGaussian());
+                sample.magneticField[k] = magnetic[k] + (float) (0.3 * random.nextGaussian());
+            }
+
+            // angular rate from the previous orientation
+            if (previous != null) {
+                float[] delta = previous.conjugate().times(orientation).getFloatArrayXYZW();
+                for (int k = 0; k < 3; k++) {
+                    sample.gyroscope[k] = (float) (2 * delta[k] / SAMPLE_PERIOD_S + 0.01 * random.nextGaussian());
+                }
+            }
+            previous = orientation;
+
+            orientation.getFloatArrayXYZW(sample.orientationXYZW);
+            driftGravAccGyro += 0.0005 * random.nextGaussian();
+            driftAccGyro += 0.001 * random.nextGaussian();
+            new Quaternion(driftGravAccGyro, new double[]{0, 0, 1}).times(orientation)
+                    .getFloatArrayXYZW(sample.orientationGravAccGyroXYZW);
+            new Quaternion(driftAccGyro, new double[]{0, 0, 1}).times(orientation)
+                    .getFloatArrayXYZW(sample.orientationAccGyroXYZW);
+
+            // a step at every peak of the vertical acceleration, seen by both detectors
+            boolean step = Math.sin(phase) > Math.sin(phase - 2 * Math.PI * STEP_FREQUENCY_HZ * SAMPLE_PERIOD_S)
+                    && Math.sin(phase) > Math.sin(phase + 2 * Math.PI * STEP_FREQUENCY_HZ * SAMPLE_PERIOD_S);
+            sample.isStepDetectedSensor = step;
+            sample.isStepDetected = step;
+            trace[i] = sample;
+        }
+        return trace;
+    }
+
+    public static BeaconSample[] beacons(int windows, int beacons, long seed) {
+        Random random = new Random(seed);
+        double[] rssi = new double[beacons];
+        String[] addresses = new String[beacons];
+        String[] uuids = new String[beacons];
+        for (int b = 0; b < beacons; b++) {
+            rssi[b] = -95 + 40 * random.nextDouble();
+            addresses[b] = String.format("C4:7C:8D:6A:%02X:%02X", b, random.nextInt(256));
+            // the payload of the UbiMesh beacons, see Beacon of the beacon app
+            uuids[b] = String.format("UbiMesh-%02d0c %08x %s", b % 3, random.nextInt(), addresses[b]);
+        }
+
+        BeaconSample[] trace = new BeaconSample[windows * beacons];
+        int n = 0;
+        long t0 = 1591012345000L;
+        for (int w = 0; w < windows; w++) {
+            for (int b = 0; b < beacons; b++) {
+                rssi[b] = Math.max(-100, Math.min(-50, rssi[b] + 2 * random.nextGaussian()));
+                // out of range: no advertisement received during this window
+                if (rssi[b] < -92) continue;
+                int count = 5 + random.nextInt(6);
+                long last = t0 + 1000L * w + random.nextInt(1000);
+                int min = (int) rssi[b] - 1 - random.nextInt(5);
+                int max = (int) rssi[b] + 1 + random.nextInt(5);
+
+                BeaconSample sample = new BeaconSample();
+                sample.setAdvertisement(n, last, addresses[b], uuids[b], 1, 100 + b, -59, 0);
+                sample.setReport(count, (float) rssi[b], min, max, min + random.nextInt(max - min + 1),
+                        last - 100 * (count - 1) - random.nextInt(50));
+                trace[n++] = sample;
+            }
+        }
+        BeaconSample[] received = new BeaconSample[n];
+        System.arraycopy(trace, 0, received, 0, n);
+        return received;
+    }
+}
@@ -0,0 +1,117 @@
+package ch.ubiment.benchmarks;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.ubiment.sensors.sensordemo.Algebra.Quaternion;
+import ch.ubiment.sensors.sensordemo.Communication.ImuFrame;
+import ch.ubiment.sensors.sensordemo.Communication.ImuFrameEncoder;
+import ch.ubiment.sensors.sensordemo.Communication.SendQueue;
+import ch.ubiment.sensors.sensordemo.Communication.UdpClientSend;
+
+/**
+ * Write path of one IMU frame over the loopback interface: DatagramSocket + DatagramPacket (the former transport)
+ * against a connected DatagramChannel writing a direct buffer, and the cost for the sensor thread of handing
+ * a frame to UdpClientSend (claim, encode, publish), the write being done by the sender thread.
+ *
+ * ./gradlew jmhAll --args="TransportBenchmark"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransportBenchmark {
+    private DatagramSocket receiver;
+    private Thread receiverThread;
+    private DatagramSocket socket;
+    private DatagramPacket packet;
+    private DatagramChannel channel;
+    private UdpClientSend client;
+    private final ByteBuffer direct = ByteBuffer.allocateDirect(ImuFrame.FRAME_SIZE);
+    private final ImuFrameEncoder encoder = new ImuFrameEncoder("0123456789abcdef");
+    private final float[] acc = {0.1f, 0.2f, 9.81f};
+    private final Quaternion q = new Quaternion(0.1, 0.2, 0.3, 0.93).normalized();
+    private int sequence = 0;
+
+    @Setup
+    public void setUp() throws IOException {
+        // a receiver is needed, otherwise the connected channel gets PortUnreachableException
+        receiver = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        receiver.setReceiveBufferSize(1 << 22);
+        receiverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                DatagramPacket received = new DatagramPacket(new byte[65536], 65536);
+                try {
+                    while (true) receiver.receive(received);
+                } catch (Exception e) {
+                    // closed
+                }
+            }
+        }, "receiver");
+        receiverThread.start();
+
+        socket = new DatagramSocket();
+        packet = new DatagramPacket(new byte[0], 0, InetAddress.getLoopbackAddress(), receiver.getLocalPort());
+        channel = DatagramChannel.open();
+        channel.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), receiver.getLocalPort()));
+        client = new UdpClientSend("127.0.0.1", receiver.getLocalPort());
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        client.close();
+        socket.close();
+        channel.close();
+        receiver.close();
+        receiverThread.join();
+    }
+
+    @Benchmark
+    public void datagramSocket() throws IOException {
+        ByteBuffer frame = encoder.encode(sequence, sequence, acc, acc, acc, acc, acc, q, q, q, false, false);
+        sequence++;
+        packet.setData(frame.array(), frame.arrayOffset(), frame.limit());
+        socket.send(packet);
+    }
+
+    @Benchmark
+    public int datagramChannel() throws IOException {
+        direct.clear();
+        encoder.encode(direct, sequence, sequence, acc, acc, acc, acc, acc, q, q, q, false, false);
+        sequence++;
+        direct.flip();
+        return channel.write(direct);
+    }
+
+    /**
+     * The queue drops the oldest frame when the sender thread falls behind, as in the app
+     */
+    @Benchmark
+    public boolean udpClientSend() {
+        SendQueue.Slot slot = client.claim();
+        encoder.encode(slot.buffer(), sequence, sequence, acc, acc, acc, acc, acc, q, q, q, false, false);
+        sequence++;
+        return client.publish(slot);
+    }
+}
@@ -0,0 +1,91 @@
+package ch.ubiment.sensors.sensordemo;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.util.Log;
+
+import ch.ubiment.sensors.sensordemo.Sensors.SensorEventRing;
+import ch.ubiment.sensors.sensordemo.Sensors.SensorSample;
+import ch.ubiment.sensors.sensordemo.Sensors.SensorSource;
+
+/**
+ * The sensors of the phone as a SensorSource of SensorCore. The listener runs on the thread of the handler given to
+ * register() and only copies the events into a SensorEventRing, the processing thread reads them with next().
+ * next() returns false when no event is pending, await() waits for the next one.
+ */
+final class AndroidSensorSource implements SensorSource, SensorEventListener {
+    private static final String TAG = "AndroidSensorSource";
+
+    private final SensorManager sensorManager;
+    private final SensorEventRing ring;
+
+    /**
+     * @param capacity: events buffered between the listener and the processing thread
+     */
+    AndroidSensorSource(SensorManager sensorManager, int capacity) {
+        this.sensorManager = sensorManager;
+        this.ring = new SensorEventRing(capacity);
+    }
+
+    /**
+     * Register the default sensor of a type
+     * @param samplingPeriodUs: period in microseconds, or one of the SensorManager.SENSOR_DELAY_* constants
+     * @param maxReportLatencyUs: 0 for no batching in the FIFO of the sensor hub
+     * @param handler: thread of the listener
+     * @return false if the phone has no such sensor
+     */
+    boolean register(int sensorType, int samplingPeriodUs, int maxReportLatencyUs, Handler handler) {
+        Sensor sensor = sensorManager.getDefaultSensor(sensorType);
+        if (sensor == null) {
+            Log.w(TAG, "no sensor of type " + sensorType);
+            return false;
+        }
+        if (maxReportLatencyUs > 0 && sensor.getFifoMaxEventCount() == 0) {
+            Log.w(TAG, sensor.getName() + " has no FIFO, its events are not batched");
+        }
+        return sensorManager.registerListener(this, sensor, samplingPeriodUs, maxReportLatencyUs, handler);
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        // on the thread of the listener: hand the event over to the processing thread, never wait
+        ring.offer(event.sensor.getType(), event.timestamp, event.values);
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    }
+
+    /**
+     * On the processing thread
+     */
+    @Override
+    public boolean next(SensorSample sample) {
+        return ring.poll(sample);
+    }
+
+    /**
+     * Park the processing thread until an event is received, see SensorEventRing.await()
+     */
+    void await(long timeoutNanos) {
+        ring.await(timeoutNanos);
+    }
+
+    /**
+     * Events received while the processing thread was too late
+     */
+    long getDroppedCount() {
+        return ring.getDroppedCount();
+    }
+
+    /**
+     * Unregister every sensor
+     */
+    @Override
+    public void close() {
+        sensorManager.unregisterListener(this);
+    }
+}
@@ -5,6 +5,8 @@ import android.content.SharedPreferences;
 import android.util.Log;
 import java.util.ArrayList;
 
+import ch.ubiment.sensors.sensordemo.Communication.JsonWriter;
+
 
 /**
  * Magnetometer Calibration created by Chloe
@@ -92,12 +94,7 @@ public class CalibrationMagnetometer {
     }
 
     private String floatVector2String(float[] vector){
-        String msg = "[" + vector[0];
-        for (int i = 1; i < vector.length; i++) {
-            msg += ", " + vector[i];
-        }
-        msg += "]";
-        return msg;
+        return JsonWriter.vectorToString(vector);
     }
 
     public float[] magneticField_correction(float[] magneticFieldUncalibrated_vector){
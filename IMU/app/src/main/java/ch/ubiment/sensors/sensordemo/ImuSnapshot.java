@@ -0,0 +1,22 @@
+package ch.ubiment.sensors.sensordemo;
+
+/**
+ * What the processing thread of MainActivity publishes for the display, after every aligned sample.
+ * Exchanged through a TripleBuffer: the OpenGL renderer reads the latest one at every frame.
+ */
+public class ImuSnapshot {
+    public long timestampNanos;
+    public final float[] accelerometer = new float[3];
+    public final float[] gravity = new float[3];
+    public final float[] magneticField = new float[3];
+
+    public final float[] orientationXYZW = new float[4];             // gyroscope only
+    public final float[] orientationGravAccGyroXYZW = new float[4];
+    public final float[] orientationAccGyroXYZW = new float[4];
+    public final float[] fusedOrientationXYZW = new float[4];        // gyroscope + rotation vector
+    public final float[] rotationVectorXYZW = new float[4];
+
+    // the renderer compares them with the previous frame to show the steps, a flag could be missed between frames
+    public int ubiStepCount;
+    public int androidStepCountTriggered;
+}
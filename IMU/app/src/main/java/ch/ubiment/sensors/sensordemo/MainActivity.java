@@ -4,11 +4,13 @@ import android.app.Activity;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.opengl.GLSurfaceView;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.util.Log;
 import android.view.View;
@@ -18,16 +20,42 @@ import android.widget.Button;
 import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Spinner;
+import android.widget.Toast;
 import android.widget.AdapterView.OnItemSelectedListener;
 
 
 import ch.ubiment.sensors.sensordemo.Algebra.Quaternion;
+import ch.ubiment.sensors.sensordemo.Communication.BatchSender;
+import ch.ubiment.sensors.sensordemo.Communication.FrameSerializer;
+import ch.ubiment.sensors.sensordemo.Communication.FrameSerializers;
+import ch.ubiment.sensors.sensordemo.Communication.ImuSample;
+import ch.ubiment.sensors.sensordemo.Communication.ImuSampleMerger;
+import ch.ubiment.sensors.sensordemo.Communication.JsonWriter;
+import ch.ubiment.sensors.sensordemo.Communication.MessageSender;
+import ch.ubiment.sensors.sensordemo.Communication.RateController;
+import ch.ubiment.sensors.sensordemo.Communication.SendQueue;
+import ch.ubiment.sensors.sensordemo.Communication.TcpClientSend;
 import ch.ubiment.sensors.sensordemo.Communication.UdpClientSend;
-import ch.ubiment.sensors.sensordemo.OrientationAlgorithms.AccGyroFusion;
-import ch.ubiment.sensors.sensordemo.OrientationAlgorithms.GravAccGyroFusion;
 import ch.ubiment.sensors.sensordemo.OrientationAlgorithms.OrientationFusion;
 import ch.ubiment.sensors.sensordemo.OpenGL.OpenGLRenderer;
 import ch.ubiment.sensors.sensordemo.OpenGL.Scene;
+import ch.ubiment.sensors.sensordemo.Platform.AndroidPlatform;
+import ch.ubiment.sensors.sensordemo.Sensors.ImuPipeline;
+import ch.ubiment.sensors.sensordemo.Sensors.SensorBurst;
+import ch.ubiment.sensors.sensordemo.Sensors.SensorRateConfig;
+import ch.ubiment.sensors.sensordemo.Sensors.SensorSample;
+import ch.ubiment.sensors.sensordemo.Sensors.SessionRecorder;
+import ch.ubiment.sensors.sensordemo.Sensors.TripleBuffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import static java.lang.Boolean.FALSE;
 import static java.lang.Boolean.TRUE;
@@ -43,56 +71,72 @@ public class MainActivity extends Activity implements AdapterView.OnItemSelected
     private SensorManager mSensorManager;
 
     //definition of all vectors
+    // the aligned vectors of the accelerometer, linear acceleration, gravity, magnetometer and gyroscope are the
+    // ones of the pipeline (see below)
     private float[] accelerometerUncalibrated_vector = new float[6];  // TYPE_ACCELEROMETER_UNCALIBRATED is available since api26
-    private float[] accelerometer_vector = new float[3];  //accelerometer is already a little bit preprocessed.
-    private float[] linearAcceleration_vector = new float[3];  // linear acceleration is gravity free
-    private float[] gravity_vector = new float[3];
-
     private float[] magneticFieldUncalibrated_vector = new float[6];
-    private float[] magneticField_vector = new float[3];
     private float[] magneticFieldCalibrated_vector = new float[] {0,0,0};
-
     private float[] gyroscopeUncalibrated_vector = new float[6];
-    private float[] gyroscope_vector = new float[3];
 
-    // quaternions to store the orientation of differents orientation algos
-    private Quaternion orientationQuaternion = new Quaternion();
-    private Quaternion orientationUncalibratedQuaternion =  new Quaternion();
-    private Quaternion rotationVectorQuaternion =  new Quaternion();
-    private Quaternion orientationGravMagnQuaternion = new Quaternion();
+    // quaternions to store the orientation of differents orientation algos. The gyroscope, GravAccGyro and AccGyro
+    // ones are in the pipeline.
+    private final Quaternion orientationUncalibratedQuaternion =  new Quaternion();
+    // delta rotation of one gyroscope sample, reused by compute_orientation_from_angular_velocity()
+    private final Quaternion deltaRotationQuat = new Quaternion();
+    private final float[] rotationVector_wxyz = new float[4];
+    private final float[] rotationVector_xyzw = {0, 0, 0, 1};
     private Quaternion fusedOrientationQuaternion = new Quaternion();
-    private Quaternion fusedGravAccGyroQuaternion = new Quaternion();
-    private Quaternion fusedAccGyroQuaternion = new Quaternion();
-
-    private UbiStepDetector ubiStepDetector = new UbiStepDetector(0.02f);
 
     // These timestamps are expressed in SECONDS
     private float max_ts = Float.MIN_VALUE;
     private float min_ts = Float.MAX_VALUE;
     private float curr_ts = 0.0f;
 
-    //Definition of Measure switches
-    boolean isMeasured_AccelerometerUncalibrated = (android.os.Build.VERSION.SDK_INT < 26); // remains TRUE if api doesnt support this sensor.;
-    boolean isMeasured_Accelerometer = FALSE;
-    boolean isMeasured_Gravity = FALSE;
-    boolean isMeasured_LinearAcceleration = FALSE;
-
-    boolean isMeasured_MagneticFieldUncalibrated = FALSE;
-    boolean isMeasured_MagneticField = FALSE;
-
-    boolean isMeasured_GyroscopeUncalibrated = FALSE;
-    boolean isMeasured_Gyroscope = FALSE;
-
-    boolean isMeasured_RotationVector = FALSE;
-
-    boolean isCalibrating_Magnetometer = FALSE;
+    // The sensors fire independently, at slightly different rates and phases. Their samples are aligned on a common
+    // time base before the fusion (see Sensors/SensorSynchronizer): every 20 ms, the five vectors are interpolated at
+    // the same timestamp. A sensor which stops is held after 60 ms.
+    // The pipeline then runs the fusion and the step detection (see Sensors/ImuPipeline). Like the rest of the
+    // per-event path, it works on preallocated state: a steady stream of events creates no garbage.
+    // Created in onCreate() for the sampling periods of sensorRates.
+    private ImuPipeline pipeline;
+
+    // sampling period and max report latency of every sensor, in microseconds (see Sensors/SensorRateConfig), e.g.
+    // the gyroscope at 200 Hz and the magnetometer at 10 Hz delivered by batches of 200 ms:
+    // adb shell am start -n <activity> -e sensor_rates gyroscope=5000,magnetic_field=100000/200000
+    // Saved in the preferences, an empty string goes back to SENSOR_DELAY_GAME for all. The effective rates are
+    // logged every RATE_LOG_PERIOD_NS (see Sensors/SensorRateMonitor).
+    private static final String EXTRA_SENSOR_RATES = "sensor_rates";
+    private static final long RATE_LOG_PERIOD_NS = 10000000000L;
+    private SensorRateConfig sensorRates;
+    private long rateLogNanos = 0;
+
+    // Nothing runs on the UI thread between two sensor events. The listeners run on sensorThread and only copy the
+    // events into the ring of sensorSource (see AndroidSensorSource). processingThread reads them and runs the
+    // synchronizer, the fusion, the step detection and the sending. The OpenGL renderer only reads the snapshots
+    // published by processingThread (see Sensors/TripleBuffer), the UI thread only reads the step counters.
+    private static final int SENSOR_RING_CAPACITY = 1024;          // 2 s of events at 500 events/s
+    private static final int PROCESSING_BATCH = 64;                // events between two checks of pendingSender
+    private static final long PROCESSING_WAIT_NS = 100000000L;
+    private AndroidSensorSource sensorSource;
+    private final SensorSample sensorEvent = new SensorSample();     // on processingThread
+    private HandlerThread sensorThread;
+    private Thread processingThread;
+    private volatile boolean processing = true;
+    private final TripleBuffer<ImuSnapshot> displaySnapshots =
+            new TripleBuffer<>(new ImuSnapshot(), new ImuSnapshot(), new ImuSnapshot());
+    // step counters of the last frame drawn, on the GL thread
+    private int drawnUbiStepCount = 0;
+    private int drawnAndroidStepCountTriggered = -1;
+
+    volatile boolean isCalibrating_Magnetometer = FALSE;
 
     boolean isAndroidStepDetected = FALSE;   // is step detected by android
     boolean isUbiStepDetected = FALSE;         // is step detected by UbiStep
     int androidStepCountInitalValue = -1;   // Android step counter doesnt start at 0. So we will store the initial value in this variable adn compute the difference at each steps
-    int androidStepCountTriggered = -1;     // number of time the android step counter trigger the callback. We start at -1 because the callback is also fired once at initialization
-    int androidStepCount = -1;              // number of step detected by android
-    int ubiStepCount = 0;                   // number of step detected by UbiStep
+    // the counters are written by the processing thread and displayed by the UI thread
+    volatile int androidStepCountTriggered = -1;     // number of time the android step counter trigger the callback. We start at -1 because the callback is also fired once at initialization
+    volatile int androidStepCount = -1;              // number of step detected by android
+    volatile int ubiStepCount = 0;                   // number of step detected by UbiStep
 
     /*
     //Definiton of Orientation Vectors
@@ -104,7 +148,6 @@ public class MainActivity extends Activity implements AdapterView.OnItemSelected
     // Create a constant to convert nanoseconds to seconds.
     private static final float NS2S = 1.0f / 1000000000.0f;
     public static final float EPSILON = 0.000000001f;
-    private float gyroscope_ts = 0.0f;
     private float gyroscopeUncalibrated_ts = 0.0f;
     private float prev_ts = 0.0f;
 
@@ -112,7 +155,53 @@ public class MainActivity extends Activity implements AdapterView.OnItemSelected
 
     private String udp_ip;
     private int udp_port = 7586;
-    private UdpClientSend udpClient;
+    // recording mode: every message is sent over TCP and acknowledged (see Communication/TcpClientSend).
+    // Toggled by a long click on the Socket button, the choice is saved.
+    private volatile boolean useTcpRecording = false;
+    private int tcp_port = 7587;
+    private MessageSender sender;   // used by the processing thread only, see switch_sender()
+    // client created by restart_socket() on the UI thread, taken over by the processing thread
+    private final AtomicReference<MessageSender> pendingSender = new AtomicReference<>();
+
+    // format of the messages (see Communication/FrameSerializers): json for the python scripts (default),
+    // binary (~5 times smaller) or delta (~15 times smaller) if your receiver decodes them.
+    // Saved in the preferences, set it when starting the app: adb shell am start -n <activity> -e frame_format delta
+    private static final String EXTRA_FRAME_FORMAT = "frame_format";
+    private FrameSerializer<ImuSample> serializer;
+    private final ImuSample imuSample = new ImuSample();
+    // 10 to 16 to compress the three quaternions of the binary frames (see Algebra/QuaternionCompression), 0 for floats
+    private static final int QUATERNION_BITS = 0;
+    private int frameSequence = 0;      // sequence number of the messages, see SequenceTracker
+    private long epochOffset_ns = 0;    // add it to a SensorEvent.timestamp to get nanoseconds since epoch
+    private long sync_ts_ns = 0;        // SensorEvent time base, timestamp of the aligned sample being processed
+
+    // pack several frames per datagram (see Communication/FrameBatch). The receiver must unbatch them.
+    private boolean useBatching = false;
+    private static final int BATCH_MTU = 1472;          // bytes, fits in a single ethernet frame
+    private static final long BATCH_MAX_LATENCY_MS = 40;
+
+    // with batched sensors (a max report latency in sensorRates), the events of a FIFO flush are sorted and processed
+    // as one burst (see Sensors/SensorBurst). The frames of a burst are still sent one per datagram, unless useBatching:
+    // they are then sent together in one datagram (see Communication/BatchSender) instead of by the client.
+    private boolean useBurstProcessing = false;
+    private final SensorBurst sensorBurst = new SensorBurst(SENSOR_RING_CAPACITY, 3);
+    private final BatchSender batchSender = new BatchSender(BATCH_MTU);
+    private final ByteBuffer burstFrame = ByteBuffer.allocate(UdpClientSend.DEFAULT_SLOT_SIZE);
+
+    // record every raw event and every fused sample on the phone, whether the receiver is reachable or not (see
+    // Sensors/SessionRecorder), into files/sessions/<start time> of the external storage of the app:
+    // adb shell am start -n <activity> --ez record_session true [--ei segment_size_mb 8]. The choice is saved.
+    // Read the sessions back with Sensors/SessionReader.
+    private static final String EXTRA_RECORD_SESSION = "record_session";
+    private static final String EXTRA_SEGMENT_SIZE_MB = "segment_size_mb";
+    private SessionRecorder sessionRecorder;    // null when not recording, used by processingThread
+    private final ImuSample recordedSample = new ImuSample();
+
+    // lower the rate of the messages when the network can not keep up (see Communication/RateController).
+    // The samples which are not sent are averaged into the next one which is, the steps are never lost.
+    private boolean useAdaptiveRate = true;
+    private RateController rateController = newRateController();
+    private ImuSampleMerger sampleMerger = new ImuSampleMerger();
 
     private String TAG = "MainActivity";
     //private SntpClient sntpClient;      // parameter for the SNTP protocol
@@ -133,10 +222,14 @@ public class MainActivity extends Activity implements AdapterView.OnItemSelected
 
     // fusion of gyroscope and rotation_vector
     OrientationFusion orientationFuser = new OrientationFusion();
-    // fusion of gravity acceleration and gyroscope
-    GravAccGyroFusion gravAccGyroFuser = new GravAccGyroFusion();
-    // fusion of acceleration and gyroscope
-    AccGyroFusion accGyroFuser = new AccGyroFusion();
+
+    // vertices of the lines, updated in place by update_opengl_view()
+    private final float[] accXVertices = {0.0f, -2.5f, 0.0f, 0.0f, -2.5f, 0.0f};
+    private final float[] accYVertices = {0.0f, -2.75f, 0.0f, 0.0f, -2.75f, 0.0f};
+    private final float[] accZVertices = {0.0f, -3.0f, 0.0f, 0.0f, -3.0f, 0.0f};
+    private final float[] stepVertices = {-2.0f, 0.0f, 0.0f, -2.0f, 0.0f, 0.0f};
+    private final float[] stepSensorVertices = {-1.7f, 0.0f, 0.0f, -1.7f, 0.0f, 0.0f};
+    private final float[] rotationCurrent = new float[16];
 
     // some orientation algos are deprecated because they were not good enough so I stop maintaining them
     private static final String [] orientationType = {
@@ -148,7 +241,7 @@ public class MainActivity extends Activity implements AdapterView.OnItemSelected
             "Android (deprecated)"
     };
     private Spinner spinner;
-    private String orientationSelection = orientationType[0];
+    private volatile String orientationSelection = orientationType[0];
 
     //calibration of magnetic field
     CalibrationMagnetometer magnetometer_calibrated = new CalibrationMagnetometer();
@@ -166,16 +259,6 @@ public class MainActivity extends Activity implements AdapterView.OnItemSelected
             gyroscopeUncalibrated_vector[i] = 0;
         }
 
-        // init len 3 vectors
-        for (int i = 0; i < 3; i++) {
-            accelerometer_vector[i] = 0;
-
-            magneticField_vector[i] = 0;
-            gravity_vector[i] = 0;
-            linearAcceleration_vector[i] = 0;
-            gyroscope_vector[i] = 0;
-        }
-
         float[] one4f = {1.0f, 1.0f, 1.0f, 1.0f};
         float[] one3f = {1.0f, 1.0f, 1.0f};
         float[] zeros3f = {0.0f, 0.0f, 0.0f};
@@ -193,12 +276,47 @@ public class MainActivity extends Activity implements AdapterView.OnItemSelected
         // -----------------------------------------------------------------------------------------
         // get android_id
         android_id = Settings.Secure.getString(getApplicationContext().getContentResolver(), Settings.Secure.ANDROID_ID);
+        // SensorEvent.timestamp uses the elapsedRealtimeNanos time base
+        epochOffset_ns = System.currentTimeMillis() * 1000000L - SystemClock.elapsedRealtimeNanos();
 
         SharedPreferences sharedPref = getPreferences(Context.MODE_PRIVATE);
         String defaultValue = getResources().getString(R.string.udp_ip_saved);
         udp_ip = sharedPref.getString(getString(R.string.udp_ip_saved), defaultValue);
         Log.d(TAG, "Saved IP is " + udp_ip);
-        udpClient = new UdpClientSend(udp_ip, udp_port);
+        useTcpRecording = sharedPref.getBoolean(getString(R.string.tcp_recording_saved), false);
+        String frameFormat = getIntent().getStringExtra(EXTRA_FRAME_FORMAT);
+        if (frameFormat != null) {
+            sharedPref.edit().putString(getString(R.string.frame_format_saved), frameFormat).commit();
+        } else {
+            frameFormat = sharedPref.getString(getString(R.string.frame_format_saved), FrameSerializers.JSON);
+        }
+        serializer = FrameSerializers.imu(frameFormat, android_id, QUATERNION_BITS);
+        Log.d(TAG, "Frame format is " + serializer.getName());
+        String rates = getIntent().getStringExtra(EXTRA_SENSOR_RATES);
+        if (rates != null) {
+            sharedPref.edit().putString(getString(R.string.sensor_rates_saved), rates).commit();
+        } else {
+            rates = sharedPref.getString(getString(R.string.sensor_rates_saved), "");
+        }
+        try {
+            sensorRates = SensorRateConfig.parse(rates);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "invalid sensor rates, using the defaults: " + e.getMessage());
+            sensorRates = new SensorRateConfig();
+        }
+        Log.d(TAG, "Sensor rates are " + sensorRates);
+        pipeline = new ImuPipeline(sensorRates, AndroidPlatform.LOGGER);
+        useBurstProcessing = sensorRates.getMaxReportLatencyUs() > 0;
+        if (useBurstProcessing) Log.d(TAG, "Burst processing of the batched sensors");
+        if (getIntent().hasExtra(EXTRA_RECORD_SESSION)) {
+            sharedPref.edit().putBoolean(getString(R.string.record_session_saved),
+                    getIntent().getBooleanExtra(EXTRA_RECORD_SESSION, false)).commit();
+        }
+        if (sharedPref.getBoolean(getString(R.string.record_session_saved), false)) {
+            long segmentSize = getIntent().getIntExtra(EXTRA_SEGMENT_SIZE_MB, 0) * (1L << 20);
+            sessionRecorder = newSessionRecorder(segmentSize > 0 ? segmentSize : SessionRecorder.DEFAULT_SEGMENT_SIZE);
+        }
+        sender = newSender(udp_ip);
         //sntpClient = new SntpClient();
 
         // -----------------------------------------------------------------------------------------
@@ -207,6 +325,12 @@ public class MainActivity extends Activity implements AdapterView.OnItemSelected
         // init opengl view
         setContentView(R.layout.activity_main);
         surfaceView = (GLSurfaceView) findViewById(R.id.openGLDemoSurfaceView);
+        openGLRenderer.setFrameListener(new OpenGLRenderer.FrameListener() {
+            @Override
+            public void onFrame() {
+                update_opengl_view();
+            }
+        });
         surfaceView.setRenderer(openGLRenderer);
 
         // Set the text in the top bar (name and version). It should be something like: "U-IMU v2.0"
@@ -218,6 +342,21 @@ public class MainActivity extends Activity implements AdapterView.OnItemSelected
         final EditText udpIpEntry = (EditText) findViewById(R.id.editText);
         udpIpEntry.setText(udp_ip);
 
+        // a long click on the Socket button switches between UDP and the TCP recording mode
+        Button btn_restartsocket = (Button) findViewById(R.id.button_restartsocket);
+        btn_restartsocket.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                useTcpRecording = !useTcpRecording;
+                SharedPreferences.Editor editor = getPreferences(Context.MODE_PRIVATE).edit();
+                editor.putBoolean(getString(R.string.tcp_recording_saved), useTcpRecording);
+                editor.commit();
+                restart_socket();
+                Toast.makeText(MainActivity.this, useTcpRecording ? "TCP recording" : "UDP", Toast.LENGTH_SHORT).show();
+                return true;
+            }
+        });
+
         //init textview
         String defaultValue2 = getResources().getString(R.string.offset_saved);
         String offset = sharedPref.getString(getString(R.string.offset_saved), defaultValue2);
@@ -244,33 +383,74 @@ public class MainActivity extends Activity implements AdapterView.OnItemSelected
         // -----------------------------------------------------------------------------------------
         //initialize sensor manager
         mSensorManager = (SensorManager) this.getSystemService(Context.SENSOR_SERVICE);
+        sensorSource = new AndroidSensorSource(mSensorManager, SENSOR_RING_CAPACITY);
+
+        processingThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+                process();
+            }
+        }, "ImuProcessing");
+        processingThread.start();
+        sensorThread = new HandlerThread("ImuSensors", Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        sensorThread.start();
+        Handler sensorHandler = new Handler(sensorThread.getLooper());
 
         int delay = SensorManager.SENSOR_DELAY_GAME; // SENSOR_DELAY_GAME means 0.02 delay -> 50 samples/s
         // acceleration sensors
         // TYPE_ACCELEROMETER_UNCALIBRATED is available since api 26 (Android 8.0 Oreo)
-        //if (android.os.Build.VERSION.SDK_INT >= 26) mSensorManager.registerListener(mSensorListener, mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER_UNCALIBRATED), delay);
-        mSensorManager.registerListener(mSensorListener, mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER), delay);  // TYPE_ACCELEROMETER is already little bit preprocessed.
-        mSensorManager.registerListener(mSensorListener, mSensorManager.getDefaultSensor(Sensor.TYPE_LINEAR_ACCELERATION), delay);
-        mSensorManager.registerListener(mSensorListener, mSensorManager.getDefaultSensor(Sensor.TYPE_GRAVITY), delay);
+        //if (android.os.Build.VERSION.SDK_INT >= 26) sensorSource.register(Sensor.TYPE_ACCELEROMETER_UNCALIBRATED, delay, 0, sensorHandler);
+        registerSensor(Sensor.TYPE_ACCELEROMETER, ImuPipeline.ACCELEROMETER, sensorHandler);  // TYPE_ACCELEROMETER is already little bit preprocessed.
+        registerSensor(Sensor.TYPE_LINEAR_ACCELERATION, ImuPipeline.LINEAR_ACCELERATION, sensorHandler);
+        registerSensor(Sensor.TYPE_GRAVITY, ImuPipeline.GRAVITY, sensorHandler);
 
         // Magnetometer
-        //mSensorManager.registerListener(mSensorListener, mSensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD_UNCALIBRATED), delay);
-        mSensorManager.registerListener(mSensorListener, mSensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD), delay);
+        //sensorSource.register(Sensor.TYPE_MAGNETIC_FIELD_UNCALIBRATED, delay, 0, sensorHandler);
+        registerSensor(Sensor.TYPE_MAGNETIC_FIELD, ImuPipeline.MAGNETIC_FIELD, sensorHandler);
 
         // Gyroscopes
-        //mSensorManager.registerListener(mSensorListener, mSensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE_UNCALIBRATED), delay);
-        mSensorManager.registerListener(mSensorListener, mSensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE), delay);
+        //sensorSource.register(Sensor.TYPE_GYROSCOPE_UNCALIBRATED, delay, 0, sensorHandler);
+        registerSensor(Sensor.TYPE_GYROSCOPE, ImuPipeline.GYROSCOPE, sensorHandler);
 
         // Orientation
-        //mSensorManager.registerListener(mSensorListener, mSensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR), delay);
+        //sensorSource.register(Sensor.TYPE_ROTATION_VECTOR, delay, 0, sensorHandler);
 
         // Step detector: Please, choose either STEP_DETECOR or STEP_COUNTER. Not both of them at the same time
-        //mSensorManager.registerListener(mSensorListener, mSensorManager.getDefaultSensor(Sensor.TYPE_STEP_DETECTOR), delay);
-        mSensorManager.registerListener(mSensorListener, mSensorManager.getDefaultSensor(Sensor.TYPE_STEP_COUNTER), delay);
+        //sensorSource.register(Sensor.TYPE_STEP_DETECTOR, delay, 0, sensorHandler);
+        sensorSource.register(Sensor.TYPE_STEP_COUNTER, delay, 0, sensorHandler);
     }
 
 
 
+    /**
+     * Register a sensor of the pipeline at the sampling period and max report latency of sensorRates
+     */
+    private void registerSensor(int sensorType, int channel, Handler handler) {
+        if (!sensorSource.register(sensorType, (int) sensorRates.getSamplingPeriodUs(channel),
+                (int) sensorRates.getMaxReportLatencyUs(channel), handler)) {
+            Log.w(TAG, "no sensor " + SensorRateConfig.NAMES[channel]);
+        }
+    }
+
+    /**
+     * @return null if the session can not be created
+     */
+    private SessionRecorder newSessionRecorder(long segmentSize) {
+        File root = getExternalFilesDir(null);
+        if (root == null) root = getFilesDir();
+        String name = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.ROOT).format(new Date());
+        try {
+            SessionRecorder recorder = new SessionRecorder(new File(new File(root, "sessions"), name), segmentSize,
+                    epochOffset_ns);
+            Log.d(TAG, "Recording the session into " + recorder.getDirectory());
+            return recorder;
+        } catch (IOException e) {
+            Log.e(TAG, "can not record the session", e);
+            return null;
+        }
+    }
+
     public void onClick(View view) {
         int id = view.getId();
         switch (id) {
@@ -299,8 +479,33 @@ public class MainActivity extends Activity implements AdapterView.OnItemSelected
     public void onDestroy() {
         super.onDestroy();
         Log.d(TAG, "onDestroy()");
-        mSensorManager.unregisterListener(mSensorListener);
-        udpClient.close();
+        sensorSource.close();
+        sensorThread.quitSafely();
+        processing = false;
+        LockSupport.unpark(processingThread);
+        try {
+            processingThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        MessageSender pending = pendingSender.getAndSet(null);
+        if (pending != null) pending.close();
+        if (sessionRecorder != null) {
+            Log.d(TAG, "session: " + sessionRecorder);
+            close_session();
+        }
+        Log.d(TAG, "sensor events dropped: " + sensorSource.getDroppedCount());
+        Log.d(TAG, "send latency: " + sender.getQueueLatency());
+        Log.d(TAG, "udp " + rateController);
+        Log.d(TAG, "sync " + pipeline);
+        Log.d(TAG, "rates\n" + pipeline.getRateMonitor());
+        if (useBurstProcessing) {
+            Log.d(TAG, "bursts: events dropped: " + sensorBurst.getDroppedCount());
+        }
+        if (useBurstProcessing && useBatching) {
+            Log.d(TAG, "bursts: " + batchSender.getFrameCount() + " frames in " + batchSender.getBatchCount() + " datagrams");
+        }
+        sender.close();
     }
 
 
@@ -334,85 +539,141 @@ public class MainActivity extends Activity implements AdapterView.OnItemSelected
 
 
 
-    SensorEventListener mSensorListener = new SensorEventListener() {
+    private final Runnable stepCounterUpdater = new Runnable() {
         @Override
-        public void onAccuracyChanged(Sensor sensor, int accuracy) {
+        public void run() {
+            update_stepCounterTextView();
+        }
+    };
+
+    /**
+     * Loop of the processing thread
+     */
+    private void process() {
+        while (processing) {
+            MessageSender next = pendingSender.getAndSet(null);
+            if (next != null) switch_sender(next);
+            int events = useBurstProcessing ? process_burst() : process_events();
+            if (events == 0) sensorSource.await(PROCESSING_WAIT_NS);
         }
+    }
+
+    /**
+     * Process the pending events one by one, on the processing thread
+     * @return number of events
+     */
+    private int process_events() {
+        int events = 0;
+        while (events < PROCESSING_BATCH && sensorSource.next(sensorEvent)) {
+            record_event();
+            acquire(sensorEvent.type, sensorEvent.timestampNanos, sensorEvent.values);
+            events++;
+        }
+        return events;
+    }
+
+    private final ImuPipeline.Listener sampleListener = new ImuPipeline.Listener() {
         @Override
-        public void onSensorChanged(SensorEvent event) {
-            acquire(event);
+        public void onSample(ImuPipeline pipeline) {
+            process_sample();
         }
     };
 
+    /**
+     * Process the events received since the previous call as one burst, then send its frames, on the processing
+     * thread
+     * @return number of events
+     */
+    private int process_burst() {
+        int events = 0;
+        while (events < SENSOR_RING_CAPACITY && sensorSource.next(sensorEvent)) {
+            record_event();
+            int channel = ImuPipeline.channelOf(sensorEvent.type);
+            if (channel < 0) {
+                acquire_event(sensorEvent.type, sensorEvent.timestampNanos, sensorEvent.values);
+            } else {
+                sensorBurst.add(channel, sensorEvent.timestampNanos, sensorEvent.values);
+            }
+            events++;
+        }
+        if (!sensorBurst.isEmpty()) pipeline.process(sensorBurst, sampleListener);
+        batchSender.flush(sender);
+        return events;
+    }
+
+
 
+    /**
+     * Process a sensor event, on the processing thread
+     */
+    public void acquire(int sensorType, long timestamp, float[] values){
+        acquire_event(sensorType, timestamp, values);
+
+        // every aligned and fused sample which is due, usually zero or one
+        while (pipeline.poll()) {
+            process_sample();
+        }
+    }
 
-    public void acquire(SensorEvent event){
-        float new_ts = event.timestamp * NS2S;
+    /**
+     * Record a sensor event, without producing the samples
+     */
+    private void acquire_event(int sensorType, long timestamp, float[] values){
+        float new_ts = timestamp * NS2S;
         max_ts = Math.max(new_ts, max_ts);
         min_ts = Math.min(new_ts, min_ts);
 
-        switch (event.sensor.getType()){
+        switch (sensorType){
             case Sensor.TYPE_ACCELEROMETER_UNCALIBRATED:
                 // this sensor is only supported by api level 26 or higher
-                copyToVector(accelerometerUncalibrated_vector, event);
-                isMeasured_AccelerometerUncalibrated = TRUE;
+                copyToVector(accelerometerUncalibrated_vector, values);
                 break;
 
             case Sensor.TYPE_ACCELEROMETER:
-                copyToVector(accelerometer_vector, event);
-                isMeasured_Accelerometer = TRUE;
+                pipeline.add(ImuPipeline.ACCELEROMETER, timestamp, values);
                 break;
 
             case Sensor.TYPE_LINEAR_ACCELERATION:
-                copyToVector(linearAcceleration_vector, event);
-                isMeasured_LinearAcceleration = TRUE;
+                pipeline.add(ImuPipeline.LINEAR_ACCELERATION, timestamp, values);
                 break;
 
             case Sensor.TYPE_GRAVITY:
-                copyToVector(gravity_vector, event);
-                isMeasured_Gravity = TRUE;
+                pipeline.add(ImuPipeline.GRAVITY, timestamp, values);
                 break;
 
 
             case Sensor.TYPE_MAGNETIC_FIELD_UNCALIBRATED:
-                copyToVector(magneticFieldUncalibrated_vector, event);
-                isMeasured_MagneticFieldUncalibrated = TRUE;
+                copyToVector(magneticFieldUncalibrated_vector, values);
                 if (isCalibrating_Magnetometer) magnetometer_calibrated.updateCalibration(magneticFieldUncalibrated_vector);
                 magneticFieldCalibrated_vector = magnetometer_calibrated.magneticField_correction(magneticFieldUncalibrated_vector);
                 //Log.d(TAG,"calibrated: "+floatVector2String(magneticFieldCalibrated_vector));
                 break;
 
             case Sensor.TYPE_MAGNETIC_FIELD:
-                copyToVector(magneticField_vector, event);
-
-                isMeasured_MagneticField = TRUE;
+                pipeline.add(ImuPipeline.MAGNETIC_FIELD, timestamp, values);
                 break;
 
 
             case Sensor.TYPE_GYROSCOPE_UNCALIBRATED:
-                copyToVector(gyroscopeUncalibrated_vector, event);
+                copyToVector(gyroscopeUncalibrated_vector, values);
                 // the compute orientation function modifies the quaternion input
-                orientationUncalibratedQuaternion = compute_orientation_from_angular_velocity(orientationUncalibratedQuaternion, gyroscopeUncalibrated_vector, new_ts, gyroscopeUncalibrated_ts);
+                compute_orientation_from_angular_velocity(orientationUncalibratedQuaternion, gyroscopeUncalibrated_vector, new_ts, gyroscopeUncalibrated_ts);
                 gyroscopeUncalibrated_ts = new_ts;
-                isMeasured_GyroscopeUncalibrated = TRUE;
                 break;
 
             case Sensor.TYPE_GYROSCOPE:
-                copyToVector(gyroscope_vector, event);
-                // the compute orientation function modifies the quaternion input
-                orientationQuaternion = compute_orientation_from_angular_velocity(orientationQuaternion, gyroscope_vector, new_ts, gyroscope_ts);
-                gyroscope_ts = new_ts;
-                isMeasured_Gyroscope = TRUE;
+                // the pipeline integrates every sample of the gyroscope, not only the aligned ones
+                pipeline.add(ImuPipeline.GYROSCOPE, timestamp, values);
                 break;
 
             case Sensor.TYPE_ROTATION_VECTOR:
-                float[] rotation_vector_wxyz = new float[4];
-                // the compute orientation function modifies the quaternion input
-                SensorManager.getQuaternionFromVector(rotation_vector_wxyz, event.values);
+                SensorManager.getQuaternionFromVector(rotationVector_wxyz, values);
 
-                // Store in quaternion
-                rotationVectorQuaternion = new Quaternion(rotation_vector_wxyz[1], rotation_vector_wxyz[2], rotation_vector_wxyz[3], rotation_vector_wxyz[0]);
-                isMeasured_RotationVector = TRUE;
+                // Store in xyzw order
+                rotationVector_xyzw[0] = rotationVector_wxyz[1];
+                rotationVector_xyzw[1] = rotationVector_wxyz[2];
+                rotationVector_xyzw[2] = rotationVector_wxyz[3];
+                rotationVector_xyzw[3] = rotationVector_wxyz[0];
                 break;
 
             case Sensor.TYPE_STEP_DETECTOR:
@@ -420,90 +681,106 @@ public class MainActivity extends Activity implements AdapterView.OnItemSelected
                 // With step detector, androidStepCountTriggered and androidStepCount will have the same value
                 androidStepCountTriggered += 1;
                 androidStepCount += 1;
-                update_stepCounterTextView();
+                runOnUiThread(stepCounterUpdater);
                 break;
 
             case Sensor.TYPE_STEP_COUNTER:
                 isAndroidStepDetected = TRUE;
                 // if it is the very first step detected, we store the initial value of the step counter
                 if (androidStepCountTriggered == -1){
-                    androidStepCountInitalValue = (int)event.values[0];
+                    androidStepCountInitalValue = (int)values[0];
                 }
                 androidStepCountTriggered += 1;
-                androidStepCount = (int)event.values[0] - androidStepCountInitalValue;
-                update_stepCounterTextView();
+                androidStepCount = (int)values[0] - androidStepCountInitalValue;
+                runOnUiThread(stepCounterUpdater);
                 break;
         }
+    }
 
-        if (
-                //isMeasured_AccelerometerUncalibrated &
-                isMeasured_Accelerometer &
-                isMeasured_LinearAcceleration &
-                isMeasured_Gravity &
-                //isMeasured_MagneticFieldUncalibrated &
-                isMeasured_MagneticField &
-                //isMeasured_GyroscopeUncalibrated &
-                isMeasured_Gyroscope //&
-                //isMeasured_RotationVector
-
-            ){
-            isMeasured_AccelerometerUncalibrated = (android.os.Build.VERSION.SDK_INT < 26);  // remains TRUE if api doesnt support this sensor.
-            isMeasured_Accelerometer = FALSE;
-            isMeasured_LinearAcceleration = FALSE;
-            isMeasured_Gravity = FALSE;
-
-            isMeasured_MagneticFieldUncalibrated = FALSE;
-            isMeasured_MagneticField = FALSE;
-
-            isMeasured_GyroscopeUncalibrated = FALSE;
-            isMeasured_Gyroscope = FALSE;
-
-            isMeasured_RotationVector = FALSE;
-
-
-            // matrice de rotation grace au magnetic et gravity
-            //float[] orientationGravMagnMatrix = new float[9];
-            //SensorManager.getRotationMatrix(orientationGravMagnMatrix, null, gravity_vector, magneticField_vector);
-            //orientationGravMagnQuaternion = new Quaternion(orientationGravMagnMatrix);
-
-            // Fusion of ROTATION_VECTOR with GYROSCOPE
-            // fusedOrientationQuaternion = orientationFuser.update(rotationVectorQuaternion, gyroscope_vector, gyroscope_ts);
-
-            // Fusion of GRAVITY, ACCELERATION and GYROSCOPE
-            fusedGravAccGyroQuaternion = gravAccGyroFuser.update(gravity_vector, accelerometer_vector, gyroscope_vector, gyroscope_ts);
-
-            // Fusion of ACCELERATION and GYROSCOPE
-            fusedAccGyroQuaternion = accGyroFuser.update(accelerometer_vector, gyroscope_vector, gyroscope_ts);
+    /**
+     * Display and send the last sample of the pipeline
+     */
+    private void process_sample(){
+        sync_ts_ns = pipeline.getTimestamp();
+        float sync_ts = sync_ts_ns * NS2S;
+
+        // Fusion of ROTATION_VECTOR with GYROSCOPE
+        // fusedOrientationQuaternion = orientationFuser.update(rotationVectorQuaternion, gyroscope_vector, sync_ts);
+
+        // Fusion of GRAVITY, ACCELERATION and GYROSCOPE, fusion of ACCELERATION and GYROSCOPE, and UbiStepDetector
+        // on the latter: see ImuPipeline
+        isUbiStepDetected = pipeline.isStepDetected();
+        if (isUbiStepDetected){
+            ubiStepCount = pipeline.getStepCount();
+            runOnUiThread(stepCounterUpdater);
+        }
 
+        //Log.d(TAG, "acquire: true");
+        record_sample();
+        send_values();
+        publish_snapshot();
 
-            isUbiStepDetected = ubiStepDetector.update(accelerometer_vector, fusedAccGyroQuaternion, gyroscope_ts);
-            if (isUbiStepDetected){
-                ubiStepCount += 1;
-                update_stepCounterTextView();
-            }
+        if (sync_ts_ns - rateLogNanos >= RATE_LOG_PERIOD_NS) {
+            rateLogNanos = sync_ts_ns;
+            Log.i(TAG, "rates\n" + pipeline.getRateMonitor());
+        }
+        curr_ts = sync_ts;
+        max_ts = Float.MIN_VALUE;
+        min_ts = Float.MAX_VALUE;
+        isUbiStepDetected = FALSE;
+        isAndroidStepDetected = FALSE;
+    }
 
-            //Log.d(TAG, "acquire: true");
-            send_values();
-            update_opengl_view();
+    /**
+     * Record the raw event being processed, on the processing thread
+     */
+    private void record_event() {
+        if (sessionRecorder == null) return;
+        try {
+            sessionRecorder.recordEvent(sensorEvent);
+        } catch (IOException e) {
+            Log.e(TAG, "session recording stopped", e);
+            close_session();
+        }
+    }
 
-            //Log.d(TAG, "EG: dT: " + (new_ts-curr_ts) + " [s] \trate: " + (1.0f/(new_ts-curr_ts)) + " \n");
-            curr_ts = new_ts;
-            max_ts = Float.MIN_VALUE;
-            min_ts = Float.MAX_VALUE;
+    /**
+     * Record the sample of the pipeline before its rate is adapted to the network, on the processing thread
+     */
+    private void record_sample() {
+        if (sessionRecorder == null) return;
+        recordedSample.set((int) sessionRecorder.getSampleCount(), epochOffset_ns + sync_ts_ns,
+                pipeline.getAccelerometer(), pipeline.getLinearAcceleration(), pipeline.getGravity(),
+                pipeline.getMagneticField(), pipeline.getGyroscope(),
+                pipeline.getOrientationXYZW(), pipeline.getOrientationGravAccGyroXYZW(),
+                pipeline.getOrientationAccGyroXYZW(),
+                isAndroidStepDetected, isUbiStepDetected);
+        try {
+            sessionRecorder.recordSample(recordedSample);
+        } catch (IOException e) {
+            Log.e(TAG, "session recording stopped", e);
+            close_session();
+        }
+    }
 
-            Log.d(TAG, "\tUbiStep Counter:" + ubiStepCount + "\tAndroid Step Counter:" + androidStepCountTriggered + "/" + androidStepCount);
-            isUbiStepDetected = FALSE;
-            isAndroidStepDetected = FALSE;
+    private void close_session() {
+        try {
+            sessionRecorder.close();
+        } catch (IOException e) {
+            Log.w(TAG, "session not closed cleanly: " + e.getMessage());
         }
+        sessionRecorder = null;
     }
 
     public void restart_socket() {
         //replace the udpclient if target IP has changed
         final EditText udpIpEntry = (EditText) findViewById(R.id.editText);
         String new_udp_ip = udpIpEntry.getText().toString();
-        udpClient.close();
-        udpClient = new UdpClientSend(new_udp_ip, udp_port);
-        Log.d(TAG, "New udp client created with ip " + new_udp_ip);
+        // the processing thread switches to the new client between two events
+        MessageSender previous = pendingSender.getAndSet(newSender(new_udp_ip));
+        if (previous != null) previous.close();
+        LockSupport.unpark(processingThread);
+        Log.d(TAG, "New " + (useTcpRecording ? "tcp" : "udp") + " client created with ip " + new_udp_ip);
 
         if (!udp_ip.equals(new_udp_ip)) {
             SharedPreferences sharedPref = getPreferences(Context.MODE_PRIVATE);
@@ -515,56 +792,126 @@ public class MainActivity extends Activity implements AdapterView.OnItemSelected
 
     }
 
+    /**
+     * Replace the client, on the processing thread
+     */
+    private void switch_sender(MessageSender next) {
+        Log.d(TAG, "send latency: " + sender.getQueueLatency());
+        Log.d(TAG, "udp " + rateController);
+        Log.d(TAG, "sync " + pipeline);
+        sender.close();
+        sender = next;
+        // the first frame for the new receiver must not depend on the previous ones
+        serializer.reset();
+        // the counters of the new client start from 0
+        rateController = newRateController();
+        sampleMerger.clear();
+    }
+
+    private MessageSender newSender(String ip) {
+        if (useTcpRecording) {
+            return new TcpClientSend(ip, tcp_port, AndroidPlatform.LOGGER);
+        }
+        UdpClientSend udpClient = new UdpClientSend(ip, udp_port, AndroidPlatform.LOGGER);
+        if (useBatching && !useBurstProcessing) udpClient.enableBatching(BATCH_MTU, BATCH_MAX_LATENCY_MS);
+        return udpClient;
+    }
+
+    /**
+     * With batching, a frame waits up to BATCH_MAX_LATENCY_MS in the queue before the network is even involved
+     */
+    private RateController newRateController() {
+        long latencyMargin = useBatching ? BATCH_MAX_LATENCY_MS : 0;
+        return new RateController(RateController.DEFAULT_WINDOW_MS,
+                RateController.DEFAULT_LATENCY_HIGH_MS + latencyMargin,
+                RateController.DEFAULT_LATENCY_LOW_MS + latencyMargin,
+                RateController.DEFAULT_RECOVER_WINDOWS);
+    }
+
     /**
      * Send to value through a socket at destination of the python script running on the computer
      * Please, make sure that you respect the format expected by the python script:
      */
     public void send_values(){
-        long now = System.currentTimeMillis();
-        //long now = (long) (max_ts * (NS2S/1000.0));
-        //Log.d(TAG, "" + now);
-        String msg = "{\"timestamp\":\"" + now +
-                "\",\"Phone_ID\":\"" + android_id +
-                "\",\"accelerometer\":\"" + floatVector2String(accelerometer_vector) +
-                "\",\"linearAcceleration\":\"" + floatVector2String(linearAcceleration_vector) +
-                "\",\"gravity\":\"" + floatVector2String(gravity_vector) +
-                //"\",\"magneticFieldUncalibrated\":\"" + floatVector2String(magneticFieldUncalibrated_vector) +
-                "\",\"magneticField\":\"" + floatVector2String(magneticField_vector) +
-                //"\",\"magneticFieldCalibrated\":\"" + floatVector2String(magneticFieldCalibrated_vector) +
-                //"\",\"magneticFieldOffset\":\"" + floatVector2String(magnetometer_calibrated.getMagneticOffset()) +
-                //"\",\"magneticFieldScale\":\"" + floatVector2String(magnetometer_calibrated.getMagneticScale()) +
-                //"\",\"gyroscopeUncalibrated\":\"" + floatVector2String(gyroscopeUncalibrated_vector) +
-                "\",\"gyroscope\":\"" + floatVector2String(gyroscope_vector) +
-                "\",\"orientationQuaterionXYZW\":\"" + floatVector2String(orientationQuaternion.getFloatArrayXYZW()) +
-                //"\",\"orientationUncalibratedQuaterionXYZW\":\"" + floatVector2String(orientationUncalibratedQuaternion.getFloatArrayXYZW()) +
-                "\",\"orientationGravAccGyroQuaterionXYZW\":\"" + floatVector2String(fusedGravAccGyroQuaternion.getFloatArrayXYZW()) +
-                "\",\"orientationAccGyroQuaterionXYZW\":\"" + floatVector2String(fusedAccGyroQuaternion.getFloatArrayXYZW()) +
-                "\",\"isStepDetectedSensor\":\"" + ((isAndroidStepDetected) ? 1 :  0) +  // 1 if true, 0 if False
-                "\",\"isStepDetected\":\"" + ((isUbiStepDetected) ? 1 :  0) +  // 1 if true, 0 if False
-                "\"}";
-        // if api level >= 26, so the accelerometerUncalirated is available
-        if (android.os.Build.VERSION.SDK_INT >= 26){
-            // add the accelerometer uncalibrated vector at the end of the json string
-            //msg = msg.substring(0, msg.length() - 1) + ",\"accelerometerUncalibrated\":\"" + floatVector2String(accelerometerUncalibrated_vector) + "\"}";
+        // the recording mode needs every sample
+        if (!useAdaptiveRate || useTcpRecording) {
+            send_values(epochOffset_ns + sync_ts_ns,
+                    pipeline.getAccelerometer(), pipeline.getLinearAcceleration(), pipeline.getGravity(),
+                    pipeline.getMagneticField(), pipeline.getGyroscope(),
+                    pipeline.getOrientationXYZW(), pipeline.getOrientationGravAccGyroXYZW(),
+                    pipeline.getOrientationAccGyroXYZW(),
+                    isAndroidStepDetected, isUbiStepDetected);
+            return;
         }
 
+        if (rateController.update(sender, System.nanoTime())) {
+            Log.i(TAG, "udp " + rateController);
+        }
+        sampleMerger.add(epochOffset_ns + sync_ts_ns,
+                pipeline.getAccelerometer(), pipeline.getLinearAcceleration(), pipeline.getGravity(),
+                pipeline.getMagneticField(), pipeline.getGyroscope(),
+                pipeline.getOrientationXYZW(), pipeline.getOrientationGravAccGyroXYZW(),
+                pipeline.getOrientationAccGyroXYZW(),
+                isAndroidStepDetected, isUbiStepDetected);
+        if (!rateController.onSample()) return;
+
+        send_values(sampleMerger.getTimestamp(),
+                sampleMerger.getAccelerometer(), sampleMerger.getLinearAcceleration(), sampleMerger.getGravity(),
+                sampleMerger.getMagneticField(), sampleMerger.getGyroscope(),
+                sampleMerger.getOrientationXYZW(), sampleMerger.getOrientationGravAccGyroXYZW(),
+                sampleMerger.getOrientationAccGyroXYZW(),
+                sampleMerger.isStepDetectedSensor(), sampleMerger.isStepDetected());
+        sampleMerger.clear();
+    }
+
+    private void send_values(long timestamp_ns,
+                             float[] accelerometer, float[] linearAcceleration, float[] gravity,
+                             float[] magneticField, float[] gyroscope,
+                             float[] orientation, float[] orientationGravAccGyro, float[] orientationAccGyro,
+                             boolean isStepDetectedSensor, boolean isStepDetected){
+        SendQueue.Slot slot = null;
+        ByteBuffer frame = burstFrame;
+        if (useBurstProcessing && useBatching) {
+            burstFrame.clear();
+        } else {
+            // encoded directly into a pooled buffer of the client, null if the frame is dropped
+            slot = sender.claim();
+            if (slot == null) return;
+            frame = slot.buffer();
+        }
+        imuSample.set(frameSequence, timestamp_ns,
+                accelerometer, linearAcceleration, gravity, magneticField, gyroscope,
+                orientation, orientationGravAccGyro, orientationAccGyro,
+                isStepDetectedSensor, isStepDetected);
         try {
-            udpClient.send(msg);
-        } catch (Exception e) {
-            e.printStackTrace();
+            serializer.write(imuSample, frame);
+        } catch (BufferOverflowException e) {
+            Log.w(TAG, "message larger than the buffers of the client");
+            if (slot != null) sender.cancel(slot);
+            return;
+        }
+        frameSequence++;
+        if (slot != null) {
+            sender.publish(slot);
+            return;
         }
+        // joins the datagram of the burst, sent at its end by process_burst()
+        frame.flip();
+        batchSender.append(sender, frame);
     }
 
 
     /**
      * integrates the ouptut of gyroscope [rad/s] over time to calculate a rotation [rad] describing the change of angles over the time step
      * original code: https://developer.android.com/reference/android/hardware/SensorEvent#values
+     * The orientation is updated in place: no Quaternion is created for the samples of the gyroscope.
      */
-    public Quaternion compute_orientation_from_angular_velocity(Quaternion orientation0, float[] gyro_vector, float gyro_ts, float gyro_ts_prev) {
+    public void compute_orientation_from_angular_velocity(Quaternion orientation, float[] gyro_vector, float gyro_ts, float gyro_ts_prev) {
         // This timestep's delta rotation to be multiplied by the current rotation
         // after computing it from the gyro sample data.
         if (gyro_ts_prev == 0) {
-            return orientation0.normalized();
+            orientation.normalizeInPlace();
+            return;
         }
 
         final double dT = (gyro_ts - gyro_ts_prev);
@@ -592,18 +939,19 @@ public class MainActivity extends Activity implements AdapterView.OnItemSelected
         double sinThetaOverTwo = Math.sin(thetaOverTwo);
         double cosThetaOverTwo = Math.cos(thetaOverTwo);
 
-        Quaternion deltaRotationQuat = new Quaternion(
+        deltaRotationQuat.set(
                 sinThetaOverTwo * axisX,
                 sinThetaOverTwo * axisY,
                 sinThetaOverTwo * axisZ,
                 cosThetaOverTwo);
-        Quaternion orientation1 = (orientation0.times(deltaRotationQuat)).normalized();
-        return orientation1;
+        Quaternion.mulInto(orientation, deltaRotationQuat, orientation);
+        // the product of unit quaternions only drifts by rounding: renormalize once the drift is measurable
+        orientation.normalizeIfDrifted(Quaternion.DEFAULT_NORM_TOLERANCE);
     }
 
-    private void copyToVector(float[] vector, SensorEvent event){
+    private void copyToVector(float[] vector, float[] values){
         for (int i = 0; i < vector.length; i++) {
-            vector[i] = event.values[i];
+            vector[i] = values[i];
         }
     }
 
@@ -625,70 +973,90 @@ public class MainActivity extends Activity implements AdapterView.OnItemSelected
         stepCounterTextView.setText(stepCounterText);
     }
 
+    /**
+     * Give the state of the last aligned sample to the OpenGL renderer, on the processing thread
+     */
+    private void publish_snapshot(){
+        ImuSnapshot snapshot = displaySnapshots.getWriteBuffer();
+        snapshot.timestampNanos = sync_ts_ns;
+        System.arraycopy(pipeline.getAccelerometer(), 0, snapshot.accelerometer, 0, 3);
+        System.arraycopy(pipeline.getGravity(), 0, snapshot.gravity, 0, 3);
+        System.arraycopy(pipeline.getMagneticField(), 0, snapshot.magneticField, 0, 3);
+        System.arraycopy(pipeline.getOrientationXYZW(), 0, snapshot.orientationXYZW, 0, 4);
+        System.arraycopy(pipeline.getOrientationGravAccGyroXYZW(), 0, snapshot.orientationGravAccGyroXYZW, 0, 4);
+        System.arraycopy(pipeline.getOrientationAccGyroXYZW(), 0, snapshot.orientationAccGyroXYZW, 0, 4);
+        fusedOrientationQuaternion.getFloatArrayXYZW(snapshot.fusedOrientationXYZW);
+        System.arraycopy(rotationVector_xyzw, 0, snapshot.rotationVectorXYZW, 0, 4);
+        snapshot.ubiStepCount = ubiStepCount;
+        snapshot.androidStepCountTriggered = androidStepCountTriggered;
+        displaySnapshots.publish();
+    }
+
     /**
      * Update the 3D scene. (Visulisation of Cubes, Lines etc...)
+     * Called by the renderer before every frame, on the GL thread: only reads the latest published snapshot.
      */
     public void update_opengl_view(){
+        ImuSnapshot snapshot = displaySnapshots.getReadBuffer();
+        float[] accelerometer = snapshot.accelerometer;
 
         // Acceleration vectors XYZ
-        scene.getVectorList().get(accXVectorID).setVertices(new float[]{0.0f, -2.5f, 0.0f, accelerometer_vector[0], -2.5f, 0.0f});
-        scene.getVectorList().get(accYVectorID).setVertices(new float[]{0.0f, -2.75f, 0.0f, accelerometer_vector[1], -2.75f, 0.0f});
-        scene.getVectorList().get(accZVectorID).setVertices(new float[]{0.0f, -3.0f, 0.0f, accelerometer_vector[2], -3.0f, 0.0f});
+        accXVertices[3] = accelerometer[0];
+        accYVertices[3] = accelerometer[1];
+        accZVertices[3] = accelerometer[2];
+        scene.getVectorList().get(accXVectorID).setVertices(accXVertices);
+        scene.getVectorList().get(accYVectorID).setVertices(accYVertices);
+        scene.getVectorList().get(accZVectorID).setVertices(accZVertices);
 
         // White line for our UbiStep Detector
         float stepNorm = 2.0f;
-        if (!isUbiStepDetected){
-            float[] vertices = scene.getVectorList().get(stepVectorID).getVertices();
-            stepNorm = vertices[4] * 0.9f;
+        if (snapshot.ubiStepCount == drawnUbiStepCount){
+            stepNorm = stepVertices[4] * 0.9f;
         }
-        scene.getVectorList().get(stepVectorID).setVertices(new float[]{-2.0f, 0.0f, 0.0f, -2.0f, stepNorm, 0.0f });
+        drawnUbiStepCount = snapshot.ubiStepCount;
+        stepVertices[4] = stepNorm;
+        scene.getVectorList().get(stepVectorID).setVertices(stepVertices);
 
         // Yellow line for the Android step counter
         stepNorm = 2.0f;
-        if (!(isAndroidStepDetected)){
-            float[] vertices = scene.getVectorList().get(stepVectorSensorID).getVertices();
-            stepNorm = vertices[4] * 0.9f;
+        if (snapshot.androidStepCountTriggered == drawnAndroidStepCountTriggered){
+            stepNorm = stepSensorVertices[4] * 0.9f;
         }
-        scene.getVectorList().get(stepVectorSensorID).setVertices(new float[]{-1.7f, 0.0f, 0.0f, -1.7f, stepNorm, 0.0f });
+        drawnAndroidStepCountTriggered = snapshot.androidStepCountTriggered;
+        stepSensorVertices[4] = stepNorm;
+        scene.getVectorList().get(stepVectorSensorID).setVertices(stepSensorVertices);
 
 
-        // Cube orientation using the selected orientation algorithm
-        float[] rotationCurrent = new float[16];
-        Quaternion q;
+        // Cube orientation using the selected orientation algorithm, the renderer keeps a reference to rotationCurrent
+        // but reads it on this thread
         switch (orientationSelection){
             case "Gravity+Acceleration+Gyroscope": // "Gravity+Acceleration+Gyroscope"
-                q = fusedGravAccGyroQuaternion.copy();
-                SensorManager.getRotationMatrixFromVector(rotationCurrent, q.getFloatArrayXYZW());
+                SensorManager.getRotationMatrixFromVector(rotationCurrent, snapshot.orientationGravAccGyroXYZW);
                 break;
             case "Acceleration+Gyroscope": // "Acceleration+Gyroscope"
-                q = fusedAccGyroQuaternion.copy();
-                SensorManager.getRotationMatrixFromVector(rotationCurrent, q.getFloatArrayXYZW());
+                SensorManager.getRotationMatrixFromVector(rotationCurrent, snapshot.orientationAccGyroXYZW);
                 break;
             case "Gyroscope":  // "Gyroscope"
                 // orientation obtained from gyroscope. This one can drift
-                q = orientationQuaternion.copy();
-                SensorManager.getRotationMatrixFromVector(rotationCurrent, q.getFloatArrayXYZW());
+                SensorManager.getRotationMatrixFromVector(rotationCurrent, snapshot.orientationXYZW);
                 break;
             case "Gyroscope+Rotation Vector (deprecated)":  // "Gyroscope+Rotation Vector (deprecated)"
                 // fusion between gyroscope and rotation_vector. Aim to reduce the drift of gyroscope with
-                q = fusedOrientationQuaternion.copy();
-                SensorManager.getRotationMatrixFromVector(rotationCurrent, q.getFloatArrayXYZW());
+                SensorManager.getRotationMatrixFromVector(rotationCurrent, snapshot.fusedOrientationXYZW);
                 break;
             case "Gravity+Magnetometer (deprecated)":  // "Gravity+Magnetometer (deprecated)"
                 // use gravity and magnetometer to get orientation. This is weak.
-                float[] down_vector = gravity_vector;
-                float[] north_vector = magneticField_vector;
+                float[] down_vector = snapshot.gravity;
+                float[] north_vector = snapshot.magneticField;
                 SensorManager.getRotationMatrix(rotationCurrent, null, down_vector, north_vector);
                 break;
             case "Android (deprecated)":  // "Android (deprecated)"
                 // orientation processed by android using acc (gravity), gyroscope, and magnetometer (absolute north)
                 // this one is sensitive to magnetic interferences
-                q = rotationVectorQuaternion.copy();
-                SensorManager.getRotationMatrixFromVector(rotationCurrent, q.getFloatArrayXYZW());
+                SensorManager.getRotationMatrixFromVector(rotationCurrent, snapshot.rotationVectorXYZW);
                 break;
             default:
-                q = rotationVectorQuaternion.copy();
-                SensorManager.getRotationMatrixFromVector(rotationCurrent, q.getFloatArrayXYZW());
+                SensorManager.getRotationMatrixFromVector(rotationCurrent, snapshot.rotationVectorXYZW);
         }
 
         //Quaternion q = fusedOrientationQuaternion.copy();
@@ -703,12 +1071,7 @@ public class MainActivity extends Activity implements AdapterView.OnItemSelected
      * @return
      */
     private String floatVector2String(float[] vector){
-        String msg = "[" + vector[0];
-        for (int i = 1; i < vector.length; i++) {
-            msg += ", " + vector[i];
-        }
-        msg += "]";
-        return msg;
+        return JsonWriter.vectorToString(vector);
     }
 }
 
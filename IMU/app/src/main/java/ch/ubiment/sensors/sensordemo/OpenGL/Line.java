@@ -65,7 +65,7 @@ public class Line {
 
     public void setVertices(float[] vertices){
         if (vertices.length != this.vertices.length) throw new AssertionError("Line/setVertices() ATTENTION, mauvais nombre de vertices!");
-        this.vertices = vertices.clone();
+        System.arraycopy(vertices, 0, this.vertices, 0, vertices.length);
         mVertexBuffer.put(vertices);
         mVertexBuffer.position(0);
     }
@@ -18,6 +18,19 @@ public class OpenGLRenderer implements GLSurfaceView.Renderer {
     private float[] rotationMatrix_Gyro = {1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1};
     private float[] rotationMatrix_Magn = {1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1};
 
+    /**
+     * Called on the GL thread before every frame, to update the scene from the latest sensor data
+     */
+    public interface FrameListener {
+        void onFrame();
+    }
+
+    private FrameListener frameListener = null;
+
+    public void setFrameListener(FrameListener listener) {
+        this.frameListener = listener;
+    }
+
     public float[] getRotationMatrix_Gyro() {
         return rotationMatrix_Gyro;
     }
@@ -55,6 +68,8 @@ public class OpenGLRenderer implements GLSurfaceView.Renderer {
 
     @Override
     public void onDrawFrame(GL10 gl) {
+        if (frameListener != null) frameListener.onFrame();
+
         gl.glClear(GL10.GL_COLOR_BUFFER_BIT | GL10.GL_DEPTH_BUFFER_BIT);
         gl.glLoadIdentity();
 
@@ -0,0 +1,60 @@
+package ch.ubiment.ingest;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Csv file shared by the shards. Rows are buffered and written to the disk by flush(), which IngestServer calls
+ * every second, instead of after every row like Acquisition/data_writer.py.
+ * Lines end with "\r\n", as written by the csv module of python.
+ */
+final class CsvWriter implements Closeable {
+    private static final String LINE_END = "\r\n";
+
+    private final File file;
+    private final Writer writer;
+    private long rows = 0;
+
+    CsvWriter(File file, String[] header) throws IOException {
+        this.file = file;
+        this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 16);
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < header.length; i++) {
+            if (i > 0) line.append(',');
+            line.append(header[i]);
+        }
+        writer.append(line).append(LINE_END);
+        writer.flush();
+    }
+
+    /**
+     * @param row: the comma separated values, without line end
+     */
+    synchronized void writeRow(CharSequence row) throws IOException {
+        writer.append(row).append(LINE_END);
+        rows++;
+    }
+
+    synchronized void flush() throws IOException {
+        writer.flush();
+    }
+
+    synchronized long getRowCount() {
+        return rows;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,80 @@
+package ch.ubiment.ingest;
+
+/**
+ * Columns of the csv files, same as data_fields and imu_raw_fields in Acquisition/ubiment_parameters.py.
+ * Keep both files in sync.
+ */
+public final class DataFields {
+    public static final int BEACON_PORT = 7582;
+    public static final int SENSORS_PORT = 7586;
+
+    public static final String MISSING = "NaN";
+
+    public static final String[] DATA_FIELDS = {
+            "timestamp",
+            "device_id",
+            "system_id",
+            "anchor_id",
+            "theta_x",
+            "theta_y",
+            "theta_z",
+            "txpower",
+            "rssi",
+            "acc_x",
+            "acc_y",
+            "acc_z",
+            "is_step_detected"
+    };
+
+    public static final int TIMESTAMP = 0;
+    public static final int DEVICE_ID = 1;
+    public static final int SYSTEM_ID = 2;
+    public static final int ANCHOR_ID = 3;
+    public static final int THETA_X = 4;
+    public static final int THETA_Y = 5;
+    public static final int THETA_Z = 6;
+    public static final int TXPOWER = 7;
+    public static final int RSSI = 8;
+    public static final int ACC_X = 9;
+    public static final int ACC_Y = 10;
+    public static final int ACC_Z = 11;
+    public static final int IS_STEP_DETECTED = 12;
+
+    public static final String[] IMU_RAW_FIELDS = {
+            "timestamp",
+            "device_id",
+            "system_id",
+            "accelerometer_x",
+            "accelerometer_y",
+            "accelerometer_z",
+            "magnetic_field_x",
+            "magnetic_field_y",
+            "magnetic_field_z",
+            "gravity_x",
+            "gravity_y",
+            "gravity_z",
+            "linear_acceleration_x",
+            "linear_acceleration_y",
+            "linear_acceleration_z",
+            "gyroscope_x",
+            "gyroscope_y",
+            "gyroscope_z",
+            "orientation_qx",
+            "orientation_qy",
+            "orientation_qz",
+            "orientation_qw",
+            "orientation_gravaccgyro_qx",
+            "orientation_gravaccgyro_qy",
+            "orientation_gravaccgyro_qz",
+            "orientation_gravaccgyro_qw",
+            "orientation_accgyro_qx",
+            "orientation_accgyro_qy",
+            "orientation_accgyro_qz",
+            "orientation_accgyro_qw",
+            "is_step_detected_sensor",
+            "is_step_detected"
+    };
+
+    private DataFields() {
+    }
+}
@@ -0,0 +1,29 @@
+package ch.ubiment.ingest;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A received datagram, handed from the receiving thread to a shard. The datagrams are pooled per shard:
+ * the array only grows when a bigger datagram arrives.
+ */
+final class Datagram {
+    int port;
+    byte[] data;
+    int length;
+    long arrivalMillis;
+
+    Datagram(int capacity) {
+        data = new byte[capacity];
+    }
+
+    /**
+     * Copy the bytes between the position and the limit of src, the position of src is moved to its limit
+     */
+    void set(int port, ByteBuffer src, long arrivalMillis) {
+        this.port = port;
+        this.length = src.remaining();
+        if (length > data.length) data = new byte[length];
+        src.get(data, 0, length);
+        this.arrivalMillis = arrivalMillis;
+    }
+}
@@ -0,0 +1,200 @@
+package ch.ubiment.ingest;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parser for the flat json objects sent by the apps, e.g.
+ * <pre>
+ *   {"timestamp":"1500000000000","Phone_ID":"a1b2c3d4e5f60718","accelerometer":"[0.1, 0.2, 9.81]", ...}
+ * </pre>
+ * parse() only records where the keys and values are in the message, the values are converted on demand.
+ * Values may be quoted or not, nested objects and arrays are not supported (the vectors are strings).
+ * Escape sequences are skipped but not decoded: the apps never write any.
+ *
+ * The parser keeps a reference to the parsed bytes until the next parse(). Not thread-safe.
+ */
+final class FlatJson {
+    private static final int MAX_FIELDS = 64;
+
+    private byte[] buf;
+    private int count;
+    private final int[] keyStart = new int[MAX_FIELDS];
+    private final int[] keyEnd = new int[MAX_FIELDS];
+    private final int[] valueStart = new int[MAX_FIELDS];
+    private final int[] valueEnd = new int[MAX_FIELDS];
+
+    /**
+     * @return false if the bytes are not a flat json object
+     */
+    boolean parse(byte[] buf, int offset, int length) {
+        this.buf = buf;
+        this.count = 0;
+        int end = offset + length;
+        int p = skipSpaces(offset, end);
+        if (p >= end || buf[p] != '{') return false;
+        p = skipSpaces(p + 1, end);
+        if (p < end && buf[p] == '}') return true;
+
+        while (p < end) {
+            if (count == MAX_FIELDS || buf[p] != '"') return false;
+            keyStart[count] = p + 1;
+            p = endOfString(p + 1, end);
+            if (p < 0) return false;
+            keyEnd[count] = p;
+            p = skipSpaces(p + 1, end);
+            if (p >= end || buf[p] != ':') return false;
+            p = skipSpaces(p + 1, end);
+            if (p >= end) return false;
+            if (buf[p] == '"') {
+                valueStart[count] = p + 1;
+                p = endOfString(p + 1, end);
+                if (p < 0) return false;
+                valueEnd[count] = p;
+                p = skipSpaces(p + 1, end);
+            } else {
+                valueStart[count] = p;
+                while (p < end && buf[p] != ',' && buf[p] != '}' && buf[p] > ' ') p++;
+                valueEnd[count] = p;
+                p = skipSpaces(p, end);
+            }
+            count++;
+            if (p >= end) return false;
+            if (buf[p] == '}') return true;
+            if (buf[p] != ',') return false;
+            p = skipSpaces(p + 1, end);
+        }
+        return false;
+    }
+
+    private int skipSpaces(int p, int end) {
+        while (p < end && buf[p] <= ' ') p++;
+        return p;
+    }
+
+    /**
+     * @return the index of the closing quote, -1 if there is none
+     */
+    private int endOfString(int p, int end) {
+        while (p < end) {
+            if (buf[p] == '\\') {
+                p += 2;
+            } else if (buf[p] == '"') {
+                return p;
+            } else {
+                p++;
+            }
+        }
+        return -1;
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * @param key: an ascii key
+     * @return the index of the field, -1 if the key is not in the object
+     */
+    int indexOf(String key) {
+        int n = key.length();
+        for (int i = 0; i < count; i++) {
+            if (keyEnd[i] - keyStart[i] != n) continue;
+            int k = keyStart[i];
+            int j = 0;
+            while (j < n && buf[k + j] == key.charAt(j)) j++;
+            if (j == n) return i;
+        }
+        return -1;
+    }
+
+    boolean has(String key) {
+        return indexOf(key) >= 0;
+    }
+
+    String getString(int index) {
+        return new String(buf, valueStart[index], valueEnd[index] - valueStart[index], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Same as String.hashCode() of getString(), without creating the string (ascii values only)
+     */
+    int hashValue(int index) {
+        int h = 0;
+        for (int p = valueStart[index]; p < valueEnd[index]; p++) {
+            h = 31 * h + (buf[p] & 0xff);
+        }
+        return h;
+    }
+
+    /**
+     * Integer value, python int(): leading and trailing spaces are allowed, a fractional part is not
+     * @throws NumberFormatException
+     */
+    long getLong(int index) {
+        int p = valueStart[index];
+        int end = valueEnd[index];
+        while (p < end && buf[p] == ' ') p++;
+        while (end > p && buf[end - 1] == ' ') end--;
+        boolean negative = false;
+        if (p < end && (buf[p] == '-' || buf[p] == '+')) {
+            negative = (buf[p] == '-');
+            p++;
+        }
+        if (p == end) throw new NumberFormatException("not an integer: " + getString(index));
+        long value = 0;
+        for (; p < end; p++) {
+            int digit = buf[p] - '0';
+            if (digit < 0 || digit > 9) throw new NumberFormatException("not an integer: " + getString(index));
+            value = 10 * value + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * @throws NumberFormatException
+     */
+    double getDouble(int index) {
+        return Double.parseDouble(getString(index));
+    }
+
+    /**
+     * Read a vector written as a python list, e.g. "[1.0, 2.0, 3.14]"
+     * @param out: receives the components
+     * @return the number of components, -1 if the value is not a list or has more than out.length components
+     * @throws NumberFormatException
+     */
+    int getVector(int index, double[] out) {
+        int p = valueStart[index];
+        int end = valueEnd[index];
+        if (end - p < 2 || buf[p] != '[' || buf[end - 1] != ']') return -1;
+        p++;
+        end--;
+        int n = 0;
+        while (p < end) {
+            int comma = p;
+            while (comma < end && buf[comma] != ',') comma++;
+            if (n == out.length) return -1;
+            out[n++] = Double.parseDouble(new String(buf, p, comma - p, StandardCharsets.US_ASCII).trim());
+            p = comma + 1;
+        }
+        return n;
+    }
+
+    /**
+     * Append the components of a python list to a csv row, e.g. "[1.0, 2.0, 3.14]" gives "1.0,2.0,3.14".
+     * The numbers are copied as they are, without parsing.
+     * @return the number of components, -1 if the value is not a list (nothing is appended then)
+     */
+    int appendVector(int index, StringBuilder row) {
+        int p = valueStart[index];
+        int end = valueEnd[index];
+        if (end - p < 2 || buf[p] != '[' || buf[end - 1] != ']') return -1;
+        int n = (p + 1 < end - 1) ? 1 : 0;
+        for (p = p + 1; p < end - 1; p++) {
+            byte b = buf[p];
+            if (b == ',') n++;
+            if (b != ' ') row.append((char) b);
+        }
+        return n;
+    }
+}
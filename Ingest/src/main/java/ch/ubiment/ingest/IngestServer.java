@@ -0,0 +1,260 @@
+package ch.ubiment.ingest;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+
+import ch.ubiment.sensors.sensordemo.Communication.BeaconBinarySerializer;
+import ch.ubiment.sensors.sensordemo.Communication.BeaconDeltaSerializer;
+import ch.ubiment.sensors.sensordemo.Communication.FrameBatch;
+import ch.ubiment.sensors.sensordemo.Communication.ImuDeltaSerializer;
+import ch.ubiment.sensors.sensordemo.Communication.ImuFrame;
+
+/**
+ * Receives the beacon (7582) and sensors (7586) UDP streams of the phones and writes the same csv files as the
+ * Acquisition scripts: output/data_bluetooth.csv, output/data_imu.csv and output/data_imu_raw.csv.
+ * <pre>
+ *   ./gradlew run --args="--output ../output --threads 4"
+ * </pre>
+ * A single thread reads both sockets with a selector and hands every datagram to one of the shards, chosen
+ * from the device: the device id hash of a binary frame, or String.hashCode() of the Phone_ID of a json message
+ * (the same value, so both formats of a phone go to the same shard). The shards parse the messages and write
+ * the rows, see Shard.
+ *
+ * When a shard can not keep up, its datagrams are dropped by the receiving thread and counted, the
+ * receiving thread itself never waits.
+ */
+public class IngestServer {
+    private static final int RECEIVE_BUFFER_SIZE = 4 << 20;
+    private static final int SHARD_CAPACITY = 4096;      // datagrams waiting per shard
+    private static final int DATAGRAM_SIZE = 2048;
+    private static final long FLUSH_PERIOD_MS = 1000;
+    private static final long STATS_PERIOD_MS = 10000;
+
+    private static final byte[] PHONE_ID_KEY = "\"Phone_ID\"".getBytes();
+
+    private final String bindAddress;
+    private final int beaconPort;
+    private final int sensorsPort;
+    private final CsvWriter imuWriter;
+    private final CsvWriter imuRawWriter;
+    private final CsvWriter bluetoothWriter;
+    private final Shard[] shards;
+
+    private volatile boolean running = true;
+    private Selector selector;
+    private long received = 0;
+    private long dropped = 0;
+
+    public IngestServer(String bindAddress, int beaconPort, int sensorsPort, File outputDir, int threads) throws IOException {
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("can not create " + outputDir);
+        }
+        this.bindAddress = bindAddress;
+        this.beaconPort = beaconPort;
+        this.sensorsPort = sensorsPort;
+        imuWriter = new CsvWriter(new File(outputDir, "data_imu.csv"), DataFields.DATA_FIELDS);
+        imuRawWriter = new CsvWriter(new File(outputDir, "data_imu_raw.csv"), DataFields.IMU_RAW_FIELDS);
+        bluetoothWriter = new CsvWriter(new File(outputDir, "data_bluetooth.csv"), DataFields.DATA_FIELDS);
+        shards = new Shard[threads];
+        for (int i = 0; i < threads; i++) {
+            shards[i] = new Shard(i, beaconPort, SHARD_CAPACITY, DATAGRAM_SIZE, imuWriter, imuRawWriter, bluetoothWriter);
+        }
+    }
+
+    /**
+     * Receive until stop() is called
+     */
+    public void run() throws IOException, InterruptedException {
+        selector = Selector.open();
+        DatagramChannel beaconChannel = open(beaconPort);
+        DatagramChannel sensorsChannel = open(sensorsPort);
+        for (Shard shard : shards) {
+            shard.start();
+        }
+        System.out.println("listening on " + bindAddress + " ports " + beaconPort + " and " + sensorsPort
+                + " with " + shards.length + " shards");
+
+        ByteBuffer rx = ByteBuffer.allocateDirect(65536);
+        long nextFlush = System.currentTimeMillis() + FLUSH_PERIOD_MS;
+        long nextStats = System.currentTimeMillis() + STATS_PERIOD_MS;
+        try {
+            while (running) {
+                selector.select(FLUSH_PERIOD_MS);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    DatagramChannel channel = (DatagramChannel) key.channel();
+                    int port = (Integer) key.attachment();
+                    // read everything that is queued, select() is only called when the socket is empty
+                    while (true) {
+                        rx.clear();
+                        SocketAddress source = channel.receive(rx);
+                        if (source == null) break;
+                        rx.flip();
+                        dispatch(port, rx, source);
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (now >= nextFlush) {
+                    nextFlush = now + FLUSH_PERIOD_MS;
+                    flush();
+                }
+                if (now >= nextStats) {
+                    nextStats = now + STATS_PERIOD_MS;
+                    System.out.println("received=" + received + " dropped=" + dropped + " rows: imu="
+                            + imuWriter.getRowCount() + " bluetooth=" + bluetoothWriter.getRowCount());
+                }
+            }
+        } finally {
+            beaconChannel.close();
+            sensorsChannel.close();
+            selector.close();
+            for (Shard shard : shards) {
+                shard.stop();
+            }
+            imuWriter.close();
+            imuRawWriter.close();
+            bluetoothWriter.close();
+        }
+    }
+
+    public void stop() {
+        running = false;
+        Selector s = selector;
+        if (s != null) s.wakeup();
+    }
+
+    private DatagramChannel open(int port) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+        channel.bind(new InetSocketAddress(bindAddress, port));
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, port);
+        return channel;
+    }
+
+    private void flush() {
+        try {
+            imuWriter.flush();
+            imuRawWriter.flush();
+            bluetoothWriter.flush();
+        } catch (IOException e) {
+            System.err.println("can not write the csv files: " + e);
+        }
+    }
+
+    private void dispatch(int port, ByteBuffer datagram, SocketAddress source) {
+        received++;
+        int key = deviceKey(datagram, source);
+        Shard shard = shards[(key & 0x7fffffff) % shards.length];
+        Datagram d = shard.claim();
+        if (d == null) {
+            dropped++;
+            return;
+        }
+        d.set(port, datagram, System.currentTimeMillis());
+        shard.dispatch(d);
+    }
+
+    /**
+     * Identifies the phone without parsing the datagram, see the class comment.
+     * Falls back to the source address for anything else.
+     */
+    static int deviceKey(ByteBuffer datagram, SocketAddress source) {
+        int p = datagram.position();
+        int end = datagram.limit();
+        if (end - p > FrameBatch.HEADER_SIZE + FrameBatch.FRAME_HEADER_SIZE && datagram.get(p) == FrameBatch.MAGIC) {
+            p += FrameBatch.HEADER_SIZE + FrameBatch.FRAME_HEADER_SIZE;
+        }
+        if (end - p >= ImuFrame.OFFSET_SEQUENCE && isBinaryFrame(datagram.get(p))) {
+            // little-endian whatever the order of the buffer
+            int offset = p + ImuFrame.OFFSET_DEVICE_ID;
+            return (datagram.get(offset) & 0xff) | (datagram.get(offset + 1) & 0xff) << 8
+                    | (datagram.get(offset + 2) & 0xff) << 16 | (datagram.get(offset + 3) & 0xff) << 24;
+        }
+        if (end - p > 0 && datagram.get(p) == '{') {
+            int value = find(datagram, p, end, PHONE_ID_KEY);
+            if (value >= 0) {
+                while (value < end && datagram.get(value) != '"') value++;
+                int h = 0;
+                for (value++; value < end && datagram.get(value) != '"'; value++) {
+                    h = 31 * h + (datagram.get(value) & 0xff);
+                }
+                return h;
+            }
+        }
+        return source.hashCode();
+    }
+
+    /**
+     * The binary formats of FrameSerializers all have the device id hash at offset 4, like ImuFrame.
+     * The delta frames must reach the shard holding the previous frames of their phone.
+     */
+    private static boolean isBinaryFrame(byte magic) {
+        return magic == ImuFrame.MAGIC || magic == ImuDeltaSerializer.MAGIC
+                || magic == BeaconBinarySerializer.MAGIC || magic == BeaconDeltaSerializer.MAGIC;
+    }
+
+    /**
+     * @return the index just after the first occurrence of pattern, -1 if there is none
+     */
+    private static int find(ByteBuffer buf, int from, int end, byte[] pattern) {
+        outer:
+        for (int i = from; i <= end - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (buf.get(i + j) != pattern[j]) continue outer;
+            }
+            return i + pattern.length;
+        }
+        return -1;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String bind = "0.0.0.0";
+        File output = new File("output");
+        int threads = Runtime.getRuntime().availableProcessors();
+        int beaconPort = DataFields.BEACON_PORT;
+        int sensorsPort = DataFields.SENSORS_PORT;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--bind":
+                    bind = args[++i];
+                    break;
+                case "--output":
+                    output = new File(args[++i]);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    System.err.println("usage: IngestServer [--bind address] [--output directory] [--threads n]");
+                    System.exit(1);
+            }
+        }
+
+        final IngestServer server = new IngestServer(bind, beaconPort, sensorsPort, output, threads);
+        final Thread main = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                server.stop();
+                try {
+                    main.join();
+                } catch (InterruptedException e) {
+                    // exiting anyway
+                }
+            }
+        }));
+        server.run();
+    }
+}
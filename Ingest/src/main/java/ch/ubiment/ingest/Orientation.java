@@ -0,0 +1,36 @@
+package ch.ubiment.ingest;
+
+/**
+ * Tait-Bryan angles of a quaternion, same as quaternion_to_thetas() in Acquisition/math3d.py
+ */
+final class Orientation {
+    private static final double SINGULAR = 1e-6;
+
+    private Orientation() {
+    }
+
+    /**
+     * @param out: len-3 array receiving theta_x, theta_y, theta_z in radian
+     */
+    static void quaternionToThetas(double qx, double qy, double qz, double qw, double[] out) {
+        // only the needed elements of the rotation matrix
+        double r00 = 1 - 2 * qy * qy - 2 * qz * qz;
+        double r10 = 2 * qx * qy + 2 * qz * qw;
+        double r20 = 2 * qx * qz - 2 * qy * qw;
+        double r21 = 2 * qy * qz + 2 * qx * qw;
+        double r22 = 1 - 2 * qx * qx - 2 * qy * qy;
+
+        double singularY = Math.sqrt(r00 * r00 + r10 * r10);
+        out[1] = Math.atan2(-r20, singularY);
+        if (singularY >= SINGULAR) {
+            out[0] = Math.atan2(r21, r22);
+            out[2] = Math.atan2(r10, r00);
+        } else {
+            // x and z rotations are mixed together when theta_y is close to +-pi/2: theta_z is set to 0
+            double r11 = 1 - 2 * qx * qx - 2 * qz * qz;
+            double r12 = 2 * qy * qz - 2 * qx * qw;
+            out[0] = Math.atan2(-r12, r11);
+            out[2] = 0;
+        }
+    }
+}
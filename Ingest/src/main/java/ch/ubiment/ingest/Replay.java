@@ -0,0 +1,116 @@
+package ch.ubiment.ingest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import ch.ubiment.sensors.sensordemo.Communication.FrameSerializers;
+import ch.ubiment.sensors.sensordemo.Communication.ImuSample;
+import ch.ubiment.sensors.sensordemo.Communication.SendQueue;
+import ch.ubiment.sensors.sensordemo.Communication.UdpClientSend;
+import ch.ubiment.sensors.sensordemo.Sensors.FileFrameSink;
+import ch.ubiment.sensors.sensordemo.Sensors.ImuProcessor;
+import ch.ubiment.sensors.sensordemo.Sensors.SenderFrameSink;
+import ch.ubiment.sensors.sensordemo.Sensors.SensorSource;
+import ch.ubiment.sensors.sensordemo.Sensors.SessionReplay;
+
+/**
+ * Runs a recorded session through the fusion and the step detection of the app again (see SessionReplay), from a
+ * session directory of the phone (SessionRecorder) or a data_imu_raw.csv of the Acquisition scripts:
+ * <pre>
+ *   ./gradlew replay --args="../output/data_imu_raw.csv --speed 1 --udp 127.0.0.1"
+ * </pre>
+ * Options: --speed factor (default: as fast as possible), --format json|binary|delta, --device id (the Phone_ID:
+ * up to 16 hexadecimal digits, as the receivers parse it with int(Phone_ID, 16)),
+ * --udp host[:port] to send the frames to an IngestServer or the python scripts, --output file to write them
+ * (see FileFrameSink). Without a sink, the frames are only counted: the throughput of the pipeline.
+ */
+public class Replay {
+    static final String DEFAULT_DEVICE = "000000000000feed";
+    private static final long DRAIN_TIMEOUT_MS = 5000;
+
+    public static void main(String[] args) throws IOException {
+        File input = null;
+        double speed = SessionReplay.AS_FAST_AS_POSSIBLE;
+        String format = FrameSerializers.JSON;
+        String device = DEFAULT_DEVICE;
+        String udp = null;
+        File output = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--speed": speed = Double.parseDouble(args[++i]); break;
+                case "--format": format = args[++i]; break;
+                case "--device":
+                    device = args[++i];
+                    if (!isPhoneId(device)) {
+                        System.err.println("--device " + device + ": not a hexadecimal id of at most 64 bits");
+                        usage();
+                    }
+                    break;
+                case "--udp": udp = args[++i]; break;
+                case "--output": output = new File(args[++i]); break;
+                default:
+                    if (args[i].startsWith("--") || input != null) usage();
+                    input = new File(args[i]);
+            }
+        }
+        if (input == null) usage();
+
+        ImuProcessor.FrameSink sink;
+        UdpClientSend client = null;
+        FileFrameSink file = null;
+        if (udp != null) {
+            int colon = udp.lastIndexOf(':');
+            String host = (colon < 0) ? udp : udp.substring(0, colon);
+            int port = (colon < 0) ? DataFields.SENSORS_PORT : Integer.parseInt(udp.substring(colon + 1));
+            // as fast as possible, wait for the socket rather than dropping the frames
+            client = new UdpClientSend(host, port, UdpClientSend.DEFAULT_QUEUE_CAPACITY,
+                    UdpClientSend.DEFAULT_SLOT_SIZE, SendQueue.OverflowPolicy.BLOCK);
+            sink = new SenderFrameSink(client);
+        } else if (output != null) {
+            file = new FileFrameSink(output);
+            sink = file;
+        } else {
+            sink = new ImuProcessor.FrameSink() {
+                @Override
+                public void onFrame(ImuSample sample, ByteBuffer frame) {
+                }
+            };
+        }
+
+        SessionReplay replay = new SessionReplay(FrameSerializers.imu(format, device, 0), speed);
+        SensorSource source = SessionReplay.open(input);
+        try {
+            replay.run(source, sink);
+        } finally {
+            source.close();
+            if (client != null && !client.drainAndClose(DRAIN_TIMEOUT_MS)) {
+                System.err.println("the last frames were not sent within " + DRAIN_TIMEOUT_MS + " ms");
+            }
+            if (file != null) file.close();
+        }
+        System.out.println(replay);
+        double seconds = replay.getElapsedNanos() * 1e-9;
+        System.out.printf("%.0f events/s, %.0f frames/s, %d steps%n",
+                replay.getProcessor().getEventCount() / seconds, replay.getProcessor().getFrameCount() / seconds,
+                replay.getProcessor().getPipeline().getStepCount());
+    }
+
+    /**
+     * @return true if id can be a Phone_ID, i.e. Shard and the python receivers accept it
+     */
+    static boolean isPhoneId(String id) {
+        try {
+            Long.parseUnsignedLong(id, 16);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static void usage() {
+        System.err.println("usage: Replay <session directory | csv file> [--speed factor] [--format json|binary|delta]"
+                + " [--device id] [--udp host[:port] | --output file]");
+        System.exit(1);
+    }
+}
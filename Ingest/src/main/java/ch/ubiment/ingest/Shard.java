@@ -0,0 +1,469 @@
+package ch.ubiment.ingest;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import ch.ubiment.sensors.sensordemo.Communication.BeaconBinarySerializer;
+import ch.ubiment.sensors.sensordemo.Communication.BeaconDeltaSerializer;
+import ch.ubiment.sensors.sensordemo.Communication.BeaconSample;
+import ch.ubiment.sensors.sensordemo.Communication.FrameUnbatcher;
+import ch.ubiment.sensors.sensordemo.Communication.ImuDeltaSerializer;
+import ch.ubiment.sensors.sensordemo.Communication.ImuFrame;
+import ch.ubiment.sensors.sensordemo.Communication.ImuFrameDecoder;
+import ch.ubiment.sensors.sensordemo.Communication.ImuSample;
+import ch.ubiment.sensors.sensordemo.Communication.SequenceTracker;
+
+/**
+ * Converts the datagrams of a subset of the phones to csv rows, in its own thread.
+ *
+ * IngestServer sends all the datagrams of a phone to the same shard, so the state of a phone (time offset,
+ * sequence numbers, device id) is only used by one thread and needs no lock. Only the csv files are shared.
+ *
+ * The sensors messages give a row of data_imu.csv (DataFields.DATA_FIELDS) and a row of data_imu_raw.csv
+ * (DataFields.IMU_RAW_FIELDS), as in Acquisition/imu_acquisition_thread.py. They are json messages, binary
+ * frames (ImuFrame) or delta frames (ImuDeltaSerializer), batched or not. The beacon messages give a row of
+ * data_bluetooth.csv, as in Acquisition/beacon_acquisition_thread.py. They are json messages or frames of
+ * BeaconBinarySerializer or BeaconDeltaSerializer. The formats are told apart by their first byte, so a phone
+ * can change its format (FrameSerializers) without restarting the server.
+ */
+final class Shard implements Runnable {
+    private static final String PHONE_ID = "Phone_ID";
+    private static final long STATS_PERIOD_MS = 10000;
+
+    private final int id;
+    private final int beaconPort;
+    private final BlockingQueue<Datagram> pending;
+    private final BlockingQueue<Datagram> free;
+    private final CsvWriter imuWriter;
+    private final CsvWriter imuRawWriter;
+    private final CsvWriter bluetoothWriter;
+    private volatile boolean running = true;
+    private Thread thread;
+
+    private final FlatJson json = new FlatJson();
+    private final FrameUnbatcher unbatcher = new FrameUnbatcher();
+    private final ImuFrameDecoder decoder = new ImuFrameDecoder();
+    private final BeaconBinarySerializer beaconDecoder = new BeaconBinarySerializer(null);
+    // the delta frames only hold the differences with the previous frame of the phone: one decoder per device id hash
+    private final Map<Integer, ImuDeltaSerializer> imuDeltaDecoders = new HashMap<>();
+    private final Map<Integer, BeaconDeltaSerializer> beaconDeltaDecoders = new HashMap<>();
+    private final ImuSample imuSample = new ImuSample();
+    private final BeaconSample beaconSample = new BeaconSample();
+    private final TimeSync timeSync = new TimeSync();
+    private final SequenceTracker imuSequences = new SequenceTracker();
+    private final SequenceTracker beaconSequences = new SequenceTracker();
+    // Phone_ID -> device_id, and String.hashCode() of the Phone_ID -> device_id for the binary frames
+    private final Map<String, String> deviceIds = new HashMap<>();
+    private final Map<Integer, String> deviceIdsByHash = new HashMap<>();
+
+    private final StringBuilder imuRow = new StringBuilder(256);
+    private final StringBuilder rawRow = new StringBuilder(1024);
+    private final StringBuilder beaconRow = new StringBuilder(128);
+    private final double[] vector = new double[4];
+    private final double[] thetas = new double[3];
+
+    private long processed = 0;
+    private long malformed = 0;
+    private long nextStats;
+
+    /**
+     * @param beaconPort: the datagrams received on this port are beacon messages, the others sensors messages
+     */
+    Shard(int id, int beaconPort, int capacity, int datagramSize, CsvWriter imuWriter, CsvWriter imuRawWriter, CsvWriter bluetoothWriter) {
+        this.id = id;
+        this.beaconPort = beaconPort;
+        this.pending = new ArrayBlockingQueue<>(capacity);
+        this.free = new ArrayBlockingQueue<>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            free.add(new Datagram(datagramSize));
+        }
+        this.imuWriter = imuWriter;
+        this.imuRawWriter = imuRawWriter;
+        this.bluetoothWriter = bluetoothWriter;
+    }
+
+    void start() {
+        thread = new Thread(this, "shard-" + id);
+        thread.start();
+    }
+
+    void stop() throws InterruptedException {
+        running = false;
+        if (thread != null) thread.join();
+    }
+
+    /**
+     * Called by the receiving thread
+     * @return a free datagram, null if the shard is overloaded
+     */
+    Datagram claim() {
+        return free.poll();
+    }
+
+    /**
+     * Called by the receiving thread with a datagram returned by claim()
+     */
+    void dispatch(Datagram datagram) {
+        pending.add(datagram);
+    }
+
+    int getPendingCount() {
+        return pending.size();
+    }
+
+    long getMalformedCount() {
+        return malformed;
+    }
+
+    @Override
+    public void run() {
+        nextStats = System.currentTimeMillis() + STATS_PERIOD_MS;
+        try {
+            while (running || !pending.isEmpty()) {
+                Datagram datagram = pending.poll(100, TimeUnit.MILLISECONDS);
+                if (datagram != null) {
+                    try {
+                        process(datagram);
+                    } finally {
+                        free.add(datagram);
+                    }
+                }
+                if (System.currentTimeMillis() >= nextStats) {
+                    nextStats += STATS_PERIOD_MS;
+                    System.out.println(getStats());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.err.println("shard " + id + ": can not write the csv files: " + e);
+        }
+    }
+
+    void process(Datagram datagram) throws IOException {
+        processed++;
+        ByteBuffer buf = ByteBuffer.wrap(datagram.data, 0, datagram.length);
+        if (datagram.port == beaconPort) {
+            boolean ok;
+            byte magic = (datagram.length > 0) ? datagram.data[0] : 0;
+            if (magic == BeaconBinarySerializer.MAGIC || magic == BeaconDeltaSerializer.MAGIC) {
+                ok = processBeaconFrame(buf, datagram.port, datagram.arrivalMillis);
+            } else {
+                ok = processBeaconJson(datagram.data, 0, datagram.length, datagram.port, datagram.arrivalMillis);
+            }
+            if (!ok) malformed++;
+            return;
+        }
+
+        unbatcher.reset(buf);
+        while (unbatcher.next()) {
+            boolean ok;
+            byte magic = buf.get(buf.position());
+            if (magic == '{') {
+                ok = processImuJson(datagram.data, buf.position(), buf.remaining(), datagram.port, datagram.arrivalMillis);
+            } else if (magic == ImuDeltaSerializer.MAGIC) {
+                ok = processImuDelta(buf, datagram.port, datagram.arrivalMillis);
+            } else {
+                ok = processImuFrame(buf, datagram.port, datagram.arrivalMillis);
+            }
+            if (!ok) malformed++;
+        }
+    }
+
+    private boolean processImuJson(byte[] data, int offset, int length, int port, long now) throws IOException {
+        if (!json.parse(data, offset, length)) return false;
+        int phone = json.indexOf(PHONE_ID);
+        int timestampIndex = json.indexOf("timestamp");
+        int acc = json.indexOf("accelerometer");
+        int quaternion = json.indexOf("orientationAccGyroQuaterionXYZW");
+        int stepSensor = json.indexOf("isStepDetectedSensor");
+        int step = json.indexOf("isStepDetected");
+        if (phone < 0 || timestampIndex < 0 || acc < 0 || quaternion < 0 || stepSensor < 0 || step < 0) return false;
+
+        String deviceId;
+        long timestamp;
+        long isStepSensor;
+        long isStep;
+        try {
+            deviceId = deviceId(phone);
+            timestamp = (long) json.getDouble(timestampIndex);
+            isStepSensor = json.getLong(stepSensor);
+            isStep = json.getLong(step);
+            if (json.getVector(quaternion, vector) != 4) return false;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        int sequence = json.indexOf("sequence");
+        if (sequence >= 0) {
+            try {
+                imuSequences.onPacket(deviceId, json.getLong(sequence), timestamp, now);
+            } catch (NumberFormatException e) {
+                // the row is still written
+            }
+        }
+        long serverTimestamp = timeSync.toServerTime(deviceId, timestamp, now);
+        Orientation.quaternionToThetas(vector[0], vector[1], vector[2], vector[3], thetas);
+
+        rawRow.setLength(0);
+        rawRow.append(serverTimestamp).append(',').append(deviceId).append(',').append(port);
+        if (!appendVector(rawRow, acc, 3)
+                || !appendVector(rawRow, json.indexOf("magneticField"), 3)
+                || !appendVector(rawRow, json.indexOf("gravity"), 3)
+                || !appendVector(rawRow, json.indexOf("linearAcceleration"), 3)
+                || !appendVector(rawRow, json.indexOf("gyroscope"), 3)
+                || !appendVector(rawRow, json.indexOf("orientationQuaterionXYZW"), 4)
+                || !appendVector(rawRow, json.indexOf("orientationGravAccGyroQuaterionXYZW"), 4)
+                || !appendVector(rawRow, quaternion, 4)) {
+            return false;
+        }
+        rawRow.append(',').append(isStepSensor).append(',').append(isStep);
+
+        imuRow.setLength(0);
+        imuRow.append(serverTimestamp).append(',').append(deviceId).append(',').append(port).append(',').append(DataFields.MISSING);
+        appendThetas(imuRow);
+        imuRow.append(',').append(DataFields.MISSING).append(',').append(DataFields.MISSING).append(',');
+        json.appendVector(acc, imuRow);
+        imuRow.append(',').append((isStepSensor != 0 || isStep != 0) ? 1 : 0);
+
+        imuRawWriter.writeRow(rawRow);
+        imuWriter.writeRow(imuRow);
+        return true;
+    }
+
+    private boolean appendVector(StringBuilder row, int index, int size) {
+        if (index < 0) return false;
+        int mark = row.length();
+        row.append(',');
+        if (json.appendVector(index, row) != size) {
+            row.setLength(mark);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean processImuFrame(ByteBuffer buf, int port, long now) throws IOException {
+        if (!decoder.decode(buf)) return false;
+        imuSample.set(decoder.getSequence(), decoder.getTimestampNanos(),
+                decoder.getAccelerometer(), decoder.getLinearAcceleration(), decoder.getGravity(),
+                decoder.getMagneticField(), decoder.getGyroscope(),
+                decoder.getOrientationXYZW(), decoder.getOrientationGravAccGyroXYZW(), decoder.getOrientationAccGyroXYZW(),
+                decoder.isStepDetectedSensor(), decoder.isStepDetected());
+        writeImuRows(decoder.getDeviceIdHash(), imuSample, port, now);
+        return true;
+    }
+
+    private boolean processImuDelta(ByteBuffer buf, int port, long now) throws IOException {
+        if (buf.remaining() < ImuDeltaSerializer.HEADER_SIZE) return false;
+        int hash = buf.order(ImuFrame.BYTE_ORDER).getInt(buf.position() + ImuFrame.OFFSET_DEVICE_ID);
+        ImuDeltaSerializer delta = imuDeltaDecoders.get(hash);
+        if (delta == null) {
+            delta = new ImuDeltaSerializer(null);
+            imuDeltaDecoders.put(hash, delta);
+        }
+        try {
+            // false until the next key frame after a lost frame
+            if (!delta.read(buf, imuSample)) return false;
+        } catch (BufferUnderflowException e) {
+            delta.reset();
+            return false;
+        }
+        writeImuRows(hash, imuSample, port, now);
+        return true;
+    }
+
+    /**
+     * The rows of a binary or delta frame
+     */
+    private void writeImuRows(int deviceIdHash, ImuSample sample, int port, long now) throws IOException {
+        String deviceId = deviceIdOfHash(deviceIdHash);
+        long timestamp = sample.timestampNanos / 1000000;
+        imuSequences.onPacket(deviceId, sample.sequence & 0xffffffffL, timestamp, now);
+        long serverTimestamp = timeSync.toServerTime(deviceId, timestamp, now);
+        float[] q = sample.orientationAccGyroXYZW;
+        Orientation.quaternionToThetas(q[0], q[1], q[2], q[3], thetas);
+        int isStepSensor = sample.isStepDetectedSensor ? 1 : 0;
+        int isStep = sample.isStepDetected ? 1 : 0;
+
+        rawRow.setLength(0);
+        rawRow.append(serverTimestamp).append(',').append(deviceId).append(',').append(port);
+        appendFloats(rawRow, sample.accelerometer);
+        appendFloats(rawRow, sample.magneticField);
+        appendFloats(rawRow, sample.gravity);
+        appendFloats(rawRow, sample.linearAcceleration);
+        appendFloats(rawRow, sample.gyroscope);
+        appendFloats(rawRow, sample.orientationXYZW);
+        appendFloats(rawRow, sample.orientationGravAccGyroXYZW);
+        appendFloats(rawRow, q);
+        rawRow.append(',').append(isStepSensor).append(',').append(isStep);
+
+        imuRow.setLength(0);
+        imuRow.append(serverTimestamp).append(',').append(deviceId).append(',').append(port).append(',').append(DataFields.MISSING);
+        appendThetas(imuRow);
+        imuRow.append(',').append(DataFields.MISSING).append(',').append(DataFields.MISSING);
+        appendFloats(imuRow, sample.accelerometer);
+        imuRow.append(',').append(isStepSensor | isStep);
+
+        imuRawWriter.writeRow(rawRow);
+        imuWriter.writeRow(imuRow);
+    }
+
+    /**
+     * The Phone_ID is only in the json messages: the binary frames use the hash until one is received
+     */
+    private String deviceIdOfHash(int deviceIdHash) {
+        String deviceId = deviceIdsByHash.get(deviceIdHash);
+        return (deviceId != null) ? deviceId : Integer.toUnsignedString(deviceIdHash);
+    }
+
+    private static void appendFloats(StringBuilder row, float[] values) {
+        for (float v : values) {
+            row.append(',').append(v);
+        }
+    }
+
+    private void appendThetas(StringBuilder row) {
+        row.append(',').append(thetas[0]).append(',').append(thetas[1]).append(',').append(thetas[2]);
+    }
+
+    private boolean processBeaconJson(byte[] data, int offset, int length, int port, long now) throws IOException {
+        if (!json.parse(data, offset, length)) return false;
+        int phone = json.indexOf(PHONE_ID);
+        int uuidIndex = json.indexOf("UUID");
+        int majorIndex = json.indexOf("Major");
+        int minorIndex = json.indexOf("Minor");
+        int txPowerIndex = json.indexOf("TxPower");
+        int rssiIndex = json.indexOf("RSSI");
+        if (phone < 0 || uuidIndex < 0 || majorIndex < 0 || minorIndex < 0 || txPowerIndex < 0 || rssiIndex < 0) {
+            return false;
+        }
+
+        String deviceId;
+        long major;
+        long minor;
+        long txPower;
+        long rssi;
+        try {
+            deviceId = deviceId(phone);
+            major = json.getLong(majorIndex);
+            minor = json.getLong(minorIndex);
+            txPower = json.getLong(txPowerIndex);
+            rssi = json.getLong(rssiIndex);
+            minor = minor(major, minor, json.getString(uuidIndex));
+            if (minor < 0) return false;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        int sequence = json.indexOf("Sequence");
+        int positionTs = json.indexOf("PositionTS");
+        if (sequence >= 0 && positionTs >= 0) {
+            try {
+                beaconSequences.onPacket(deviceId, json.getLong(sequence), json.getLong(positionTs), now);
+            } catch (NumberFormatException e) {
+                // the row is still written
+            }
+        }
+
+        writeBeaconRow(deviceId, port, now, major, minor, txPower, rssi);
+        return true;
+    }
+
+    private boolean processBeaconFrame(ByteBuffer buf, int port, long now) throws IOException {
+        if (buf.remaining() < BeaconDeltaSerializer.HEADER_SIZE) return false;
+        int hash = buf.order(BeaconBinarySerializer.BYTE_ORDER).getInt(buf.position() + ImuFrame.OFFSET_DEVICE_ID);
+        long minor;
+        try {
+            if (buf.get(buf.position()) == BeaconDeltaSerializer.MAGIC) {
+                BeaconDeltaSerializer delta = beaconDeltaDecoders.get(hash);
+                if (delta == null) {
+                    delta = new BeaconDeltaSerializer(null);
+                    beaconDeltaDecoders.put(hash, delta);
+                }
+                // false until the next key frame of the beacon after a lost frame
+                if (!delta.read(buf, beaconSample)) return false;
+            } else if (!beaconDecoder.read(buf, beaconSample)) {
+                return false;
+            }
+            minor = minor(beaconSample.major, beaconSample.minor, beaconSample.uuid);
+        } catch (BufferUnderflowException | NumberFormatException e) {
+            return false;
+        }
+        if (minor < 0) return false;
+        String deviceId = deviceIdOfHash(hash);
+        beaconSequences.onPacket(deviceId, beaconSample.sequence & 0xffffffffL, beaconSample.timestamp, now);
+        writeBeaconRow(deviceId, port, now, beaconSample.major, minor, beaconSample.txPower, beaconSample.rssi);
+        return true;
+    }
+
+    /**
+     * The Nordic boards have their minor in their UUID: the MAC address without the ':'
+     * @return the minor of the row, -1 if the UUID of a Nordic board is too short
+     * @throws NumberFormatException if the UUID of a Nordic board does not end with a MAC address
+     */
+    private static long minor(long major, long minor, String uuid) {
+        if (major != 85 || minor != 77) return minor;
+        if (uuid == null || uuid.length() < 22 + 17) return -1;
+        return Long.parseLong(uuid.substring(22, 22 + 17).replace(":", ""), 16);
+    }
+
+    /**
+     * The timestamp of the beacon rows is the reception time
+     */
+    private void writeBeaconRow(String deviceId, int port, long now, long major, long minor, long txPower, long rssi)
+            throws IOException {
+        beaconRow.setLength(0);
+        beaconRow.append(now).append(',').append(deviceId).append(',').append(port).append(',')
+                .append(major).append('-').append(minor);
+        for (int i = DataFields.ANCHOR_ID + 1; i < DataFields.TXPOWER; i++) {
+            beaconRow.append(',').append(DataFields.MISSING);
+        }
+        beaconRow.append(',').append(txPower).append(',').append(rssi);
+        for (int i = DataFields.RSSI + 1; i < DataFields.DATA_FIELDS.length; i++) {
+            beaconRow.append(',').append(DataFields.MISSING);
+        }
+        bluetoothWriter.writeRow(beaconRow);
+    }
+
+    /**
+     * device_id of the csv files: the Phone_ID (hexadecimal) as an unsigned decimal number, like
+     * int(Phone_ID, 16) in python.
+     * @throws NumberFormatException if the Phone_ID is not hexadecimal or longer than 64 bits
+     */
+    private String deviceId(int phone) {
+        String phoneId = json.getString(phone);
+        String deviceId = deviceIds.get(phoneId);
+        if (deviceId == null) {
+            deviceId = Long.toUnsignedString(Long.parseUnsignedLong(phoneId, 16));
+            deviceIds.put(phoneId, deviceId);
+            deviceIdsByHash.put(phoneId.hashCode(), deviceId);
+        }
+        return deviceId;
+    }
+
+    String getStats() {
+        return "shard " + id + ": processed=" + processed + " malformed=" + malformed + " pending=" + pending.size()
+                + " imu {" + summary(imuSequences) + "} beacon {" + summary(beaconSequences) + "}";
+    }
+
+    private static String summary(SequenceTracker tracker) {
+        long received = 0;
+        long lost = 0;
+        long late = 0;
+        long duplicates = 0;
+        for (SequenceTracker.Stream stream : tracker.getStreams().values()) {
+            received += stream.getReceivedCount();
+            lost += stream.getLostCount();
+            late += stream.getLateCount();
+            duplicates += stream.getDuplicateCount();
+        }
+        long expected = received + lost;
+        return "devices=" + tracker.getStreams().size() + " received=" + received + " lost=" + lost
+                + String.format(" (%.3f%%)", (expected == 0) ? 0.0 : 100.0 * lost / expected)
+                + " late=" + late + " duplicates=" + duplicates;
+    }
+}
@@ -0,0 +1,60 @@
+package ch.ubiment.ingest;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Converts the timestamps of the phones to the time of the server, same as update_deviceID_to_dt() in
+ * Acquisition/imu_acquisition_thread.py.
+ *
+ * The offset of every device is the smallest (now - timestamp) seen so far, so a late packet does not move it.
+ * The offset is increased by a small amount after every packet, which lets it follow a phone whose clock is
+ * slower than the one of the server. The round trip time is assumed to be 0.
+ *
+ * Not thread-safe: every device must always be converted by the same thread.
+ */
+final class TimeSync {
+    // the python script adds 1 / 50 / 30 ms per packet, tuned for 50 Hz
+    static final double DEFAULT_DRIFT_PER_PACKET = 1.0 / 50 / 30;
+
+    private static final class Offset {
+        double dt;
+    }
+
+    private final Map<Object, Offset> offsets = new HashMap<>();
+    private final double driftPerPacket;
+
+    TimeSync() {
+        this(DEFAULT_DRIFT_PER_PACKET);
+    }
+
+    TimeSync(double driftPerPacket) {
+        this.driftPerPacket = driftPerPacket;
+    }
+
+    /**
+     * @param device: identifies the phone
+     * @param timestamp: timestamp written by the phone, in milliseconds
+     * @param now: current time of the server, in milliseconds since epoch
+     * @return the timestamp in milliseconds since epoch according to the server
+     */
+    long toServerTime(Object device, long timestamp, long now) {
+        long currentDt = now - timestamp;
+        Offset offset = offsets.get(device);
+        if (offset == null) {
+            offset = new Offset();
+            offset.dt = currentDt;
+            offsets.put(device, offset);
+        }
+        if (Math.floor(offset.dt) > currentDt) {
+            offset.dt = currentDt;
+        }
+        long out = timestamp + (long) Math.floor(offset.dt);
+        offset.dt += driftPerPacket;
+        return out;
+    }
+
+    int size() {
+        return offsets.size();
+    }
+}
@@ -0,0 +1,182 @@
+package ch.ubiment.ingest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+import ch.ubiment.sensors.sensordemo.Algebra.Quaternion;
+import ch.ubiment.sensors.sensordemo.Communication.ImuFrameEncoder;
+
+/**
+ * Simulates phones sending their sensors messages at a fixed rate, plus one beacon report per second and per beacon,
+ * to an IngestServer started in the same process, then compares the rows of the csv files with what was sent.
+ * It is not a unit test, run it on the development machine with:
+ * <pre>
+ *   ./gradlew loadTest --args="--phones 100 --rate 50 --seconds 20"
+ * </pre>
+ * Options: --phones n, --rate Hz, --seconds s, --beacons per phone, --threads shards, --binary (ImuFrame instead of json).
+ * Every phone sends from its own socket, like the real phones.
+ */
+public class LoadGenerator {
+    private static final int BEACON_PORT = 17582;
+    private static final int SENSORS_PORT = 17586;
+
+    public static void main(String[] args) throws Exception {
+        int phones = 100;
+        int rate = 50;
+        int seconds = 20;
+        int beacons = 5;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean binary = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--phones": phones = Integer.parseInt(args[++i]); break;
+                case "--rate": rate = Integer.parseInt(args[++i]); break;
+                case "--seconds": seconds = Integer.parseInt(args[++i]); break;
+                case "--beacons": beacons = Integer.parseInt(args[++i]); break;
+                case "--threads": threads = Integer.parseInt(args[++i]); break;
+                case "--binary": binary = true; break;
+                default: throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+        }
+
+        File output = new File(System.getProperty("java.io.tmpdir"), "ingest-load-" + System.currentTimeMillis());
+        final IngestServer server = new IngestServer("127.0.0.1", BEACON_PORT, SENSORS_PORT, output, threads);
+        Thread serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.run();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "server");
+        serverThread.start();
+        Thread.sleep(500);
+
+        long sensorsSent = 0;
+        long beaconsSent = 0;
+        double elapsed;
+        Phone[] simulated = new Phone[phones];
+        try {
+            for (int i = 0; i < phones; i++) {
+                simulated[i] = new Phone(i, binary);
+            }
+            long period = 1000000000L / rate;
+            long start = System.nanoTime();
+            long next = start;
+            for (int tick = 0; tick < rate * seconds; tick++) {
+                for (Phone phone : simulated) {
+                    phone.sendSensors();
+                    sensorsSent++;
+                    if (tick % rate == 0) {
+                        for (int b = 0; b < beacons; b++) {
+                            phone.sendBeacon(b);
+                            beaconsSent++;
+                        }
+                    }
+                }
+                next += period;
+                LockSupport.parkNanos(next - System.nanoTime());
+            }
+            elapsed = (System.nanoTime() - start) / 1e9;
+            Thread.sleep(1000);
+        } finally {
+            server.stop();
+            serverThread.join();
+            for (Phone phone : simulated) {
+                if (phone != null) phone.close();
+            }
+        }
+
+        long imuRows = countRows(new File(output, "data_imu.csv"));
+        long rawRows = countRows(new File(output, "data_imu_raw.csv"));
+        long beaconRows = countRows(new File(output, "data_bluetooth.csv"));
+        System.out.println(String.format(Locale.ROOT, "%d phones at %d Hz (%s), %d shards: %.0f messages/s for %.1f s",
+                phones, rate, binary ? "binary" : "json", threads, (sensorsSent + beaconsSent) / elapsed, elapsed));
+        System.out.println(String.format(Locale.ROOT, "  sensors: sent %d, data_imu.csv %d rows, data_imu_raw.csv %d rows, lost %.3f%%",
+                sensorsSent, imuRows, rawRows, 100.0 * (sensorsSent - imuRows) / sensorsSent));
+        System.out.println(String.format(Locale.ROOT, "  beacons: sent %d, data_bluetooth.csv %d rows, lost %.3f%%",
+                beaconsSent, beaconRows, (beaconsSent == 0) ? 0.0 : 100.0 * (beaconsSent - beaconRows) / beaconsSent));
+        System.out.println("  output: " + output);
+    }
+
+    private static long countRows(File file) throws IOException {
+        long rows = -1;     // header
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            while (reader.readLine() != null) rows++;
+        } finally {
+            reader.close();
+        }
+        return rows;
+    }
+
+    private static final class Phone {
+        private final String phoneId;
+        private final boolean binary;
+        private final DatagramChannel sensors;
+        private final DatagramChannel beacons;
+        private final ImuFrameEncoder encoder;
+        private final ByteBuffer frame = ByteBuffer.allocateDirect(1024);
+        private final Quaternion orientation = new Quaternion(0.1, 0.2, 0.3, 0.93).normalized();
+        private final float[] acc = {0.1f, 0.2f, 9.81f};
+        private int sequence = 0;
+        private int beaconSequence = 0;
+
+        Phone(int index, boolean binary) throws IOException {
+            this.phoneId = String.format("%016x", 0x9e3779b97f4a7c15L * (index + 1));
+            this.binary = binary;
+            this.encoder = new ImuFrameEncoder(phoneId);
+            sensors = DatagramChannel.open();
+            sensors.connect(new InetSocketAddress("127.0.0.1", SENSORS_PORT));
+            beacons = DatagramChannel.open();
+            beacons.connect(new InetSocketAddress("127.0.0.1", BEACON_PORT));
+        }
+
+        void sendSensors() throws IOException {
+            long now = System.currentTimeMillis();
+            frame.clear();
+            if (binary) {
+                encoder.encode(frame, sequence++, now * 1000000, acc, acc, acc, acc, acc,
+                        orientation, orientation, orientation, false, (sequence % 50) == 0);
+            } else {
+                String q = "[0.10101525, 0.2020305, 0.30304575, 0.93941307]";
+                String v = "[0.1, 0.2, 9.81]";
+                frame.put(("{\"timestamp\":\"" + now + "\",\"Phone_ID\":\"" + phoneId + "\",\"sequence\":\"" + sequence++
+                        + "\",\"accelerometer\":\"" + v + "\",\"linearAcceleration\":\"" + v + "\",\"gravity\":\"" + v
+                        + "\",\"magneticField\":\"" + v + "\",\"gyroscope\":\"" + v
+                        + "\",\"orientationQuaterionXYZW\":\"" + q + "\",\"orientationGravAccGyroQuaterionXYZW\":\"" + q
+                        + "\",\"orientationAccGyroQuaterionXYZW\":\"" + q
+                        + "\",\"isStepDetectedSensor\":\"0\",\"isStepDetected\":\"" + ((sequence % 50) == 0 ? 1 : 0)
+                        + "\"}").getBytes(StandardCharsets.UTF_8));
+            }
+            frame.flip();
+            sensors.write(frame);
+        }
+
+        void sendBeacon(int beacon) throws IOException {
+            long now = System.currentTimeMillis();
+            frame.clear();
+            frame.put(("{\"PositionTS\":\"" + now + "\",\"Address\":\"C0:00:00:00:00:0" + beacon
+                    + "\",\"UUID\":\"f7826da6-4fa2-4e98-8024-bc5b71e0893e\",\"Major\":\"1\",\"Minor\":\"" + beacon
+                    + "\",\"TxPower\":\"-59\",\"Phone_ID\":\"" + phoneId + "\",\"Sequence\":\"" + beaconSequence++
+                    + "\",\"RSSI\":\"-70\"}").getBytes(StandardCharsets.UTF_8));
+            frame.flip();
+            beacons.write(frame);
+        }
+
+        void close() throws IOException {
+            sensors.close();
+            beacons.close();
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package ch.ubiment.ingest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The --device of Replay must be a Phone_ID that Shard and the python receivers can convert to a device_id
+ */
+public class ReplayTest {
+
+    @Test
+    public void phoneIds() {
+        assertTrue(Replay.isPhoneId(Replay.DEFAULT_DEVICE));
+        assertTrue(Replay.isPhoneId("8f3a5c7e9b1d2f40"));
+        assertTrue(Replay.isPhoneId("ffffffffffffffff"));
+        assertFalse(Replay.isPhoneId("replay"));
+        assertFalse(Replay.isPhoneId("1ffffffffffffffff"));
+        assertFalse(Replay.isPhoneId(""));
+    }
+}
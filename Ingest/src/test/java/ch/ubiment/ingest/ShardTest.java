@@ -0,0 +1,202 @@
+package ch.ubiment.ingest;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import ch.ubiment.sensors.sensordemo.Algebra.Quaternion;
+import ch.ubiment.sensors.sensordemo.Communication.BeaconBinarySerializer;
+import ch.ubiment.sensors.sensordemo.Communication.BeaconDeltaSerializer;
+import ch.ubiment.sensors.sensordemo.Communication.BeaconSample;
+import ch.ubiment.sensors.sensordemo.Communication.FrameSerializer;
+import ch.ubiment.sensors.sensordemo.Communication.ImuDeltaSerializer;
+import ch.ubiment.sensors.sensordemo.Communication.ImuFrameEncoder;
+import ch.ubiment.sensors.sensordemo.Communication.ImuSample;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the rows are the ones written by the Acquisition scripts for the same messages
+ */
+public class ShardTest {
+    private static final String PHONE_ID = "8f3a5c7e9b1d2f40";
+    private static final String DEVICE_ID = "10320663194910928704";     // int(PHONE_ID, 16)
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CsvWriter imu;
+    private CsvWriter imuRaw;
+    private CsvWriter bluetooth;
+    private Shard shard;
+
+    private void open() throws Exception {
+        imu = new CsvWriter(folder.newFile("imu.csv"), DataFields.DATA_FIELDS);
+        imuRaw = new CsvWriter(folder.newFile("imu_raw.csv"), DataFields.IMU_RAW_FIELDS);
+        bluetooth = new CsvWriter(folder.newFile("bluetooth.csv"), DataFields.DATA_FIELDS);
+        shard = new Shard(0, DataFields.BEACON_PORT, 1, 2048, imu, imuRaw, bluetooth);
+    }
+
+    private void process(int port, byte[] data, long now) throws Exception {
+        Datagram datagram = new Datagram(data.length);
+        datagram.set(port, ByteBuffer.wrap(data), now);
+        shard.process(datagram);
+    }
+
+    private static <T> byte[] serialize(FrameSerializer<T> serializer, T sample) {
+        ByteBuffer buf = ByteBuffer.allocate(2048);
+        serializer.write(sample, buf);
+        byte[] data = new byte[buf.position()];
+        buf.flip();
+        buf.get(data);
+        return data;
+    }
+
+    private static List<String> rows(CsvWriter writer) throws Exception {
+        writer.close();
+        return Files.readAllLines(writer.getFile().toPath(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void jsonImuMessage() throws Exception {
+        open();
+        // rotation of 90 degrees around z
+        String q = "[0.0, 0.0, 0.70710677, 0.70710677]";
+        String v = "[0.1, 0.2, 9.81]";
+        String message = "{\"timestamp\":\"1000\",\"Phone_ID\":\"" + PHONE_ID + "\",\"sequence\":\"0\","
+                + "\"accelerometer\":\"" + v + "\",\"linearAcceleration\":\"[1.0, 2.0, 3.0]\",\"gravity\":\"" + v
+                + "\",\"magneticField\":\"[-20.5, 3.0, -40.0]\",\"gyroscope\":\"[0.0, 0.0, 0.01]\","
+                + "\"orientationQuaterionXYZW\":\"" + q + "\",\"orientationGravAccGyroQuaterionXYZW\":\"" + q
+                + "\",\"orientationAccGyroQuaterionXYZW\":\"" + q
+                + "\",\"isStepDetectedSensor\":\"0\",\"isStepDetected\":\"1\"}";
+        process(DataFields.SENSORS_PORT, message.getBytes(StandardCharsets.UTF_8), 5000);
+
+        List<String> raw = rows(imuRaw);
+        assertEquals(2, raw.size());
+        assertEquals("5000," + DEVICE_ID + ",7586,0.1,0.2,9.81,-20.5,3.0,-40.0,0.1,0.2,9.81,1.0,2.0,3.0,0.0,0.0,0.01,"
+                + "0.0,0.0,0.70710677,0.70710677,0.0,0.0,0.70710677,0.70710677,0.0,0.0,0.70710677,0.70710677,0,1", raw.get(1));
+
+        String[] row = rows(imu).get(1).split(",");
+        assertEquals(DataFields.DATA_FIELDS.length, row.length);
+        assertEquals("5000", row[DataFields.TIMESTAMP]);
+        assertEquals(DEVICE_ID, row[DataFields.DEVICE_ID]);
+        assertEquals("7586", row[DataFields.SYSTEM_ID]);
+        assertEquals("NaN", row[DataFields.ANCHOR_ID]);
+        assertEquals(0.0, Double.parseDouble(row[DataFields.THETA_X]), 1e-6);
+        assertEquals(0.0, Double.parseDouble(row[DataFields.THETA_Y]), 1e-6);
+        assertEquals(Math.PI / 2, Double.parseDouble(row[DataFields.THETA_Z]), 1e-6);
+        assertEquals("NaN", row[DataFields.TXPOWER]);
+        assertEquals("NaN", row[DataFields.RSSI]);
+        assertEquals("9.81", row[DataFields.ACC_Z]);
+        assertEquals("1", row[DataFields.IS_STEP_DETECTED]);
+    }
+
+    @Test
+    public void binaryFrameUsesTheDeviceIdOfTheJsonMessages() throws Exception {
+        open();
+        String json = "{\"timestamp\":\"1000\",\"Phone_ID\":\"" + PHONE_ID + "\",\"accelerometer\":\"[0.0, 0.0, 1.0]\","
+                + "\"orientationAccGyroQuaterionXYZW\":\"[0.0, 0.0, 0.0, 1.0]\",\"isStepDetectedSensor\":\"0\",\"isStepDetected\":\"0\"}";
+        // incomplete message: no row, but the device id is known from now on
+        process(DataFields.SENSORS_PORT, json.getBytes(StandardCharsets.UTF_8), 5000);
+
+        float[] acc = {0.5f, 0.25f, 9.75f};
+        Quaternion q = new Quaternion(0, 0, 0, 1);
+        ByteBuffer frame = new ImuFrameEncoder(PHONE_ID).encode(1, 1020000000L, acc, acc, acc, acc, acc, q, q, q, true, false);
+        byte[] data = new byte[frame.remaining()];
+        frame.get(data);
+        process(DataFields.SENSORS_PORT, data, 5030);
+
+        List<String> imuRows = rows(imu);
+        assertEquals(2, imuRows.size());
+        String[] row = imuRows.get(1).split(",");
+        // same time offset as the first message
+        assertEquals("5020", row[DataFields.TIMESTAMP]);
+        assertEquals(DEVICE_ID, row[DataFields.DEVICE_ID]);
+        assertEquals("0.5", row[DataFields.ACC_X]);
+        assertEquals("1", row[DataFields.IS_STEP_DETECTED]);
+    }
+
+    @Test
+    public void nordicBeaconReport() throws Exception {
+        open();
+        String message = "{\"PositionTS\":\"1000\",\"Address\":\"D1:E2:F3:04:15:26\","
+                + "\"UUID\":\"01122334-4556-6778-899D1:E2:F3:04:15:26\",\"Major\":\"85\",\"Minor\":\"77\","
+                + "\"TxPower\":\"-59\",\"Phone_ID\":\"" + PHONE_ID + "\",\"Sequence\":\"3\",\"RSSI\":\"-71\",\"Count\":\"4\"}";
+        process(DataFields.BEACON_PORT, message.getBytes(StandardCharsets.UTF_8), 5000);
+
+        List<String> rows = rows(bluetooth);
+        assertEquals(2, rows.size());
+        assertEquals("5000," + DEVICE_ID + ",7582,85-" + Long.parseLong("D1E2F3041526", 16)
+                + ",NaN,NaN,NaN,-59,-71,NaN,NaN,NaN,NaN", rows.get(1));
+    }
+
+    @Test
+    public void deltaImuFrames() throws Exception {
+        open();
+        ImuDeltaSerializer serializer = new ImuDeltaSerializer(PHONE_ID);
+        ImuSample sample = new ImuSample();
+        float[] q = {0f, 0f, 0f, 1f};
+        float[] zero = {0f, 0f, 0f};
+        for (int i = 0; i < 4; i++) {
+            float[] acc = {0.5f * i, 0.25f, 9.75f};
+            sample.set(i, 1000000000L + 20000000L * i, acc, zero, zero, zero, zero, q, q, q, false, i == 2);
+            byte[] data = serialize(serializer, sample);
+            // the frame 1 is lost: the next ones can not be decoded until the key frame
+            if (i != 1) process(DataFields.SENSORS_PORT, data, 5000 + 20 * i);
+        }
+        for (int i = 4; i < ImuDeltaSerializer.KEY_FRAME_INTERVAL + 1; i++) {
+            sample.set(i, 1000000000L + 20000000L * i, new float[]{1f, 2f, 3f}, zero, zero, zero, zero, q, q, q, false, false);
+            byte[] data = serialize(serializer, sample);
+            process(DataFields.SENSORS_PORT, data, 5000 + 20 * i);
+        }
+        assertEquals(ImuDeltaSerializer.KEY_FRAME_INTERVAL - 2, shard.getMalformedCount());
+
+        List<String> imuRows = rows(imu);
+        // the first frame and the key frame
+        assertEquals(3, imuRows.size());
+        String[] row = imuRows.get(1).split(",");
+        assertEquals("5000", row[DataFields.TIMESTAMP]);
+        // no json message from this phone yet: the device id is the hash
+        assertEquals(Integer.toUnsignedString(PHONE_ID.hashCode()), row[DataFields.DEVICE_ID]);
+        assertEquals(0.25, Double.parseDouble(row[DataFields.ACC_Y]), 1e-3);
+        row = imuRows.get(2).split(",");
+        assertEquals(String.valueOf(5000 + 20 * ImuDeltaSerializer.KEY_FRAME_INTERVAL), row[DataFields.TIMESTAMP]);
+        assertEquals(2.0, Double.parseDouble(row[DataFields.ACC_Y]), 1e-3);
+    }
+
+    @Test
+    public void binaryAndDeltaBeaconReports() throws Exception {
+        open();
+        String json = "{\"timestamp\":\"1000\",\"Phone_ID\":\"" + PHONE_ID + "\",\"accelerometer\":\"[0.0, 0.0, 1.0]\","
+                + "\"orientationAccGyroQuaterionXYZW\":\"[0.0, 0.0, 0.0, 1.0]\",\"isStepDetectedSensor\":\"0\",\"isStepDetected\":\"0\"}";
+        // incomplete message: no row, but the device id is known from now on
+        process(DataFields.SENSORS_PORT, json.getBytes(StandardCharsets.UTF_8), 4000);
+
+        BeaconSample sample = new BeaconSample();
+        sample.setAdvertisement(3, 1000, "D1:E2:F3:04:15:26", "01122334-4556-6778-899D1:E2:F3:04:15:26", 85, 77, -59, -70);
+        sample.setReport(4, -71.25f, -75, -68, -70, 200);
+        process(DataFields.BEACON_PORT, serialize(new BeaconBinarySerializer(PHONE_ID), sample), 5000);
+
+        BeaconDeltaSerializer delta = new BeaconDeltaSerializer(PHONE_ID);
+        sample.setAdvertisement(4, 2000, "AA:BB:CC:DD:EE:FF", "uuid", 12, 34, -60, -80);
+        process(DataFields.BEACON_PORT, serialize(delta, sample), 6000);
+        sample.setAdvertisement(5, 3000, "AA:BB:CC:DD:EE:FF", "uuid", 12, 34, -60, -82);
+        process(DataFields.BEACON_PORT, serialize(delta, sample), 7000);
+        // the json message
+        assertEquals(1, shard.getMalformedCount());
+
+        List<String> rows = rows(bluetooth);
+        assertEquals(4, rows.size());
+        assertEquals("5000," + DEVICE_ID + ",7582,85-" + Long.parseLong("D1E2F3041526", 16)
+                + ",NaN,NaN,NaN,-59,-71,NaN,NaN,NaN,NaN", rows.get(1));
+        assertEquals("6000," + DEVICE_ID + ",7582,12-34,NaN,NaN,NaN,-60,-80,NaN,NaN,NaN,NaN", rows.get(2));
+        // only the differences were sent
+        assertEquals("7000," + DEVICE_ID + ",7582,12-34,NaN,NaN,NaN,-60,-82,NaN,NaN,NaN,NaN", rows.get(3));
+    }
+}
@@ -0,0 +1,244 @@
+package ch.ubiment.sensors.sensordemo.Algebra;
+
+/**
+ * 3x3 matrix, row-major in a len-9 array:
+ * <pre>
+ *   /  M[ 0]   M[ 1]   M[ 2]  \
+ *   |  M[ 3]   M[ 4]   M[ 5]  |
+ *   \  M[ 6]   M[ 7]   M[ 8]  /
+ * </pre>
+ * The static kernels (multiplyMM, multiplyMV, ...) work on such arrays and write into a caller-supplied one,
+ * without creating any object: the code running for every sample or every frame keeps its arrays and calls them.
+ * The output can be one of the inputs.
+ */
+public class Matrix3 {
+    double[] M;
+
+    public Matrix3(double[] M){
+        this.M = M;
+    }
+
+    public Matrix3(Quaternion q){
+        M = q.getRotationMatrix();
+    }
+
+    public Matrix3 multiply(Matrix3 MIn){
+        double[] MOut = new double[9];
+        multiplyMM(M, MIn.M, MOut);
+        return new Matrix3(MOut);
+    }
+
+    public Matrix3 transposed(){
+        double[] T = new double[9];
+        transpose(M, T);
+        return new Matrix3(T);
+    }
+
+
+    /**
+     * multiply Matrix3 with float[] vector of length 3. (return a float[3])
+     * @param vec3f
+     * @return
+     */
+    public float[] multiply(float[] vec3f){
+        float[] out = new float[3];
+        multiplyMV(M, vec3f, out);
+        return out;
+    }
+
+    /**
+     * Same as multiply(float[]) but writes into the given len-3 array, which can be vec3f
+     */
+    public void multiply(float[] vec3f, float[] out){
+        multiplyMV(M, vec3f, out);
+    }
+
+
+    /**
+     * multiply Matrix3 with double[] vector of length 3. (return a double[3])
+     * @param vec3
+     * @return
+     */
+    public double[] multiply(double[] vec3){
+        double[] out = new double[3];
+        multiplyMV(M, vec3, out);
+        return out;
+    }
+
+    public double getMk(int k){
+        return M[k];
+    }
+
+    public double getMij(int i, int j){
+        return M[3*i+j];
+    }
+
+
+    /**
+     * out = a * b
+     */
+    public static void multiplyMM(double[] a, double[] b, double[] out){
+        double a00 = a[0], a01 = a[1], a02 = a[2];
+        double a10 = a[3], a11 = a[4], a12 = a[5];
+        double a20 = a[6], a21 = a[7], a22 = a[8];
+        double b00 = b[0], b01 = b[1], b02 = b[2];
+        double b10 = b[3], b11 = b[4], b12 = b[5];
+        double b20 = b[6], b21 = b[7], b22 = b[8];
+        out[0] = a00*b00 + a01*b10 + a02*b20;
+        out[1] = a00*b01 + a01*b11 + a02*b21;
+        out[2] = a00*b02 + a01*b12 + a02*b22;
+        out[3] = a10*b00 + a11*b10 + a12*b20;
+        out[4] = a10*b01 + a11*b11 + a12*b21;
+        out[5] = a10*b02 + a11*b12 + a12*b22;
+        out[6] = a20*b00 + a21*b10 + a22*b20;
+        out[7] = a20*b01 + a21*b11 + a22*b21;
+        out[8] = a20*b02 + a21*b12 + a22*b22;
+    }
+
+    /**
+     * out = transpose(a) * b, e.g. the rotation from the frame of b to the frame of a
+     */
+    public static void multiplyTransposedMM(double[] a, double[] b, double[] out){
+        double a00 = a[0], a01 = a[1], a02 = a[2];
+        double a10 = a[3], a11 = a[4], a12 = a[5];
+        double a20 = a[6], a21 = a[7], a22 = a[8];
+        double b00 = b[0], b01 = b[1], b02 = b[2];
+        double b10 = b[3], b11 = b[4], b12 = b[5];
+        double b20 = b[6], b21 = b[7], b22 = b[8];
+        out[0] = a00*b00 + a10*b10 + a20*b20;
+        out[1] = a00*b01 + a10*b11 + a20*b21;
+        out[2] = a00*b02 + a10*b12 + a20*b22;
+        out[3] = a01*b00 + a11*b10 + a21*b20;
+        out[4] = a01*b01 + a11*b11 + a21*b21;
+        out[5] = a01*b02 + a11*b12 + a21*b22;
+        out[6] = a02*b00 + a12*b10 + a22*b20;
+        out[7] = a02*b01 + a12*b11 + a22*b21;
+        out[8] = a02*b02 + a12*b12 + a22*b22;
+    }
+
+    public static void transpose(double[] m, double[] out){
+        double m01 = m[1], m02 = m[2], m12 = m[5];
+        out[0] = m[0];
+        out[1] = m[3];
+        out[2] = m[6];
+        out[3] = m01;
+        out[4] = m[4];
+        out[5] = m[7];
+        out[6] = m02;
+        out[7] = m12;
+        out[8] = m[8];
+    }
+
+    /**
+     * out = m * v
+     */
+    public static void multiplyMV(double[] m, double[] v, double[] out){
+        double x = v[0], y = v[1], z = v[2];
+        out[0] = m[0]*x + m[1]*y + m[2]*z;
+        out[1] = m[3]*x + m[4]*y + m[5]*z;
+        out[2] = m[6]*x + m[7]*y + m[8]*z;
+    }
+
+    /**
+     * out = m * v, computed in double
+     */
+    public static void multiplyMV(double[] m, float[] v, float[] out){
+        double x = v[0], y = v[1], z = v[2];
+        out[0] = (float) (m[0]*x + m[1]*y + m[2]*z);
+        out[1] = (float) (m[3]*x + m[4]*y + m[5]*z);
+        out[2] = (float) (m[6]*x + m[7]*y + m[8]*z);
+    }
+
+    /**
+     * out = m * v, for the float matrices of SensorManager and of the fusion classes
+     */
+    public static void multiplyMV(float[] m, float[] v, float[] out){
+        float x = v[0], y = v[1], z = v[2];
+        out[0] = m[0]*x + m[1]*y + m[2]*z;
+        out[1] = m[3]*x + m[4]*y + m[5]*z;
+        out[2] = m[6]*x + m[7]*y + m[8]*z;
+    }
+
+    /**
+     * out = transpose(m) * v, the inverse rotation of multiplyMV for a rotation matrix
+     */
+    public static void multiplyTransposedMV(double[] m, double[] v, double[] out){
+        double x = v[0], y = v[1], z = v[2];
+        out[0] = m[0]*x + m[3]*y + m[6]*z;
+        out[1] = m[1]*x + m[4]*y + m[7]*z;
+        out[2] = m[2]*x + m[5]*y + m[8]*z;
+    }
+
+    /**
+     * out = transpose(m) * v, computed in double
+     */
+    public static void multiplyTransposedMV(double[] m, float[] v, float[] out){
+        double x = v[0], y = v[1], z = v[2];
+        out[0] = (float) (m[0]*x + m[3]*y + m[6]*z);
+        out[1] = (float) (m[1]*x + m[4]*y + m[7]*z);
+        out[2] = (float) (m[2]*x + m[5]*y + m[8]*z);
+    }
+
+    public static void multiplyTransposedMV(float[] m, float[] v, float[] out){
+        float x = v[0], y = v[1], z = v[2];
+        out[0] = m[0]*x + m[3]*y + m[6]*z;
+        out[1] = m[1]*x + m[4]*y + m[7]*z;
+        out[2] = m[2]*x + m[5]*y + m[8]*z;
+    }
+
+    /**
+     * Rotation matrix of the quaternion (qx, qy, qz, qw), like Quaternion.getRotationMatrix()
+     * @param out: row-major len-9
+     */
+    public static void fromQuaternion(double qx, double qy, double qz, double qw, double[] out){
+        out[0] = 1 - 2*qy*qy - 2*qz*qz;
+        out[1] = 2*qx*qy - 2*qz*qw;
+        out[2] = 2*qx*qz + 2*qy*qw;
+
+        out[3] = 2*qx*qy + 2*qz*qw;
+        out[4] = 1 - 2*qx*qx - 2*qz*qz;
+        out[5] = 2*qy*qz - 2*qx*qw;
+
+        out[6] = 2*qx*qz - 2*qy*qw;
+        out[7] = 2*qy*qz + 2*qx*qw;
+        out[8] = 1 - 2*qx*qx - 2*qy*qy;
+    }
+
+    /**
+     * Rotation matrix of a quaternion {qx, qy, qz, qw} of QuaternionOperator
+     * @param out: row-major len-9
+     */
+    public static void fromQuaternion(double[] xyzw, double[] out){
+        fromQuaternion(xyzw[0], xyzw[1], xyzw[2], xyzw[3], out);
+    }
+
+    /**
+     * Rotation matrix of a quaternion {qx, qy, qz, qw} in float, as in ImuSample, with the layout of
+     * SensorManager.getRotationMatrixFromVector(): row-major 3x3 for a len-9 out, 4x4 for a len-16 out
+     * (what the OpenGL renderer takes)
+     */
+    public static void fromQuaternion(float[] xyzw, float[] out){
+        float qx = xyzw[0], qy = xyzw[1], qz = xyzw[2], qw = xyzw[3];
+        float R00 = 1 - 2*qy*qy - 2*qz*qz;
+        float R01 = 2*qx*qy - 2*qz*qw;
+        float R02 = 2*qx*qz + 2*qy*qw;
+        float R10 = 2*qx*qy + 2*qz*qw;
+        float R11 = 1 - 2*qx*qx - 2*qz*qz;
+        float R12 = 2*qy*qz - 2*qx*qw;
+        float R20 = 2*qx*qz - 2*qy*qw;
+        float R21 = 2*qy*qz + 2*qx*qw;
+        float R22 = 1 - 2*qx*qx - 2*qy*qy;
+        if (out.length == 9) {
+            out[0] = R00; out[1] = R01; out[2] = R02;
+            out[3] = R10; out[4] = R11; out[5] = R12;
+            out[6] = R20; out[7] = R21; out[8] = R22;
+        } else if (out.length == 16) {
+            out[0] = R00; out[1] = R01; out[2] = R02; out[3] = 0;
+            out[4] = R10; out[5] = R11; out[6] = R12; out[7] = 0;
+            out[8] = R20; out[9] = R21; out[10] = R22; out[11] = 0;
+            out[12] = 0; out[13] = 0; out[14] = 0; out[15] = 1;
+        } else {
+            throw new IllegalArgumentException("rotation matrix of length " + out.length);
+        }
+    }
+}
@@ -1,7 +1,5 @@
 package ch.ubiment.sensors.sensordemo.Algebra;
 
-import android.util.Log;
-
 /******************************************************************************
  *  Compilation:  javac Quaternion.java
  *  Execution:    java Quaternion
@@ -10,14 +8,23 @@ import android.util.Log;
  *
  *  http://mathworld.wolfram.com/Quaternion.html
  *
- *  The data type is "immutable" so once you create and initialize
- *  a Quaternion, you cannot change it.
+ *  The methods returning a Quaternion (times, normalized, slerp, ...) are
+ *  "immutable": they create a new Quaternion and leave the operands as they are.
+ *  For the code running for every sensor event, the mutable methods (set...,
+ *  mulInto, normalizeInPlace, normalizeIfDrifted, slerpInto) give the same
+ *  results in an existing Quaternion, without creating any object.
  *
  *  % java Quaternion
  *
  ******************************************************************************/
 
 public class Quaternion {
+    /**
+     * Tolerance of normalizeIfDrifted() on |q|^2 - 1 for the quaternions integrated sample by sample: their norm
+     * drifts by about 1e-16 per product, so they are renormalized after thousands of samples instead of every one.
+     */
+    public static final double DEFAULT_NORM_TOLERANCE = 1e-9;
+
     private double qx, qy, qz, qw;
 
     /**
@@ -41,24 +48,7 @@ public class Quaternion {
      * @param rotation_axis
      */
     public Quaternion(double radian, double[] rotation_axis) {
-        //normalize axis
-        double norm = Math.sqrt(
-                rotation_axis[0]*rotation_axis[0] +
-                rotation_axis[1]*rotation_axis[1] +
-                rotation_axis[2]*rotation_axis[2]);
-        if (norm == 0.0){
-            // if the norm == 0, then there is no rotation. So we force quaternion to (0,0,0,1)
-            norm = 1.0;
-            radian = 0.0;
-        }
-
-        double cosHalfAlpha = Math.cos(radian/2.0);
-        double sinHalfAlpha = Math.sin(radian/2.0);
-        qx = sinHalfAlpha*rotation_axis[0]/norm;
-        qy = sinHalfAlpha*rotation_axis[1]/norm;
-        qz = sinHalfAlpha*rotation_axis[2]/norm;
-        qw = cosHalfAlpha;
-
+        setFromAxisAngle(radian, rotation_axis[0], rotation_axis[1], rotation_axis[2]);
     }
 
     /**
@@ -72,49 +62,7 @@ public class Quaternion {
      * @param Rmat: Rotation Matrix (Row-Major len-9 float array)
      */
     public Quaternion(float[] Rmat) {
-        int m00 = 0;
-        int m01 = 1;
-        int m02 = 2;
-        int m10 = 3;
-        int m11 = 4;
-        int m12 = 5;
-        int m20 = 6;
-        int m21 = 7;
-        int m22 = 8;
-
-        float tr = Rmat[m00] + Rmat[m11] + Rmat[m22];
-        if (tr > 0) {
-            double s = Math.sqrt(tr + 1.0) * 2; // S=4*qw
-            qw = 0.25f * s;
-            qx = (Rmat[m21] - Rmat[m12]) / s;
-            qy = (Rmat[m02] - Rmat[m20]) / s;
-            qz = (Rmat[m10] - Rmat[m01]) / s;
-        } else if ((Rmat[m00] > Rmat[m11]) & (Rmat[m00] > Rmat[m22])) {
-            double s = Math.sqrt(1.0 + Rmat[m00] - Rmat[m11] - Rmat[m22]) * 2; // S=4*qx
-            qw = (Rmat[m21] - Rmat[m12]) / s;
-            qx = 0.25f * s;
-            qy = (Rmat[m01] + Rmat[m10]) / s;
-            qz = (Rmat[m02] + Rmat[m20]) / s;
-        } else if (Rmat[m11] > Rmat[m22]) {
-            double s = Math.sqrt(1.0 + Rmat[m11] - Rmat[m00] - Rmat[m22]) * 2; // S=4*qy
-            qw = (Rmat[m02] - Rmat[m20]) / s;
-            qx = (Rmat[m01] + Rmat[m10]) / s;
-            qy = 0.25f * s;
-            qz = (Rmat[m12] + Rmat[m21]) / s;
-        } else {
-            double s = Math.sqrt(1.0 + Rmat[m22] - Rmat[m00] - Rmat[m11]) * 2; // S=4*qz
-            qw = (Rmat[m10] - Rmat[m01]) / s;
-            qx = (Rmat[m02] + Rmat[m20]) / s;
-            qy = (Rmat[m12] + Rmat[m21]) / s;
-            qz = 0.25f * s;
-        }
-
-        double n = norm();
-        qx /= n;
-        qy /= n;
-        qz /= n;
-        qw /= n;
-
+        setFromRotationMatrix(Rmat);
     }
 
     public Quaternion() {
@@ -209,22 +157,68 @@ public class Quaternion {
 
 
     /**
-     * Rotate a vector of float {x, y, z} using this Quaternion
+     * Rotate a vector of float {x, y, z} using this Quaternion: p = conjugate(q) * (x,y,z,0) * q.
+     * This Quaternion must be normalized (see rotateVector(float[], float[]))
      * @param vec3
      * @return
      */
     public float[] rotateVector(float[] vec3){
-        Quaternion q = this;
-        // To rotate a vector [x,y,z] with a quaternion, we need to convert it into a "pure" quaternion (x,y,z,0)
-        // create the "pure" quaternion
-        Quaternion v = new Quaternion(vec3[0], vec3[1], vec3[2], 0.0);
-        // compute the rotated vector: p = q*vq
-        Quaternion p = q.conjugate().times(v).times(q);
-        // extract the actual vector from "pure" vector
-        float[] out = {(float)p.qx, (float)p.qy, (float)p.qz};
+        float[] out = new float[3];
+        rotateVector(vec3, out);
         return out;
     }
 
+    /**
+     * Same as rotateVector(float[]) but writes into the given len-3 array, which can be vec3.
+     * Closed form of conjugate(q) * (v,0) * q for a unit quaternion q = (u, w), with u' = -u:
+     * t = 2 u' x v, v' = v + w t + u' x t. It takes 15 multiplications instead of the 32 of the two products,
+     * but unlike them it does not scale the vector by |q|^2 when q is not normalized.
+     * @param vec3: {x, y, z}
+     * @param out: rotated {x, y, z}
+     */
+    public void rotateVector(float[] vec3, float[] out){
+        double vx = vec3[0], vy = vec3[1], vz = vec3[2];
+        // t = 2 u' x v = 2 v x u
+        double tx = 2 * (vy*qz - vz*qy);
+        double ty = 2 * (vz*qx - vx*qz);
+        double tz = 2 * (vx*qy - vy*qx);
+        // u' x t = t x u
+        out[0] = (float) (vx + qw*tx + ty*qz - tz*qy);
+        out[1] = (float) (vy + qw*ty + tz*qx - tx*qz);
+        out[2] = (float) (vz + qw*tz + tx*qy - ty*qx);
+    }
+
+    /**
+     * Rotate count vectors packed as {x0, y0, z0, x1, y1, z1, ...} like rotateVector(float[], float[]).
+     * The rotation matrix is computed once, so every vector only takes 9 multiplications.
+     * dst can be src, with the same offset.
+     * @param src: packed xyz vectors
+     * @param srcOffset: index of the first x in src
+     * @param dst: packed rotated vectors
+     * @param dstOffset: index of the first x in dst
+     * @param count: number of vectors
+     */
+    public void rotateVectors(float[] src, int srcOffset, float[] dst, int dstOffset, int count){
+        // conjugate(q) * v * q is the transpose of the rotation matrix of q applied to v
+        double R00 = 1 - 2*qy*qy - 2*qz*qz;
+        double R01 = 2*qx*qy - 2*qz*qw;
+        double R02 = 2*qx*qz + 2*qy*qw;
+        double R10 = 2*qx*qy + 2*qz*qw;
+        double R11 = 1 - 2*qx*qx - 2*qz*qz;
+        double R12 = 2*qy*qz - 2*qx*qw;
+        double R20 = 2*qx*qz - 2*qy*qw;
+        double R21 = 2*qy*qz + 2*qx*qw;
+        double R22 = 1 - 2*qx*qx - 2*qy*qy;
+        int s = srcOffset;
+        int d = dstOffset;
+        for (int i = 0; i < count; i++, s += 3, d += 3) {
+            double vx = src[s], vy = src[s + 1], vz = src[s + 2];
+            dst[d] = (float) (R00*vx + R10*vy + R20*vz);
+            dst[d + 1] = (float) (R01*vx + R11*vy + R21*vz);
+            dst[d + 2] = (float) (R02*vx + R12*vy + R22*vz);
+        }
+    }
+
     /**
      * EG:
      * returns an array of types 'float' in the order {qx, qy, qz, qw}
@@ -235,6 +229,17 @@ public class Quaternion {
         return out;
     }
 
+    /**
+     * Same as getFloatArrayXYZW() but writes into the given len-4 array instead of allocating a new one
+     * @param out
+     */
+    public void getFloatArrayXYZW(float[] out){
+        out[0] = (float) qx;
+        out[1] = (float) qy;
+        out[2] = (float) qz;
+        out[3] = (float) qw;
+    }
+
     /**
      * EG:
      * returns an array of types 'double' in the order {qx, qy, qz, qw}
@@ -246,26 +251,19 @@ public class Quaternion {
     }
 
     public double[] getRotationMatrix(){
-        double R00 = 1 - 2*qy*qy - 2*qz*qz;
-        double R01 = 2*qx*qy - 2*qz*qw;
-        double R02 = 2*qx*qz + 2*qy*qw;
-
-        double R10 = 2*qx*qy + 2*qz*qw;
-        double R11 = 1 - 2*qx*qx - 2*qz*qz;
-        double R12 = 2*qy*qz - 2*qx*qw;
-
-        double R20 = 2*qx*qz - 2*qy*qw;
-        double R21 = 2*qy*qz + 2*qx*qw;
-        double R22 = 1 - 2*qx*qx - 2*qy*qy;
-
-        double[] R = {
-                R00, R01, R02,
-                R10, R11, R12,
-                R20, R21, R22
-        };
+        double[] R = new double[9];
+        getRotationMatrix(R);
         return R;
     }
 
+    /**
+     * Same as getRotationMatrix() but writes into the given row-major len-9 array, see Matrix3.fromQuaternion()
+     * @param R
+     */
+    public void getRotationMatrix(double[] R){
+        Matrix3.fromQuaternion(qx, qy, qz, qw, R);
+    }
+
     public double[] getUpVector(){
         double R20 = 2*qx*qz - 2*qy*qw;
         double R21 = 2*qy*qz + 2*qx*qw;
@@ -280,11 +278,25 @@ public class Quaternion {
      * @return
      */
     public float[] getUpVectorFloat(){
-        double[] upVector = getUpVector();
-        float[] out = {(float)upVector[0], (float)upVector[1], (float)upVector[2]};
+        float[] out = new float[3];
+        getUpVectorFloat(out);
         return out;
     }
 
+    /**
+     * Same as getUpVectorFloat() but writes into the given len-3 array instead of allocating a new one
+     * @param out
+     */
+    public void getUpVectorFloat(float[] out){
+        double R20 = 2*qx*qz - 2*qy*qw;
+        double R21 = 2*qy*qz + 2*qx*qw;
+        double R22 = 1 - 2*qx*qx - 2*qy*qy;
+        double norm = Math.sqrt(R20*R20 + R21*R21 + R22*R22);
+        out[0] = (float) (R20/norm);
+        out[1] = (float) (R21/norm);
+        out[2] = (float) (R22/norm);
+    }
+
     public double[] getNorthVector(){
         double R10 = 2*qx*qy + 2*qz*qw;
         double R11 = 1 - 2*qx*qx - 2*qz*qz;
@@ -381,6 +393,204 @@ public class Quaternion {
     }
 
 
+    /*
+     * Mutable API: the methods below change this Quaternion (or out) and return it, so that the per-sample code
+     * can keep its Quaternions and update them in place.
+     */
+
+    /**
+     * Set the q components
+     * @return this
+     */
+    public Quaternion set(double qx, double qy, double qz, double qw) {
+        this.qx = qx;
+        this.qy = qy;
+        this.qz = qz;
+        this.qw = qw;
+        return this;
+    }
+
+    /**
+     * Set the components of b, like b.copy() without creating a Quaternion
+     * @return this
+     */
+    public Quaternion set(Quaternion b) {
+        return set(b.qx, b.qy, b.qz, b.qw);
+    }
+
+    /**
+     * Set the q components from a len-4 array in the order {qx, qy, qz, qw}
+     * @return this
+     */
+    public Quaternion setXYZW(double[] xyzw) {
+        return set(xyzw[0], xyzw[1], xyzw[2], xyzw[3]);
+    }
+
+    /**
+     * Set to (0,0,0,1), like new Quaternion()
+     * @return this
+     */
+    public Quaternion setIdentity() {
+        return set(0.0, 0.0, 0.0, 1.0);
+    }
+
+    /**
+     * Rotation of radian around the axis (ax, ay, az), like new Quaternion(radian, axis).
+     * The axis does not need to be normalized, a null axis gives the identity.
+     * @return this
+     */
+    public Quaternion setFromAxisAngle(double radian, double ax, double ay, double az) {
+        //normalize axis
+        double norm = Math.sqrt(ax*ax + ay*ay + az*az);
+        if (norm == 0.0){
+            // if the norm == 0, then there is no rotation. So we force quaternion to (0,0,0,1)
+            norm = 1.0;
+            radian = 0.0;
+        }
+
+        double cosHalfAlpha = Math.cos(radian/2.0);
+        double sinHalfAlpha = Math.sin(radian/2.0);
+        qx = sinHalfAlpha*ax/norm;
+        qy = sinHalfAlpha*ay/norm;
+        qz = sinHalfAlpha*az/norm;
+        qw = cosHalfAlpha;
+        return this;
+    }
+
+    /**
+     * Rotation given by a rotation matrix, like new Quaternion(Rmat)
+     * * <pre>
+     *   /  M[ 0]   M[ 1]   M[ 2]  \
+     *   |  M[ 3]   M[ 4]   M[ 5]  |
+     *   \  M[ 6]   M[ 7]   M[ 8]  /
+     *</pre>
+     *
+     * @param Rmat: Rotation Matrix (Row-Major len-9 float array)
+     * @return this
+     */
+    public Quaternion setFromRotationMatrix(float[] Rmat) {
+        int m00 = 0;
+        int m01 = 1;
+        int m02 = 2;
+        int m10 = 3;
+        int m11 = 4;
+        int m12 = 5;
+        int m20 = 6;
+        int m21 = 7;
+        int m22 = 8;
+
+        float tr = Rmat[m00] + Rmat[m11] + Rmat[m22];
+        if (tr > 0) {
+            double s = Math.sqrt(tr + 1.0) * 2; // S=4*qw
+            qw = 0.25f * s;
+            qx = (Rmat[m21] - Rmat[m12]) / s;
+            qy = (Rmat[m02] - Rmat[m20]) / s;
+            qz = (Rmat[m10] - Rmat[m01]) / s;
+        } else if ((Rmat[m00] > Rmat[m11]) & (Rmat[m00] > Rmat[m22])) {
+            double s = Math.sqrt(1.0 + Rmat[m00] - Rmat[m11] - Rmat[m22]) * 2; // S=4*qx
+            qw = (Rmat[m21] - Rmat[m12]) / s;
+            qx = 0.25f * s;
+            qy = (Rmat[m01] + Rmat[m10]) / s;
+            qz = (Rmat[m02] + Rmat[m20]) / s;
+        } else if (Rmat[m11] > Rmat[m22]) {
+            double s = Math.sqrt(1.0 + Rmat[m11] - Rmat[m00] - Rmat[m22]) * 2; // S=4*qy
+            qw = (Rmat[m02] - Rmat[m20]) / s;
+            qx = (Rmat[m01] + Rmat[m10]) / s;
+            qy = 0.25f * s;
+            qz = (Rmat[m12] + Rmat[m21]) / s;
+        } else {
+            double s = Math.sqrt(1.0 + Rmat[m22] - Rmat[m00] - Rmat[m11]) * 2; // S=4*qz
+            qw = (Rmat[m10] - Rmat[m01]) / s;
+            qx = (Rmat[m02] + Rmat[m20]) / s;
+            qy = (Rmat[m12] + Rmat[m21]) / s;
+            qz = 0.25f * s;
+        }
+
+        double n = norm();
+        qx /= n;
+        qy /= n;
+        qz /= n;
+        qw /= n;
+        return this;
+    }
+
+    /**
+     * out = a * b, like a.times(b). out can be a or b.
+     * @return out
+     */
+    public static Quaternion mulInto(Quaternion a, Quaternion b, Quaternion out) {
+        double rx = a.qw *b.qx + a.qx *b.qw + a.qy *b.qz - a.qz *b.qy;
+        double ry = a.qw *b.qy - a.qx *b.qz + a.qy *b.qw + a.qz *b.qx;
+        double rz = a.qw *b.qz + a.qx *b.qy - a.qy *b.qx + a.qz *b.qw;
+        double rw = a.qw *b.qw - a.qx *b.qx - a.qy *b.qy - a.qz *b.qz;
+        return out.set(rx, ry, rz, rw);
+    }
+
+    /**
+     * this = this / |this|, like normalized()
+     * @return this
+     */
+    public Quaternion normalizeInPlace() {
+        double norm = norm();
+        qx /= norm;
+        qy /= norm;
+        qz /= norm;
+        qw /= norm;
+        return this;
+    }
+
+    /**
+     * Lazy renormalisation: normalizeInPlace() only if |this|^2 is further than tolerance from 1, which saves the
+     * square root and the divisions of the samples where the norm did not drift
+     * @param tolerance: on |this|^2 - 1, see DEFAULT_NORM_TOLERANCE
+     * @return true if this was renormalized
+     */
+    public boolean normalizeIfDrifted(double tolerance) {
+        double norm2 = qx * qx + qy * qy + qz * qz + qw * qw;
+        if (Math.abs(norm2 - 1.0) <= tolerance) return false;
+        normalizeInPlace();
+        return true;
+    }
+
+    /**
+     * this = conjugate(this), like conjugate()
+     * @return this
+     */
+    public Quaternion conjugateInPlace() {
+        qx = -qx;
+        qy = -qy;
+        qz = -qz;
+        return this;
+    }
+
+    /**
+     * out = slerp(a, b, t) along the short path, normalized, like a.slerp(b, t). out can be a or b.
+     * @return out
+     */
+    public static Quaternion slerpInto(Quaternion a, Quaternion b, double t, Quaternion out) {
+        double normA = a.norm();
+        double normB = b.norm();
+        double cosHalfTheta = a.dotProduct(b) / (normA * normB);
+        // q and -q are the same rotation: take the short path
+        double signB = 1.0;
+        if (cosHalfTheta < 0) {
+            cosHalfTheta = -cosHalfTheta;
+            signB = -1.0;
+        }
+        // if qa=qb or qa=-qb then theta = 0 and the result is qa
+        if (cosHalfTheta >= 1.0) {
+            return out.set(a.qx / normA, a.qy / normA, a.qz / normA, a.qw / normA);
+        }
+        double sinHalfTheta = Math.sqrt(1.0 - cosHalfTheta * cosHalfTheta);
+        double halfTheta = Math.acos(cosHalfTheta);
+        double ratioA = Math.sin((1 - t) * halfTheta) / sinHalfTheta / normA;
+        double ratioB = signB * Math.sin(t * halfTheta) / sinHalfTheta / normB;
+        out.set(a.qx * ratioA + b.qx * ratioB, a.qy * ratioA + b.qy * ratioB,
+                a.qz * ratioA + b.qz * ratioB, a.qw * ratioA + b.qw * ratioB);
+        return out.normalizeInPlace();
+    }
+
+
     /*
     // sample client for testing
     public static void main(String[] args) {
@@ -408,7 +618,8 @@ public class Quaternion {
 
         Quaternion a = q2.conjugate().times(q1.conjugate());
         Quaternion b = (q1.times(q2)).conjugate();
-        Log.d("Quaternion test:", a.toString() + ", " + b.toString());
+        // System.out ends up in logcat on android, and keeps this class usable outside of android (e.g. Ingest)
+        System.out.println("Quaternion test: " + a.toString() + ", " + b.toString());
     }
 
 }
@@ -0,0 +1,205 @@
+package ch.ubiment.sensors.sensordemo.Algebra;
+
+/**
+ * A series of quaternions as a struct of arrays: one double[] per component instead of one Quaternion per sample,
+ * for the offline processing of long recordings (millions of samples, see SessionReader).
+ * The vectors of the samples are given the same way, one float[] per axis.
+ *
+ * normalize, multiply and rotateToWorld are plain counted loops over the arrays, without calls or branches, so
+ * that the JIT of a server JVM can vectorize them. The gyroscope integration needs sin and cos and is a running
+ * product: it stays scalar, but without any object per sample.
+ * The methods take the number n of samples to process, from index 0: the arrays can be larger than n.
+ * Same conventions as Quaternion and QuaternionOperator, the output can be one of the inputs.
+ */
+public class QuaternionArray {
+    public final double[] x;
+    public final double[] y;
+    public final double[] z;
+    public final double[] w;
+
+    /**
+     * Create capacity identity quaternions
+     * @param capacity: number of quaternions
+     */
+    public QuaternionArray(int capacity) {
+        x = new double[capacity];
+        y = new double[capacity];
+        z = new double[capacity];
+        w = new double[capacity];
+        setIdentity(capacity);
+    }
+
+    public int capacity() {
+        return w.length;
+    }
+
+    public void set(int i, double qx, double qy, double qz, double qw) {
+        x[i] = qx;
+        y[i] = qy;
+        z[i] = qz;
+        w[i] = qw;
+    }
+
+    /**
+     * @param xyzw: {qx, qy, qz, qw}
+     */
+    public void set(int i, double[] xyzw) {
+        set(i, xyzw[0], xyzw[1], xyzw[2], xyzw[3]);
+    }
+
+    /**
+     * @param out: len-4 {qx, qy, qz, qw}
+     */
+    public void get(int i, double[] out) {
+        out[0] = x[i];
+        out[1] = y[i];
+        out[2] = z[i];
+        out[3] = w[i];
+    }
+
+    /**
+     * @return out, set to the quaternion i
+     */
+    public Quaternion get(int i, Quaternion out) {
+        return out.set(x[i], y[i], z[i], w[i]);
+    }
+
+    /**
+     * The n first quaternions in float, packed as {qx0, qy0, qz0, qw0, qx1, ...} like ImuSample
+     */
+    public void getFloatArrayXYZW(float[] packed, int n) {
+        for (int i = 0, j = 0; i < n; i++, j += 4) {
+            packed[j] = (float) x[i];
+            packed[j + 1] = (float) y[i];
+            packed[j + 2] = (float) z[i];
+            packed[j + 3] = (float) w[i];
+        }
+    }
+
+    public void setIdentity(int n) {
+        for (int i = 0; i < n; i++) {
+            x[i] = 0.0;
+            y[i] = 0.0;
+            z[i] = 0.0;
+            w[i] = 1.0;
+        }
+    }
+
+    /**
+     * q[i] = q[i] / |q[i]| for the n first quaternions
+     */
+    public void normalize(int n) {
+        for (int i = 0; i < n; i++) {
+            double inverseNorm = 1.0 / Math.sqrt(x[i]*x[i] + y[i]*y[i] + z[i]*z[i] + w[i]*w[i]);
+            x[i] *= inverseNorm;
+            y[i] *= inverseNorm;
+            z[i] *= inverseNorm;
+            w[i] *= inverseNorm;
+        }
+    }
+
+    /**
+     * out[i] = a[i] * b[i] for i < n, like Quaternion.mulInto()
+     */
+    public static void multiply(QuaternionArray a, QuaternionArray b, QuaternionArray out, int n) {
+        double[] ax = a.x, ay = a.y, az = a.z, aw = a.w;
+        double[] bx = b.x, by = b.y, bz = b.z, bw = b.w;
+        double[] ox = out.x, oy = out.y, oz = out.z, ow = out.w;
+        for (int i = 0; i < n; i++) {
+            double rx = aw[i]*bx[i] + ax[i]*bw[i] + ay[i]*bz[i] - az[i]*by[i];
+            double ry = aw[i]*by[i] - ax[i]*bz[i] + ay[i]*bw[i] + az[i]*bx[i];
+            double rz = aw[i]*bz[i] + ax[i]*by[i] - ay[i]*bx[i] + az[i]*bw[i];
+            double rw = aw[i]*bw[i] - ax[i]*bx[i] - ay[i]*by[i] - az[i]*bz[i];
+            ox[i] = rx;
+            oy[i] = ry;
+            oz[i] = rz;
+            ow[i] = rw;
+        }
+    }
+
+    /**
+     * out[i] = a[i] * b for i < n, e.g. to apply the same correction to a whole recording
+     * @param b: {qx, qy, qz, qw}
+     */
+    public static void multiply(QuaternionArray a, double[] b, QuaternionArray out, int n) {
+        double bx = b[0], by = b[1], bz = b[2], bw = b[3];
+        double[] ax = a.x, ay = a.y, az = a.z, aw = a.w;
+        double[] ox = out.x, oy = out.y, oz = out.z, ow = out.w;
+        for (int i = 0; i < n; i++) {
+            double rx = aw[i]*bx + ax[i]*bw + ay[i]*bz - az[i]*by;
+            double ry = aw[i]*by - ax[i]*bz + ay[i]*bw + az[i]*bx;
+            double rz = aw[i]*bz + ax[i]*by - ay[i]*bx + az[i]*bw;
+            double rw = aw[i]*bw - ax[i]*bx - ay[i]*by - az[i]*bz;
+            ox[i] = rx;
+            oy[i] = ry;
+            oz[i] = rz;
+            ow[i] = rw;
+        }
+    }
+
+    /**
+     * Delta rotations of n gyroscope samples: q[i] = rotation of the angular rate (gx[i], gy[i], gz[i]) in rad/s
+     * during dt[i] seconds, around its own axis. A null rate gives the identity.
+     */
+    public void setFromAngularRates(float[] gx, float[] gy, float[] gz, float[] dt, int n) {
+        for (int i = 0; i < n; i++) {
+            double omegaX = gx[i], omegaY = gy[i], omegaZ = gz[i];
+            double omega = Math.sqrt(omegaX*omegaX + omegaY*omegaY + omegaZ*omegaZ);
+            double halfTheta = 0.5 * omega * dt[i];
+            // sin(theta/2) * axis, with the limit dt/2 * omega when omega tends to 0
+            double scale = (omega > 0.0) ? Math.sin(halfTheta) / omega : 0.5 * dt[i];
+            x[i] = scale * omegaX;
+            y[i] = scale * omegaY;
+            z[i] = scale * omegaZ;
+            w[i] = Math.cos(halfTheta);
+        }
+    }
+
+    /**
+     * Orientations of n gyroscope samples integrated from start, like the fusion classes do sample by sample:
+     * q[i] = q[i-1] * delta(gyro[i], dt[i]), with q[-1] = start.
+     * The running product is kept normalized by a first-order correction instead of a square root per sample.
+     * @param start: {qx, qy, qz, qw}, normalized. It can be the last orientation of the previous chunk.
+     * @param dt: interval in seconds between the sample i and the previous one
+     */
+    public void integrateAngularRates(double[] start, float[] gx, float[] gy, float[] gz, float[] dt, int n) {
+        setFromAngularRates(gx, gy, gz, dt, n);
+        double px = start[0], py = start[1], pz = start[2], pw = start[3];
+        for (int i = 0; i < n; i++) {
+            double dx = x[i], dy = y[i], dz = z[i], dw = w[i];
+            double rx = pw*dx + px*dw + py*dz - pz*dy;
+            double ry = pw*dy - px*dz + py*dw + pz*dx;
+            double rz = pw*dz + px*dy - py*dx + pz*dw;
+            double rw = pw*dw - px*dx - py*dy - pz*dz;
+            // 1/sqrt(n2) ~ (3 - n2) / 2 when n2 is close to 1
+            double correction = 1.5 - 0.5 * (rx*rx + ry*ry + rz*rz + rw*rw);
+            px = rx * correction;
+            py = ry * correction;
+            pz = rz * correction;
+            pw = rw * correction;
+            x[i] = px;
+            y[i] = py;
+            z[i] = pz;
+            w[i] = pw;
+        }
+    }
+
+    /**
+     * Rotate n device vectors to the world frame: world[i] = q[i] * (v[i],0) * conjugate(q[i]), the inverse of
+     * Quaternion.rotateVector(). For unit quaternions, with the closed form t = 2 u x v, v' = v + w t + u x t.
+     * The outputs can be the inputs.
+     */
+    public void rotateToWorld(float[] vx, float[] vy, float[] vz, float[] worldX, float[] worldY, float[] worldZ,
+                              int n) {
+        for (int i = 0; i < n; i++) {
+            double qx = x[i], qy = y[i], qz = z[i], qw = w[i];
+            double px = vx[i], py = vy[i], pz = vz[i];
+            double tx = 2 * (qy*pz - qz*py);
+            double ty = 2 * (qz*px - qx*pz);
+            double tz = 2 * (qx*py - qy*px);
+            worldX[i] = (float) (px + qw*tx + qy*tz - qz*ty);
+            worldY[i] = (float) (py + qw*ty + qz*tx - qx*tz);
+            worldZ[i] = (float) (pz + qw*tz + qx*ty - qy*tx);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package ch.ubiment.sensors.sensordemo.Algebra;
+
+import java.nio.ByteBuffer;
+
+/**
+ * "Smallest three" compression of unit quaternions.
+ *
+ * q and -q are the same rotation, so the quaternion is first negated if needed to make its largest component
+ * positive. That component is dropped (it is recomputed from the unit norm) and its index is stored in 2 bits.
+ * The three other components lie in [-1/sqrt(2), 1/sqrt(2)] and are quantised to bitsPerComponent bits each.
+ * <pre>
+ *   bits  packed size   max error per component
+ *     10     4 bytes    6.9e-4
+ *     12     5 bytes    1.7e-4
+ *     14     6 bytes    4.3e-5
+ *     16     7 bytes    1.1e-5
+ * </pre>
+ * against 16 bytes for 4 floats. QuaternionCompressionReport of the Benchmarks module prints the resulting
+ * angular errors.
+ *
+ * The packed value is a long: bits [0, 2) hold the index of the dropped component (0..3 for x, y, z, w),
+ * then the three remaining components in x, y, z, w order, bitsPerComponent bits each.
+ * write() / read() store its getPackedBytes() low bytes, little-endian.
+ *
+ * Not thread-safe because of an internal scratch array: use one instance per thread.
+ */
+public class QuaternionCompression {
+    public static final int MIN_BITS = 10;
+    public static final int MAX_BITS = 16;
+
+    private static final double RANGE = 1.0 / Math.sqrt(2.0);
+
+    private final int bits;
+    private final int packedBytes;
+    private final long mask;
+    private final double scale;     // quantisation steps per unit
+    private final float[] xyzw = new float[4];
+
+    /**
+     * @param bitsPerComponent: between MIN_BITS and MAX_BITS
+     */
+    public QuaternionCompression(int bitsPerComponent) {
+        if (bitsPerComponent < MIN_BITS || bitsPerComponent > MAX_BITS) {
+            throw new IllegalArgumentException("bits per component must be in [" + MIN_BITS + ", " + MAX_BITS + "]: " + bitsPerComponent);
+        }
+        this.bits = bitsPerComponent;
+        this.packedBytes = (2 + 3 * bitsPerComponent + 7) / 8;
+        this.mask = (1L << bitsPerComponent) - 1;
+        this.scale = mask / (2.0 * RANGE);
+    }
+
+    public int getBits() {
+        return bits;
+    }
+
+    /**
+     * Number of bytes written by write()
+     */
+    public int getPackedBytes() {
+        return packedBytes;
+    }
+
+    /**
+     * Largest quantisation error of a single transmitted component
+     */
+    public double getMaxComponentError() {
+        return 0.5 / scale;
+    }
+
+    public long pack(Quaternion q) {
+        q.getFloatArrayXYZW(xyzw);
+        return pack(xyzw);
+    }
+
+    /**
+     * @param quaternionXYZW: a unit quaternion {qx, qy, qz, qw}. It is not modified.
+     */
+    public long pack(float[] quaternionXYZW) {
+        int largest = 0;
+        float largestAbs = Math.abs(quaternionXYZW[0]);
+        for (int i = 1; i < 4; i++) {
+            float abs = Math.abs(quaternionXYZW[i]);
+            if (abs > largestAbs) {
+                largestAbs = abs;
+                largest = i;
+            }
+        }
+        double sign = (quaternionXYZW[largest] < 0) ? -1.0 : 1.0;
+
+        long packed = largest;
+        int shift = 2;
+        for (int i = 0; i < 4; i++) {
+            if (i == largest) continue;
+            packed |= quantise(sign * quaternionXYZW[i]) << shift;
+            shift += bits;
+        }
+        return packed;
+    }
+
+    /**
+     * @param outXYZW: len-4 array receiving the unit quaternion {qx, qy, qz, qw}
+     */
+    public void unpack(long packed, float[] outXYZW) {
+        int largest = (int) (packed & 3);
+        int shift = 2;
+        double sumOfSquares = 0.0;
+        for (int i = 0; i < 4; i++) {
+            if (i == largest) continue;
+            double v = dequantise((packed >>> shift) & mask);
+            outXYZW[i] = (float) v;
+            sumOfSquares += v * v;
+            shift += bits;
+        }
+        outXYZW[largest] = (float) Math.sqrt(Math.max(0.0, 1.0 - sumOfSquares));
+    }
+
+    public Quaternion unpackQuaternion(long packed) {
+        unpack(packed, xyzw);
+        return new Quaternion(xyzw[0], xyzw[1], xyzw[2], xyzw[3]);
+    }
+
+    /**
+     * Write getPackedBytes() bytes at the position of dst, little-endian whatever the order of dst
+     */
+    public void write(ByteBuffer dst, long packed) {
+        for (int i = 0; i < packedBytes; i++) {
+            dst.put((byte) (packed >>> (8 * i)));
+        }
+    }
+
+    /**
+     * Read getPackedBytes() bytes at the position of src
+     */
+    public long read(ByteBuffer src) {
+        long packed = 0;
+        for (int i = 0; i < packedBytes; i++) {
+            packed |= (src.get() & 0xffL) << (8 * i);
+        }
+        return packed;
+    }
+
+    /**
+     * Same as read(src) at an absolute offset, src.position() is not modified
+     */
+    public long read(ByteBuffer src, int offset) {
+        long packed = 0;
+        for (int i = 0; i < packedBytes; i++) {
+            packed |= (src.get(offset + i) & 0xffL) << (8 * i);
+        }
+        return packed;
+    }
+
+    private long quantise(double v) {
+        long q = Math.round((v + RANGE) * scale);
+        // the components of a slightly denormalised quaternion can fall outside the range
+        if (q < 0) return 0;
+        if (q > mask) return mask;
+        return q;
+    }
+
+    private double dequantise(long q) {
+        return q / scale - RANGE;
+    }
+}
@@ -0,0 +1,185 @@
+package ch.ubiment.sensors.sensordemo.Algebra;
+
+/**
+ * Quaternion operations on double[4] arrays in the order {qx, qy, qz, qw}, writing into a caller-supplied array.
+ * Same conventions and results as the methods of the same name of Quaternion, without creating any object:
+ * the fusion classes keep their state in such arrays and update it in place for every sample.
+ *
+ * The output array can be one of the inputs.
+ */
+public class QuaternionOperator {
+
+    public static void setIdentity(double[] q) {
+        q[0] = 0.0;
+        q[1] = 0.0;
+        q[2] = 0.0;
+        q[3] = 1.0;
+    }
+
+    public static void set(double[] q, double qx, double qy, double qz, double qw) {
+        q[0] = qx;
+        q[1] = qy;
+        q[2] = qz;
+        q[3] = qw;
+    }
+
+    public static double norm(double[] q) {
+        return Math.sqrt(q[0]*q[0] + q[1]*q[1] + q[2]*q[2] + q[3]*q[3]);
+    }
+
+    /**
+     * q = q / |q|, like Quaternion.normalized()
+     */
+    public static void normalize(double[] q) {
+        double norm = norm(q);
+        q[0] /= norm;
+        q[1] /= norm;
+        q[2] /= norm;
+        q[3] /= norm;
+    }
+
+    /**
+     * out = a * b, like a.times(b)
+     */
+    public static void multiply(double[] a, double[] b, double[] out) {
+        double rx = a[3]*b[0] + a[0]*b[3] + a[1]*b[2] - a[2]*b[1];
+        double ry = a[3]*b[1] - a[0]*b[2] + a[1]*b[3] + a[2]*b[0];
+        double rz = a[3]*b[2] + a[0]*b[1] - a[1]*b[0] + a[2]*b[3];
+        double rw = a[3]*b[3] - a[0]*b[0] - a[1]*b[1] - a[2]*b[2];
+        out[0] = rx;
+        out[1] = ry;
+        out[2] = rz;
+        out[3] = rw;
+    }
+
+    /**
+     * Rotation of radian around the axis (ax, ay, az), like new Quaternion(radian, axis).
+     * The axis does not need to be normalized, a null axis gives the identity.
+     */
+    public static void setFromAxisAngle(double[] out, double radian, double ax, double ay, double az) {
+        double norm = Math.sqrt(ax*ax + ay*ay + az*az);
+        if (norm == 0.0) {
+            norm = 1.0;
+            radian = 0.0;
+        }
+        double sinHalfAlpha = Math.sin(radian/2.0);
+        out[0] = sinHalfAlpha*ax/norm;
+        out[1] = sinHalfAlpha*ay/norm;
+        out[2] = sinHalfAlpha*az/norm;
+        out[3] = Math.cos(radian/2.0);
+    }
+
+    /**
+     * Rotation given by a row-major len-9 rotation matrix, like new Quaternion(Rmat)
+     */
+    public static void setFromRotationMatrix(double[] out, float[] Rmat) {
+        double qx, qy, qz, qw;
+        float tr = Rmat[0] + Rmat[4] + Rmat[8];
+        if (tr > 0) {
+            double s = Math.sqrt(tr + 1.0) * 2; // S=4*qw
+            qw = 0.25f * s;
+            qx = (Rmat[7] - Rmat[5]) / s;
+            qy = (Rmat[2] - Rmat[6]) / s;
+            qz = (Rmat[3] - Rmat[1]) / s;
+        } else if ((Rmat[0] > Rmat[4]) & (Rmat[0] > Rmat[8])) {
+            double s = Math.sqrt(1.0 + Rmat[0] - Rmat[4] - Rmat[8]) * 2; // S=4*qx
+            qw = (Rmat[7] - Rmat[5]) / s;
+            qx = 0.25f * s;
+            qy = (Rmat[1] + Rmat[3]) / s;
+            qz = (Rmat[2] + Rmat[6]) / s;
+        } else if (Rmat[4] > Rmat[8]) {
+            double s = Math.sqrt(1.0 + Rmat[4] - Rmat[0] - Rmat[8]) * 2; // S=4*qy
+            qw = (Rmat[2] - Rmat[6]) / s;
+            qx = (Rmat[1] + Rmat[3]) / s;
+            qy = 0.25f * s;
+            qz = (Rmat[5] + Rmat[7]) / s;
+        } else {
+            double s = Math.sqrt(1.0 + Rmat[8] - Rmat[0] - Rmat[4]) * 2; // S=4*qz
+            qw = (Rmat[3] - Rmat[1]) / s;
+            qx = (Rmat[2] + Rmat[6]) / s;
+            qy = (Rmat[5] + Rmat[7]) / s;
+            qz = 0.25f * s;
+        }
+        set(out, qx, qy, qz, qw);
+        normalize(out);
+    }
+
+    /**
+     * out = slerp(a, b, t) along the short path, normalized, like a.slerp(b, t)
+     */
+    public static void slerp(double[] a, double[] b, double t, double[] out) {
+        double normA = norm(a);
+        double normB = norm(b);
+        double cosHalfTheta = (a[0]*b[0] + a[1]*b[1] + a[2]*b[2] + a[3]*b[3]) / (normA * normB);
+        // q and -q are the same rotation: take the short path
+        double signB = 1.0;
+        if (cosHalfTheta < 0) {
+            cosHalfTheta = -cosHalfTheta;
+            signB = -1.0;
+        }
+        if (cosHalfTheta >= 1.0) {
+            set(out, a[0]/normA, a[1]/normA, a[2]/normA, a[3]/normA);
+            return;
+        }
+        double sinHalfTheta = Math.sqrt(1.0 - cosHalfTheta * cosHalfTheta);
+        double halfTheta = Math.acos(cosHalfTheta);
+        double ratioA = Math.sin((1 - t) * halfTheta) / sinHalfTheta / normA;
+        double ratioB = signB * Math.sin(t * halfTheta) / sinHalfTheta / normB;
+        set(out, a[0]*ratioA + b[0]*ratioB, a[1]*ratioA + b[1]*ratioB,
+                a[2]*ratioA + b[2]*ratioB, a[3]*ratioA + b[3]*ratioB);
+        normalize(out);
+    }
+
+    /**
+     * out = conjugate(q) * (v, 0) * q for a unit q, like q.rotateVector(v, out). out can be v.
+     */
+    public static void rotateVector(double[] q, float[] v, float[] out) {
+        double x = q[0], y = q[1], z = q[2], w = q[3];
+        double vx = v[0], vy = v[1], vz = v[2];
+        // t = 2 v x (x, y, z)
+        double tx = 2 * (vy*z - vz*y);
+        double ty = 2 * (vz*x - vx*z);
+        double tz = 2 * (vx*y - vy*x);
+        out[0] = (float) (vx + w*tx + ty*z - tz*y);
+        out[1] = (float) (vy + w*ty + tz*x - tx*z);
+        out[2] = (float) (vz + w*tz + tx*y - ty*x);
+    }
+
+    /**
+     * Unit world up vector in the device frame (last row of the rotation matrix), like q.getUpVectorFloat()
+     */
+    public static void getUpVector(double[] q, float[] out) {
+        double x = q[0], y = q[1], z = q[2], w = q[3];
+        double R20 = 2*x*z - 2*y*w;
+        double R21 = 2*y*z + 2*x*w;
+        double R22 = 1 - 2*x*x - 2*y*y;
+        double norm = Math.sqrt(R20*R20 + R21*R21 + R22*R22);
+        out[0] = (float) (R20/norm);
+        out[1] = (float) (R21/norm);
+        out[2] = (float) (R22/norm);
+    }
+
+    /**
+     * Unit world north vector in the device frame (middle row of the rotation matrix), like q.getNorthVectorFloat()
+     */
+    public static void getNorthVector(double[] q, float[] out) {
+        double x = q[0], y = q[1], z = q[2], w = q[3];
+        double R10 = 2*x*y + 2*z*w;
+        double R11 = 1 - 2*x*x - 2*z*z;
+        double R12 = 2*y*z - 2*x*w;
+        double norm = Math.sqrt(R10*R10 + R11*R11 + R12*R12);
+        out[0] = (float) (R10/norm);
+        out[1] = (float) (R11/norm);
+        out[2] = (float) (R12/norm);
+    }
+
+    /**
+     * out = {qx, qy, qz, qw} in float, like q.getFloatArrayXYZW(out)
+     */
+    public static void getFloatArrayXYZW(double[] q, float[] out) {
+        out[0] = (float) q[0];
+        out[1] = (float) q[1];
+        out[2] = (float) q[2];
+        out[3] = (float) q[3];
+    }
+}
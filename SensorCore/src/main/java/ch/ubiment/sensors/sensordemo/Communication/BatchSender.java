@@ -0,0 +1,106 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Packs the frames produced together (e.g. from one burst of sensor events) into FrameBatch datagrams, built on the
+ * producing thread and sent with a single MessageSender.send() when the batch is full or on flush().
+ * <pre>
+ *   for every sample of the burst {
+ *       frame.clear();
+ *       serializer.write(sample, frame);
+ *       frame.flip();
+ *       batchSender.append(sender, frame);
+ *   }
+ *   batchSender.flush(sender);
+ * </pre>
+ * Unlike UdpClientSend.enableBatching(), nothing waits for a timer: the batch is exactly the frames between two
+ * flushes. Do not combine both, the batches would be batched again. A batch of a single frame is sent as a plain
+ * frame. The receiver must unbatch the others, see FrameUnbatcher.
+ *
+ * append() and flush() do not allocate. Not thread-safe.
+ */
+public class BatchSender {
+    private final FrameBatch batch;
+    private long batchCount = 0;
+    private long frameCount = 0;
+    private long droppedCount = 0;
+
+    /**
+     * @param mtu: maximum size of a datagram, see FrameBatch
+     */
+    public BatchSender(int mtu) {
+        batch = new FrameBatch(mtu);
+    }
+
+    /**
+     * Add the bytes between frame.position() and frame.limit() to the batch, after sending the batch if they do not
+     * fit any more. A frame too large for a batch is sent alone.
+     * @return false if a datagram was dropped by the sender
+     */
+    public boolean append(MessageSender sender, ByteBuffer frame) {
+        frameCount++;
+        if (batch.append(frame)) return true;
+        boolean sent = flush(sender);
+        if (batch.append(frame)) return sent;
+        // larger than a batch
+        int length = frame.remaining();
+        if (frame.hasArray()) {
+            sent &= send(sender, frame.array(), frame.arrayOffset() + frame.position(), length);
+            frame.position(frame.limit());
+        } else {
+            droppedCount++;
+            sent = false;
+        }
+        return sent;
+    }
+
+    /**
+     * Send the pending frames, if any
+     * @return false if the datagram was dropped by the sender
+     */
+    public boolean flush(MessageSender sender) {
+        if (batch.isEmpty()) return true;
+        boolean sent;
+        if (batch.count() == 1) {
+            int offset = FrameBatch.HEADER_SIZE + FrameBatch.FRAME_HEADER_SIZE;
+            sent = send(sender, batch.buffer(), offset, batch.size() - offset);
+        } else {
+            sent = send(sender, batch.buffer(), 0, batch.size());
+        }
+        batch.clear();
+        return sent;
+    }
+
+    private boolean send(MessageSender sender, byte[] buf, int offset, int length) {
+        batchCount++;
+        if (sender.send(buf, offset, length)) return true;
+        droppedCount++;
+        return false;
+    }
+
+    /**
+     * Frames waiting for the next flush()
+     */
+    public int getPendingCount() {
+        return batch.count();
+    }
+
+    /**
+     * Datagrams given to the senders
+     */
+    public long getBatchCount() {
+        return batchCount;
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Datagrams dropped by the senders
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+}
@@ -0,0 +1,164 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Fixed binary beacon frame. Little-endian:
+ * <pre>
+ *   offset  size  field
+ *        0     1  magic, always 'b' (0x62)
+ *        1     1  version
+ *        2     1  flags (bit 0: report of a window)
+ *        3     1  reserved, 0
+ *        4     4  device id hash (int)
+ *        8     4  sequence number (int)
+ *       12     8  timestamp in milliseconds since epoch (long)
+ *       20     6  MAC address
+ *       26     2  major (unsigned short)
+ *       28     2  minor (unsigned short)
+ *       30     1  TxPower (signed byte)
+ *       31     1  RSSI (signed byte)
+ *       32     1  n, length of the uuid
+ *       33     n  uuid, ASCII
+ *     33+n        end of an advertisement, a report continues with:
+ *     33+n     2  count (unsigned short)
+ *     35+n     1  RSSI min, max, last (signed bytes)
+ *     38+n     4  RSSI mean (float)
+ *     42+n     4  timestamp - timestamp of the first advertisement, in milliseconds (int)
+ *     46+n        end of a report
+ * </pre>
+ * The uuid of the beacon app is not always a real uuid (see Beacon), so it is sent as text.
+ * Writing a frame does not allocate, reading one allocates the strings.
+ */
+public class BeaconBinarySerializer implements FrameSerializer<BeaconSample> {
+    public static final byte MAGIC = 0x62;
+    public static final byte VERSION = 1;
+    public static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+    public static final int FLAG_REPORT = 1;
+    public static final int HEADER_SIZE = 33;
+    public static final int REPORT_SIZE = 13;
+    public static final int MAX_UUID_LENGTH = 255;
+
+    private final int deviceIdHash;
+
+    /**
+     * @param phoneId: android id of the phone, hashed in every frame. Null for a decoder.
+     */
+    public BeaconBinarySerializer(String phoneId) {
+        this.deviceIdHash = ImuFrame.deviceIdHash(phoneId);
+    }
+
+    @Override
+    public String getName() {
+        return FrameSerializers.BINARY;
+    }
+
+    @Override
+    public void write(BeaconSample sample, ByteBuffer dst) {
+        dst.order(BYTE_ORDER);
+        dst.put(MAGIC);
+        dst.put(VERSION);
+        dst.put((byte) (sample.isReport() ? FLAG_REPORT : 0));
+        dst.put((byte) 0);
+        dst.putInt(deviceIdHash);
+        dst.putInt(sample.sequence);
+        dst.putLong(sample.timestamp);
+        putAddress(dst, sample.address);
+        dst.putShort((short) sample.major);
+        dst.putShort((short) sample.minor);
+        dst.put((byte) sample.txPower);
+        dst.put((byte) sample.rssi);
+        putAscii(dst, sample.uuid);
+        if (sample.isReport()) {
+            dst.putShort((short) Math.min(sample.count, 0xffff));
+            dst.put((byte) sample.rssiMin);
+            dst.put((byte) sample.rssiMax);
+            dst.put((byte) sample.rssiLast);
+            dst.putFloat(sample.rssiMean);
+            dst.putInt((int) (sample.timestamp - sample.firstTimestamp));
+        }
+    }
+
+    /**
+     * Decode the frame starting at src.position(), the position is moved after the frame.
+     * @return false if it is not a beacon frame
+     */
+    public boolean read(ByteBuffer src, BeaconSample out) {
+        if (src.remaining() < HEADER_SIZE || src.get(src.position()) != MAGIC) return false;
+        src.order(BYTE_ORDER);
+        src.get();
+        if (src.get() != VERSION) return false;
+        int flags = src.get();
+        src.get();
+        src.getInt();
+        out.sequence = src.getInt();
+        out.timestamp = src.getLong();
+        out.address = getAddress(src);
+        out.major = src.getShort() & 0xffff;
+        out.minor = src.getShort() & 0xffff;
+        out.txPower = src.get();
+        out.rssi = src.get();
+        out.uuid = getAscii(src);
+        out.count = 0;
+        if ((flags & FLAG_REPORT) != 0) {
+            out.count = src.getShort() & 0xffff;
+            out.rssiMin = src.get();
+            out.rssiMax = src.get();
+            out.rssiLast = src.get();
+            out.rssiMean = src.getFloat();
+            out.firstTimestamp = out.timestamp - src.getInt();
+        }
+        return true;
+    }
+
+    @Override
+    public void reset() {
+    }
+
+    /**
+     * Write "AA:BB:CC:DD:EE:FF" as 6 bytes
+     */
+    static void putAddress(ByteBuffer dst, String address) {
+        if (address == null || address.length() != 17) throw new IllegalArgumentException("not a MAC address: " + address);
+        for (int i = 0; i < 6; i++) {
+            dst.put((byte) ((hexDigit(address, 3 * i) << 4) | hexDigit(address, 3 * i + 1)));
+        }
+    }
+
+    private static int hexDigit(String s, int index) {
+        int digit = Character.digit(s.charAt(index), 16);
+        if (digit < 0) throw new IllegalArgumentException("not a MAC address: " + s);
+        return digit;
+    }
+
+    static String getAddress(ByteBuffer src) {
+        StringBuilder sb = new StringBuilder(17);
+        for (int i = 0; i < 6; i++) {
+            if (i > 0) sb.append(':');
+            int b = src.get() & 0xff;
+            sb.append(Character.toUpperCase(Character.forDigit(b >> 4, 16)));
+            sb.append(Character.toUpperCase(Character.forDigit(b & 0xf, 16)));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Write the length (one byte) then the characters, '?' for the ones which are not ASCII
+     */
+    static void putAscii(ByteBuffer dst, String s) {
+        int length = (s == null) ? 0 : Math.min(s.length(), MAX_UUID_LENGTH);
+        dst.put((byte) length);
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            dst.put((byte) ((c < 0x80) ? c : '?'));
+        }
+    }
+
+    static String getAscii(ByteBuffer src) {
+        int length = src.get() & 0xff;
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) chars[i] = (char) src.get();
+        return new String(chars);
+    }
+}
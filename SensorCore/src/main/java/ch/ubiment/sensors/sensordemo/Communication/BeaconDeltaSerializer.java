@@ -0,0 +1,194 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Variable length beacon frames: the frames of a beacon only hold what changed since its previous frame,
+ * as VarInt. Little-endian:
+ * <pre>
+ *   offset  size  field
+ *        0     1  magic, always 'd' (0x64)
+ *        1     1  version
+ *        2     1  flags (bit 0: report of a window, bit 7: key frame)
+ *        3     1  number of the frame among the frames of this beacon, modulo 256
+ *        4     4  device id hash (int)
+ *        8     6  MAC address
+ *       14        sequence number (unsigned varint)
+ *                 key frame: timestamp in milliseconds since epoch (unsigned varint), major, minor (unsigned varints),
+ *                            TxPower, RSSI (signed varints), uuid (length byte and ASCII, as BeaconBinarySerializer)
+ *                 other frames: timestamp, TxPower and RSSI minus the ones of the previous frame of the beacon
+ *                            (signed varints)
+ *                 then for a report: count (unsigned varint), RSSI min, max, last minus RSSI (signed varints),
+ *                            round(100 * RSSI mean) - 100 * RSSI (signed varint),
+ *                            timestamp - timestamp of the first advertisement (unsigned varint)
+ * </pre>
+ * The uuid, major and minor of a beacon seldom change: they are only sent in its key frames, i.e. its first frame,
+ * every KEY_FRAME_INTERVAL frames, when they change, and after reset().
+ * A report takes about 25 bytes instead of 60 with BeaconBinarySerializer (300 with json).
+ *
+ * The decoder skips the frames of a beacon after one of them is missing (see offset 3), until its next key frame.
+ * An instance either writes or reads frames, use one per direction (and per phone on the receiver).
+ */
+public class BeaconDeltaSerializer implements FrameSerializer<BeaconSample> {
+    public static final byte MAGIC = 0x64;
+    public static final byte VERSION = 1;
+    public static final int FLAG_REPORT = 1;
+    public static final int FLAG_KEY_FRAME = 1 << 7;
+    public static final int HEADER_SIZE = 14;
+    public static final int KEY_FRAME_INTERVAL = 10;
+
+    /**
+     * Last frame of a beacon
+     */
+    private static class State {
+        boolean valid = false;
+        int frames = 0;             // since the last key frame
+        int counter = 0;            // offset 3
+        long timestamp;
+        int txPower;
+        int rssi;
+        String uuid;
+        int major;
+        int minor;
+    }
+
+    private final int deviceIdHash;
+    private final Map<String, State> beacons = new HashMap<>();
+
+    /**
+     * @param phoneId: android id of the phone, hashed in every frame. Null for a decoder.
+     */
+    public BeaconDeltaSerializer(String phoneId) {
+        this.deviceIdHash = ImuFrame.deviceIdHash(phoneId);
+    }
+
+    @Override
+    public String getName() {
+        return FrameSerializers.DELTA;
+    }
+
+    @Override
+    public void write(BeaconSample sample, ByteBuffer dst) {
+        State state = beacons.get(sample.address);
+        if (state == null) {
+            state = new State();
+            beacons.put(sample.address, state);
+        }
+        boolean keyFrame = !state.valid || state.frames >= KEY_FRAME_INTERVAL
+                || sample.major != state.major || sample.minor != state.minor
+                || (sample.uuid == null ? state.uuid != null : !sample.uuid.equals(state.uuid));
+
+        int flags = (keyFrame ? FLAG_KEY_FRAME : 0) | (sample.isReport() ? FLAG_REPORT : 0);
+        state.counter = (state.counter + 1) & 0xff;
+        dst.order(BeaconBinarySerializer.BYTE_ORDER);
+        dst.put(MAGIC);
+        dst.put(VERSION);
+        dst.put((byte) flags);
+        dst.put((byte) state.counter);
+        dst.putInt(deviceIdHash);
+        BeaconBinarySerializer.putAddress(dst, sample.address);
+        VarInt.putUnsigned(dst, sample.sequence & 0xffffffffL);
+
+        if (keyFrame) {
+            VarInt.putUnsigned(dst, sample.timestamp);
+            VarInt.putUnsigned(dst, sample.major);
+            VarInt.putUnsigned(dst, sample.minor);
+            VarInt.putSigned(dst, sample.txPower);
+            VarInt.putSigned(dst, sample.rssi);
+            BeaconBinarySerializer.putAscii(dst, sample.uuid);
+            state.frames = 0;
+            state.uuid = sample.uuid;
+            state.major = sample.major;
+            state.minor = sample.minor;
+        } else {
+            VarInt.putSigned(dst, sample.timestamp - state.timestamp);
+            VarInt.putSigned(dst, sample.txPower - state.txPower);
+            VarInt.putSigned(dst, sample.rssi - state.rssi);
+        }
+        if (sample.isReport()) putReport(dst, sample);
+
+        state.frames++;
+        state.timestamp = sample.timestamp;
+        state.txPower = sample.txPower;
+        state.rssi = sample.rssi;
+        state.valid = true;
+    }
+
+    private static void putReport(ByteBuffer dst, BeaconSample sample) {
+        VarInt.putUnsigned(dst, sample.count);
+        VarInt.putSigned(dst, sample.rssiMin - sample.rssi);
+        VarInt.putSigned(dst, sample.rssiMax - sample.rssi);
+        VarInt.putSigned(dst, sample.rssiLast - sample.rssi);
+        VarInt.putSigned(dst, Math.round(100 * sample.rssiMean) - 100 * sample.rssi);
+        VarInt.putUnsigned(dst, sample.timestamp - sample.firstTimestamp);
+    }
+
+    /**
+     * Decode the frame starting at src.position(), the position is moved after the frame.
+     * @return false if the frame can not be decoded: not a delta frame, or the previous frame of the beacon is missing
+     */
+    public boolean read(ByteBuffer src, BeaconSample out) {
+        if (src.remaining() < HEADER_SIZE || src.get(src.position()) != MAGIC) return false;
+        src.order(BeaconBinarySerializer.BYTE_ORDER);
+        src.get();
+        if (src.get() != VERSION) return false;
+        int flags = src.get();
+        int counter = src.get() & 0xff;
+        src.getInt();
+        String address = BeaconBinarySerializer.getAddress(src);
+        int sequence = (int) VarInt.getUnsigned(src);
+
+        State state = beacons.get(address);
+        if (state == null) {
+            state = new State();
+            beacons.put(address, state);
+        }
+        boolean keyFrame = (flags & FLAG_KEY_FRAME) != 0;
+        boolean decodable = keyFrame || (state.valid && counter == ((state.counter + 1) & 0xff));
+        state.counter = counter;
+
+        if (keyFrame) {
+            state.timestamp = VarInt.getUnsigned(src);
+            state.major = (int) VarInt.getUnsigned(src);
+            state.minor = (int) VarInt.getUnsigned(src);
+            state.txPower = (int) VarInt.getSigned(src);
+            state.rssi = (int) VarInt.getSigned(src);
+            state.uuid = BeaconBinarySerializer.getAscii(src);
+        } else {
+            state.timestamp += VarInt.getSigned(src);
+            state.txPower += (int) VarInt.getSigned(src);
+            state.rssi += (int) VarInt.getSigned(src);
+        }
+        out.count = 0;
+        if ((flags & FLAG_REPORT) != 0) {
+            out.count = (int) VarInt.getUnsigned(src);
+            out.rssiMin = state.rssi + (int) VarInt.getSigned(src);
+            out.rssiMax = state.rssi + (int) VarInt.getSigned(src);
+            out.rssiLast = state.rssi + (int) VarInt.getSigned(src);
+            out.rssiMean = (100 * state.rssi + VarInt.getSigned(src)) / 100f;
+            out.firstTimestamp = state.timestamp - VarInt.getUnsigned(src);
+        }
+        state.valid = decodable;
+        if (!decodable) return false;
+
+        out.sequence = sequence;
+        out.timestamp = state.timestamp;
+        out.address = address;
+        out.uuid = state.uuid;
+        out.major = state.major;
+        out.minor = state.minor;
+        out.txPower = state.txPower;
+        out.rssi = state.rssi;
+        return true;
+    }
+
+    /**
+     * Forget every beacon
+     */
+    @Override
+    public void reset() {
+        beacons.clear();
+    }
+}
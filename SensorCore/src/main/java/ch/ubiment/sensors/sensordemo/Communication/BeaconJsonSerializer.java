@@ -0,0 +1,53 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The json message of the python scripts (Acquisition/), the default format. The reports of a window keep the
+ * fields of a single advertisement (RSSI is the rounded mean), so the receivers expecting advertisements still work.
+ */
+public class BeaconJsonSerializer implements FrameSerializer<BeaconSample> {
+    private final String phoneId;
+    private final JsonWriter jsonWriter = new JsonWriter(512);
+
+    /**
+     * @param phoneId: android id of the phone, sent as Phone_ID
+     */
+    public BeaconJsonSerializer(String phoneId) {
+        this.phoneId = phoneId;
+    }
+
+    @Override
+    public String getName() {
+        return FrameSerializers.JSON;
+    }
+
+    @Override
+    public void write(BeaconSample sample, ByteBuffer dst) {
+        jsonWriter.beginObject()
+                .field("PositionTS", sample.timestamp)
+                .field("Address", sample.address)
+                .field("UUID", sample.uuid)
+                .field("Major", sample.major)
+                .field("Minor", sample.minor)
+                .field("TxPower", sample.txPower)
+                .field("Phone_ID", phoneId)
+                .field("Sequence", sample.sequence)
+                .field("RSSI", sample.rssi);
+        if (sample.isReport()) {
+            jsonWriter.field("Count", sample.count)
+                    .field("RSSIMean", sample.rssiMean)
+                    .field("RSSIMin", sample.rssiMin)
+                    .field("RSSIMax", sample.rssiMax)
+                    .field("RSSILast", sample.rssiLast)
+                    .field("FirstTS", sample.firstTimestamp)
+                    .field("LastTS", sample.timestamp);
+        }
+        jsonWriter.endObject();
+        dst.put(jsonWriter.buffer(), 0, jsonWriter.size());
+    }
+
+    @Override
+    public void reset() {
+    }
+}
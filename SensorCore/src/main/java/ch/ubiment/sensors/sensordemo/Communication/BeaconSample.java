@@ -0,0 +1,52 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+/**
+ * The values of one beacon message, given to a FrameSerializer or filled by a decoder: a single advertisement
+ * (count == 0), or the report of a beacon over a window (count > 0, see BeaconAggregator of the beacon app).
+ * A plain mutable holder, reused from one message to the next.
+ */
+public class BeaconSample {
+    public long timestamp;          // milliseconds since epoch, of the last advertisement
+    public int sequence;
+    public String address;          // MAC address, "AA:BB:CC:DD:EE:FF"
+    public String uuid;
+    public int major;
+    public int minor;
+    public int txPower;
+    public int rssi;                // of the advertisement, or rounded mean of the window
+
+    // report of a window, when count > 0
+    public int count;
+    public float rssiMean;
+    public int rssiMin;
+    public int rssiMax;
+    public int rssiLast;
+    public long firstTimestamp;
+
+    public boolean isReport() {
+        return count > 0;
+    }
+
+    public void setAdvertisement(int sequence, long timestamp, String address, String uuid, int major, int minor,
+                                 int txPower, int rssi) {
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.address = address;
+        this.uuid = uuid;
+        this.major = major;
+        this.minor = minor;
+        this.txPower = txPower;
+        this.rssi = rssi;
+        this.count = 0;
+    }
+
+    public void setReport(int count, float rssiMean, int rssiMin, int rssiMax, int rssiLast, long firstTimestamp) {
+        this.count = count;
+        this.rssiMean = rssiMean;
+        this.rssi = Math.round(rssiMean);
+        this.rssiMin = rssiMin;
+        this.rssiMax = rssiMax;
+        this.rssiLast = rssiLast;
+        this.firstTimestamp = firstTimestamp;
+    }
+}
@@ -0,0 +1,33 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+/**
+ * Time source of the transport and time sync classes, so that they do not depend on android.os.SystemClock.
+ * The apps pass a clock based on SystemClock.elapsedRealtime(), the JVM tools use SYSTEM.
+ */
+public interface Clock {
+
+    /**
+     * Milliseconds since epoch, as given by the wall clock of the device
+     */
+    long currentTimeMillis();
+
+    /**
+     * Monotonic milliseconds since an arbitrary origin, which must keep counting while the device sleeps
+     */
+    long elapsedRealtime();
+
+    /**
+     * System.currentTimeMillis() and System.nanoTime(). On Android System.nanoTime() stops during deep sleep.
+     */
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            return System.nanoTime() / 1000000L;
+        }
+    };
+}
@@ -0,0 +1,154 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+/**
+ * Writes floats as ASCII directly into a byte array, producing the same characters as Float.toString().
+ *
+ * The digits are the shortest decimal that reads back as the same float (ties rounded to even),
+ * which is what Float.toString() prints for every float in [1e-8, 1e7). Sensor values always fall in
+ * that range. Other values go through Float.toString() (and allocate), because Float.toString()
+ * does not always print the shortest digits there (e.g. 1.17549435E-38 or 7.4505806E-9).
+ */
+public final class FloatFormat {
+    private static final float MIN_FAST = 1e-8f;
+    private static final float MAX_FAST = 1e7f;
+
+    // Float.toString() switches to computerized scientific notation outside [1e-3, 1e7)
+    private static final float MIN_PLAIN = 1e-3f;
+
+    private static final double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9,
+            1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19,
+            1e20, 1e21, 1e22, 1e23, 1e24, 1e25, 1e26, 1e27, 1e28, 1e29,
+            1e30, 1e31, 1e32, 1e33, 1e34, 1e35, 1e36, 1e37, 1e38, 1e39,
+            1e40, 1e41, 1e42, 1e43, 1e44, 1e45, 1e46, 1e47, 1e48, 1e49
+    };
+
+    private static final long[] POW10_LONG = {
+            1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L, 10000000000L
+    };
+
+    /**
+     * Longest output: "-1.17549435E-38"
+     */
+    public static final int MAX_LENGTH = 15;
+
+    private FloatFormat() {
+    }
+
+    /**
+     * Write the characters of Float.toString(value) into dst starting at offset.
+     * @return the offset after the last written byte
+     */
+    public static int write(float value, byte[] dst, int offset) {
+        if (value != value) {
+            return writeAscii("NaN", dst, offset);
+        }
+        if (value == Float.POSITIVE_INFINITY) {
+            return writeAscii("Infinity", dst, offset);
+        }
+        if (value == Float.NEGATIVE_INFINITY) {
+            return writeAscii("-Infinity", dst, offset);
+        }
+        if (value == 0.0f) {
+            return writeAscii((Float.floatToRawIntBits(value) < 0) ? "-0.0" : "0.0", dst, offset);
+        }
+
+        float abs = Math.abs(value);
+        if (abs < MIN_FAST || abs >= MAX_FAST) {
+            return writeAscii(Float.toString(value), dst, offset);
+        }
+
+        int pos = offset;
+        if (value < 0) dst[pos++] = '-';
+
+        // decimal exponent of the first significant digit
+        double d = abs;
+        int e10 = (int) Math.floor(Math.log10(d));
+        if (scale(1.0, e10) > d) e10--;
+        if (scale(1.0, e10 + 1) <= d) e10++;
+
+        // find the shortest digits that read back as the same float. 9 significant digits are always enough.
+        long digits = 0;
+        int k = 0;  // abs ~ digits * 10^k
+        for (int precision = 1; precision <= 9; precision++) {
+            k = e10 - precision + 1;
+            digits = (long) Math.rint(scale(d, -k));
+            if ((float) scale((double) digits, k) == abs) break;
+        }
+        while (digits % 10 == 0) {
+            digits /= 10;
+            k++;
+        }
+        int n = numberOfDigits(digits);
+        int exp = k + n - 1;  // rounding can carry into a new digit, so recompute the exponent
+
+        if (abs >= MIN_PLAIN) {
+            if (exp >= 0) {
+                // integer part, then at least one fractional digit
+                int fractionDigits = n - exp - 1;
+                if (fractionDigits <= 0) {
+                    pos = writeDigits(digits, n, dst, pos);
+                    for (int i = 0; i < -fractionDigits; i++) dst[pos++] = '0';
+                    dst[pos++] = '.';
+                    dst[pos++] = '0';
+                } else {
+                    long divisor = POW10_LONG[fractionDigits];
+                    pos = writeDigits(digits / divisor, exp + 1, dst, pos);
+                    dst[pos++] = '.';
+                    pos = writeDigits(digits % divisor, fractionDigits, dst, pos);
+                }
+            } else {
+                dst[pos++] = '0';
+                dst[pos++] = '.';
+                for (int i = 0; i < -exp - 1; i++) dst[pos++] = '0';
+                pos = writeDigits(digits, n, dst, pos);
+            }
+        } else {
+            // d.dddE-x
+            long divisor = POW10_LONG[n - 1];
+            dst[pos++] = (byte) ('0' + digits / divisor);
+            dst[pos++] = '.';
+            if (n > 1) {
+                pos = writeDigits(digits % divisor, n - 1, dst, pos);
+            } else {
+                dst[pos++] = '0';
+            }
+            dst[pos++] = 'E';
+            dst[pos++] = '-';
+            pos = writeDigits(-exp, numberOfDigits(-exp), dst, pos);
+        }
+        return pos;
+    }
+
+    /**
+     * Write exactly count digits of value (padded with leading zeros) starting at offset
+     * @return the offset after the last written digit
+     */
+    private static int writeDigits(long value, int count, byte[] dst, int offset) {
+        for (int i = offset + count - 1; i >= offset; i--) {
+            dst[i] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }
+        return offset + count;
+    }
+
+    private static int numberOfDigits(long value) {
+        int n = 1;
+        while (n < POW10_LONG.length && value >= POW10_LONG[n]) n++;
+        return n;
+    }
+
+    /**
+     * x * 10^k, with 10^k taken from the table so that the rounding is always the same
+     */
+    private static double scale(double x, int k) {
+        return (k >= 0) ? x * POW10[k] : x / POW10[-k];
+    }
+
+    private static int writeAscii(String s, byte[] dst, int offset) {
+        for (int i = 0; i < s.length(); i++) {
+            dst[offset + i] = (byte) s.charAt(i);
+        }
+        return offset + s.length();
+    }
+}
@@ -0,0 +1,113 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Packs several frames into a single datagram. Layout (little-endian):
+ * <pre>
+ *   offset  size  field
+ *        0     1  magic, always 'B' (0x42)
+ *        1     1  version
+ *        2     2  number of frames (unsigned short)
+ *        4        frames, each one is: length (unsigned short) followed by the frame bytes
+ * </pre>
+ * A datagram starting with any other byte is a single frame (json strings start with '{',
+ * binary IMU frames with 'U'), so batched and plain datagrams can share the same port.
+ *
+ * The batch is built in one reused byte array: appending a frame does not allocate.
+ */
+public class FrameBatch {
+    public static final byte MAGIC = 0x42;
+    public static final byte VERSION = 1;
+    public static final int HEADER_SIZE = 4;
+    public static final int FRAME_HEADER_SIZE = 2;
+    public static final int MAX_FRAME_LENGTH = 0xffff;
+
+    private final byte[] buffer;
+    private int size = HEADER_SIZE;
+    private int count = 0;
+
+    /**
+     * @param mtu: maximum size of the datagram, header included. 1472 fits in a single ethernet frame.
+     */
+    public FrameBatch(int mtu) {
+        if (mtu <= HEADER_SIZE + FRAME_HEADER_SIZE) throw new IllegalArgumentException("mtu too small: " + mtu);
+        buffer = new byte[mtu];
+        buffer[0] = MAGIC;
+        buffer[1] = VERSION;
+    }
+
+    /**
+     * @return true if a frame of this length could be batched at all (in an empty batch)
+     */
+    public boolean accepts(int length) {
+        return length <= MAX_FRAME_LENGTH && HEADER_SIZE + FRAME_HEADER_SIZE + length <= buffer.length;
+    }
+
+    /**
+     * Append a frame to the batch.
+     * @return false if the frame does not fit in the remaining space. The batch is then left unchanged.
+     */
+    public boolean append(byte[] src, int offset, int length) {
+        if (length > MAX_FRAME_LENGTH || size + FRAME_HEADER_SIZE + length > buffer.length) {
+            return false;
+        }
+        buffer[size] = (byte) length;
+        buffer[size + 1] = (byte) (length >>> 8);
+        System.arraycopy(src, offset, buffer, size + FRAME_HEADER_SIZE, length);
+        size += FRAME_HEADER_SIZE + length;
+        count++;
+        buffer[2] = (byte) count;
+        buffer[3] = (byte) (count >>> 8);
+        return true;
+    }
+
+    /**
+     * Append the bytes between src.position() and src.limit(). On success src is consumed (position = limit).
+     * @return false if the frame does not fit in the remaining space. The batch and src are then left unchanged.
+     */
+    public boolean append(ByteBuffer src) {
+        int length = src.remaining();
+        if (length > MAX_FRAME_LENGTH || size + FRAME_HEADER_SIZE + length > buffer.length) {
+            return false;
+        }
+        buffer[size] = (byte) length;
+        buffer[size + 1] = (byte) (length >>> 8);
+        src.get(buffer, size + FRAME_HEADER_SIZE, length);
+        size += FRAME_HEADER_SIZE + length;
+        count++;
+        buffer[2] = (byte) count;
+        buffer[3] = (byte) (count >>> 8);
+        return true;
+    }
+
+    public void clear() {
+        size = HEADER_SIZE;
+        count = 0;
+        buffer[2] = 0;
+        buffer[3] = 0;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Datagram bytes are buffer()[0 .. size()-1]
+     */
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public int getMtu() {
+        return buffer.length;
+    }
+}
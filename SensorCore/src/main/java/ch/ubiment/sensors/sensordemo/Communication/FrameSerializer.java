@@ -0,0 +1,35 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Wire format of the messages sent by the apps. The apps build an ImuSample or a BeaconSample and let the
+ * serializer chosen in the preferences write it into a pooled buffer of the transport:
+ * <pre>
+ *   SendQueue.Slot slot = sender.claim();
+ *   if (slot != null) {
+ *       serializer.write(sample, slot.buffer());
+ *       sender.publish(slot);
+ *   }
+ * </pre>
+ * See FrameSerializers for the available formats. Not thread-safe: the delta formats remember the previous frames.
+ */
+public interface FrameSerializer<T> {
+
+    /**
+     * Name of the format, as stored in the preferences: FrameSerializers.JSON, BINARY or DELTA
+     */
+    String getName();
+
+    /**
+     * Write one message at the position of dst, which is advanced.
+     * @throws java.nio.BufferOverflowException if dst is too small
+     */
+    void write(T sample, ByteBuffer dst);
+
+    /**
+     * Forget the previous frames, so that the next one can be decoded on its own. Call it when the receiver
+     * changes (new transport, new address).
+     */
+    void reset();
+}
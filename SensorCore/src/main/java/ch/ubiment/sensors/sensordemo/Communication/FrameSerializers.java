@@ -0,0 +1,41 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+/**
+ * The formats of the messages, by the name stored in the preferences of the apps.
+ * <pre>
+ *   json    ImuJsonSerializer, BeaconJsonSerializer: read by the python scripts (default)
+ *   binary  ImuBinarySerializer, BeaconBinarySerializer: fixed layout, about 5 times smaller
+ *   delta   ImuDeltaSerializer, BeaconDeltaSerializer: differences with the previous frame, the smallest
+ * </pre>
+ */
+public final class FrameSerializers {
+    public static final String JSON = "json";
+    public static final String BINARY = "binary";
+    public static final String DELTA = "delta";
+
+    public static final String[] NAMES = {JSON, BINARY, DELTA};
+
+    private FrameSerializers() {
+    }
+
+    /**
+     * @param name: JSON, BINARY or DELTA. Anything else gives JSON.
+     * @param deviceId: android id of the phone
+     * @param quaternionBits: compression of the quaternions of the binary frames, see ImuBinarySerializer
+     */
+    public static FrameSerializer<ImuSample> imu(String name, String deviceId, int quaternionBits) {
+        if (BINARY.equals(name)) return new ImuBinarySerializer(deviceId, quaternionBits);
+        if (DELTA.equals(name)) return new ImuDeltaSerializer(deviceId);
+        return new ImuJsonSerializer(deviceId);
+    }
+
+    /**
+     * @param name: JSON, BINARY or DELTA. Anything else gives JSON.
+     * @param phoneId: android id of the phone
+     */
+    public static FrameSerializer<BeaconSample> beacon(String name, String phoneId) {
+        if (BINARY.equals(name)) return new BeaconBinarySerializer(phoneId);
+        if (DELTA.equals(name)) return new BeaconDeltaSerializer(phoneId);
+        return new BeaconJsonSerializer(phoneId);
+    }
+}
@@ -0,0 +1,90 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receiver side of FrameBatch: iterates over the frames of a datagram without copying them.
+ * <pre>
+ *   unbatcher.reset(datagram);
+ *   while (unbatcher.next()) {
+ *       // datagram.position() .. datagram.limit() is the current frame
+ *       decoder.decode(datagram);
+ *   }
+ * </pre>
+ * A datagram that is not a batch is returned as a single frame, so this also works for unbatched senders.
+ * next() moves the position and limit of the wrapped buffer, it never allocates.
+ */
+public class FrameUnbatcher {
+    private ByteBuffer datagram;
+    private int end;         // limit of the datagram when reset() was called
+    private int cursor;      // start of the next frame header
+    private int remaining;   // frames left, -1 for a plain (unbatched) datagram not returned yet
+    private int malformedCount = 0;
+
+    /**
+     * Returns true if the bytes between position and limit start with a batch header. Does not modify the buffer.
+     */
+    public static boolean isBatch(ByteBuffer buf) {
+        return buf.remaining() >= FrameBatch.HEADER_SIZE
+                && buf.get(buf.position()) == FrameBatch.MAGIC
+                && buf.get(buf.position() + 1) == FrameBatch.VERSION;
+    }
+
+    /**
+     * Start iterating over the frames between datagram.position() and datagram.limit()
+     */
+    public void reset(ByteBuffer datagram) {
+        this.datagram = datagram;
+        this.end = datagram.limit();
+        int start = datagram.position();
+        if (isBatch(datagram)) {
+            remaining = (datagram.get(start + 2) & 0xff) | ((datagram.get(start + 3) & 0xff) << 8);
+            cursor = start + FrameBatch.HEADER_SIZE;
+        } else {
+            remaining = -1;
+            cursor = start;
+        }
+    }
+
+    /**
+     * Move to the next frame.
+     * @return false when every frame has been returned (or when the batch is truncated)
+     */
+    public boolean next() {
+        if (remaining == -1) {
+            // plain datagram: the whole content is one frame
+            remaining = 0;
+            datagram.limit(end);
+            datagram.position(cursor);
+            return cursor < end;
+        }
+        if (remaining == 0) {
+            return false;
+        }
+        datagram.limit(end);
+        if (cursor + FrameBatch.FRAME_HEADER_SIZE > end) {
+            malformedCount++;
+            remaining = 0;
+            return false;
+        }
+        int length = (datagram.get(cursor) & 0xff) | ((datagram.get(cursor + 1) & 0xff) << 8);
+        int start = cursor + FrameBatch.FRAME_HEADER_SIZE;
+        if (start + length > end) {
+            malformedCount++;
+            remaining = 0;
+            return false;
+        }
+        remaining--;
+        cursor = start + length;
+        datagram.limit(start + length);
+        datagram.position(start);
+        return true;
+    }
+
+    /**
+     * Number of truncated batches seen since creation
+     */
+    public int getMalformedCount() {
+        return malformedCount;
+    }
+}
@@ -0,0 +1,33 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The fixed binary frame of ImuFrame, read by ImuFrameDecoder
+ */
+public class ImuBinarySerializer implements FrameSerializer<ImuSample> {
+    private final ImuFrameEncoder encoder;
+
+    /**
+     * @param deviceId: android id of the phone, hashed in every frame
+     * @param quaternionBits: 10 to 16 to compress the quaternions (frame version 2), 0 for floats
+     */
+    public ImuBinarySerializer(String deviceId, int quaternionBits) {
+        encoder = new ImuFrameEncoder(deviceId);
+        encoder.setQuaternionBits(quaternionBits);
+    }
+
+    @Override
+    public String getName() {
+        return FrameSerializers.BINARY;
+    }
+
+    @Override
+    public void write(ImuSample sample, ByteBuffer dst) {
+        encoder.encode(dst, sample);
+    }
+
+    @Override
+    public void reset() {
+    }
+}
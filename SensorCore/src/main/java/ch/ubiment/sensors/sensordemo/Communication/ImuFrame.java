@@ -0,0 +1,83 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+import java.nio.ByteOrder;
+
+/**
+ * Layout of the binary IMU frame. Everything is little-endian.
+ *
+ * Version 1:
+ * <pre>
+ *   offset  size  field
+ *        0     1  magic, always 'U' (0x55)
+ *        1     1  version
+ *        2     1  flags (bit 0: step detected by android, bit 1: step detected by UbiStep)
+ *        3     1  reserved, 0
+ *        4     4  device id hash (int)
+ *        8     4  sequence number (int)
+ *       12     8  timestamp in nanoseconds since epoch (long)
+ *       20    12  accelerometer xyz (float)
+ *       32    12  linear acceleration xyz (float)
+ *       44    12  gravity xyz (float)
+ *       56    12  magnetic field xyz (float)
+ *       68    12  gyroscope xyz (float)
+ *       80    16  orientation quaternion xyzw (float)
+ *       96    16  grav+acc+gyro orientation quaternion xyzw (float)
+ *      112    16  acc+gyro orientation quaternion xyzw (float)
+ *      128        end of frame
+ * </pre>
+ * Version 2 is the same up to offset 80, except that byte 3 holds the number of bits per component (10 to 16)
+ * of the three quaternions, which are compressed with Algebra.QuaternionCompression:
+ * <pre>
+ *   offset  size  field
+ *       80     n  orientation quaternion, n = QuaternionCompression.getPackedBytes() (4 to 7 bytes)
+ *     80+n     n  grav+acc+gyro orientation quaternion
+ *    80+2n     n  acc+gyro orientation quaternion
+ *    80+3n        end of frame (92 to 101 bytes)
+ * </pre>
+ * The same data printed as JSON by MainActivity.send_values() takes about 700 bytes.
+ */
+public final class ImuFrame {
+    public static final byte MAGIC = 0x55;
+    public static final byte VERSION = 1;
+    public static final byte VERSION_COMPRESSED = 2;
+    public static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    public static final int FLAG_STEP_DETECTED_SENSOR = 1;
+    public static final int FLAG_STEP_DETECTED = 1 << 1;
+
+    public static final int OFFSET_MAGIC = 0;
+    public static final int OFFSET_VERSION = 1;
+    public static final int OFFSET_FLAGS = 2;
+    public static final int OFFSET_QUATERNION_BITS = 3;    // version 2 only
+    public static final int OFFSET_DEVICE_ID = 4;
+    public static final int OFFSET_SEQUENCE = 8;
+    public static final int OFFSET_TIMESTAMP = 12;
+    public static final int OFFSET_ACCELEROMETER = 20;
+    public static final int OFFSET_LINEAR_ACCELERATION = 32;
+    public static final int OFFSET_GRAVITY = 44;
+    public static final int OFFSET_MAGNETIC_FIELD = 56;
+    public static final int OFFSET_GYROSCOPE = 68;
+    public static final int OFFSET_ORIENTATION = 80;
+    public static final int OFFSET_ORIENTATION_GRAV_ACC_GYRO = 96;
+    public static final int OFFSET_ORIENTATION_ACC_GYRO = 112;
+
+    public static final int HEADER_SIZE = OFFSET_ACCELEROMETER;
+    public static final int FRAME_SIZE = 128;
+
+    private ImuFrame() {
+    }
+
+    /**
+     * Size of a version 2 frame
+     */
+    public static int compressedFrameSize(int quaternionBytes) {
+        return OFFSET_ORIENTATION + 3 * quaternionBytes;
+    }
+
+    /**
+     * Hash of the android id written in every frame, so the receiver can tell the phones apart.
+     */
+    public static int deviceIdHash(String deviceId) {
+        return (deviceId == null) ? 0 : deviceId.hashCode();
+    }
+}
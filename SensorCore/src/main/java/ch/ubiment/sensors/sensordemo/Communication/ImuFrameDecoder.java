@@ -0,0 +1,174 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import ch.ubiment.sensors.sensordemo.Algebra.QuaternionCompression;
+
+/**
+ * Reads IMU frames written by ImuFrameEncoder. Only depends on java.nio, so it can be used by any JVM receiver.
+ *
+ * The decoder keeps the values of the last decoded frame in its own arrays, which are reused
+ * for every frame: decoding does not allocate. Copy the arrays if you need to keep the values.
+ */
+public class ImuFrameDecoder {
+    // one codec per number of bits, created when first needed
+    private final QuaternionCompression[] compressions =
+            new QuaternionCompression[QuaternionCompression.MAX_BITS - QuaternionCompression.MIN_BITS + 1];
+
+    private int version;
+    private int flags;
+    private int deviceIdHash;
+    private int sequence;
+    private long timestampNanos;
+
+    private final float[] accelerometer = new float[3];
+    private final float[] linearAcceleration = new float[3];
+    private final float[] gravity = new float[3];
+    private final float[] magneticField = new float[3];
+    private final float[] gyroscope = new float[3];
+    private final float[] orientationXYZW = new float[4];
+    private final float[] orientationGravAccGyroXYZW = new float[4];
+    private final float[] orientationAccGyroXYZW = new float[4];
+
+    /**
+     * Returns true if the bytes starting at buf.position() look like a binary IMU frame.
+     * Does not modify the buffer.
+     */
+    public static boolean isImuFrame(ByteBuffer buf) {
+        int p = buf.position();
+        return buf.remaining() >= ImuFrame.HEADER_SIZE
+                && buf.get(p + ImuFrame.OFFSET_MAGIC) == ImuFrame.MAGIC;
+    }
+
+    /**
+     * Decode the frame starting at buf.position(). On success, the position is moved after the frame.
+     * Compressed quaternions (version 2) are decompressed, so the getters are the same for both versions.
+     * The byte order of buf is left untouched.
+     * @return false if the bytes are not a frame of a supported version (the position is then unchanged)
+     */
+    public boolean decode(ByteBuffer buf) {
+        int p = buf.position();
+        if (buf.remaining() < ImuFrame.HEADER_SIZE || buf.get(p + ImuFrame.OFFSET_MAGIC) != ImuFrame.MAGIC) {
+            return false;
+        }
+        int v = buf.get(p + ImuFrame.OFFSET_VERSION);
+        QuaternionCompression compression = null;
+        int frameSize;
+        if (v == ImuFrame.VERSION) {
+            frameSize = ImuFrame.FRAME_SIZE;
+        } else if (v == ImuFrame.VERSION_COMPRESSED) {
+            compression = compression(buf.get(p + ImuFrame.OFFSET_QUATERNION_BITS));
+            if (compression == null) return false;
+            frameSize = ImuFrame.compressedFrameSize(compression.getPackedBytes());
+        } else {
+            return false;
+        }
+        if (buf.remaining() < frameSize) {
+            return false;
+        }
+
+        ByteOrder order = buf.order();
+        buf.order(ImuFrame.BYTE_ORDER);
+        try {
+            version = v;
+            flags = buf.get(p + ImuFrame.OFFSET_FLAGS) & 0xff;
+            deviceIdHash = buf.getInt(p + ImuFrame.OFFSET_DEVICE_ID);
+            sequence = buf.getInt(p + ImuFrame.OFFSET_SEQUENCE);
+            timestampNanos = buf.getLong(p + ImuFrame.OFFSET_TIMESTAMP);
+
+            getFloats(buf, p + ImuFrame.OFFSET_ACCELEROMETER, accelerometer);
+            getFloats(buf, p + ImuFrame.OFFSET_LINEAR_ACCELERATION, linearAcceleration);
+            getFloats(buf, p + ImuFrame.OFFSET_GRAVITY, gravity);
+            getFloats(buf, p + ImuFrame.OFFSET_MAGNETIC_FIELD, magneticField);
+            getFloats(buf, p + ImuFrame.OFFSET_GYROSCOPE, gyroscope);
+            if (compression == null) {
+                getFloats(buf, p + ImuFrame.OFFSET_ORIENTATION, orientationXYZW);
+                getFloats(buf, p + ImuFrame.OFFSET_ORIENTATION_GRAV_ACC_GYRO, orientationGravAccGyroXYZW);
+                getFloats(buf, p + ImuFrame.OFFSET_ORIENTATION_ACC_GYRO, orientationAccGyroXYZW);
+            } else {
+                int n = compression.getPackedBytes();
+                compression.unpack(compression.read(buf, p + ImuFrame.OFFSET_ORIENTATION), orientationXYZW);
+                compression.unpack(compression.read(buf, p + ImuFrame.OFFSET_ORIENTATION + n), orientationGravAccGyroXYZW);
+                compression.unpack(compression.read(buf, p + ImuFrame.OFFSET_ORIENTATION + 2 * n), orientationAccGyroXYZW);
+            }
+        } finally {
+            buf.order(order);
+        }
+        buf.position(p + frameSize);
+        return true;
+    }
+
+    private QuaternionCompression compression(int bits) {
+        if (bits < QuaternionCompression.MIN_BITS || bits > QuaternionCompression.MAX_BITS) {
+            return null;
+        }
+        int i = bits - QuaternionCompression.MIN_BITS;
+        if (compressions[i] == null) {
+            compressions[i] = new QuaternionCompression(bits);
+        }
+        return compressions[i];
+    }
+
+    private static void getFloats(ByteBuffer buf, int offset, float[] out) {
+        for (int i = 0; i < out.length; i++) {
+            out[i] = buf.getFloat(offset + 4 * i);
+        }
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getDeviceIdHash() {
+        return deviceIdHash;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    public boolean isStepDetectedSensor() {
+        return (flags & ImuFrame.FLAG_STEP_DETECTED_SENSOR) != 0;
+    }
+
+    public boolean isStepDetected() {
+        return (flags & ImuFrame.FLAG_STEP_DETECTED) != 0;
+    }
+
+    public float[] getAccelerometer() {
+        return accelerometer;
+    }
+
+    public float[] getLinearAcceleration() {
+        return linearAcceleration;
+    }
+
+    public float[] getGravity() {
+        return gravity;
+    }
+
+    public float[] getMagneticField() {
+        return magneticField;
+    }
+
+    public float[] getGyroscope() {
+        return gyroscope;
+    }
+
+    public float[] getOrientationXYZW() {
+        return orientationXYZW;
+    }
+
+    public float[] getOrientationGravAccGyroXYZW() {
+        return orientationGravAccGyroXYZW;
+    }
+
+    public float[] getOrientationAccGyroXYZW() {
+        return orientationAccGyroXYZW;
+    }
+}
@@ -0,0 +1,142 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import ch.ubiment.sensors.sensordemo.Algebra.Quaternion;
+import ch.ubiment.sensors.sensordemo.Algebra.QuaternionCompression;
+
+/**
+ * Writes IMU frames as described in ImuFrame into a single reused ByteBuffer, or into a buffer given by the caller.
+ * Encoding a frame does not allocate anything. Not thread-safe: use one encoder per sending thread.
+ */
+public class ImuFrameEncoder {
+    private final ByteBuffer buffer = ByteBuffer.allocate(ImuFrame.FRAME_SIZE).order(ImuFrame.BYTE_ORDER);
+    private final float[] quaternionXYZW = new float[4];
+    private final int deviceIdHash;
+    private QuaternionCompression compression = null;   // null: full float quaternions (version 1)
+
+    public ImuFrameEncoder(String deviceId) {
+        this.deviceIdHash = ImuFrame.deviceIdHash(deviceId);
+    }
+
+    /**
+     * Encode one frame.
+     * @return the internal buffer, flipped (position 0, limit = frame size). It is overwritten by the next call.
+     */
+    public ByteBuffer encode(int sequence, long timestampNanos,
+                             float[] accelerometer, float[] linearAcceleration, float[] gravity,
+                             float[] magneticField, float[] gyroscope,
+                             Quaternion orientation, Quaternion orientationGravAccGyro, Quaternion orientationAccGyro,
+                             boolean isStepDetectedSensor, boolean isStepDetected) {
+        buffer.clear();
+        encode(buffer, sequence, timestampNanos, accelerometer, linearAcceleration, gravity, magneticField, gyroscope,
+                orientation, orientationGravAccGyro, orientationAccGyro, isStepDetectedSensor, isStepDetected);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Encode one frame at the position of dst (e.g. a pooled buffer of UdpClientSend), which is advanced
+     * by getFrameSize(). The byte order of dst is left unchanged.
+     */
+    public void encode(ByteBuffer dst, int sequence, long timestampNanos,
+                       float[] accelerometer, float[] linearAcceleration, float[] gravity,
+                       float[] magneticField, float[] gyroscope,
+                       Quaternion orientation, Quaternion orientationGravAccGyro, Quaternion orientationAccGyro,
+                       boolean isStepDetectedSensor, boolean isStepDetected) {
+        ByteOrder order = dst.order();
+        dst.order(ImuFrame.BYTE_ORDER);
+        try {
+            putHeader(dst, sequence, timestampNanos, isStepDetectedSensor, isStepDetected);
+            putVector3(dst, accelerometer);
+            putVector3(dst, linearAcceleration);
+            putVector3(dst, gravity);
+            putVector3(dst, magneticField);
+            putVector3(dst, gyroscope);
+
+            putQuaternion(dst, orientation);
+            putQuaternion(dst, orientationGravAccGyro);
+            putQuaternion(dst, orientationAccGyro);
+        } finally {
+            dst.order(order);
+        }
+    }
+
+    /**
+     * Same as encode(dst, ...) with the values of a sample
+     */
+    public void encode(ByteBuffer dst, ImuSample sample) {
+        ByteOrder order = dst.order();
+        dst.order(ImuFrame.BYTE_ORDER);
+        try {
+            putHeader(dst, sample.sequence, sample.timestampNanos, sample.isStepDetectedSensor, sample.isStepDetected);
+            putVector3(dst, sample.accelerometer);
+            putVector3(dst, sample.linearAcceleration);
+            putVector3(dst, sample.gravity);
+            putVector3(dst, sample.magneticField);
+            putVector3(dst, sample.gyroscope);
+            putQuaternion(dst, sample.orientationXYZW);
+            putQuaternion(dst, sample.orientationGravAccGyroXYZW);
+            putQuaternion(dst, sample.orientationAccGyroXYZW);
+        } finally {
+            dst.order(order);
+        }
+    }
+
+    /**
+     * Compress the quaternions to bitsPerComponent bits per component (frame version 2), or send them as floats
+     * (version 1) with 0.
+     */
+    public void setQuaternionBits(int bitsPerComponent) {
+        compression = (bitsPerComponent == 0) ? null : new QuaternionCompression(bitsPerComponent);
+    }
+
+    /**
+     * Size of the frames written with the current settings
+     */
+    public int getFrameSize() {
+        return (compression == null) ? ImuFrame.FRAME_SIZE : ImuFrame.compressedFrameSize(compression.getPackedBytes());
+    }
+
+    public int getDeviceIdHash() {
+        return deviceIdHash;
+    }
+
+    private void putHeader(ByteBuffer dst, int sequence, long timestampNanos,
+                           boolean isStepDetectedSensor, boolean isStepDetected) {
+        int flags = 0;
+        if (isStepDetectedSensor) flags |= ImuFrame.FLAG_STEP_DETECTED_SENSOR;
+        if (isStepDetected) flags |= ImuFrame.FLAG_STEP_DETECTED;
+
+        dst.put(ImuFrame.MAGIC);
+        dst.put((compression == null) ? ImuFrame.VERSION : ImuFrame.VERSION_COMPRESSED);
+        dst.put((byte) flags);
+        dst.put((byte) ((compression == null) ? 0 : compression.getBits()));
+        dst.putInt(deviceIdHash);
+        dst.putInt(sequence);
+        dst.putLong(timestampNanos);
+    }
+
+    private static void putVector3(ByteBuffer dst, float[] v) {
+        dst.putFloat(v[0]);
+        dst.putFloat(v[1]);
+        dst.putFloat(v[2]);
+    }
+
+    private void putQuaternion(ByteBuffer dst, Quaternion q) {
+        q.getFloatArrayXYZW(quaternionXYZW);
+        putQuaternion(dst, quaternionXYZW);
+    }
+
+    private void putQuaternion(ByteBuffer dst, float[] xyzw) {
+        if (compression != null) {
+            compression.write(dst, compression.pack(xyzw));
+            return;
+        }
+        dst.putFloat(xyzw[0]);
+        dst.putFloat(xyzw[1]);
+        dst.putFloat(xyzw[2]);
+        dst.putFloat(xyzw[3]);
+    }
+}
@@ -0,0 +1,48 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The json message of the python scripts (Acquisition/), the default format.
+ * The timestamp is the one of the sample, in milliseconds since epoch.
+ */
+public class ImuJsonSerializer implements FrameSerializer<ImuSample> {
+    private final String deviceId;
+    private final JsonWriter jsonWriter = new JsonWriter(1024);
+
+    /**
+     * @param deviceId: android id of the phone, sent as Phone_ID
+     */
+    public ImuJsonSerializer(String deviceId) {
+        this.deviceId = deviceId;
+    }
+
+    @Override
+    public String getName() {
+        return FrameSerializers.JSON;
+    }
+
+    @Override
+    public void write(ImuSample sample, ByteBuffer dst) {
+        jsonWriter.beginObject()
+                .field("timestamp", sample.timestampNanos / 1000000L)
+                .field("Phone_ID", deviceId)
+                .field("sequence", sample.sequence)
+                .field("accelerometer", sample.accelerometer)
+                .field("linearAcceleration", sample.linearAcceleration)
+                .field("gravity", sample.gravity)
+                .field("magneticField", sample.magneticField)
+                .field("gyroscope", sample.gyroscope)
+                .field("orientationQuaterionXYZW", sample.orientationXYZW)
+                .field("orientationGravAccGyroQuaterionXYZW", sample.orientationGravAccGyroXYZW)
+                .field("orientationAccGyroQuaterionXYZW", sample.orientationAccGyroXYZW)
+                .field("isStepDetectedSensor", sample.isStepDetectedSensor)  // 1 if true, 0 if False
+                .field("isStepDetected", sample.isStepDetected)  // 1 if true, 0 if False
+                .endObject();
+        dst.put(jsonWriter.buffer(), 0, jsonWriter.size());
+    }
+
+    @Override
+    public void reset() {
+    }
+}
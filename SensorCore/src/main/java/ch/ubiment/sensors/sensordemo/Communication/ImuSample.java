@@ -0,0 +1,66 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+import ch.ubiment.sensors.sensordemo.Algebra.Quaternion;
+
+/**
+ * The values of one IMU message, given to a FrameSerializer or filled by a decoder.
+ * A plain mutable holder, reused from one sample to the next: the arrays are never replaced.
+ */
+public class ImuSample {
+    public long timestampNanos;     // since epoch
+    public int sequence;
+    public final float[] accelerometer = new float[3];
+    public final float[] linearAcceleration = new float[3];
+    public final float[] gravity = new float[3];
+    public final float[] magneticField = new float[3];
+    public final float[] gyroscope = new float[3];
+    public final float[] orientationXYZW = new float[4];
+    public final float[] orientationGravAccGyroXYZW = new float[4];
+    public final float[] orientationAccGyroXYZW = new float[4];
+    public boolean isStepDetectedSensor;
+    public boolean isStepDetected;
+
+    /**
+     * Copy the values, in the order of ImuFrameEncoder.encode()
+     */
+    public void set(int sequence, long timestampNanos,
+                    float[] accelerometer, float[] linearAcceleration, float[] gravity,
+                    float[] magneticField, float[] gyroscope,
+                    Quaternion orientation, Quaternion orientationGravAccGyro, Quaternion orientationAccGyro,
+                    boolean isStepDetectedSensor, boolean isStepDetected) {
+        this.sequence = sequence;
+        this.timestampNanos = timestampNanos;
+        System.arraycopy(accelerometer, 0, this.accelerometer, 0, 3);
+        System.arraycopy(linearAcceleration, 0, this.linearAcceleration, 0, 3);
+        System.arraycopy(gravity, 0, this.gravity, 0, 3);
+        System.arraycopy(magneticField, 0, this.magneticField, 0, 3);
+        System.arraycopy(gyroscope, 0, this.gyroscope, 0, 3);
+        orientation.getFloatArrayXYZW(orientationXYZW);
+        orientationGravAccGyro.getFloatArrayXYZW(orientationGravAccGyroXYZW);
+        orientationAccGyro.getFloatArrayXYZW(orientationAccGyroXYZW);
+        this.isStepDetectedSensor = isStepDetectedSensor;
+        this.isStepDetected = isStepDetected;
+    }
+
+    /**
+     * Same as the other set(), with the quaternions given as {qx, qy, qz, qw}
+     */
+    public void set(int sequence, long timestampNanos,
+                    float[] accelerometer, float[] linearAcceleration, float[] gravity,
+                    float[] magneticField, float[] gyroscope,
+                    float[] orientationXYZW, float[] orientationGravAccGyroXYZW, float[] orientationAccGyroXYZW,
+                    boolean isStepDetectedSensor, boolean isStepDetected) {
+        this.sequence = sequence;
+        this.timestampNanos = timestampNanos;
+        System.arraycopy(accelerometer, 0, this.accelerometer, 0, 3);
+        System.arraycopy(linearAcceleration, 0, this.linearAcceleration, 0, 3);
+        System.arraycopy(gravity, 0, this.gravity, 0, 3);
+        System.arraycopy(magneticField, 0, this.magneticField, 0, 3);
+        System.arraycopy(gyroscope, 0, this.gyroscope, 0, 3);
+        System.arraycopy(orientationXYZW, 0, this.orientationXYZW, 0, 4);
+        System.arraycopy(orientationGravAccGyroXYZW, 0, this.orientationGravAccGyroXYZW, 0, 4);
+        System.arraycopy(orientationAccGyroXYZW, 0, this.orientationAccGyroXYZW, 0, 4);
+        this.isStepDetectedSensor = isStepDetectedSensor;
+        this.isStepDetected = isStepDetected;
+    }
+}
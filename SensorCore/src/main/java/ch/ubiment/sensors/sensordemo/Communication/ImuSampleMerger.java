@@ -0,0 +1,236 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+import ch.ubiment.sensors.sensordemo.Algebra.Quaternion;
+
+/**
+ * Merges the IMU samples which are not sent when RateController lowers the rate into the one which is sent:
+ * the vectors are averaged, the quaternions are averaged by slerp, and the step flags are ORed so that a step
+ * detected on a skipped sample is not lost.
+ * <pre>
+ *   merger.add(timestamp, acc, linAcc, ...);   // every sample
+ *   if (rateController.onSample()) {
+ *       send(merger.getTimestamp(), merger.getAccelerometer(), ...);
+ *       merger.clear();
+ *   }
+ * </pre>
+ * With setAveraging(false), the vectors and quaternions of the last sample are kept instead (decimation), only the
+ * step flags are still merged.
+ *
+ * add() does not allocate. The arrays returned by the getters are reused; the Quaternion getters create new objects,
+ * the XYZW getters do not.
+ */
+public class ImuSampleMerger {
+    private static final int VECTORS = 5;
+    private static final int QUATERNIONS = 3;
+
+    private boolean averaging = true;
+
+    private int count = 0;
+    private long timestamp;
+    private final double[][] vectorSums = new double[VECTORS][3];
+    private final float[][] vectors = new float[VECTORS][3];
+    private final double[][] quaternions = new double[QUATERNIONS][4];
+    private final float[][] bufferQuaternions = new float[QUATERNIONS][4];
+    private final float[][] quaternionsXYZW = new float[QUATERNIONS][4];
+    private boolean isStepDetectedSensor;
+    private boolean isStepDetected;
+
+    /**
+     * @param averaging: true to average the samples, false to keep the last one
+     */
+    public void setAveraging(boolean averaging) {
+        this.averaging = averaging;
+    }
+
+    public boolean isAveraging() {
+        return averaging;
+    }
+
+    /**
+     * Add a sample. The timestamp of the merged sample is the one of the last sample.
+     */
+    public void add(long timestampNanos,
+                    float[] accelerometer, float[] linearAcceleration, float[] gravity,
+                    float[] magneticField, float[] gyroscope,
+                    Quaternion orientation, Quaternion orientationGravAccGyro, Quaternion orientationAccGyro,
+                    boolean isStepDetectedSensor, boolean isStepDetected) {
+        orientation.getFloatArrayXYZW(bufferQuaternions[0]);
+        orientationGravAccGyro.getFloatArrayXYZW(bufferQuaternions[1]);
+        orientationAccGyro.getFloatArrayXYZW(bufferQuaternions[2]);
+        add(timestampNanos, accelerometer, linearAcceleration, gravity, magneticField, gyroscope,
+                bufferQuaternions[0], bufferQuaternions[1], bufferQuaternions[2],
+                isStepDetectedSensor, isStepDetected);
+    }
+
+    /**
+     * Same as the other add(), with the quaternions given as {qx, qy, qz, qw}
+     */
+    public void add(long timestampNanos,
+                    float[] accelerometer, float[] linearAcceleration, float[] gravity,
+                    float[] magneticField, float[] gyroscope,
+                    float[] orientationXYZW, float[] orientationGravAccGyroXYZW, float[] orientationAccGyroXYZW,
+                    boolean isStepDetectedSensor, boolean isStepDetected) {
+        boolean first = (count == 0) || !averaging;
+        count++;
+        timestamp = timestampNanos;
+        addVector(0, accelerometer, first);
+        addVector(1, linearAcceleration, first);
+        addVector(2, gravity, first);
+        addVector(3, magneticField, first);
+        addVector(4, gyroscope, first);
+        addQuaternion(0, orientationXYZW, first);
+        addQuaternion(1, orientationGravAccGyroXYZW, first);
+        addQuaternion(2, orientationAccGyroXYZW, first);
+        this.isStepDetectedSensor |= isStepDetectedSensor;
+        this.isStepDetected |= isStepDetected;
+    }
+
+    private void addVector(int index, float[] vector, boolean first) {
+        double[] sum = vectorSums[index];
+        for (int i = 0; i < 3; i++) {
+            sum[i] = first ? vector[i] : sum[i] + vector[i];
+        }
+    }
+
+    /**
+     * Running mean of the quaternions: the mean of k quaternions is the slerp between the mean of the k-1 first
+     * ones and the k-th one, with t = 1/k.
+     */
+    private void addQuaternion(int index, float[] quaternionXYZW, boolean first) {
+        double[] mean = quaternions[index];
+        if (first) {
+            for (int i = 0; i < 4; i++) mean[i] = quaternionXYZW[i];
+            return;
+        }
+        slerp(mean, quaternionXYZW, 1.0 / count);
+    }
+
+    /**
+     * a = slerp(a, b, t), along the short path
+     */
+    static void slerp(double[] a, float[] b, double t) {
+        double normA = Math.sqrt(a[0]*a[0] + a[1]*a[1] + a[2]*a[2] + a[3]*a[3]);
+        double normB = Math.sqrt(b[0]*b[0] + b[1]*b[1] + b[2]*b[2] + b[3]*b[3]);
+        if (normA == 0 || normB == 0) return;
+        double cosHalfTheta = (a[0]*b[0] + a[1]*b[1] + a[2]*b[2] + a[3]*b[3]) / (normA * normB);
+        // q and -q are the same rotation: take the short path
+        double sign = 1.0;
+        if (cosHalfTheta < 0) {
+            cosHalfTheta = -cosHalfTheta;
+            sign = -1.0;
+        }
+        double ratioA;
+        double ratioB;
+        if (cosHalfTheta >= 0.9995) {
+            // nearly the same rotation: linear interpolation, normalized below
+            ratioA = 1 - t;
+            ratioB = t;
+        } else {
+            double halfTheta = Math.acos(cosHalfTheta);
+            double sinHalfTheta = Math.sqrt(1.0 - cosHalfTheta * cosHalfTheta);
+            ratioA = Math.sin((1 - t) * halfTheta) / sinHalfTheta;
+            ratioB = Math.sin(t * halfTheta) / sinHalfTheta;
+        }
+        ratioA /= normA;
+        ratioB *= sign / normB;
+        double norm = 0;
+        for (int i = 0; i < 4; i++) {
+            a[i] = a[i] * ratioA + b[i] * ratioB;
+            norm += a[i] * a[i];
+        }
+        norm = Math.sqrt(norm);
+        for (int i = 0; i < 4; i++) a[i] /= norm;
+    }
+
+    /**
+     * Start a new merged sample
+     */
+    public void clear() {
+        count = 0;
+        isStepDetectedSensor = false;
+        isStepDetected = false;
+    }
+
+    /**
+     * Number of samples merged since the last clear()
+     */
+    public int getCount() {
+        return count;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public float[] getAccelerometer() {
+        return getVector(0);
+    }
+
+    public float[] getLinearAcceleration() {
+        return getVector(1);
+    }
+
+    public float[] getGravity() {
+        return getVector(2);
+    }
+
+    public float[] getMagneticField() {
+        return getVector(3);
+    }
+
+    public float[] getGyroscope() {
+        return getVector(4);
+    }
+
+    private float[] getVector(int index) {
+        double[] sum = vectorSums[index];
+        float[] out = vectors[index];
+        int n = averaging ? count : 1;
+        for (int i = 0; i < 3; i++) out[i] = (float) (sum[i] / n);
+        return out;
+    }
+
+    public Quaternion getOrientation() {
+        return getQuaternion(0);
+    }
+
+    public Quaternion getOrientationGravAccGyro() {
+        return getQuaternion(1);
+    }
+
+    public Quaternion getOrientationAccGyro() {
+        return getQuaternion(2);
+    }
+
+    private Quaternion getQuaternion(int index) {
+        double[] q = quaternions[index];
+        return new Quaternion(q[0], q[1], q[2], q[3]);
+    }
+
+    public float[] getOrientationXYZW() {
+        return getQuaternionXYZW(0);
+    }
+
+    public float[] getOrientationGravAccGyroXYZW() {
+        return getQuaternionXYZW(1);
+    }
+
+    public float[] getOrientationAccGyroXYZW() {
+        return getQuaternionXYZW(2);
+    }
+
+    private float[] getQuaternionXYZW(int index) {
+        double[] q = quaternions[index];
+        float[] out = quaternionsXYZW[index];
+        for (int i = 0; i < 4; i++) out[i] = (float) q[i];
+        return out;
+    }
+
+    public boolean isStepDetectedSensor() {
+        return isStepDetectedSensor;
+    }
+
+    public boolean isStepDetected() {
+        return isStepDetected;
+    }
+}
@@ -0,0 +1,202 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Streaming encoder for the flat json messages expected by the python scripts, e.g.
+ * <pre>
+ *   {"timestamp":"1591012345678","Phone_ID":"8e1d...","accelerometer":"[0.1, 9.8, 0.3]"}
+ * </pre>
+ * Every value is written as a json string, like the messages built by string concatenation before.
+ * Strings are written as UTF-8 without escaping, so the output is byte-identical to String.getBytes()
+ * of the concatenated message.
+ *
+ * The message is built in a reused byte array: once the array is large enough, encoding does not allocate.
+ * Not thread-safe.
+ */
+public class JsonWriter {
+    private byte[] buffer;
+    private int size = 0;
+    private boolean firstField = true;
+
+    public JsonWriter(int initialCapacity) {
+        buffer = new byte[initialCapacity];
+    }
+
+    /**
+     * Forget the current message and start a new object
+     */
+    public JsonWriter beginObject() {
+        size = 0;
+        firstField = true;
+        ensureCapacity(1);
+        buffer[size++] = '{';
+        return this;
+    }
+
+    public JsonWriter endObject() {
+        ensureCapacity(1);
+        buffer[size++] = '}';
+        return this;
+    }
+
+    public JsonWriter field(String name, String value) {
+        beginField(name);
+        writeUtf8((value == null) ? "null" : value);
+        return endField();
+    }
+
+    public JsonWriter field(String name, long value) {
+        beginField(name);
+        writeLong(value);
+        return endField();
+    }
+
+    /**
+     * Write the value as "1" for true and "0" for false
+     */
+    public JsonWriter field(String name, boolean value) {
+        beginField(name);
+        ensureCapacity(1);
+        buffer[size++] = (byte) (value ? '1' : '0');
+        return endField();
+    }
+
+    /**
+     * Write the value as Float.toString() does, e.g. "-67.25"
+     */
+    public JsonWriter field(String name, float value) {
+        beginField(name);
+        ensureCapacity(FloatFormat.MAX_LENGTH);
+        size = FloatFormat.write(value, buffer, size);
+        return endField();
+    }
+
+    /**
+     * Write a vector the way python prints lists, e.g. "[1.0, 2.0, 3.14]"
+     */
+    public JsonWriter field(String name, float[] vector) {
+        beginField(name);
+        writeVector(vector);
+        return endField();
+    }
+
+    /**
+     * Append the content of a vector, e.g. [1.0, 2.0, 3.14] (without quotes) to the message
+     */
+    public JsonWriter writeVector(float[] vector) {
+        ensureCapacity(2 + vector.length * (FloatFormat.MAX_LENGTH + 2));
+        buffer[size++] = '[';
+        for (int i = 0; i < vector.length; i++) {
+            if (i > 0) {
+                buffer[size++] = ',';
+                buffer[size++] = ' ';
+            }
+            size = FloatFormat.write(vector[i], buffer, size);
+        }
+        buffer[size++] = ']';
+        return this;
+    }
+
+    /**
+     * The message is buffer()[0 .. size()-1]. The array can be replaced when the writer grows.
+     */
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Decode the current content, mostly for logs and for callers which need a String anyway
+     */
+    @Override
+    public String toString() {
+        try {
+            return new String(buffer, 0, size, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Same output as the former floatVector2String() helpers: "[1.0, 2.0, 3.14]"
+     */
+    public static String vectorToString(float[] vector) {
+        return new JsonWriter(2 + vector.length * (FloatFormat.MAX_LENGTH + 2)).writeVector(vector).toString();
+    }
+
+    private void beginField(String name) {
+        ensureCapacity(4);
+        if (!firstField) buffer[size++] = ',';
+        firstField = false;
+        buffer[size++] = '"';
+        writeUtf8(name);
+        ensureCapacity(3);
+        buffer[size++] = '"';
+        buffer[size++] = ':';
+        buffer[size++] = '"';
+    }
+
+    private JsonWriter endField() {
+        ensureCapacity(1);
+        buffer[size++] = '"';
+        return this;
+    }
+
+    private void writeLong(long value) {
+        ensureCapacity(20);
+        if (value == Long.MIN_VALUE) {
+            writeUtf8("-9223372036854775808");
+            return;
+        }
+        if (value < 0) {
+            buffer[size++] = '-';
+            value = -value;
+        }
+        int n = 1;
+        for (long v = value / 10; v > 0; v /= 10) n++;
+        for (int i = size + n - 1; i >= size; i--) {
+            buffer[i] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }
+        size += n;
+    }
+
+    private void writeUtf8(String s) {
+        int length = s.length();
+        ensureCapacity(3 * length);
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buffer[size++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[size++] = (byte) (0xc0 | (c >> 6));
+                buffer[size++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buffer[size++] = (byte) (0xf0 | (cp >> 18));
+                buffer[size++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buffer[size++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buffer[size++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // lone surrogate, String.getBytes() replaces it with '?'
+                buffer[size++] = '?';
+            } else {
+                buffer[size++] = (byte) (0xe0 | (c >> 12));
+                buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[size++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        if (size + extra > buffer.length) {
+            byte[] larger = new byte[Math.max(2 * buffer.length, size + extra)];
+            System.arraycopy(buffer, 0, larger, 0, size);
+            buffer = larger;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Running statistics of durations in nanoseconds: count, min, mean, max and percentiles.
+ *
+ * The percentiles come from a histogram with 8 buckets per power of two, so they are accurate to 12.5%
+ * and recording a value never allocates. One thread usually records (the sender) while another reads (the UI),
+ * so every method is synchronized.
+ */
+public class LatencyStats {
+    private static final int SUB_BUCKETS = 8;
+    private static final int SUB_BITS = 3;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final long[] histogram = new long[BUCKETS];
+    private long count = 0;
+    private long sum = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+
+    public synchronized void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        histogram[bucket(nanos)]++;
+        count++;
+        sum += nanos;
+        if (nanos < min) min = nanos;
+        if (nanos > max) max = nanos;
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(histogram, 0);
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getMinNanos() {
+        return (count == 0) ? 0 : min;
+    }
+
+    public synchronized long getMaxNanos() {
+        return max;
+    }
+
+    /**
+     * Sum of the recorded durations: the mean over an interval is the difference of two sums divided by the
+     * difference of the two counts
+     */
+    public synchronized long getTotalNanos() {
+        return sum;
+    }
+
+    public synchronized long getMeanNanos() {
+        return (count == 0) ? 0 : sum / count;
+    }
+
+    /**
+     * @param percentile: between 0 and 100
+     * @return an upper bound of the given percentile (the largest value of its histogram bucket, at most the max)
+     */
+    public synchronized long getPercentileNanos(double percentile) {
+        if (count == 0) return 0;
+        long rank = (long) Math.ceil(percentile / 100.0 * count);
+        if (rank < 1) rank = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += histogram[i];
+            if (seen >= rank) return Math.min(bucketUpperBound(i), max);
+        }
+        return max;
+    }
+
+    /**
+     * Summary in microseconds, e.g. "n=1200 min=85 mean=140 p50=127 p99=431 max=2210 us"
+     */
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "n=%d min=%d mean=%d p50=%d p99=%d max=%d us",
+                count, getMinNanos() / 1000, getMeanNanos() / 1000,
+                getPercentileNanos(50) / 1000, getPercentileNanos(99) / 1000, max / 1000);
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);   // >= SUB_BITS
+        int shift = exponent - SUB_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long bucketUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        long lower = (SUB_BUCKETS + sub) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
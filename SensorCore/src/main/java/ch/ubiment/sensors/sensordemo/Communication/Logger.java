@@ -0,0 +1,34 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+/**
+ * Log output of the transport and time sync classes, so that they do not depend on android.util.Log.
+ * The methods are named after the ones of android.util.Log: the apps forward them to it, the JVM tools use SYSTEM.
+ */
+public interface Logger {
+
+    void d(String tag, String message);
+
+    void w(String tag, String message);
+
+    void e(String tag, String message, Throwable throwable);
+
+    /**
+     * Warnings and errors to System.err, debug messages are discarded
+     */
+    Logger SYSTEM = new Logger() {
+        @Override
+        public void d(String tag, String message) {
+        }
+
+        @Override
+        public void w(String tag, String message) {
+            System.err.println("W/" + tag + ": " + message);
+        }
+
+        @Override
+        public void e(String tag, String message, Throwable throwable) {
+            System.err.println("E/" + tag + ": " + message);
+            if (throwable != null) throwable.printStackTrace();
+        }
+    };
+}
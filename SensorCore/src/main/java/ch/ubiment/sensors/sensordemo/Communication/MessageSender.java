@@ -0,0 +1,63 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+/**
+ * A transport of the apps: UdpClientSend (datagrams, the default) or TcpClientSend (recording stream, lossless).
+ * Both queue the messages in a SendQueue and send them on their own thread, so the callers never block
+ * on the network.
+ */
+public interface MessageSender {
+
+    /**
+     * Queue a payload. The bytes are copied, so buf can be reused as soon as this method returns.
+     * @return false if the payload was dropped by the overflow policy or if the sender is closed
+     */
+    boolean send(byte[] buf, int offset, int length);
+
+    /**
+     * Take a pooled buffer to encode a payload into, see SendQueue.claim()
+     * @return null if the payload has to be dropped (overflow policy) or if the sender is closed
+     */
+    SendQueue.Slot claim();
+
+    /**
+     * Queue a claimed slot, its payload is slot.buffer()[0 .. position-1]
+     */
+    boolean publish(SendQueue.Slot slot);
+
+    /**
+     * Give back a claimed slot without sending it
+     */
+    void cancel(SendQueue.Slot slot);
+
+    void close();
+
+    long getEnqueuedCount();
+
+    long getSentCount();
+
+    /**
+     * Messages dropped by the overflow policy of the queue
+     */
+    long getDroppedCount();
+
+    long getErrorCount();
+
+    /**
+     * Messages dropped because the socket buffer was full in non-blocking mode
+     */
+    long getWouldBlockCount();
+
+    int getQueueDepth();
+
+    int getQueueCapacity();
+
+    /**
+     * Time between publish() (or send()) and the end of the write of the message
+     */
+    LatencyStats getQueueLatency();
+
+    /**
+     * Duration of the channel writes
+     */
+    LatencyStats getWriteLatency();
+}
@@ -0,0 +1,220 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+import java.util.Locale;
+
+/**
+ * Lowers the rate of the outgoing messages when the transport can not keep up, and raises it back when it recovers.
+ * <pre>
+ *   rateController.update(sender, System.nanoTime());   // for every sample, cheap between two windows
+ *   merger.add(...);
+ *   if (rateController.onSample()) {
+ *       // send the merged sample
+ *   }
+ * </pre>
+ * Every window, the controller looks at what the transport did since the previous window: messages dropped
+ * (queue overflow, or socket buffer full in non-blocking mode), queue depth, and mean time between publish() and
+ * the end of the write. Under pressure, only one sample out of getFactor() is sent: the factor goes up one step
+ * of FACTORS at once. After recoverWindows consecutive healthy windows, it goes down one step.
+ * Between the two thresholds nothing changes, which avoids oscillating around a single limit.
+ *
+ * The skipped samples are not lost if they are merged into the sent one, see ImuSampleMerger.
+ *
+ * Not thread-safe: update() and onSample() are called by the thread producing the samples.
+ */
+public class RateController {
+    public static final int[] FACTORS = {1, 2, 4, 8};
+
+    public static final long DEFAULT_WINDOW_MS = 500;
+    public static final long DEFAULT_LATENCY_HIGH_MS = 20;
+    public static final long DEFAULT_LATENCY_LOW_MS = 5;
+    public static final int DEFAULT_RECOVER_WINDOWS = 4;
+
+    // queue depth in % of the capacity
+    private static final int DEPTH_HIGH_PERCENT = 50;
+    private static final int DEPTH_LOW_PERCENT = 10;
+
+    private final long windowNanos;
+    private final long latencyHighNanos;
+    private final long latencyLowNanos;
+    private final int recoverWindows;
+
+    private int step = 0;               // index in FACTORS
+    private int samplesSinceSent = 0;
+    private int healthyWindows = 0;
+
+    private boolean started = false;
+    private long windowStart;
+    private long windowSamples = 0;
+    private long previousLost;
+    private long previousLatencyCount;
+    private long previousLatencyTotal;
+
+    // metrics
+    private double inputRateHz = 0.0;
+    private long lastWindowLost = 0;
+    private long lastWindowLatencyNanos = 0;
+    private int lastWindowDepthPercent = 0;
+    private long decreaseCount = 0;
+    private long increaseCount = 0;
+    private String lastDecision = "none";
+
+    public RateController() {
+        this(DEFAULT_WINDOW_MS, DEFAULT_LATENCY_HIGH_MS, DEFAULT_LATENCY_LOW_MS, DEFAULT_RECOVER_WINDOWS);
+    }
+
+    /**
+     * @param windowMs: period of the decisions
+     * @param latencyHighMs: mean queue latency above which the rate goes down. With batching, it must be larger
+     *                     than the maximum latency of the batches.
+     * @param latencyLowMs: mean queue latency below which a window is healthy
+     * @param recoverWindows: consecutive healthy windows before the rate goes up one step
+     */
+    public RateController(long windowMs, long latencyHighMs, long latencyLowMs, int recoverWindows) {
+        if (latencyLowMs > latencyHighMs) throw new IllegalArgumentException("latencyLowMs > latencyHighMs");
+        this.windowNanos = windowMs * 1000000L;
+        this.latencyHighNanos = latencyHighMs * 1000000L;
+        this.latencyLowNanos = latencyLowMs * 1000000L;
+        this.recoverWindows = recoverWindows;
+    }
+
+    /**
+     * Take a new sample into account.
+     * @return true if this sample (merged with the skipped ones) must be sent
+     */
+    public boolean onSample() {
+        windowSamples++;
+        if (++samplesSinceSent < FACTORS[step]) return false;
+        samplesSinceSent = 0;
+        return true;
+    }
+
+    /**
+     * Read the counters of the client, and decide if the window is over
+     * @return true if the factor changed
+     */
+    public boolean update(MessageSender client, long nowNanos) {
+        if (started && nowNanos - windowStart < windowNanos) return false;
+        LatencyStats latency = client.getQueueLatency();
+        return update(nowNanos, client.getQueueDepth(), client.getQueueCapacity(),
+                client.getDroppedCount() + client.getWouldBlockCount(), latency.getCount(), latency.getTotalNanos());
+    }
+
+    /**
+     * Same as update(client, nowNanos) with the counters of any transport
+     * @param lostCount: total number of messages dropped by the transport so far
+     * @param latencyCount: total number of messages whose latency was measured so far
+     * @param latencyTotalNanos: sum of their latencies
+     * @return true if the factor changed
+     */
+    public boolean update(long nowNanos, int queueDepth, int queueCapacity, long lostCount, long latencyCount, long latencyTotalNanos) {
+        if (!started) {
+            started = true;
+            startWindow(nowNanos, lostCount, latencyCount, latencyTotalNanos);
+            return false;
+        }
+        long elapsed = nowNanos - windowStart;
+        if (elapsed < windowNanos) return false;
+
+        inputRateHz = windowSamples * 1e9 / elapsed;
+        lastWindowLost = lostCount - previousLost;
+        long measured = latencyCount - previousLatencyCount;
+        lastWindowLatencyNanos = (measured == 0) ? 0 : (latencyTotalNanos - previousLatencyTotal) / measured;
+        lastWindowDepthPercent = (queueCapacity == 0) ? 0 : 100 * queueDepth / queueCapacity;
+        startWindow(nowNanos, lostCount, latencyCount, latencyTotalNanos);
+
+        String pressure = null;
+        if (lastWindowLost > 0) {
+            pressure = lastWindowLost + " messages lost";
+        } else if (lastWindowDepthPercent >= DEPTH_HIGH_PERCENT) {
+            pressure = "queue " + lastWindowDepthPercent + "% full";
+        } else if (lastWindowLatencyNanos >= latencyHighNanos) {
+            pressure = "latency " + lastWindowLatencyNanos / 1000000 + " ms";
+        }
+
+        if (pressure != null) {
+            healthyWindows = 0;
+            if (step == FACTORS.length - 1) return false;
+            step++;
+            decreaseCount++;
+            lastDecision = "1/" + FACTORS[step] + ": " + pressure;
+            return true;
+        }
+
+        boolean healthy = lastWindowDepthPercent <= DEPTH_LOW_PERCENT && lastWindowLatencyNanos <= latencyLowNanos;
+        healthyWindows = healthy ? healthyWindows + 1 : 0;
+        if (step > 0 && healthyWindows >= recoverWindows) {
+            healthyWindows = 0;
+            step--;
+            increaseCount++;
+            lastDecision = "1/" + FACTORS[step] + ": recovered";
+            return true;
+        }
+        return false;
+    }
+
+    private void startWindow(long nowNanos, long lostCount, long latencyCount, long latencyTotalNanos) {
+        windowStart = nowNanos;
+        windowSamples = 0;
+        previousLost = lostCount;
+        previousLatencyCount = latencyCount;
+        previousLatencyTotal = latencyTotalNanos;
+    }
+
+    /**
+     * One sample out of getFactor() is sent
+     */
+    public int getFactor() {
+        return FACTORS[step];
+    }
+
+    /**
+     * Rate of the samples given to onSample() during the last window
+     */
+    public double getInputRateHz() {
+        return inputRateHz;
+    }
+
+    public double getOutputRateHz() {
+        return inputRateHz / FACTORS[step];
+    }
+
+    /**
+     * Number of times the rate went down
+     */
+    public long getDecreaseCount() {
+        return decreaseCount;
+    }
+
+    /**
+     * Number of times the rate went up
+     */
+    public long getIncreaseCount() {
+        return increaseCount;
+    }
+
+    /**
+     * The last change of rate and its reason, e.g. "1/4: queue 62% full"
+     */
+    public String getLastDecision() {
+        return lastDecision;
+    }
+
+    public long getLastWindowLost() {
+        return lastWindowLost;
+    }
+
+    public long getLastWindowLatencyNanos() {
+        return lastWindowLatencyNanos;
+    }
+
+    public int getLastWindowDepthPercent() {
+        return lastWindowDepthPercent;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "rate %.1f/%.1f Hz (1/%d), last window: lost=%d depth=%d%% latency=%.1f ms, down=%d up=%d, last: %s",
+                getOutputRateHz(), inputRateHz, FACTORS[step], lastWindowLost, lastWindowDepthPercent,
+                lastWindowLatencyNanos / 1e6, decreaseCount, increaseCount, lastDecision);
+    }
+}
@@ -0,0 +1,298 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Bounded pool of preallocated direct buffers, with a FIFO of the buffers ready to be sent.
+ *
+ * A producer claims a free slot, encodes its payload directly into slot.buffer() and publishes it.
+ * The sender (the single thread of UdpClientSend) polls the oldest published slot, writes its buffer
+ * to the channel and releases it back to the pool. No payload is copied between the producer and the
+ * channel and no object is allocated per message.
+ * <pre>
+ *   SendQueue.Slot slot = queue.claim();
+ *   if (slot != null) {
+ *       slot.buffer().put(...);
+ *       queue.publish(slot);
+ *   }
+ * </pre>
+ * Any thread may claim and publish slots, but only one thread should poll them.
+ * The capacity counts every slot: queued ones, but also the ones being filled or sent.
+ */
+public class SendQueue {
+
+    /**
+     * What to do when a slot is claimed while every slot is already in use.
+     */
+    public enum OverflowPolicy {
+        DROP_OLDEST,    // reuse the oldest queued payload (keeps the stream as fresh as possible)
+        DROP_NEWEST,    // reject the new payload
+        BLOCK           // wait until the sender frees a slot
+    }
+
+    /**
+     * A pooled buffer. Between claim() and publish() (or cancel()) it belongs to the producer,
+     * between poll() and release() to the sender.
+     */
+    public static final class Slot {
+        private final ByteBuffer buffer;
+        private long publishedNanos;
+
+        private Slot(int size) {
+            buffer = ByteBuffer.allocateDirect(size);
+        }
+
+        /**
+         * The payload. After claim() it is cleared (position 0, limit = slot size),
+         * after poll() it is flipped (position 0, limit = payload length).
+         */
+        public ByteBuffer buffer() {
+            return buffer;
+        }
+
+        /**
+         * System.nanoTime() when the slot was published
+         */
+        public long getPublishedNanos() {
+            return publishedNanos;
+        }
+    }
+
+    private final Slot[] free;    // stack of the unused slots
+    private int freeCount;
+    private final Slot[] ready;   // ring of the published slots, oldest at head
+    private int head = 0;
+    private int count = 0;
+
+    private final int slotSize;
+    private final OverflowPolicy policy;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    private volatile boolean closed = false;
+
+    // counters are only written while holding the lock, but can be read from any thread
+    private volatile long enqueuedCount = 0;
+    private volatile long droppedCount = 0;
+
+
+    /**
+     * Class constructor
+     * @param capacity: number of slots in the pool
+     * @param slotSize: maximum size of a single payload in bytes
+     * @param policy: behaviour when every slot is in use
+     */
+    public SendQueue(int capacity, int slotSize, OverflowPolicy policy) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        if (slotSize <= 0) throw new IllegalArgumentException("slotSize must be positive: " + slotSize);
+        this.free = new Slot[capacity];
+        this.ready = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            free[i] = new Slot(slotSize);
+        }
+        this.freeCount = capacity;
+        this.slotSize = slotSize;
+        this.policy = policy;
+    }
+
+    /**
+     * Take a slot to encode a payload into.
+     * @return a cleared slot, or null if the payload has to be dropped (overflow policy) or if the queue is closed
+     */
+    public Slot claim() {
+        lock.lock();
+        try {
+            if (closed) return null;
+
+            Slot slot = null;
+            if (freeCount == 0) {
+                switch (policy) {
+                    case DROP_NEWEST:
+                        droppedCount++;
+                        return null;
+                    case DROP_OLDEST:
+                        if (count == 0) {
+                            // every slot is being filled or sent, nothing can be dropped
+                            droppedCount++;
+                            return null;
+                        }
+                        slot = ready[head];
+                        ready[head] = null;
+                        head = (head + 1) % ready.length;
+                        count--;
+                        droppedCount++;
+                        break;
+                    case BLOCK:
+                        while (freeCount == 0 && !closed) {
+                            notFull.awaitUninterruptibly();
+                        }
+                        if (closed) return null;
+                        break;
+                }
+            }
+            if (slot == null) {
+                slot = free[--freeCount];
+                free[freeCount] = null;
+            }
+            slot.buffer.clear();
+            return slot;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queue a claimed slot. The payload is slot.buffer()[0 .. position-1].
+     * @return false if the queue was closed meanwhile, the slot is then returned to the pool
+     */
+    public boolean publish(Slot slot) {
+        slot.buffer.flip();
+        lock.lock();
+        try {
+            if (closed) {
+                recycle(slot);
+                return false;
+            }
+            slot.publishedNanos = System.nanoTime();
+            ready[(head + count) % ready.length] = slot;
+            count++;
+            enqueuedCount++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return a claimed slot without sending it
+     */
+    public void cancel(Slot slot) {
+        release(slot);
+    }
+
+    /**
+     * Copy a payload into the queue, the caller can reuse src as soon as offer() returns.
+     * @param src: array holding the payload
+     * @param offset: index of the first byte of the payload
+     * @param length: number of bytes of the payload
+     * @return true if the payload was queued, false if it was dropped or if the queue is closed
+     */
+    public boolean offer(byte[] src, int offset, int length) {
+        if (length > slotSize) {
+            throw new IllegalArgumentException("payload of " + length + " bytes exceeds slot size of " + slotSize);
+        }
+        Slot slot = claim();
+        if (slot == null) return false;
+        slot.buffer.put(src, offset, length);
+        return publish(slot);
+    }
+
+    /**
+     * Remove the oldest published slot, waiting at most timeoutNanos for one to be available.
+     * The caller must release() it once the payload has been sent.
+     * @param timeoutNanos: maximum waiting time in nanoseconds. Use Long.MAX_VALUE to wait until a payload arrives.
+     * @return the slot, or null on timeout or when the queue is closed and empty
+     */
+    public Slot poll(long timeoutNanos) throws InterruptedException {
+        lock.lock();
+        try {
+            long nanos = timeoutNanos;
+            while (count == 0) {
+                if (closed || nanos <= 0) return null;
+                if (timeoutNanos == Long.MAX_VALUE) {
+                    notEmpty.await();
+                } else {
+                    nanos = notEmpty.awaitNanos(nanos);
+                }
+            }
+            Slot slot = ready[head];
+            ready[head] = null;
+            head = (head + 1) % ready.length;
+            count--;
+            return slot;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Same as poll(Long.MAX_VALUE)
+     */
+    public Slot take() throws InterruptedException {
+        return poll(Long.MAX_VALUE);
+    }
+
+    /**
+     * Give a polled slot back to the pool
+     */
+    public void release(Slot slot) {
+        lock.lock();
+        try {
+            recycle(slot);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wake up every waiting thread and refuse any further payload. Queued payloads can still be drained.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Number of published slots waiting for the sender
+     */
+    public int getDepth() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getCapacity() {
+        return free.length;
+    }
+
+    public int getSlotSize() {
+        return slotSize;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    public long getEnqueuedCount() {
+        return enqueuedCount;
+    }
+
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    // must hold the lock
+    private void recycle(Slot slot) {
+        free[freeCount++] = slot;
+        notFull.signal();
+    }
+}
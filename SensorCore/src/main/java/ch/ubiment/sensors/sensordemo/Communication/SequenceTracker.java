@@ -0,0 +1,195 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Receiver-side accounting of the sequence numbers sent by the phones ("sequence" of the IMU messages and frames,
+ * "Sequence" of the beacon messages): loss rate, reordering, duplicates and inter-arrival jitter, per device.
+ * Only depends on java.util, so it can be used by any JVM receiver.
+ * <pre>
+ *   SequenceTracker.Stream stream = tracker.onPacket(phoneId, sequence, sentNanos, System.nanoTime());
+ *   if (stream.getLossRate() > 0.01) ...
+ * </pre>
+ * Each device uses a constant amount of memory: duplicates and late packets are recognised within the last
+ * WINDOW sequence numbers with a bitmap, older packets are counted as late but can not be checked for duplicates.
+ *
+ * Sequence numbers are compared modulo 2^32, so the int sequence of the binary frames may wrap around.
+ * A jump backwards of more than RESTART_THRESHOLD is taken as a restart of the sender: the statistics continue,
+ * but the tracking starts again from the new sequence number.
+ *
+ * Not thread-safe: use one tracker per receiving thread.
+ */
+public class SequenceTracker {
+    public static final int WINDOW = 64;
+    public static final int RESTART_THRESHOLD = 1000;
+
+    /**
+     * State and statistics of the stream of one device
+     */
+    public static class Stream {
+        private boolean started = false;
+        private long highest;          // highest sequence number received
+        private long window;           // bit i set: highest - i was received
+        private long expected = 0;     // sequence numbers up to highest, since the first one
+        private long received = 0;     // packets received, duplicates excluded
+        private long duplicates = 0;
+        private long late = 0;         // packets received after a higher sequence number
+        private int maxReorderDepth = 0;
+        private long restarts = 0;
+
+        private boolean hasTransit = false;
+        private long lastTransit;
+        private double jitter = 0.0;   // RFC 3550 interarrival jitter, in the unit of the timestamps
+
+        private void onPacket(long sequence, long sentTime, long arrivalTime) {
+            updateJitter(sentTime, arrivalTime);
+            if (!started) {
+                restart(sequence);
+                return;
+            }
+
+            int delta = (int) (sequence - highest);
+            if (delta > 0) {
+                window = (delta >= WINDOW) ? 1L : (window << delta) | 1L;
+                highest = sequence;
+                expected += delta;
+                received++;
+            } else if (delta == 0) {
+                duplicates++;
+            } else if (delta < -RESTART_THRESHOLD) {
+                restarts++;
+                restart(sequence);
+            } else {
+                int depth = -delta;
+                if (depth < WINDOW) {
+                    long bit = 1L << depth;
+                    if ((window & bit) != 0) {
+                        duplicates++;
+                        return;
+                    }
+                    window |= bit;
+                }
+                received++;
+                late++;
+                if (depth > maxReorderDepth) maxReorderDepth = depth;
+            }
+        }
+
+        private void restart(long sequence) {
+            started = true;
+            highest = sequence;
+            window = 1L;
+            expected++;
+            received++;
+        }
+
+        private void updateJitter(long sentTime, long arrivalTime) {
+            long transit = arrivalTime - sentTime;
+            if (hasTransit) {
+                double d = Math.abs(transit - lastTransit);
+                jitter += (d - jitter) / 16.0;
+            }
+            lastTransit = transit;
+            hasTransit = true;
+        }
+
+        /**
+         * Number of distinct packets received
+         */
+        public long getReceivedCount() {
+            return received;
+        }
+
+        /**
+         * Number of packets the sender sent so far, according to the highest sequence number received
+         */
+        public long getExpectedCount() {
+            return expected;
+        }
+
+        /**
+         * Packets not received (yet): a late packet reduces this count when it arrives
+         */
+        public long getLostCount() {
+            return Math.max(0, expected - received);
+        }
+
+        public double getLossRate() {
+            return (expected == 0) ? 0.0 : getLostCount() / (double) expected;
+        }
+
+        public long getDuplicateCount() {
+            return duplicates;
+        }
+
+        /**
+         * Packets received after a packet with a higher sequence number
+         */
+        public long getLateCount() {
+            return late;
+        }
+
+        /**
+         * Largest distance between a late packet and the highest sequence number received before it
+         */
+        public int getMaxReorderDepth() {
+            return maxReorderDepth;
+        }
+
+        public long getRestartCount() {
+            return restarts;
+        }
+
+        public long getHighestSequence() {
+            return highest;
+        }
+
+        /**
+         * Smoothed variation of the transit time (RFC 3550, section 6.4.1), in the unit of the timestamps given to
+         * onPacket(). Clock offset between sender and receiver does not matter, only its drift.
+         */
+        public double getJitter() {
+            return jitter;
+        }
+
+        @Override
+        public String toString() {
+            return "received=" + received + " lost=" + getLostCount() + " (" + String.format("%.2f", 100 * getLossRate())
+                    + "%) duplicates=" + duplicates + " late=" + late + " maxReorderDepth=" + maxReorderDepth
+                    + " restarts=" + restarts + " jitter=" + String.format("%.1f", jitter);
+        }
+    }
+
+    private final Map<Object, Stream> streams = new HashMap<>();
+
+    /**
+     * Account a received packet.
+     * @param device: identifies the sender, e.g. the Phone_ID string or the device id hash of a binary frame
+     * @param sequence: sequence number of the packet
+     * @param sentTime: timestamp written by the sender (any unit, e.g. nanoseconds)
+     * @param arrivalTime: reception time in the same unit as sentTime
+     * @return the stream of the device
+     */
+    public Stream onPacket(Object device, long sequence, long sentTime, long arrivalTime) {
+        Stream stream = getStream(device);
+        stream.onPacket(sequence, sentTime, arrivalTime);
+        return stream;
+    }
+
+    /**
+     * @return the stream of the device, created if it was never seen
+     */
+    public Stream getStream(Object device) {
+        Stream stream = streams.get(device);
+        if (stream == null) {
+            stream = new Stream();
+            streams.put(device, stream);
+        }
+        return stream;
+    }
+
+    public Map<Object, Stream> getStreams() {
+        return streams;
+    }
+}
@@ -1,12 +1,5 @@
 package ch.ubiment.sensors.sensordemo.Communication;
 
-import android.os.SystemClock;
-import android.util.Log;
-
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-
 /*
  * Copyright (C) 2008 The Android Open Source Project
  *
@@ -23,9 +16,6 @@ import java.net.InetAddress;
  * limitations under the License.
  */
 
-import android.os.SystemClock;
-import android.util.Log;
-
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
@@ -36,16 +26,20 @@ import java.net.InetAddress;
  * Simple SNTP client class for retrieving network time.
  *
  * Sample usage:
- * <pre>SntpClient client = new SntpClient();
- * if (client.requestTime("time.foo.com")) {
- *     long now = client.getNtpTime() + SystemClock.elapsedRealtime() - client.getNtpTimeReference();
+ * <pre>SntpClient client = new SntpClient(clock, logger);
+ * if (client.requestTime("time.foo.com", 5000)) {
+ *     long now = client.now();
  * }
  * </pre>
+ * The reference ticks are taken from clock.elapsedRealtime(), SystemClock.elapsedRealtime() on Android.
  */
 public class SntpClient
 {
     private static final String TAG = "SntpClient";
 
+    private final Clock clock;
+    private final Logger logger;
+
     private static final int REFERENCE_TIME_OFFSET = 16;
     private static final int ORIGINATE_TIME_OFFSET = 24;
     private static final int RECEIVE_TIME_OFFSET = 32;
@@ -63,12 +57,20 @@ public class SntpClient
     // system time computed from NTP server response
     private long mNtpTime;
 
-    // value of SystemClock.elapsedRealtime() corresponding to mNtpTime
+    // value of clock.elapsedRealtime() corresponding to mNtpTime
     private long mNtpTimeReference;
 
     // round trip time in milliseconds
     private long mRoundTripTime;
 
+    public SntpClient() {
+        this(Clock.SYSTEM, Logger.SYSTEM);
+    }
+
+    public SntpClient(Clock clock, Logger logger) {
+        this.clock = clock;
+        this.logger = logger;
+    }
 
     /**
      * Sends an SNTP request to the given host and processes the response.
@@ -78,13 +80,20 @@ public class SntpClient
      * @return true if the transaction was successful.
      */
     public boolean requestTime(String host, int timeout) {
+        return requestTime(host, NTP_PORT, timeout);
+    }
+
+    /**
+     * Same as requestTime(host, timeout) with a server which does not listen on the standard NTP port
+     */
+    public boolean requestTime(String host, int port, int timeout) {
         DatagramSocket socket = null;
         try {
             socket = new DatagramSocket();
             socket.setSoTimeout(timeout);
             InetAddress address = InetAddress.getByName(host);
             byte[] buffer = new byte[NTP_PACKET_SIZE];
-            DatagramPacket request = new DatagramPacket(buffer, buffer.length, address, NTP_PORT);
+            DatagramPacket request = new DatagramPacket(buffer, buffer.length, address, port);
 
             // set mode = 3 (client) and version = 3
             // mode is in low 3 bits of first byte
@@ -92,8 +101,8 @@ public class SntpClient
             buffer[0] = NTP_MODE_CLIENT | (NTP_VERSION << 3);
 
             // get current time and write it to the request packet
-            long requestTime = System.currentTimeMillis();
-            long requestTicks = SystemClock.elapsedRealtime();
+            long requestTime = clock.currentTimeMillis();
+            long requestTicks = clock.elapsedRealtime();
             writeTimeStamp(buffer, TRANSMIT_TIME_OFFSET, requestTime);
 
             socket.send(request);
@@ -101,7 +110,7 @@ public class SntpClient
             // read the response
             DatagramPacket response = new DatagramPacket(buffer, buffer.length);
             socket.receive(response);
-            long responseTicks = SystemClock.elapsedRealtime();
+            long responseTicks = clock.elapsedRealtime();
             long responseTime = requestTime + (responseTicks - requestTicks);
 
             // extract the results
@@ -127,7 +136,7 @@ public class SntpClient
             mNtpTimeReference = responseTicks;
             mRoundTripTime = roundTripTime;
         } catch (Exception e) {
-            if (false) Log.d(TAG, "request time failed: " + e);
+            logger.d(TAG, "request time failed: " + e);
             return false;
         } finally {
             if (socket != null) {
@@ -143,7 +152,7 @@ public class SntpClient
      * @return
      */
     public long now(){
-        return mNtpTime + SystemClock.elapsedRealtime() - mNtpTimeReference;
+        return mNtpTime + clock.elapsedRealtime() - mNtpTimeReference;
     }
 
 
@@ -157,7 +166,7 @@ public class SntpClient
     }
 
     /**
-     * Returns the reference clock value (value of SystemClock.elapsedRealtime())
+     * Returns the reference clock value (value of clock.elapsedRealtime())
      * corresponding to the NTP time.
      *
      * @return reference clock corresponding to the NTP time.
@@ -0,0 +1,455 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+
+
+/**
+ * Lossless alternative to UdpClientSend for the recording sessions: the messages are sent over a persistent TCP
+ * connection, each one as a length-prefixed frame with a sequence number (see TcpFraming).
+ *
+ * The messages are queued in a SendQueue, like with UdpClientSend. The sender thread writes every frame available
+ * with a single gathering write (header and payload buffers, no copy), and keeps the pooled buffers until the
+ * server acknowledges them. When the connection breaks, it reconnects with the same session id and sends again
+ * everything after the last acknowledged sequence, so the server receives every message exactly once and in order.
+ *
+ * Nothing is lost as long as the unacknowledged messages fit in the queue: the capacity counts every slot,
+ * the ones waiting for an acknowledgment included. Beyond, the overflow policy applies (see getDroppedCount()).
+ * The default capacity holds more than a minute of IMU messages at 50 Hz.
+ */
+public class TcpClientSend implements MessageSender {
+    public static final int DEFAULT_QUEUE_CAPACITY = 4096;
+    public static final int DEFAULT_SLOT_SIZE = 1024;
+
+    private static final int MAX_GATHER = 64;                // frames per gathering write
+    private static final int CONNECT_TIMEOUT_MS = 3000;
+    private static final long RETRY_MIN_MS = 100;
+    private static final long RETRY_MAX_MS = 5000;
+    private static final long ACK_POLL_NANOS = 20000000L;    // release the acknowledged slots at least that often
+
+    private final String TAG = "TcpClientSend";
+    private final InetSocketAddress address;
+    private final Logger logger;
+    private final long sessionId;
+
+    private final SendQueue queue;
+    private final Thread senderThread;
+    private volatile boolean running = true;
+    private volatile SocketChannel channel = null;
+
+    // slots sent or to be sent, and not acknowledged yet. Only used by the sender thread.
+    // The sequence of inflight[(inflightHead + i) % length] is firstSequence + i
+    private final SendQueue.Slot[] inflight;
+    private final ByteBuffer[] headers;
+    private int inflightHead = 0;
+    private int inflightCount = 0;
+    private int firstSequence = 0;
+    private int unsent = 0;                   // index in the inflight ring of the first frame not written on this connection
+    private int highestWritten = -1;          // sequence, to count the retransmissions
+    private volatile int nextSequence = 0;    // sequence of the next slot taken from the queue
+    private final ByteBuffer[] gather = new ByteBuffer[2 * MAX_GATHER];
+
+    // written by the ack reader of the current connection
+    private volatile int acknowledged = 0;    // next sequence expected by the server
+
+    private volatile long sentCount = 0;
+    private volatile long errorCount = 0;
+    private volatile long connectionCount = 0;
+    private volatile long retransmittedCount = 0;
+
+    private final LatencyStats queueLatency = new LatencyStats();
+    private final LatencyStats writeLatency = new LatencyStats();
+
+    public TcpClientSend(final String ip, final int port, Logger logger) {
+        this(ip, port, DEFAULT_QUEUE_CAPACITY, DEFAULT_SLOT_SIZE, SendQueue.OverflowPolicy.DROP_NEWEST, logger);
+    }
+
+    /**
+     * Class constructor. The connection is opened by the sender thread, and opened again whenever it breaks.
+     * @param ip: address of the recording server
+     * @param port: TCP port of the server
+     * @param queueCapacity: number of pooled buffers, i.e. messages queued or waiting for an acknowledgment
+     * @param slotSize: maximum size of a message in bytes
+     * @param policy: what to do when the queue is full. DROP_NEWEST keeps the recording contiguous up to the gap.
+     * @param logger: receives the network errors
+     */
+    public TcpClientSend(final String ip, final int port, int queueCapacity, int slotSize, SendQueue.OverflowPolicy policy,
+                         Logger logger) {
+        this.address = new InetSocketAddress(ip, port);
+        this.logger = logger;
+        this.sessionId = new Random().nextLong();
+
+        queue = new SendQueue(queueCapacity, slotSize, policy);
+        inflight = new SendQueue.Slot[queueCapacity];
+        headers = new ByteBuffer[queueCapacity];
+        ByteBuffer headerPool = ByteBuffer.allocateDirect(queueCapacity * TcpFraming.FRAME_HEADER_SIZE);
+        for (int i = 0; i < queueCapacity; i++) {
+            headerPool.limit((i + 1) * TcpFraming.FRAME_HEADER_SIZE).position(i * TcpFraming.FRAME_HEADER_SIZE);
+            headers[i] = headerPool.slice().order(TcpFraming.BYTE_ORDER);
+        }
+
+        senderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, TAG + ":" + port);
+        senderThread.setDaemon(true);
+        senderThread.start();
+    }
+
+    @Override
+    public boolean send(byte[] buf, int offset, int length) {
+        return queue.offer(buf, offset, length);
+    }
+
+    @Override
+    public SendQueue.Slot claim() {
+        return queue.claim();
+    }
+
+    @Override
+    public boolean publish(SendQueue.Slot slot) {
+        return queue.publish(slot);
+    }
+
+    @Override
+    public void cancel(SendQueue.Slot slot) {
+        queue.cancel(slot);
+    }
+
+    /**
+     * Loop of the sender thread
+     */
+    private void drain() {
+        long retryMs = RETRY_MIN_MS;
+        while (running) {
+            SocketChannel ch = channel;
+            if (ch != null && !ch.isOpen()) {
+                // closed by the ack reader: the last frames may have been written into the broken connection
+                closeChannel();
+            }
+            if (channel == null) {
+                if (connect()) {
+                    retryMs = RETRY_MIN_MS;
+                } else {
+                    try {
+                        Thread.sleep(retryMs);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    retryMs = Math.min(2 * retryMs, RETRY_MAX_MS);
+                    continue;
+                }
+            }
+
+            releaseAcknowledged();
+            try {
+                // wait for a new message only if there is nothing left to write
+                if (!take(unsent < inflightCount ? 0 : ACK_POLL_NANOS)) {
+                    if (queue.isClosed() && queue.getDepth() == 0) break;
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (unsent < inflightCount) writePending();
+        }
+        closeChannel();
+    }
+
+    /**
+     * Move the published slots to the inflight ring
+     * @return false if no slot was published during timeoutNanos
+     */
+    private boolean take(long timeoutNanos) throws InterruptedException {
+        boolean taken = false;
+        long timeout = timeoutNanos;
+        while (inflightCount < inflight.length) {
+            SendQueue.Slot slot = queue.poll(timeout);
+            if (slot == null) break;
+            int index = (inflightHead + inflightCount) % inflight.length;
+            inflight[index] = slot;
+            ByteBuffer header = headers[index];
+            header.clear();
+            header.putInt(slot.buffer().remaining());
+            header.putInt(firstSequence + inflightCount);
+            inflightCount++;
+            nextSequence = firstSequence + inflightCount;
+            taken = true;
+            timeout = 0;
+        }
+        return taken;
+    }
+
+    /**
+     * Write the frames not written yet on this connection, MAX_GATHER at a time
+     */
+    private void writePending() {
+        SocketChannel ch = channel;
+        while (ch != null && unsent < inflightCount) {
+            int frames = Math.min(MAX_GATHER, inflightCount - unsent);
+            for (int i = 0; i < frames; i++) {
+                int index = (inflightHead + unsent + i) % inflight.length;
+                ByteBuffer header = headers[index];
+                header.position(0).limit(TcpFraming.FRAME_HEADER_SIZE);
+                ByteBuffer payload = inflight[index].buffer();
+                payload.position(0);
+                gather[2 * i] = header;
+                gather[2 * i + 1] = payload;
+            }
+            try {
+                long start = System.nanoTime();
+                int remaining = 2 * frames;
+                int offset = 0;
+                while (remaining > 0) {
+                    ch.write(gather, offset, remaining);
+                    while (remaining > 0 && !gather[offset].hasRemaining()) {
+                        offset++;
+                        remaining--;
+                    }
+                }
+                long now = System.nanoTime();
+                writeLatency.record(now - start);
+                for (int i = 0; i < frames; i++) {
+                    int sequence = firstSequence + unsent + i;
+                    if (sequence > highestWritten) {
+                        highestWritten = sequence;
+                        queueLatency.record(now - inflight[(inflightHead + unsent + i) % inflight.length].getPublishedNanos());
+                        sentCount++;
+                    } else {
+                        retransmittedCount++;
+                    }
+                }
+                unsent += frames;
+            } catch (IOException e) {
+                errorCount++;
+                if (running) logger.w(TAG, "send failed: " + e.getMessage());
+                closeChannel();
+                return;
+            } finally {
+                for (int i = 0; i < 2 * frames; i++) gather[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Give the acknowledged slots back to the queue
+     */
+    private void releaseAcknowledged() {
+        int ack = acknowledged;
+        while (inflightCount > 0 && ack - firstSequence > 0) {
+            queue.release(inflight[inflightHead]);
+            inflight[inflightHead] = null;
+            inflightHead = (inflightHead + 1) % inflight.length;
+            inflightCount--;
+            firstSequence++;
+            if (unsent > 0) unsent--;
+        }
+    }
+
+    /**
+     * Open the connection, say HELLO, and resume after the sequence given by the server
+     * @return false if the server can not be reached
+     */
+    private boolean connect() {
+        SocketChannel ch = null;
+        try {
+            ch = SocketChannel.open();
+            ch.socket().connect(address, CONNECT_TIMEOUT_MS);
+            if (ch.socket().getLocalSocketAddress().equals(ch.socket().getRemoteSocketAddress())) {
+                // nobody listens on a port of the ephemeral range: TCP simultaneous open connected the socket to itself
+                throw new IOException("connected to itself");
+            }
+            ch.socket().setTcpNoDelay(true);    // the frames are already gathered
+            ch.socket().setSoTimeout(CONNECT_TIMEOUT_MS);
+
+            ByteBuffer hello = ByteBuffer.allocate(TcpFraming.HELLO_SIZE);
+            TcpFraming.putHello(hello, sessionId);
+            hello.flip();
+            while (hello.hasRemaining()) ch.write(hello);
+
+            final InputStream in = ch.socket().getInputStream();
+            byte[] welcome = new byte[TcpFraming.WELCOME_SIZE];
+            TcpFraming.readFully(in, welcome, welcome.length);
+            int next = TcpFraming.getWelcome(ByteBuffer.wrap(welcome));
+            ch.socket().setSoTimeout(0);
+
+            if (next == TcpFraming.NEW_SESSION) {
+                next = firstSequence;
+            } else if (next - firstSequence < 0 || next - (firstSequence + inflightCount) > 0) {
+                throw new IOException("server resumes at " + next + ", the client holds " + firstSequence + ".."
+                        + (firstSequence + inflightCount - 1));
+            }
+            acknowledged = next;
+            releaseAcknowledged();
+            unsent = 0;
+
+            channel = ch;
+            final SocketChannel connected = ch;
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    readAcks(connected, in);
+                }
+            }, TAG + ":acks");
+            reader.setDaemon(true);
+            reader.start();
+
+            if (++connectionCount > 1) {
+                logger.d(TAG, "reconnected to " + address + ", resuming at " + next);
+            }
+            return true;
+        } catch (IOException e) {
+            errorCount++;
+            if (running) logger.w(TAG, "cannot connect to " + address + ": " + e.getMessage());
+            if (ch != null) {
+                try {
+                    ch.close();
+                } catch (IOException ignored) {
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Loop of the ack reader of one connection, ends with the connection
+     */
+    private void readAcks(SocketChannel ch, InputStream in) {
+        byte[] ack = new byte[TcpFraming.ACK_SIZE];
+        ByteBuffer view = ByteBuffer.wrap(ack).order(TcpFraming.BYTE_ORDER);
+        try {
+            while (true) {
+                TcpFraming.readFully(in, ack, ack.length);
+                int next = view.getInt(0);
+                // a late ack of a previous connection must not move the acknowledged sequence back
+                if (channel == ch && next - acknowledged > 0) acknowledged = next;
+            }
+        } catch (IOException e) {
+            if (running && channel == ch) logger.w(TAG, "connection lost: " + e.getMessage());
+        }
+        // the sender thread reconnects on its next write
+        try {
+            ch.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Wait until every queued message is acknowledged by the server
+     * @return false on timeout
+     */
+    public boolean awaitAcknowledged(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (queue.getDepth() > 0 || acknowledged != nextSequence) {
+            if (System.currentTimeMillis() > deadline) return false;
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        queue.close();
+        senderThread.interrupt();
+        closeChannel();
+    }
+
+    private void closeChannel() {
+        SocketChannel ch = channel;
+        channel = null;
+        if (ch == null) return;
+        try {
+            ch.close();
+        } catch (IOException e) {
+            logger.e(TAG, "cannot close the channel", e);
+        }
+    }
+
+    @Override
+    public long getEnqueuedCount() {
+        return queue.getEnqueuedCount();
+    }
+
+    /**
+     * Messages written once at least. They are delivered once acknowledged, see getUnacknowledgedCount().
+     */
+    @Override
+    public long getSentCount() {
+        return sentCount;
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return queue.getDroppedCount();
+    }
+
+    /**
+     * Failed connections and writes
+     */
+    @Override
+    public long getErrorCount() {
+        return errorCount;
+    }
+
+    /**
+     * Always 0: the writes block
+     */
+    @Override
+    public long getWouldBlockCount() {
+        return 0;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queue.getDepth();
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return queue.getCapacity();
+    }
+
+    /**
+     * Messages queued or sent, but not acknowledged yet
+     */
+    public int getUnacknowledgedCount() {
+        return queue.getDepth() + nextSequence - acknowledged;
+    }
+
+    /**
+     * Number of successful connections, the first one included
+     */
+    public long getConnectionCount() {
+        return connectionCount;
+    }
+
+    /**
+     * Messages written again after a reconnection
+     */
+    public long getRetransmittedCount() {
+        return retransmittedCount;
+    }
+
+    public boolean isConnected() {
+        return channel != null;
+    }
+
+    /**
+     * Time between publish() (or send()) and the first write of the message
+     */
+    @Override
+    public LatencyStats getQueueLatency() {
+        return queueLatency;
+    }
+
+    @Override
+    public LatencyStats getWriteLatency() {
+        return writeLatency;
+    }
+}
@@ -0,0 +1,97 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Protocol of the TCP recording stream (see TcpClientSend). All integers are little-endian, like the other frames.
+ * <pre>
+ *   client -> server, once per connection:
+ *     HELLO    magic 'T' (0x54), version, 2 reserved bytes, session id (long)          12 bytes
+ *   server -> client, reply to HELLO:
+ *     WELCOME  magic 'T', version, 2 reserved bytes, next sequence (int)                8 bytes
+ *   client -> server, then:
+ *     FRAME    length (int), sequence (int), payload
+ *   server -> client, at any time after WELCOME:
+ *     ACK      next sequence (int)                                                      4 bytes
+ * </pre>
+ * The session id is drawn by the client and kept across reconnections. The frames of a session are numbered
+ * from 0 without gaps. "next sequence" is the sequence of the first frame the server did not receive yet:
+ * every frame before it is acknowledged. In WELCOME, NEW_SESSION means that the server does not know the session,
+ * the client then sends again every frame it still holds.
+ *
+ * A server ignores a frame whose sequence was already received: after a reconnection, the client resends
+ * from the last acknowledged sequence, the server may have received a few of these frames already.
+ */
+public final class TcpFraming {
+    public static final byte MAGIC = 0x54;
+    public static final byte VERSION = 1;
+    public static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    public static final int HELLO_SIZE = 12;
+    public static final int WELCOME_SIZE = 8;
+    public static final int FRAME_HEADER_SIZE = 8;
+    public static final int ACK_SIZE = 4;
+
+    public static final int NEW_SESSION = -1;
+
+    private TcpFraming() {
+    }
+
+    public static void putHello(ByteBuffer dst, long sessionId) {
+        dst.order(BYTE_ORDER);
+        dst.put(MAGIC).put(VERSION).put((byte) 0).put((byte) 0);
+        dst.putLong(sessionId);
+    }
+
+    public static void putWelcome(ByteBuffer dst, int nextSequence) {
+        dst.order(BYTE_ORDER);
+        dst.put(MAGIC).put(VERSION).put((byte) 0).put((byte) 0);
+        dst.putInt(nextSequence);
+    }
+
+    /**
+     * @return the session id of a HELLO message
+     * @throws IOException if it is not a HELLO message
+     */
+    public static long getHello(ByteBuffer src) throws IOException {
+        src.order(BYTE_ORDER);
+        checkHeader(src);
+        return src.getLong();
+    }
+
+    /**
+     * @return the next sequence of a WELCOME message
+     * @throws IOException if it is not a WELCOME message
+     */
+    public static int getWelcome(ByteBuffer src) throws IOException {
+        src.order(BYTE_ORDER);
+        checkHeader(src);
+        return src.getInt();
+    }
+
+    private static void checkHeader(ByteBuffer src) throws IOException {
+        byte magic = src.get();
+        byte version = src.get();
+        src.get();
+        src.get();
+        if (magic != MAGIC) throw new IOException("not a recording stream, magic " + magic);
+        if (version != VERSION) throw new IOException("unsupported recording stream version " + version);
+    }
+
+    /**
+     * Read exactly length bytes into dst[0 .. length-1]
+     * @throws EOFException if the stream ends before
+     */
+    public static void readFully(InputStream in, byte[] dst, int length) throws IOException {
+        int n = 0;
+        while (n < length) {
+            int read = in.read(dst, n, length - n);
+            if (read < 0) throw new EOFException("stream closed after " + n + " of " + length + " bytes");
+            n += read;
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+
+
+
+/**
+ * Created by mambap on 01/06/17.
+ *
+ * Messages are put in a bounded SendQueue of direct buffers and sent by a single long-lived thread,
+ * so the sensor callbacks never block on the network and the datagrams leave in order.
+ * The DatagramChannel is connected once, so the destination is not resolved nor checked again for every datagram.
+ *
+ * Payloads can be encoded directly into a pooled buffer with claim() / publish(), or copied with send().
+ *
+ * With enableBatching(), the sender packs consecutive messages into a FrameBatch datagram which is flushed
+ * when the next message would not fit in the mtu or when the oldest batched message waited maxLatencyMs.
+ */
+
+public class UdpClientSend implements MessageSender {
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+    public static final int DEFAULT_SLOT_SIZE = 2048;
+
+    private volatile DatagramChannel channel = null;
+    private int port;
+    private String TAG="UdpClientSend";
+    private final Logger logger;
+
+    private final SendQueue queue;
+    private final Thread senderThread;
+    private volatile boolean running = true;
+
+    // batching is disabled while batchMtu == 0
+    private volatile int batchMtu = 0;
+    private volatile long batchMaxLatencyNanos = 0;
+
+    // only written by the sender thread
+    private volatile long sentCount = 0;      // messages
+    private volatile long datagramCount = 0;  // differs from sentCount when batching
+    private volatile long errorCount = 0;
+    private volatile long wouldBlockCount = 0;
+
+    // publish() to end of the write, and duration of the write alone
+    private final LatencyStats queueLatency = new LatencyStats();
+    private final LatencyStats writeLatency = new LatencyStats();
+
+    public UdpClientSend(final String ip, final int port) {
+        this(ip, port, Logger.SYSTEM);
+    }
+
+    public UdpClientSend(final String ip, final int port, Logger logger) {
+        this(ip, port, DEFAULT_QUEUE_CAPACITY, DEFAULT_SLOT_SIZE, SendQueue.OverflowPolicy.DROP_OLDEST, logger);
+    }
+
+    public UdpClientSend(final String ip, final int port, int queueCapacity, int slotSize, SendQueue.OverflowPolicy policy) {
+        this(ip, port, queueCapacity, slotSize, policy, Logger.SYSTEM);
+    }
+
+    /**
+     * Class constructor
+     * @param ip: address of the receiver
+     * @param port: UDP port of the receiver
+     * @param queueCapacity: number of pooled buffers, i.e. datagrams waiting to be sent before the overflow policy applies
+     * @param slotSize: maximum size of a datagram in bytes
+     * @param policy: what to do when the queue is full
+     * @param logger: receives the network errors
+     */
+    public UdpClientSend(final String ip, final int port, int queueCapacity, int slotSize, SendQueue.OverflowPolicy policy,
+                         Logger logger) {
+        this.port = port;
+        this.logger = logger;
+        try {
+            // connect() binds any local port: binding the destination port prevents running a receiver on the same host
+            channel = DatagramChannel.open();
+            channel.connect(new InetSocketAddress(ip, port));
+        } catch (IOException e) {
+            logger.e(TAG, "cannot open the channel to " + ip + ":" + port, e);
+            closeChannel();
+        }
+
+        queue = new SendQueue(queueCapacity, slotSize, policy);
+        senderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, TAG + ":" + port);
+        senderThread.setDaemon(true);
+        senderThread.start();
+    }
+
+    /**
+     * Queue a message. Returns immediately, the actual sending happens on the sender thread.
+     */
+    public void send(final String message) throws IOException {
+        byte[] buf = message.getBytes(StandardCharsets.UTF_8);
+        send(buf, 0, buf.length);
+    }
+
+    /**
+     * Queue a payload. The bytes are copied, so buf can be reused as soon as this method returns.
+     * @return false if the payload was dropped by the overflow policy or if the client is closed
+     */
+    @Override
+    public boolean send(byte[] buf, int offset, int length) {
+        return queue.offer(buf, offset, length);
+    }
+
+    /**
+     * Take a pooled buffer to encode a payload into, without any copy:
+     * <pre>
+     *   SendQueue.Slot slot = udpClient.claim();
+     *   if (slot != null) {
+     *       encoder.encode(slot.buffer(), ...);
+     *       udpClient.publish(slot);
+     *   }
+     * </pre>
+     * @return null if the payload has to be dropped (overflow policy) or if the client is closed
+     */
+    @Override
+    public SendQueue.Slot claim() {
+        return queue.claim();
+    }
+
+    /**
+     * Queue a claimed slot, its payload is slot.buffer()[0 .. position-1]
+     */
+    @Override
+    public boolean publish(SendQueue.Slot slot) {
+        return queue.publish(slot);
+    }
+
+    /**
+     * Give back a claimed slot without sending it
+     */
+    @Override
+    public void cancel(SendQueue.Slot slot) {
+        queue.cancel(slot);
+    }
+
+    /**
+     * Pack several messages per datagram.
+     * @param mtu: maximum datagram size in bytes (1472 fits in one ethernet frame). Must be larger than the messages.
+     * @param maxLatencyMs: maximum time a message waits in a partially filled batch
+     */
+    public void enableBatching(int mtu, long maxLatencyMs) {
+        batchMaxLatencyNanos = maxLatencyMs * 1000000L;
+        batchMtu = mtu;
+    }
+
+    public void disableBatching() {
+        batchMtu = 0;
+    }
+
+    /**
+     * In non-blocking mode, a datagram which does not fit in the socket send buffer is dropped
+     * (see getWouldBlockCount()) instead of stalling the sender thread.
+     */
+    public void setNonBlocking(boolean nonBlocking) {
+        DatagramChannel ch = channel;
+        if (ch == null) return;
+        try {
+            ch.configureBlocking(!nonBlocking);
+        } catch (IOException e) {
+            logger.w(TAG, "cannot change blocking mode: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Loop of the sender thread: the pooled buffers are written as they are, the batch is wrapped once.
+     */
+    private void drain() {
+        FrameBatch batch = null;
+        ByteBuffer batchView = null;
+        long[] batchPublishedNanos = null;  // publish time of every message of the batch, for the latency
+        long batchDeadline = 0;
+
+        while (running) {
+            int mtu = batchMtu;
+            if (batch != null && batch.getMtu() != mtu) {
+                // batching was reconfigured or disabled
+                flush(batch, batchView, batchPublishedNanos);
+                batch = null;
+            }
+            if (batch == null && mtu > 0) {
+                batch = new FrameBatch(mtu);
+                batchView = ByteBuffer.wrap(batch.buffer());
+                batchPublishedNanos = new long[mtu / FrameBatch.FRAME_HEADER_SIZE];
+            }
+
+            long timeout = Long.MAX_VALUE;
+            if (batch != null && !batch.isEmpty()) {
+                timeout = batchDeadline - System.nanoTime();
+            }
+
+            SendQueue.Slot slot;
+            try {
+                slot = queue.poll(timeout);
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            if (slot == null) {
+                // deadline reached, or queue closed
+                if (batch != null) flush(batch, batchView, batchPublishedNanos);
+                if (queue.isClosed()) break;
+                continue;
+            }
+
+            if (batch == null && batchMtu > 0) {
+                // batching was enabled while waiting for this message
+                batch = new FrameBatch(batchMtu);
+                batchView = ByteBuffer.wrap(batch.buffer());
+                batchPublishedNanos = new long[batch.getMtu() / FrameBatch.FRAME_HEADER_SIZE];
+            }
+
+            ByteBuffer payload = slot.buffer();
+            if (batch == null || !batch.accepts(payload.remaining())) {
+                // too large to be batched: keep the order of the messages
+                if (batch != null) flush(batch, batchView, batchPublishedNanos);
+                if (write(payload, 1)) {
+                    queueLatency.record(System.nanoTime() - slot.getPublishedNanos());
+                }
+                queue.release(slot);
+                continue;
+            }
+            if (!batch.append(payload)) {
+                flush(batch, batchView, batchPublishedNanos);
+                batch.append(payload);
+            }
+            batchPublishedNanos[batch.count() - 1] = slot.getPublishedNanos();
+            queue.release(slot);
+            if (batch.count() == 1) {
+                batchDeadline = System.nanoTime() + batchMaxLatencyNanos;
+            }
+            if (System.nanoTime() - batchDeadline >= 0) {
+                // with a backlog the poll never times out
+                flush(batch, batchView, batchPublishedNanos);
+            }
+        }
+    }
+
+    private void flush(FrameBatch batch, ByteBuffer batchView, long[] publishedNanos) {
+        if (batch.isEmpty()) return;
+        batchView.limit(batch.size()).position(0);
+        if (write(batchView, batch.count())) {
+            long now = System.nanoTime();
+            for (int i = 0; i < batch.count(); i++) {
+                queueLatency.record(now - publishedNanos[i]);
+            }
+        }
+        batch.clear();
+    }
+
+    /**
+     * @return true if the datagram was sent
+     */
+    private boolean write(ByteBuffer datagram, int messages) {
+        DatagramChannel ch = channel;
+        if (ch == null) {
+            errorCount += messages;
+            return false;
+        }
+        try {
+            long start = System.nanoTime();
+            int written = ch.write(datagram);
+            writeLatency.record(System.nanoTime() - start);
+            if (written == 0 && datagram.hasRemaining()) {
+                // non-blocking mode and the socket buffer is full
+                wouldBlockCount += messages;
+                return false;
+            }
+            sentCount += messages;
+            datagramCount++;
+            return true;
+        } catch (IOException e) {
+            // also PortUnreachableException when nobody listens on a connected port: the next datagrams may succeed
+            errorCount += messages;
+            if (running) logger.w(TAG, "send failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Refuse any further message, send the queued ones (and the pending batch), then close.
+     * close() drops the messages still queued, which cuts the end of a recording or of a replay.
+     * @param timeoutMs: maximum time to wait for the sender thread, the remaining messages are then dropped
+     * @return true if every queued message was written (or failed) before the timeout
+     */
+    public boolean drainAndClose(long timeoutMs) {
+        // the sender thread polls the remaining slots of a closed queue and stops once it is empty
+        queue.close();
+        boolean drained;
+        try {
+            senderThread.join(timeoutMs);
+            drained = !senderThread.isAlive();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            drained = false;
+        }
+        close();
+        return drained;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        queue.close();
+        senderThread.interrupt();
+        closeChannel();
+    }
+
+    private void closeChannel() {
+        DatagramChannel ch = channel;
+        channel = null;
+        if (ch == null) return;
+        try {
+            ch.close();
+        } catch (IOException e) {
+            logger.e(TAG, "cannot close the channel", e);
+        }
+    }
+
+    @Override
+    public long getEnqueuedCount() {
+        return queue.getEnqueuedCount();
+    }
+
+    @Override
+    public long getSentCount() {
+        return sentCount;
+    }
+
+    public long getDatagramCount() {
+        return datagramCount;
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return queue.getDroppedCount();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errorCount;
+    }
+
+    /**
+     * Messages dropped because the socket buffer was full in non-blocking mode
+     */
+    @Override
+    public long getWouldBlockCount() {
+        return wouldBlockCount;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queue.getDepth();
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return queue.getCapacity();
+    }
+
+    /**
+     * Time between publish() (or send()) and the end of the write of the datagram carrying the message
+     */
+    @Override
+    public LatencyStats getQueueLatency() {
+        return queueLatency;
+    }
+
+    /**
+     * Duration of the channel writes
+     */
+    @Override
+    public LatencyStats getWriteLatency() {
+        return writeLatency;
+    }
+
+}
+
+
+
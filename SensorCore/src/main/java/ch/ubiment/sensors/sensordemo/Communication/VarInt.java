@@ -0,0 +1,42 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Variable length integers of the delta frames (ImuDeltaSerializer, BeaconDeltaSerializer): 7 bits per byte,
+ * least significant group first, the high bit set on every byte but the last. Signed values are zigzag encoded
+ * first (0, -1, 1, -2, ... become 0, 1, 2, 3, ...) so that small negative deltas are short too.
+ */
+public final class VarInt {
+
+    private VarInt() {
+    }
+
+    public static void putUnsigned(ByteBuffer dst, long value) {
+        while ((value & ~0x7FL) != 0) {
+            dst.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        dst.put((byte) value);
+    }
+
+    public static long getUnsigned(ByteBuffer src) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = src.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new BufferUnderflowException();
+    }
+
+    public static void putSigned(ByteBuffer dst, long value) {
+        putUnsigned(dst, (value << 1) ^ (value >> 63));
+    }
+
+    public static long getSigned(ByteBuffer src) {
+        long zigzag = getUnsigned(src);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+}
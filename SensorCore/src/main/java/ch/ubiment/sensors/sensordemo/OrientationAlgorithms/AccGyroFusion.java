@@ -1,16 +1,25 @@
 package ch.ubiment.sensors.sensordemo.OrientationAlgorithms;
 
-import android.util.Log;
-
 import ch.ubiment.sensors.sensordemo.Algebra.Quaternion;
-
+import ch.ubiment.sensors.sensordemo.Algebra.QuaternionOperator;
+import ch.ubiment.sensors.sensordemo.Communication.Logger;
+
+/**
+ * Fusion of the accelerometer and the gyroscope: the gyroscope is integrated, and the orientation is slowly
+ * corrected towards the mean acceleration while the device is steady.
+ *
+ * update() runs for every sample and does not allocate: the orientation is kept in a double[4] {x, y, z, w} and
+ * updated in place (see Algebra/QuaternionOperator). Not thread-safe.
+ */
 public class AccGyroFusion {
 
-    private String TAG = this.toString();
+    private String TAG = "AccGyroFusion";
+    private final Logger logger;
+
     /**
      * The Quaternions that contain the current rotation (Angle and axis in Quaternion format) of the Gyroscope
      */
-    private Quaternion relativeOrientationQuaternion = new Quaternion();
+    private final double[] relativeOrientationQuaternion = {0, 0, 0, 1};
 
     /**
      * The time-stamp being used to record the time when the last gyroscope event occurred.
@@ -64,6 +73,22 @@ public class AccGyroFusion {
     private float[][] acc_buffer = new float[ACCELERATION_BUFFER_SIZE][3];
     private int acc_buffer_index = -1;
 
+    // scratch arrays of update(), so that it does not allocate
+    private final float[] vecA = new float[3];
+    private final float[] vecB = new float[3];
+    private final double[] qDelta = new double[4];
+
+    public AccGyroFusion() {
+        this(Logger.SYSTEM);
+    }
+
+    /**
+     * @param logger: receives the warnings about values out of range
+     */
+    public AccGyroFusion(Logger logger) {
+        this.logger = logger;
+    }
+
     /**
      * This is an arc cosinus function. Use it if you are unsure that your value is in [-1, 1]
      * @param val the value which might be out of [-1, 1]
@@ -79,7 +104,7 @@ public class AccGyroFusion {
      * @return the arc cosinus of val after clippling val in [-1, 1]
      */
     private double safe_acos(double val){
-        if (Math.abs(val) > 1.01) Log.w(TAG, "EG: Math.acos(" + val + "): Is that what you want?");
+        if (Math.abs(val) > 1.01) logger.w(TAG, "EG: Math.acos(" + val + "): Is that what you want?");
         return Math.acos(Math.max(-1.0, Math.min(1.0, val)));
     }
 
@@ -92,66 +117,20 @@ public class AccGyroFusion {
         return out;
     }
 
-    /**
-     * cross product (vectorial product) of two len-3 array
-     * @param u
-     * @param v
-     * @return
-     */
-    private double[] crossProduct_f2d(float[] u, float[] v){
-        double[] out = {
-                (double)(u[1]*v[2] - u[2]*v[1]),
-                (double)(u[2]*v[0] - u[0]*v[2]),
-                (double)(u[0]*v[1] - u[1]*v[0])
-        };
-        return out;
-    }
-
     /**
      * Divide input vector by its norm. The new norm will be 1.
      * @param v the vector to normalize
-     * @return a vector of same direction as input vector, with unit-norm
+     * @param out receives a vector of same direction as input vector, with unit-norm (zeros if v is null)
      */
-    private float[] normalized(float[] v){
+    private void normalized(float[] v, float[] out){
         int L = v.length;
         float norm = 0;
         for (int k=0; k<L; k++){
             norm += v[k]*v[k];
         }
         norm = (float)Math.sqrt(norm);
-        if (norm == 0){
-            float[] out = new float[L];
-            return out;
-        }else{
-            float[] out = new float[L];
-            for (int k=0; k<L; k++){
-                out[k] = v[k]/norm;
-            }
-            return out;
-        }
-    }
-
-    /**
-     * Divide input vector by its norm. The new norm will be 1.
-     * @param v the vector to normalize
-     * @return a vector of same direction as input vector, with unit-norm
-     */
-    private double[] normalized(double[] v){
-        int L = v.length;
-        double norm = 0;
         for (int k=0; k<L; k++){
-            norm += v[k]*v[k];
-        }
-        norm = Math.sqrt(norm);
-        if (norm == 0){
-            double[] out = {0,0,0};
-            return out;
-        }else{
-            double[] out = new double[L];
-            for (int k=0; k<L; k++){
-                out[k] = v[k]/norm;
-            }
-            return out;
+            out[k] = (norm == 0) ? 0 : v[k]/norm;
         }
     }
 
@@ -160,21 +139,20 @@ public class AccGyroFusion {
      * @param acceleration
      * @param angularRate_xyz rate around local x, y, z axis in rad/s (as given by the gyroscope)
      * @param new_angular_ts timestamp in second
-     * @return
      */
-    public Quaternion update(float[] acceleration, float[] angularRate_xyz, float new_angular_ts){
+    public void update(float[] acceleration, float[] angularRate_xyz, float new_angular_ts){
 
         if (!positionInitialised) {
             // INIT ORIENTATIONS
-            float[] world_up = normalized(acceleration);
+            float[] world_up = vecA;
+            normalized(acceleration, world_up);
 
             // The angle of rotation is acos( d ), where d is the dot product of world_up and {0,0,1} (both normalized).
             double radian = safe_acos((double)world_up[2]); // world_up[2] is the dot product of <world_up, {0,0,1}>
             // the rotation axis is the cross product: ( world_up x {0,0,1} )
-            double[] rotation_axis = {world_up[1], -world_up[0], 0};
-
             // computes the quaternion aligning orientation to world_up
-            relativeOrientationQuaternion = (new Quaternion(radian, rotation_axis)).normalized();
+            QuaternionOperator.setFromAxisAngle(relativeOrientationQuaternion, radian, world_up[1], -world_up[0], 0);
+            QuaternionOperator.normalize(relativeOrientationQuaternion);
 
             positionInitialised = true;
 
@@ -188,7 +166,7 @@ public class AccGyroFusion {
             acc_avg[0] = acceleration[0];
             acc_avg[1] = acceleration[1];
             acc_avg[2] = acceleration[2];
-            return relativeOrientationQuaternion.copy();
+            return;
         }
 
 
@@ -212,21 +190,40 @@ public class AccGyroFusion {
         // update relative orientation with gyroscope
         float prev_angular_ts = angular_ts;
         angular_ts = new_angular_ts;
-        relativeOrientationQuaternion = compute_orientation_from_angular_velocity(relativeOrientationQuaternion, angularRate_xyz, angular_ts, prev_angular_ts);
+        compute_orientation_from_angular_velocity(relativeOrientationQuaternion, angularRate_xyz, angular_ts, prev_angular_ts);
 
         // ------------------------------ COMPUTE DELTA ORIENTATION ------------------------:
         //// the delta quaternion qDelta is the smallest quaternion rotating the world_up vector to acc_avg vector
-        float[] vecA = relativeOrientationQuaternion.getUpVectorFloat();
-        float[] vecB = normalized(acc_avg);
+        QuaternionOperator.getUpVector(relativeOrientationQuaternion, vecA);
+        normalized(acc_avg, vecB);
         float dot = dotProduct(vecA, vecB);
         double alpha = safe_acos((double)dot);  // angle between gravity and acc_avg
-        double[] axis = normalized(crossProduct_f2d(vecB, vecA));  // TODO: this axis could be chosen non-horizontally to correct the heading error?
+        // the axis is the cross product vecB x vecA, normalized by setFromAxisAngle
+        // TODO: this axis could be chosen non-horizontally to correct the heading error?
+        double axisX = vecB[1]*vecA[2] - vecB[2]*vecA[1];
+        double axisY = vecB[2]*vecA[0] - vecB[0]*vecA[2];
+        double axisZ = vecB[0]*vecA[1] - vecB[1]*vecA[0];
 
-        float t = compute_update_weight();
+        float t = compute_update_weight(vecB);
 
-        Quaternion qDelta = new Quaternion(alpha*t, axis);
-        relativeOrientationQuaternion = relativeOrientationQuaternion.times(qDelta);
-        return relativeOrientationQuaternion;
+        QuaternionOperator.setFromAxisAngle(qDelta, alpha*t, axisX, axisY, axisZ);
+        QuaternionOperator.multiply(relativeOrientationQuaternion, qDelta, relativeOrientationQuaternion);
+    }
+
+    /**
+     * Current orientation
+     * @param out: len-4 array receiving {qx, qy, qz, qw}
+     */
+    public void getOrientationXYZW(float[] out) {
+        QuaternionOperator.getFloatArrayXYZW(relativeOrientationQuaternion, out);
+    }
+
+    /**
+     * Current orientation, as a new Quaternion
+     */
+    public Quaternion getOrientation() {
+        double[] q = relativeOrientationQuaternion;
+        return new Quaternion(q[0], q[1], q[2], q[3]);
     }
 
 
@@ -235,17 +232,21 @@ public class AccGyroFusion {
      * The returned weight t lays in interval [0, 1].
      * The higher the weight, the higher will be the correction.
      * To have a weight of 1, all sensors (angular rate and acceleration) must be 0 for the entire the buffer
+     * @param acc_avg_normalized: acc_avg, normalized
      * @return a weight in interval [0, 1]
      */
-    private float compute_update_weight(){
+    private float compute_update_weight(float[] acc_avg_normalized){
         float lower_dot = 1;
         float dot;
-        float[] acc_avg_normalized = normalized(acc_avg);
-        System.out.println(TAG + ": acc_avg_normalized: " + acc_avg_normalized[0] + ", " + acc_avg_normalized[1] + ", " + acc_avg_normalized[2]);
         for (int i=0; i<ACCELERATION_BUFFER_SIZE; i++) {
-            float[] acc_normalized = {acc_buffer[i][0], acc_buffer[i][1], acc_buffer[i][2]};
-            acc_normalized = normalized(acc_normalized);
-            dot = dotProduct(acc_avg_normalized, acc_normalized);
+            float[] acc = acc_buffer[i];
+            float norm = (float) Math.sqrt(acc[0]*acc[0] + acc[1]*acc[1] + acc[2]*acc[2]);
+            if (norm == 0) {
+                dot = 0;
+            } else {
+                dot = acc_avg_normalized[0]*(acc[0]/norm) + acc_avg_normalized[1]*(acc[1]/norm)
+                        + acc_avg_normalized[2]*(acc[2]/norm);
+            }
             //Log.d(TAG, "\t\tdot: " + dot);
             if (lower_dot > dot){
                 lower_dot = dot;
@@ -262,7 +263,7 @@ public class AccGyroFusion {
         } else {
             t = 1.0f / (1.0f + max_deviation*max_deviation * ACCELERATION_ERROR_GAIN);
         }
-        Log.d(TAG, "max_deviation: " + max_deviation + "\tt: " + t);
+        //Log.d(TAG, "max_deviation: " + max_deviation + "\tt: " + t);
         return t;
     }
 
@@ -270,12 +271,14 @@ public class AccGyroFusion {
     /**
      * integrates the ouptut of gyroscope [rad/s] over time to calculate a rotation [rad] describing the change of angles over the time step
      * original code: https://developer.android.com/reference/android/hardware/SensorEvent#values
+     * @param orientation: updated in place
      */
-    private Quaternion compute_orientation_from_angular_velocity(Quaternion orientation0, float[] angularVelocity_xyz, float angular_ts, float angular_ts_prev) {
+    private void compute_orientation_from_angular_velocity(double[] orientation, float[] angularVelocity_xyz, float angular_ts, float angular_ts_prev) {
         // This timestep's delta rotation to be multiplied by the current rotation
         // after computing it from the gyro sample data.
         if (angular_ts_prev == 0) {
-            return orientation0.normalized();
+            QuaternionOperator.normalize(orientation);
+            return;
         }
 
         final double dT = (angular_ts - angular_ts_prev);
@@ -303,13 +306,13 @@ public class AccGyroFusion {
         double sinThetaOverTwo = Math.sin(thetaOverTwo);
         double cosThetaOverTwo = Math.cos(thetaOverTwo);
 
-        Quaternion deltaRotationQuat = new Quaternion(
+        QuaternionOperator.set(qDelta,
                 sinThetaOverTwo * axisX,
                 sinThetaOverTwo * axisY,
                 sinThetaOverTwo * axisZ,
                 cosThetaOverTwo);
-        Quaternion orientation1 = (orientation0.times(deltaRotationQuat)).normalized();
-        return orientation1;
+        QuaternionOperator.multiply(orientation, qDelta, orientation);
+        QuaternionOperator.normalize(orientation);
     }
 
 }
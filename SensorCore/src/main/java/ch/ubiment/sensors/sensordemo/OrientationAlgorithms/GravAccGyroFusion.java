@@ -1,22 +1,31 @@
 package ch.ubiment.sensors.sensordemo.OrientationAlgorithms;
 
-import android.hardware.SensorManager;
-import android.util.Log;
-
 import ch.ubiment.sensors.sensordemo.Algebra.Quaternion;
-
+import ch.ubiment.sensors.sensordemo.Algebra.QuaternionOperator;
+import ch.ubiment.sensors.sensordemo.Communication.Logger;
+
+/**
+ * Fusion of the gravity, the accelerometer and the gyroscope: the gyroscope is integrated, and the orientation is
+ * slowly pulled towards the one given by the gravity, corrected by the bias between the gravity and the mean
+ * acceleration while the device is steady.
+ *
+ * update() runs for every sample and does not allocate: the quaternions are kept in double[4] {x, y, z, w} and
+ * updated in place (see Algebra/QuaternionOperator). Not thread-safe.
+ */
 public class GravAccGyroFusion {
 
-    private String TAG = this.toString();
+    private String TAG = "GravAccGyroFusion";
+    private final Logger logger;
+
     /**
      * The Quaternions that contain the current rotation (Angle and axis in Quaternion format) of the Gyroscope
      */
-    private Quaternion relativeOrientationQuaternion = new Quaternion();
+    private final double[] relativeOrientationQuaternion = {0, 0, 0, 1};
 
     /**
      * The quaternion that contains the absolute orientation as obtained by the rotationVector sensor.
      */
-    private Quaternion absoluteOrientationQuaternion = new Quaternion();
+    private final double[] absoluteOrientationQuaternion = {0, 0, 0, 1};
 
     /**
      * The time-stamp being used to record the time when the last gyroscope event occurred.
@@ -65,18 +74,37 @@ public class GravAccGyroFusion {
 
 
 
-    private Quaternion gravity_bias = new Quaternion();
+    private final double[] gravity_bias = {0, 0, 0, 1};
     private float[] acc_avg = new float[3];
     private float[][] acc_buffer = new float[ACCELERATION_BUFFER_SIZE][3];
     private int acc_buffer_index = -1;
 
+    // scratch arrays of update(), so that it does not allocate
+    private final float[] world_up = new float[3];
+    private final float[] vecB = new float[3];
+    private final float[] north_vector = new float[3];
+    private final float[] Rf = new float[9];
+    private final double[] new_gravity_bias = new double[4];
+    private final double[] qDelta = new double[4];
+
+    public GravAccGyroFusion() {
+        this(Logger.SYSTEM);
+    }
+
+    /**
+     * @param logger: receives the warnings about values out of range
+     */
+    public GravAccGyroFusion(Logger logger) {
+        this.logger = logger;
+    }
+
 
     private float safe_acos(float val){
         return (float) safe_acos((double) val);
     }
 
     private double safe_acos(double val){
-        if (Math.abs(val) > 1.01) Log.w(TAG, "EG: Math.acos(" + val + "): Is that what you want?");
+        if (Math.abs(val) > 1.01) logger.w(TAG, "EG: Math.acos(" + val + "): Is that what you want?");
         return Math.acos(Math.max(-1.0, Math.min(1.0, val)));
     }
 
@@ -90,54 +118,17 @@ public class GravAccGyroFusion {
     }
 
     /**
-     * cross product (vectorial product) of two len-3 array
-     * @param u
-     * @param v
-     * @return
+     * out = v / |v|, zeros if v is null. out can be v.
      */
-    private double[] crossProduct_f2d(float[] u, float[] v){
-        double[] out = {
-                (double)(u[1]*v[2] - u[2]*v[1]),
-                (double)(u[2]*v[0] - u[0]*v[2]),
-                (double)(u[0]*v[1] - u[1]*v[0])
-        };
-        return out;
-    }
-
-    private float[] normalized(float[] v){
+    private void normalized(float[] v, float[] out){
         int L = v.length;
         float norm = 0;
         for (int k=0; k<L; k++){
             norm += v[k]*v[k];
         }
         norm = (float)Math.sqrt(norm);
-        if (norm == 0){
-            float[] out = new float[L];
-            return out;
-        }else{
-            float[] out = new float[L];
-            for (int k=0; k<L; k++){
-                out[k] = v[k]/norm;
-            }
-            return out;
-        }
-    }
-    private double[] normalized(double[] v){
-        int L = v.length;
-        double norm = 0;
         for (int k=0; k<L; k++){
-            norm += v[k]*v[k];
-        }
-        norm = Math.sqrt(norm);
-        if (norm == 0){
-            double[] out = {0,0,0};
-            return out;
-        }else{
-            double[] out = new double[L];
-            for (int k=0; k<L; k++){
-                out[k] = v[k]/norm;
-            }
-            return out;
+            out[k] = (norm == 0) ? 0 : v[k]/norm;
         }
     }
 
@@ -146,13 +137,12 @@ public class GravAccGyroFusion {
      *
      * @param angularRate_xyz rate around local x, y, z axis in rad/s (as given by the gyroscope)
      * @param new_angular_ts timestamp in second
-     * @return
      */
-    public Quaternion update(float[] gravity, float[] acceleration, float[] angularRate_xyz, float new_angular_ts){
+    public void update(float[] gravity, float[] acceleration, float[] angularRate_xyz, float new_angular_ts){
         // update absolute orientation
 
         // TODO: could we replace gravity by relativeOrientation.up_vector() ?
-        float[] world_up = normalized(gravity);
+        normalized(gravity, world_up);
         //world_up[0] *= -1;
         //world_up[1] *= -1;
         //world_up[2] *= -1;
@@ -165,11 +155,10 @@ public class GravAccGyroFusion {
             // The angle of rotation is acos( d ), where d is the dot product of world_up and {0,0,1} (both normalized).
             double radian = safe_acos((double)world_up[2]); // world_up[2] is the dot product of <world_up, {0,0,1}>
             // the rotation axis is the cross product: ( world_up x {0,0,1} )
-            double[] rotation_axis = {world_up[1], -world_up[0], 0};
-
             // computes the quaternion aligning orientation to world_up
-            relativeOrientationQuaternion = (new Quaternion(radian, rotation_axis)).normalized();
-            absoluteOrientationQuaternion = relativeOrientationQuaternion.copy();
+            QuaternionOperator.setFromAxisAngle(relativeOrientationQuaternion, radian, world_up[1], -world_up[0], 0);
+            QuaternionOperator.normalize(relativeOrientationQuaternion);
+            System.arraycopy(relativeOrientationQuaternion, 0, absoluteOrientationQuaternion, 0, 4);
 
             positionInitialised = true;
 
@@ -182,7 +171,7 @@ public class GravAccGyroFusion {
             acc_avg[0] = gravity[0];
             acc_avg[1] = gravity[1];
             acc_avg[2] = gravity[2];
-            return relativeOrientationQuaternion.copy();
+            return;
         }
 
         acc_buffer_index = (acc_buffer_index + 1) % acc_buffer.length;
@@ -202,13 +191,17 @@ public class GravAccGyroFusion {
         acc_buffer[acc_buffer_index][2] = acceleration[2];
 
         // compute bias
-        float t = compute_update_weight(); // determine t ( 0<t<1 & t inversely proporsional to acceleration variations )
-        float[] vecA = normalized(gravity);
-        float[] vecB = normalized(acc_avg);
+        normalized(acc_avg, vecB);
+        float t = compute_update_weight(vecB); // determine t ( 0<t<1 & t inversely proporsional to acceleration variations )
+        float[] vecA = world_up;    // normalized gravity
         float dot = dotProduct(vecA, vecB);
         double alpha = safe_acos((double)dot);  // angle between gravity and acc_avg
-        double[] axis = normalized(crossProduct_f2d(vecB, vecA));  // TODO: this axis could be chosen non-horizontally to correct the heading error?
-        Quaternion new_gravity_bias = new Quaternion(alpha, axis);
+        // the axis is the cross product vecB x vecA, normalized by setFromAxisAngle
+        // TODO: this axis could be chosen non-horizontally to correct the heading error?
+        double axisX = vecB[1]*vecA[2] - vecB[2]*vecA[1];
+        double axisY = vecB[2]*vecA[0] - vecB[0]*vecA[2];
+        double axisZ = vecB[0]*vecA[1] - vecB[1]*vecA[0];
+        QuaternionOperator.setFromAxisAngle(new_gravity_bias, alpha, axisX, axisY, axisZ);
 
         // update gravity bias.
         // if t tends to 0:
@@ -217,39 +210,105 @@ public class GravAccGyroFusion {
         //      then gravity_bias tends to new_gravity_bias.
         // it means that when we move, t is small and gravity_bias stay unchanged.
         // when we are stable, t is big and gravity_bias is updated (corrected)
-        gravity_bias = gravity_bias.slerp(new_gravity_bias, t);
+        QuaternionOperator.slerp(gravity_bias, new_gravity_bias, t, gravity_bias);
 
 
         // update relative orientation
-        relativeOrientationQuaternion = compute_orientation_from_angular_velocity(relativeOrientationQuaternion, angularRate_xyz, angular_ts, prev_angular_ts);
-        double[] Rd = relativeOrientationQuaternion.getRotationMatrix();
-        //pureRelativeOrientationQuaternion = relativeOrientationQuaternion.copy();
+        compute_orientation_from_angular_velocity(relativeOrientationQuaternion, angularRate_xyz, angular_ts, prev_angular_ts);
+        QuaternionOperator.getNorthVector(relativeOrientationQuaternion, north_vector);
 
         // We rotate the gravity vector a little bit. The bias is the difference between the gravity and the mean acceleration
 
-        world_up = normalized(gravity_bias.rotateVector(world_up));
+        QuaternionOperator.rotateVector(gravity_bias, world_up, world_up);
+        normalized(world_up, world_up);
 
         //System.out.println("grav-fused-acc \n(" + vecA[0] + ", " + vecA[1] + ", " + vecA[2] + ") \n(" + world_up[0] + ", " + world_up[1] + ", " + world_up[2] + ") \n(" + vecB[0] + ", " + vecB[1] + ", " + vecB[2] + ")\n........." );
 
-        float[] north_vector = {(float)Rd[3], (float)Rd[4], (float)Rd[5]};
-        float[] Rf = new float[9];
-        SensorManager.getRotationMatrix(Rf, null, world_up, north_vector);
-        absoluteOrientationQuaternion = new Quaternion(Rf);
+        // when up and north are parallel, the absolute orientation of the previous sample is kept
+        if (getRotationMatrix(Rf, world_up, north_vector)) {
+            QuaternionOperator.setFromRotationMatrix(absoluteOrientationQuaternion, Rf);
+        }
+
+        QuaternionOperator.slerp(relativeOrientationQuaternion, absoluteOrientationQuaternion, CORRECTION_DAMPING,
+                relativeOrientationQuaternion);
+    }
 
-        relativeOrientationQuaternion = relativeOrientationQuaternion.slerp(absoluteOrientationQuaternion, CORRECTION_DAMPING).normalized();
-        return relativeOrientationQuaternion.copy();
+    /**
+     * Current orientation
+     * @param out: len-4 array receiving {qx, qy, qz, qw}
+     */
+    public void getOrientationXYZW(float[] out) {
+        QuaternionOperator.getFloatArrayXYZW(relativeOrientationQuaternion, out);
+    }
 
+    /**
+     * Current orientation, as a new Quaternion
+     */
+    public Quaternion getOrientation() {
+        double[] q = relativeOrientationQuaternion;
+        return new Quaternion(q[0], q[1], q[2], q[3]);
     }
 
-    private float compute_update_weight(){
+    /**
+     * Rotation matrix (row-major, len-9) of the frame whose z axis is up and whose y axis points towards north.
+     * Same computation as android.hardware.SensorManager.getRotationMatrix(R, null, up, north), without Android.
+     * @return false if up is too small or if up and north are (nearly) parallel, R is not changed then
+     */
+    private static boolean getRotationMatrix(float[] R, float[] up, float[] north) {
+        float Ax = up[0];
+        float Ay = up[1];
+        float Az = up[2];
+        final float normsqA = (Ax * Ax + Ay * Ay + Az * Az);
+        final float g = 9.81f;
+        final float freeFallGravitySquared = 0.01f * g * g;
+        if (normsqA < freeFallGravitySquared) {
+            // gravity less than 10% of normal value
+            return false;
+        }
+        final float Ex = north[0];
+        final float Ey = north[1];
+        final float Ez = north[2];
+        float Hx = Ey * Az - Ez * Ay;
+        float Hy = Ez * Ax - Ex * Az;
+        float Hz = Ex * Ay - Ey * Ax;
+        final float normH = (float) Math.sqrt(Hx * Hx + Hy * Hy + Hz * Hz);
+        if (normH < 0.1f) {
+            // device is close to free fall (or in space?), or close to magnetic north pole.
+            return false;
+        }
+        final float invH = 1.0f / normH;
+        Hx *= invH;
+        Hy *= invH;
+        Hz *= invH;
+        final float invA = 1.0f / (float) Math.sqrt(Ax * Ax + Ay * Ay + Az * Az);
+        Ax *= invA;
+        Ay *= invA;
+        Az *= invA;
+        final float Mx = Ay * Hz - Az * Hy;
+        final float My = Az * Hx - Ax * Hz;
+        final float Mz = Ax * Hy - Ay * Hx;
+        R[0] = Hx;  R[1] = Hy;  R[2] = Hz;
+        R[3] = Mx;  R[4] = My;  R[5] = Mz;
+        R[6] = Ax;  R[7] = Ay;  R[8] = Az;
+        return true;
+    }
+
+    /**
+     * Weight of orientation correction, in [0, 1]: the steadier the acceleration, the higher the weight
+     * @param acc_avg_normalized: acc_avg, normalized
+     */
+    private float compute_update_weight(float[] acc_avg_normalized){
         float lower_dot = 1;
         float dot;
-        float[] acc_avg_normalized = normalized(acc_avg);
-        System.out.println(TAG + ": acc_avg_normalized: " + acc_avg_normalized[0] + ", " + acc_avg_normalized[1] + ", " + acc_avg_normalized[2]);
         for (int i=0; i<ACCELERATION_BUFFER_SIZE; i++) {
-            float[] acc_normalized = {acc_buffer[i][0], acc_buffer[i][1], acc_buffer[i][2]};
-            acc_normalized = normalized(acc_normalized);
-            dot = dotProduct(acc_avg_normalized, acc_normalized);
+            float[] acc = acc_buffer[i];
+            float norm = (float) Math.sqrt(acc[0]*acc[0] + acc[1]*acc[1] + acc[2]*acc[2]);
+            if (norm == 0) {
+                dot = 0;
+            } else {
+                dot = acc_avg_normalized[0]*(acc[0]/norm) + acc_avg_normalized[1]*(acc[1]/norm)
+                        + acc_avg_normalized[2]*(acc[2]/norm);
+            }
             //Log.d(TAG, "\t\tdot: " + dot);
             if (lower_dot > dot){
                 lower_dot = dot;
@@ -268,12 +327,14 @@ public class GravAccGyroFusion {
     /**
      * integrates the ouptut of gyroscope [rad/s] over time to calculate a rotation [rad] describing the change of angles over the time step
      * original code: https://developer.android.com/reference/android/hardware/SensorEvent#values
+     * @param orientation: updated in place
      */
-    private Quaternion compute_orientation_from_angular_velocity(Quaternion orientation0, float[] angularVelocity_xyz, float angular_ts, float angular_ts_prev) {
+    private void compute_orientation_from_angular_velocity(double[] orientation, float[] angularVelocity_xyz, float angular_ts, float angular_ts_prev) {
         // This timestep's delta rotation to be multiplied by the current rotation
         // after computing it from the gyro sample data.
         if (angular_ts_prev == 0) {
-            return orientation0.normalized();
+            QuaternionOperator.normalize(orientation);
+            return;
         }
 
         final double dT = (angular_ts - angular_ts_prev);
@@ -301,13 +362,13 @@ public class GravAccGyroFusion {
         double sinThetaOverTwo = Math.sin(thetaOverTwo);
         double cosThetaOverTwo = Math.cos(thetaOverTwo);
 
-        Quaternion deltaRotationQuat = new Quaternion(
+        QuaternionOperator.set(qDelta,
                 sinThetaOverTwo * axisX,
                 sinThetaOverTwo * axisY,
                 sinThetaOverTwo * axisZ,
                 cosThetaOverTwo);
-        Quaternion orientation1 = (orientation0.times(deltaRotationQuat)).normalized();
-        return orientation1;
+        QuaternionOperator.multiply(orientation, qDelta, orientation);
+        QuaternionOperator.normalize(orientation);
     }
 
 
@@ -0,0 +1,157 @@
+package ch.ubiment.sensors.sensordemo.Sensors;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Replays the raw IMU file written by Acquisition/imu_acquisition_thread.py (data_imu_raw.csv, the columns of
+ * imu_raw_fields in ubiment_parameters.py): one row per message of the app, timestamp in milliseconds since epoch.
+ *
+ * Every row gives one event of each of the five sensors of ImuPipeline at the timestamp of the row, plus a
+ * TYPE_STEP_DETECTOR event when is_step_detected_sensor is set. The columns are found by their name in the header,
+ * the other ones (orientations, ids) are ignored, and so are the sensors whose values are NaN.
+ *
+ * The timestamps of the events start at 0 at the first row, like the uptime-based SensorEvent.timestamp: the fusion
+ * computes in float seconds, which can not hold an epoch time. getOriginMillis() gives the epoch of the first row.
+ */
+public class CsvSensorSource implements SensorSource {
+    private static final String[] PREFIXES = {"accelerometer", "linear_acceleration", "gravity", "magnetic_field",
+            "gyroscope"};
+    private static final int[] TYPES = {SensorSample.TYPE_ACCELEROMETER, SensorSample.TYPE_LINEAR_ACCELERATION,
+            SensorSample.TYPE_GRAVITY, SensorSample.TYPE_MAGNETIC_FIELD, SensorSample.TYPE_GYROSCOPE};
+    private static final int STEP = PREFIXES.length;
+
+    private final BufferedReader reader;
+    private final int timestampColumn;
+    private final int[][] columns = new int[PREFIXES.length][3];     // -1 if the sensor is not in the file
+    private final int stepColumn;
+
+    // events of the current row
+    private final float[][] rowValues = new float[PREFIXES.length][3];
+    private final boolean[] rowHas = new boolean[PREFIXES.length + 1];
+    private long rowNanos;
+    private double originMillis = Double.NaN;
+    private int rowNext = rowHas.length;
+    private long lineNumber = 1;
+
+    /**
+     * @throws IOException if the header has no timestamp column or none of the sensors, or if the first row is
+     * malformed
+     */
+    public CsvSensorSource(Reader in) throws IOException {
+        reader = (in instanceof BufferedReader) ? (BufferedReader) in : new BufferedReader(in);
+        String header = reader.readLine();
+        if (header == null) throw new IOException("empty file");
+        String[] names = header.split(",");
+        timestampColumn = indexOf(names, "timestamp");
+        if (timestampColumn < 0) throw new IOException("no timestamp column in " + header);
+        boolean any = false;
+        for (int s = 0; s < PREFIXES.length; s++) {
+            columns[s][0] = indexOf(names, PREFIXES[s] + "_x");
+            columns[s][1] = indexOf(names, PREFIXES[s] + "_y");
+            columns[s][2] = indexOf(names, PREFIXES[s] + "_z");
+            if (columns[s][0] < 0 || columns[s][1] < 0 || columns[s][2] < 0) {
+                columns[s][0] = -1;
+            } else {
+                any = true;
+            }
+        }
+        if (!any) throw new IOException("no sensor column in " + header);
+        stepColumn = indexOf(names, "is_step_detected_sensor");
+        // the origin is known before the first event
+        readRow();
+    }
+
+    /**
+     * Open a text stream, e.g. System.in or a FileInputStream
+     */
+    public static CsvSensorSource of(InputStream in) throws IOException {
+        return new CsvSensorSource(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    private static int indexOf(String[] names, String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].trim().equals(name)) return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean next(SensorSample sample) throws IOException {
+        while (true) {
+            while (rowNext < rowHas.length) {
+                int s = rowNext++;
+                if (!rowHas[s]) continue;
+                if (s == STEP) {
+                    sample.values[0] = 1.0f;
+                    sample.length = 1;
+                    sample.type = SensorSample.TYPE_STEP_DETECTOR;
+                    sample.timestampNanos = rowNanos;
+                } else {
+                    sample.set(TYPES[s], rowNanos, rowValues[s][0], rowValues[s][1], rowValues[s][2]);
+                }
+                return true;
+            }
+            if (!readRow()) return false;
+        }
+    }
+
+    /**
+     * @return false at the end of the file
+     * @throws IOException if a row is malformed
+     */
+    private boolean readRow() throws IOException {
+        String line;
+        do {
+            line = reader.readLine();
+            if (line == null) return false;
+            lineNumber++;
+        } while (line.trim().isEmpty());
+        String[] fields = line.split(",", -1);
+        try {
+            double millis = Double.parseDouble(fields[timestampColumn]);
+            if (Double.isNaN(originMillis)) originMillis = millis;
+            rowNanos = (long) ((millis - originMillis) * 1000000.0);
+            for (int s = 0; s < PREFIXES.length; s++) {
+                rowHas[s] = false;
+                if (columns[s][0] < 0) continue;
+                boolean valid = true;
+                for (int axis = 0; axis < 3; axis++) {
+                    float value = Float.parseFloat(fields[columns[s][axis]]);
+                    valid &= !Float.isNaN(value);
+                    rowValues[s][axis] = value;
+                }
+                rowHas[s] = valid;
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("malformed line " + lineNumber + ": " + line);
+        }
+        String step = (stepColumn >= 0 && stepColumn < fields.length) ? fields[stepColumn].trim() : "";
+        rowHas[STEP] = step.equals("True") || step.equals("true") || step.equals("1");
+        rowNext = 0;
+        return true;
+    }
+
+    /**
+     * Timestamp of the first row in milliseconds since epoch, NaN if the file has no row
+     */
+    public double getOriginMillis() {
+        return originMillis;
+    }
+
+    /**
+     * Add it to the timestamps of the events to get nanoseconds since epoch, as SessionReader
+     */
+    public long getEpochOffsetNanos() {
+        return Double.isNaN(originMillis) ? 0 : (long) (originMillis * 1000000.0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,66 @@
+package ch.ubiment.sensors.sensordemo.Sensors;
+
+import ch.ubiment.sensors.sensordemo.Communication.ImuSample;
+import ch.ubiment.sensors.sensordemo.Communication.TcpFraming;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes the frames of an ImuProcessor to a file, each one preceded by its length (int, little-endian like the
+ * frames, see TcpFraming). read() gives them back.
+ */
+public class FileFrameSink implements ImuProcessor.FrameSink, Closeable {
+    private final OutputStream out;
+    private final ByteBuffer length = ByteBuffer.allocate(4).order(TcpFraming.BYTE_ORDER);
+    private long frameCount = 0;
+
+    public FileFrameSink(File file) throws IOException {
+        out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+    }
+
+    @Override
+    public void onFrame(ImuSample sample, ByteBuffer frame) throws IOException {
+        length.clear();
+        length.putInt(frame.remaining());
+        out.write(length.array(), 0, 4);
+        if (frame.hasArray()) {
+            out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+        } else {
+            while (frame.hasRemaining()) out.write(frame.get());
+        }
+        frameCount++;
+    }
+
+    /**
+     * Read the next frame of a file written by a FileFrameSink
+     * @param dst: large enough for the frames
+     * @return the length of the frame in dst, -1 at the end of the file
+     * @throws IOException if the file ends inside a frame, or if dst is too small
+     */
+    public static int read(InputStream in, byte[] dst) throws IOException {
+        int first = in.read();
+        if (first < 0) return -1;
+        // little-endian length, its last 3 bytes read into dst
+        TcpFraming.readFully(in, dst, 3);
+        int length = first | (dst[0] & 0xff) << 8 | (dst[1] & 0xff) << 16 | (dst[2] & 0xff) << 24;
+        if (length < 0 || length > dst.length) throw new IOException("frame of " + length + " bytes");
+        TcpFraming.readFully(in, dst, length);
+        return length;
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
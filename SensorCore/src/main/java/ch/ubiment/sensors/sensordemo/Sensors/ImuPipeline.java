@@ -0,0 +1,307 @@
+package ch.ubiment.sensors.sensordemo.Sensors;
+
+import ch.ubiment.sensors.sensordemo.Algebra.QuaternionOperator;
+import ch.ubiment.sensors.sensordemo.Communication.Logger;
+import ch.ubiment.sensors.sensordemo.OrientationAlgorithms.AccGyroFusion;
+import ch.ubiment.sensors.sensordemo.OrientationAlgorithms.GravAccGyroFusion;
+import ch.ubiment.sensors.sensordemo.UbiStepDetector;
+
+/**
+ * The per-event processing of the IMU app, without Android: alignment of the sensors (see SensorSynchronizer),
+ * integration of the gyroscope, fusion (GravAccGyroFusion and AccGyroFusion) and step detection.
+ * <pre>
+ *   pipeline.add(ImuPipeline.GYROSCOPE, event.timestamp, event.values);   // every event
+ *   while (pipeline.poll()) {
+ *       send(pipeline.getTimestamp(), pipeline.getAccelerometer(), ..., pipeline.getOrientationAccGyroXYZW());
+ *   }
+ * </pre>
+ * With batched sensors, the events of a FIFO flush are collected in a SensorBurst and given to process() instead.
+ * The events of every channel are also recorded by a SensorRateMonitor, see getRateMonitor().
+ * Every state is preallocated: add() and poll() do not allocate, so a steady stream of events does not create any
+ * garbage (see ImuPipelineAllocationTest). The arrays returned by the getters are reused by the next poll().
+ * Not thread-safe: add() and poll() run on the processing thread.
+ */
+public class ImuPipeline {
+    // channels of add()
+    public static final int ACCELEROMETER = 0;
+    public static final int LINEAR_ACCELERATION = 1;
+    public static final int GRAVITY = 2;
+    public static final int MAGNETIC_FIELD = 3;
+    public static final int GYROSCOPE = 4;
+
+    /**
+     * Receives the samples produced by process()
+     */
+    public interface Listener {
+        /**
+         * @param pipeline: its getters give the sample, see poll()
+         */
+        void onSample(ImuPipeline pipeline);
+    }
+
+    public static final long DEFAULT_PERIOD_NS = 20000000L;        // 50 Hz, the rate of SENSOR_DELAY_GAME
+    public static final long DEFAULT_MAX_LATENCY_NS = 60000000L;
+    public static final int DEFAULT_RING_SIZE = 16;                // 80 ms of history at 200 Hz
+
+    private static final float NS2S = 1.0f / 1000000000.0f;
+    private static final double EPSILON = 0.000000001;
+
+    private final SensorSynchronizer synchronizer;
+    private final GravAccGyroFusion gravAccGyroFuser;
+    private final AccGyroFusion accGyroFuser;
+    private final UbiStepDetector ubiStepDetector;
+    private final SensorRateMonitor rateMonitor;
+
+    // integration of every gyroscope event, not only of the aligned ones
+    private final double[] gyroscopeOrientation = {0, 0, 0, 1};
+    private final double[] deltaRotation = new double[4];
+    private long gyroscopeNanos = 0;
+
+    private long timestampNanos;
+    private final float[] accelerometer = new float[3];
+    private final float[] linearAcceleration = new float[3];
+    private final float[] gravity = new float[3];
+    private final float[] magneticField = new float[3];
+    private final float[] gyroscope = new float[3];
+    private final float[] orientationXYZW = {0, 0, 0, 1};
+    private final float[] orientationGravAccGyroXYZW = {0, 0, 0, 1};
+    private final float[] orientationAccGyroXYZW = {0, 0, 0, 1};
+    private boolean stepDetected = false;
+    private int stepCount = 0;
+
+    public ImuPipeline() {
+        this(new SensorRateConfig(), Logger.SYSTEM);
+    }
+
+    /**
+     * Pipeline for the sensors registered with config: the output stays at DEFAULT_PERIOD_NS, but the latency and
+     * the rings are enlarged to cover the report latency of the batched sensors at the rate of the fastest one.
+     */
+    public ImuPipeline(SensorRateConfig config, Logger logger) {
+        this(DEFAULT_PERIOD_NS, maxLatencyNanos(config), ringSize(config), logger, new SensorRateMonitor(config));
+    }
+
+    /**
+     * @param periodNanos: period of the aligned samples, also the sample interval of the step detector
+     * @param maxLatencyNanos: see SensorSynchronizer
+     * @param ringSize: see SensorSynchronizer
+     * @param logger: receives the warnings of the fusion
+     */
+    public ImuPipeline(long periodNanos, long maxLatencyNanos, int ringSize, Logger logger) {
+        this(periodNanos, maxLatencyNanos, ringSize, logger,
+                new SensorRateMonitor(SensorRateConfig.NAMES, SensorRateMonitor.DEFAULT_WINDOW_NS));
+    }
+
+    private ImuPipeline(long periodNanos, long maxLatencyNanos, int ringSize, Logger logger,
+                        SensorRateMonitor rateMonitor) {
+        this.rateMonitor = rateMonitor;
+        synchronizer = new SensorSynchronizer(new int[] {3, 3, 3, 3, 3}, ringSize, periodNanos, maxLatencyNanos,
+                SensorSynchronizer.Alignment.INTERPOLATE);
+        gravAccGyroFuser = new GravAccGyroFusion(logger);
+        accGyroFuser = new AccGyroFusion(logger);
+        ubiStepDetector = new UbiStepDetector(periodNanos * NS2S);
+    }
+
+    private static long maxLatencyNanos(SensorRateConfig config) {
+        return DEFAULT_MAX_LATENCY_NS + config.getMaxReportLatencyUs() * 1000;
+    }
+
+    private static int ringSize(SensorRateConfig config) {
+        long fastestNanos = config.getMinSamplingPeriodUs() * 1000;
+        return (int) Math.max(DEFAULT_RING_SIZE, maxLatencyNanos(config) / fastestNanos + 4);
+    }
+
+    /**
+     * @param sensorType: a SensorSample.TYPE_*
+     * @return the channel of the sensor type, -1 if the pipeline does not use it
+     */
+    public static int channelOf(int sensorType) {
+        switch (sensorType) {
+            case SensorSample.TYPE_ACCELEROMETER:
+                return ACCELEROMETER;
+            case SensorSample.TYPE_LINEAR_ACCELERATION:
+                return LINEAR_ACCELERATION;
+            case SensorSample.TYPE_GRAVITY:
+                return GRAVITY;
+            case SensorSample.TYPE_MAGNETIC_FIELD:
+                return MAGNETIC_FIELD;
+            case SensorSample.TYPE_GYROSCOPE:
+                return GYROSCOPE;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Record an event of a SensorSource
+     * @return false if the pipeline does not use this sensor type, or if the event is older than the previous one of
+     * its channel
+     */
+    public boolean add(SensorSample sample) {
+        int channel = channelOf(sample.type);
+        return channel >= 0 && add(channel, sample.timestampNanos, sample.values);
+    }
+
+    /**
+     * Record an event of one of the channels
+     * @param values: at least 3 values, copied
+     * @return false if the event is older than the previous one of its channel, it is ignored
+     */
+    public boolean add(int channel, long timestampNanos, float[] values) {
+        rateMonitor.record(channel, timestampNanos);
+        if (channel == GYROSCOPE) integrate(timestampNanos, values);
+        return synchronizer.add(channel, timestampNanos, values);
+    }
+
+    /**
+     * Fuse the next aligned sample if it is due. Call it in a loop after every add().
+     * @return true if a sample was produced, see the getters
+     */
+    public boolean poll() {
+        if (!synchronizer.poll()) return false;
+        timestampNanos = synchronizer.getTimestamp();
+        float ts = timestampNanos * NS2S;
+        System.arraycopy(synchronizer.getValues(ACCELEROMETER), 0, accelerometer, 0, 3);
+        System.arraycopy(synchronizer.getValues(LINEAR_ACCELERATION), 0, linearAcceleration, 0, 3);
+        System.arraycopy(synchronizer.getValues(GRAVITY), 0, gravity, 0, 3);
+        System.arraycopy(synchronizer.getValues(MAGNETIC_FIELD), 0, magneticField, 0, 3);
+        System.arraycopy(synchronizer.getValues(GYROSCOPE), 0, gyroscope, 0, 3);
+
+        QuaternionOperator.getFloatArrayXYZW(gyroscopeOrientation, orientationXYZW);
+        gravAccGyroFuser.update(gravity, accelerometer, gyroscope, ts);
+        gravAccGyroFuser.getOrientationXYZW(orientationGravAccGyroXYZW);
+        accGyroFuser.update(accelerometer, gyroscope, ts);
+        accGyroFuser.getOrientationXYZW(orientationAccGyroXYZW);
+
+        stepDetected = ubiStepDetector.update(accelerometer, orientationAccGyroXYZW, ts);
+        if (stepDetected) stepCount++;
+        return true;
+    }
+
+    /**
+     * Run the events of a burst in timestamp order, and every sample they produce, in one loop. The burst is
+     * sorted, then cleared.
+     * @return number of samples given to the listener
+     */
+    public int process(SensorBurst burst, Listener listener) {
+        burst.sort();
+        int samples = 0;
+        for (int i = 0; i < burst.size(); i++) {
+            add(burst.getChannel(i), burst.getTimestamp(i), burst.getValues(i));
+            while (poll()) {
+                listener.onSample(this);
+                samples++;
+            }
+        }
+        burst.clear();
+        return samples;
+    }
+
+    /**
+     * integrates the ouptut of gyroscope [rad/s] over time to calculate a rotation [rad] describing the change of angles over the time step
+     * original code: https://developer.android.com/reference/android/hardware/SensorEvent#values
+     */
+    private void integrate(long timestamp, float[] gyro_vector) {
+        long previous = gyroscopeNanos;
+        gyroscopeNanos = timestamp;
+        if (previous == 0) {
+            QuaternionOperator.normalize(gyroscopeOrientation);
+            return;
+        }
+        final double dT = (timestamp - previous) * 1.0e-9;
+        // Axis of the rotation sample, not normalized yet.
+        double axisX = gyro_vector[0];
+        double axisY = gyro_vector[1];
+        double axisZ = gyro_vector[2];
+
+        // Calculate the angular speed of the sample
+        double omegaMagnitude = Math.sqrt(axisX * axisX + axisY * axisY + axisZ * axisZ);
+
+        // Normalize the rotation vector if it's big enough to get the axis
+        if (omegaMagnitude > EPSILON) {
+            axisX /= omegaMagnitude;
+            axisY /= omegaMagnitude;
+            axisZ /= omegaMagnitude;
+        }
+
+        // Integrate around this axis with the angular speed by the timestep
+        double thetaOverTwo = omegaMagnitude * dT / 2.0;
+        double sinThetaOverTwo = Math.sin(thetaOverTwo);
+        QuaternionOperator.set(deltaRotation,
+                sinThetaOverTwo * axisX,
+                sinThetaOverTwo * axisY,
+                sinThetaOverTwo * axisZ,
+                Math.cos(thetaOverTwo));
+        QuaternionOperator.multiply(gyroscopeOrientation, deltaRotation, gyroscopeOrientation);
+        QuaternionOperator.normalize(gyroscopeOrientation);
+    }
+
+    /**
+     * Time of the last sample, in the time base of the events
+     */
+    public long getTimestamp() {
+        return timestampNanos;
+    }
+
+    public float[] getAccelerometer() {
+        return accelerometer;
+    }
+
+    public float[] getLinearAcceleration() {
+        return linearAcceleration;
+    }
+
+    public float[] getGravity() {
+        return gravity;
+    }
+
+    public float[] getMagneticField() {
+        return magneticField;
+    }
+
+    public float[] getGyroscope() {
+        return gyroscope;
+    }
+
+    /**
+     * Integration of the gyroscope alone, it drifts
+     */
+    public float[] getOrientationXYZW() {
+        return orientationXYZW;
+    }
+
+    public float[] getOrientationGravAccGyroXYZW() {
+        return orientationGravAccGyroXYZW;
+    }
+
+    public float[] getOrientationAccGyroXYZW() {
+        return orientationAccGyroXYZW;
+    }
+
+    /**
+     * Whether UbiStepDetector detected a step on the last sample
+     */
+    public boolean isStepDetected() {
+        return stepDetected;
+    }
+
+    public int getStepCount() {
+        return stepCount;
+    }
+
+    public SensorSynchronizer getSynchronizer() {
+        return synchronizer;
+    }
+
+    /**
+     * Effective rate and intervals of the events given to add(), can be read from another thread
+     */
+    public SensorRateMonitor getRateMonitor() {
+        return rateMonitor;
+    }
+
+    @Override
+    public String toString() {
+        return synchronizer.toString();
+    }
+}
@@ -0,0 +1,122 @@
+package ch.ubiment.sensors.sensordemo.Sensors;
+
+import ch.ubiment.sensors.sensordemo.Communication.FrameSerializer;
+import ch.ubiment.sensors.sensordemo.Communication.ImuSample;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The whole chain of the IMU app from the raw events to the encoded frames, without Android: ImuPipeline
+ * (synchronization, fusion, step detection), then a FrameSerializer. It runs the same on a phone, on a recorded
+ * file and in a benchmark:
+ * <pre>
+ *   ImuProcessor processor = new ImuProcessor(new ImuPipeline(), FrameSerializers.imu(name, id, 0), 0);
+ *   processor.run(new CsvSensorSource(reader), sink);
+ * </pre>
+ * The step detector and step counter events of the source set isStepDetectedSensor in the next frame, like the app.
+ * The sample and the frame buffer are reused: accept() does not allocate with the binary serializers.
+ * Not thread-safe.
+ */
+public class ImuProcessor {
+    public static final int FRAME_CAPACITY = 2048;
+
+    /**
+     * Receives the frames
+     */
+    public interface FrameSink {
+        /**
+         * @param sample: the values of the frame
+         * @param frame: the encoded frame between position and limit, reused after the call
+         */
+        void onFrame(ImuSample sample, ByteBuffer frame) throws IOException;
+    }
+
+    private final ImuPipeline pipeline;
+    private final FrameSerializer<ImuSample> serializer;
+    private final long epochOffsetNanos;
+    private final ImuSample imuSample = new ImuSample();
+    private final ByteBuffer frame = ByteBuffer.allocate(FRAME_CAPACITY);
+    private boolean stepDetectedSensor = false;
+    private long eventCount = 0;
+    private long frameCount = 0;
+    private long byteCount = 0;
+
+    /**
+     * @param epochOffsetNanos: added to the timestamps of the events to get the timestamps of the frames, in
+     *                          nanoseconds since epoch
+     */
+    public ImuProcessor(ImuPipeline pipeline, FrameSerializer<ImuSample> serializer, long epochOffsetNanos) {
+        this.pipeline = pipeline;
+        this.serializer = serializer;
+        this.epochOffsetNanos = epochOffsetNanos;
+    }
+
+    /**
+     * Process one event and give the frames it produces to the sink, usually zero or one
+     * @return number of frames
+     */
+    public int accept(SensorSample event, FrameSink sink) throws IOException {
+        eventCount++;
+        if (event.type == SensorSample.TYPE_STEP_DETECTOR || event.type == SensorSample.TYPE_STEP_COUNTER) {
+            stepDetectedSensor = true;
+            return 0;
+        }
+        if (!pipeline.add(event)) return 0;
+        int frames = 0;
+        while (pipeline.poll()) {
+            imuSample.set((int) frameCount, epochOffsetNanos + pipeline.getTimestamp(),
+                    pipeline.getAccelerometer(), pipeline.getLinearAcceleration(), pipeline.getGravity(),
+                    pipeline.getMagneticField(), pipeline.getGyroscope(),
+                    pipeline.getOrientationXYZW(), pipeline.getOrientationGravAccGyroXYZW(),
+                    pipeline.getOrientationAccGyroXYZW(),
+                    stepDetectedSensor, pipeline.isStepDetected());
+            stepDetectedSensor = false;
+            frame.clear();
+            serializer.write(imuSample, frame);
+            frame.flip();
+            frameCount++;
+            byteCount += frame.remaining();
+            sink.onFrame(imuSample, frame);
+            frames++;
+        }
+        return frames;
+    }
+
+    /**
+     * Process every event of the source, until next() returns false. The source is not closed.
+     * @return number of frames
+     */
+    public long run(SensorSource source, FrameSink sink) throws IOException {
+        SensorSample event = new SensorSample();
+        long frames = 0;
+        while (source.next(event)) {
+            frames += accept(event, sink);
+        }
+        return frames;
+    }
+
+    public ImuPipeline getPipeline() {
+        return pipeline;
+    }
+
+    public long getEventCount() {
+        return eventCount;
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Size of all the frames
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    @Override
+    public String toString() {
+        return eventCount + " events, " + frameCount + " frames, " + byteCount + " bytes";
+    }
+}
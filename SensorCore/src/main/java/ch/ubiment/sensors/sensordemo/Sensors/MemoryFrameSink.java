@@ -0,0 +1,53 @@
+package ch.ubiment.sensors.sensordemo.Sensors;
+
+import ch.ubiment.sensors.sensordemo.Communication.ImuSample;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps a copy of every frame of an ImuProcessor and of its sample, for the tests and the offline analyses.
+ * It allocates for every frame.
+ */
+public class MemoryFrameSink implements ImuProcessor.FrameSink {
+    private final List<byte[]> frames = new ArrayList<>();
+    private final List<ImuSample> samples = new ArrayList<>();
+
+    @Override
+    public void onFrame(ImuSample sample, ByteBuffer frame) {
+        byte[] bytes = new byte[frame.remaining()];
+        frame.duplicate().get(bytes);
+        frames.add(bytes);
+        ImuSample copy = new ImuSample();
+        copy.set(sample.sequence, sample.timestampNanos,
+                sample.accelerometer, sample.linearAcceleration, sample.gravity,
+                sample.magneticField, sample.gyroscope,
+                sample.orientationXYZW, sample.orientationGravAccGyroXYZW, sample.orientationAccGyroXYZW,
+                sample.isStepDetectedSensor, sample.isStepDetected);
+        samples.add(copy);
+    }
+
+    /**
+     * The encoded frames, in order
+     */
+    public List<byte[]> getFrames() {
+        return frames;
+    }
+
+    /**
+     * The values of the frames, in order
+     */
+    public List<ImuSample> getSamples() {
+        return samples;
+    }
+
+    public int size() {
+        return frames.size();
+    }
+
+    public void clear() {
+        frames.clear();
+        samples.clear();
+    }
+}
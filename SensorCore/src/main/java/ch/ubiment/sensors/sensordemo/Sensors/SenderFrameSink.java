@@ -0,0 +1,60 @@
+package ch.ubiment.sensors.sensordemo.Sensors;
+
+import ch.ubiment.sensors.sensordemo.Communication.ImuSample;
+import ch.ubiment.sensors.sensordemo.Communication.MessageSender;
+import ch.ubiment.sensors.sensordemo.Communication.SendQueue;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sends the frames of an ImuProcessor like the app: one message per frame through a UdpClientSend or a
+ * TcpClientSend. A frame refused by the overflow policy of the sender is counted, not retried.
+ */
+public class SenderFrameSink implements ImuProcessor.FrameSink {
+    private final MessageSender sender;
+    private long sentCount = 0;
+    private long droppedCount = 0;
+
+    public SenderFrameSink(MessageSender sender) {
+        this.sender = sender;
+    }
+
+    @Override
+    public void onFrame(ImuSample sample, ByteBuffer frame) {
+        SendQueue.Slot slot = sender.claim();
+        if (slot == null) {
+            droppedCount++;
+            return;
+        }
+        ByteBuffer buffer = slot.buffer();
+        if (buffer.remaining() < frame.remaining()) {
+            sender.cancel(slot);
+            droppedCount++;
+            return;
+        }
+        buffer.put(frame);
+        if (sender.publish(slot)) {
+            sentCount++;
+        } else {
+            droppedCount++;
+        }
+    }
+
+    public MessageSender getSender() {
+        return sender;
+    }
+
+    /**
+     * Frames given to the sender
+     */
+    public long getSentCount() {
+        return sentCount;
+    }
+
+    /**
+     * Frames refused by the sender or larger than its buffers
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+}
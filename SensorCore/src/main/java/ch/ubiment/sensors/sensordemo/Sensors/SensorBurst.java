@@ -0,0 +1,127 @@
+package ch.ubiment.sensors.sensordemo.Sensors;
+
+/**
+ * The events of several sensors received together, to be processed in timestamp order.
+ *
+ * With a max report latency (see SensorRateConfig), the sensor hub keeps the events in its FIFO and flushes them
+ * all at once, one sensor after the other: 200 ms of gyroscope, then 200 ms of accelerometer, ... Given in that
+ * order, the gyroscope runs ahead: the synchronizer holds the other sensors, unless its latency and rings cover the
+ * whole flush. The burst collects the events, sort() puts them back in the order of their measure, and
+ * ImuPipeline.process() runs them in one loop, with the same results as unbatched events.
+ * <pre>
+ *   burst.add(ImuPipeline.GYROSCOPE, timestamp, values);   // every event of the flush
+ *   pipeline.process(burst, listener);                     // sorts, fuses and clears the burst
+ * </pre>
+ * The events are copied into preallocated rows and sorted through an index array (stable merge sort, the events
+ * of a sensor keep their order): add() and sort() do not allocate. Not thread-safe.
+ */
+public class SensorBurst {
+    private final int dimension;
+    private final int[] channels;
+    private final long[] timestamps;
+    private final float[][] values;
+    private int[] order;        // index of the i-th event in timestamp order, once sorted
+    private int[] scratch;
+    private int size = 0;
+    private boolean sorted = true;
+    private long droppedCount = 0;
+
+    /**
+     * @param capacity: events per burst
+     * @param dimension: values kept per event, 3 for the sensors of ImuPipeline
+     */
+    public SensorBurst(int capacity, int dimension) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be positive");
+        this.dimension = dimension;
+        channels = new int[capacity];
+        timestamps = new long[capacity];
+        values = new float[capacity][dimension];
+        order = new int[capacity];
+        scratch = new int[capacity];
+    }
+
+    /**
+     * Copy an event into the burst
+     * @param eventValues: at least dimension values
+     * @return false if the burst is full, the event is dropped and counted
+     */
+    public boolean add(int channel, long timestampNanos, float[] eventValues) {
+        if (size == channels.length) {
+            droppedCount++;
+            return false;
+        }
+        channels[size] = channel;
+        timestamps[size] = timestampNanos;
+        System.arraycopy(eventValues, 0, values[size], 0, dimension);
+        order[size] = size;
+        if (size > 0 && timestampNanos < timestamps[size - 1]) sorted = false;
+        size++;
+        return true;
+    }
+
+    /**
+     * Order the events by timestamp. Events with the same timestamp keep the order of add().
+     */
+    public void sort() {
+        if (sorted) return;
+        // bottom-up merge sort of the indices, the runs of a FIFO flush are already sorted
+        for (int width = 1; width < size; width *= 2) {
+            for (int left = 0; left < size; left += 2 * width) {
+                int middle = Math.min(left + width, size);
+                int right = Math.min(left + 2 * width, size);
+                int i = left, j = middle, k = left;
+                while (i < middle && j < right) {
+                    scratch[k++] = (timestamps[order[j]] < timestamps[order[i]]) ? order[j++] : order[i++];
+                }
+                while (i < middle) scratch[k++] = order[i++];
+                while (j < right) scratch[k++] = order[j++];
+            }
+            int[] swap = order;
+            order = scratch;
+            scratch = swap;
+        }
+        sorted = true;
+    }
+
+    public void clear() {
+        size = 0;
+        sorted = true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int getCapacity() {
+        return channels.length;
+    }
+
+    /**
+     * Channel of the i-th event, in timestamp order after sort(), in the order of add() before
+     */
+    public int getChannel(int i) {
+        return channels[order[i]];
+    }
+
+    public long getTimestamp(int i) {
+        return timestamps[order[i]];
+    }
+
+    /**
+     * @return the values of the i-th event, a row of the burst reused after clear()
+     */
+    public float[] getValues(int i) {
+        return values[order[i]];
+    }
+
+    /**
+     * Events dropped because the burst was full
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+}
@@ -0,0 +1,159 @@
+package ch.ubiment.sensors.sensordemo.Sensors;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free handoff of raw sensor events from the thread of the listeners to the processing thread.
+ *
+ * Single producer, single consumer: the listener thread copies every event into a preallocated slot with offer(),
+ * the processing thread reads them in order with drain(). Neither side takes a lock or allocates, the producer never
+ * waits: when the ring is full the event is dropped and counted.
+ * <pre>
+ *   // listener thread
+ *   public void onSensorChanged(SensorEvent event) {
+ *       ring.offer(event.sensor.getType(), event.timestamp, event.values);
+ *   }
+ *
+ *   // processing thread
+ *   while (running) {
+ *       if (ring.drain(consumer, 64) == 0) ring.await(WAIT_NANOS);
+ *   }
+ * </pre>
+ */
+public class SensorEventRing {
+    /**
+     * Values kept per event: the uncalibrated sensors have 6, the others at most 5
+     */
+    public static final int MAX_VALUES = 6;
+
+    /**
+     * Receives the events, on the consumer thread
+     */
+    public interface Consumer {
+        /**
+         * @param values: reused array, only values[0 .. length-1] belong to the event
+         */
+        void onSensorEvent(int type, long timestampNanos, float[] values, int length);
+    }
+
+    private final int mask;
+    private final int[] types;
+    private final long[] timestamps;
+    private final float[] values;
+    private final int[] lengths;
+    private final float[] consumerValues = new float[MAX_VALUES];
+
+    // sequence numbers of the next event to write and to read. Each one is only written by its own side,
+    // lazySet() orders the slot content before the sequence without a full fence.
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+    private long cachedHead = 0;    // producer's copy of head, refreshed when the ring looks full
+
+    private volatile Thread waiter = null;
+    private volatile long droppedCount = 0;
+
+    /**
+     * @param capacity: rounded up to a power of two
+     */
+    public SensorEventRing(int capacity) {
+        int size = (capacity <= 2) ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        mask = size - 1;
+        types = new int[size];
+        timestamps = new long[size];
+        values = new float[size * MAX_VALUES];
+        lengths = new int[size];
+    }
+
+    /**
+     * Copy an event into the ring. Producer thread only.
+     * @param eventValues: the first MAX_VALUES values are kept
+     * @return false if the ring is full, the event is dropped
+     */
+    public boolean offer(int type, long timestampNanos, float[] eventValues) {
+        long t = tail.get();
+        if (t - cachedHead > mask) {
+            cachedHead = head.get();
+            if (t - cachedHead > mask) {
+                droppedCount++;
+                return false;
+            }
+        }
+        int slot = (int) t & mask;
+        int length = Math.min(eventValues.length, MAX_VALUES);
+        types[slot] = type;
+        timestamps[slot] = timestampNanos;
+        lengths[slot] = length;
+        System.arraycopy(eventValues, 0, values, slot * MAX_VALUES, length);
+        tail.lazySet(t + 1);
+
+        Thread w = waiter;
+        if (w != null) LockSupport.unpark(w);
+        return true;
+    }
+
+    /**
+     * Give the oldest events to the consumer, in order. Consumer thread only.
+     * @param max: maximum number of events, so that the caller can do something else between two batches
+     * @return the number of events consumed
+     */
+    public int drain(Consumer consumer, int max) {
+        long h = head.get();
+        long available = tail.get() - h;
+        int n = (int) Math.min(available, max);
+        for (int i = 0; i < n; i++) {
+            int slot = (int) (h + i) & mask;
+            int length = lengths[slot];
+            System.arraycopy(values, slot * MAX_VALUES, consumerValues, 0, length);
+            int type = types[slot];
+            long timestamp = timestamps[slot];
+            // free the slot before the callback, which may be long
+            head.lazySet(h + i + 1);
+            consumer.onSensorEvent(type, timestamp, consumerValues, length);
+        }
+        return n;
+    }
+
+    /**
+     * Copy the oldest event into sample, for a SensorSource. Consumer thread only.
+     * @return false if the ring is empty
+     */
+    public boolean poll(SensorSample sample) {
+        long h = head.get();
+        if (tail.get() == h) return false;
+        int slot = (int) h & mask;
+        sample.set(types[slot], timestamps[slot], values, slot * MAX_VALUES, lengths[slot]);
+        head.lazySet(h + 1);
+        return true;
+    }
+
+    /**
+     * Park the consumer thread until an event is offered, the timeout elapses or the thread is unparked.
+     * Consumer thread only. May return early, without event.
+     */
+    public void await(long timeoutNanos) {
+        waiter = Thread.currentThread();
+        // an event offered before waiter was set would not unpark us
+        if (tail.get() == head.get()) LockSupport.parkNanos(this, timeoutNanos);
+        waiter = null;
+    }
+
+    public boolean isEmpty() {
+        return tail.get() == head.get();
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Events offered while the ring was full
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+}
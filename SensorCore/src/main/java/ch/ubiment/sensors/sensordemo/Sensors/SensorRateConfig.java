@@ -0,0 +1,123 @@
+package ch.ubiment.sensors.sensordemo.Sensors;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Sampling period and max report latency of every sensor of ImuPipeline, in microseconds, as given to
+ * SensorManager.registerListener(listener, sensor, samplingPeriodUs, maxReportLatencyUs, handler).
+ *
+ * The text form lists the sensors which differ from the default, e.g. "gyroscope=5000,magnetic_field=100000/200000":
+ * the gyroscope at 200 Hz, the magnetometer at 10 Hz delivered in batches of up to 200 ms. The names are the ones
+ * of NAMES, in the order of the channels of ImuPipeline. The sampling period is a hint: the sensors usually run
+ * somewhat faster or slower, see SensorRateMonitor for what they actually do.
+ */
+public class SensorRateConfig {
+    public static final String[] NAMES = {"accelerometer", "linear_acceleration", "gravity", "magnetic_field",
+            "gyroscope"};
+
+    public static final long DEFAULT_SAMPLING_PERIOD_US = 20000;    // SENSOR_DELAY_GAME, 50 Hz
+    public static final long DEFAULT_MAX_REPORT_LATENCY_US = 0;     // every event as soon as it is measured
+
+    private final long[] samplingPeriodsUs = new long[NAMES.length];
+    private final long[] maxReportLatenciesUs = new long[NAMES.length];
+
+    /**
+     * Every sensor at the default rate, without batching
+     */
+    public SensorRateConfig() {
+        Arrays.fill(samplingPeriodsUs, DEFAULT_SAMPLING_PERIOD_US);
+        Arrays.fill(maxReportLatenciesUs, DEFAULT_MAX_REPORT_LATENCY_US);
+    }
+
+    /**
+     * @param text: "name=samplingPeriodUs[/maxReportLatencyUs],...", see the class comment. Null or empty gives the
+     *            defaults.
+     * @throws IllegalArgumentException if a name is unknown or a value is not a positive number
+     */
+    public static SensorRateConfig parse(String text) {
+        SensorRateConfig config = new SensorRateConfig();
+        if (text == null || text.trim().isEmpty()) return config;
+        for (String entry : text.split(",")) {
+            String[] nameValue = entry.trim().split("=");
+            if (nameValue.length != 2) throw new IllegalArgumentException("expected name=period: " + entry);
+            int channel = channel(nameValue[0].trim());
+            String[] values = nameValue[1].trim().split("/");
+            if (values.length > 2) throw new IllegalArgumentException("expected period[/latency]: " + entry);
+            long latencyUs = (values.length == 2) ? parseMicros(values[1]) : DEFAULT_MAX_REPORT_LATENCY_US;
+            config.set(channel, parseMicros(values[0]), latencyUs);
+        }
+        return config;
+    }
+
+    private static long parseMicros(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("not a number of microseconds: " + value);
+        }
+    }
+
+    /**
+     * @return the channel of ImuPipeline of a name of NAMES
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    public static int channel(String name) {
+        for (int c = 0; c < NAMES.length; c++) {
+            if (NAMES[c].equals(name)) return c;
+        }
+        throw new IllegalArgumentException("unknown sensor " + name + ", expected one of " + Arrays.toString(NAMES));
+    }
+
+    /**
+     * @param channel: channel of ImuPipeline
+     * @param samplingPeriodUs: > 0
+     * @param maxReportLatencyUs: >= 0, 0 disables the batching in the FIFO of the sensor hub
+     */
+    public SensorRateConfig set(int channel, long samplingPeriodUs, long maxReportLatencyUs) {
+        if (samplingPeriodUs <= 0) throw new IllegalArgumentException("samplingPeriodUs must be positive");
+        if (maxReportLatencyUs < 0) throw new IllegalArgumentException("maxReportLatencyUs must not be negative");
+        samplingPeriodsUs[channel] = samplingPeriodUs;
+        maxReportLatenciesUs[channel] = maxReportLatencyUs;
+        return this;
+    }
+
+    public long getSamplingPeriodUs(int channel) {
+        return samplingPeriodsUs[channel];
+    }
+
+    public long getMaxReportLatencyUs(int channel) {
+        return maxReportLatenciesUs[channel];
+    }
+
+    /**
+     * Period of the fastest sensor
+     */
+    public long getMinSamplingPeriodUs() {
+        long min = Long.MAX_VALUE;
+        for (long period : samplingPeriodsUs) min = Math.min(min, period);
+        return min;
+    }
+
+    /**
+     * Largest report latency: the events of a batched sensor can arrive that late
+     */
+    public long getMaxReportLatencyUs() {
+        long max = 0;
+        for (long latency : maxReportLatenciesUs) max = Math.max(max, latency);
+        return max;
+    }
+
+    /**
+     * The text form accepted by parse(), with every sensor
+     */
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (int c = 0; c < NAMES.length; c++) {
+            if (c > 0) text.append(',');
+            text.append(String.format(Locale.US, "%s=%d/%d", NAMES[c], samplingPeriodsUs[c], maxReportLatenciesUs[c]));
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,131 @@
+package ch.ubiment.sensors.sensordemo.Sensors;
+
+import ch.ubiment.sensors.sensordemo.Communication.LatencyStats;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * What the sensors actually deliver: per channel, a histogram of the intervals between two events (see LatencyStats)
+ * and the effective rate over the last window, both from the timestamps of the events.
+ * <pre>
+ *   monitor.record(channel, event.timestamp);   // every event
+ *   Log.i(TAG, "rates " + monitor);             // from time to time, on any thread
+ * </pre>
+ * With batching, the events arrive in bursts but keep the timestamps of their measure: the intervals are those of
+ * the sampling, not of the callbacks.
+ *
+ * record() does not allocate. One thread records while another one reads, so every method is synchronized.
+ */
+public class SensorRateMonitor {
+    public static final long DEFAULT_WINDOW_NS = 1000000000L;
+
+    private final String[] names;
+    private final long windowNanos;
+    private final LatencyStats[] intervals;
+    private final long[] counts;
+    private final long[] lastNanos;
+    private final long[] windowStartNanos;
+    private final long[] windowCounts;
+    private final double[] ratesHz;
+    private final long[] expectedPeriodsNanos;
+
+    /**
+     * @param names: name of every channel, for toString()
+     * @param windowNanos: the effective rate is updated once per window of event time
+     */
+    public SensorRateMonitor(String[] names, long windowNanos) {
+        if (windowNanos <= 0) throw new IllegalArgumentException("windowNanos must be positive");
+        this.names = names.clone();
+        this.windowNanos = windowNanos;
+        int channels = names.length;
+        intervals = new LatencyStats[channels];
+        for (int c = 0; c < channels; c++) intervals[c] = new LatencyStats();
+        counts = new long[channels];
+        lastNanos = new long[channels];
+        windowStartNanos = new long[channels];
+        windowCounts = new long[channels];
+        ratesHz = new double[channels];
+        expectedPeriodsNanos = new long[channels];
+    }
+
+    /**
+     * The channels of ImuPipeline, with the requested periods of config for comparison
+     */
+    public SensorRateMonitor(SensorRateConfig config) {
+        this(SensorRateConfig.NAMES, DEFAULT_WINDOW_NS);
+        for (int c = 0; c < names.length; c++) {
+            expectedPeriodsNanos[c] = config.getSamplingPeriodUs(c) * 1000;
+        }
+    }
+
+    /**
+     * Record an event. An event older than the previous one of its channel counts for the rate, not for the intervals.
+     */
+    public synchronized void record(int channel, long timestampNanos) {
+        long count = counts[channel]++;
+        if (count == 0) {
+            windowStartNanos[channel] = timestampNanos;
+        } else {
+            long interval = timestampNanos - lastNanos[channel];
+            if (interval > 0) intervals[channel].record(interval);
+            windowCounts[channel]++;
+            long elapsed = timestampNanos - windowStartNanos[channel];
+            if (elapsed >= windowNanos) {
+                ratesHz[channel] = windowCounts[channel] * 1e9 / elapsed;
+                windowStartNanos[channel] = timestampNanos;
+                windowCounts[channel] = 0;
+            }
+        }
+        lastNanos[channel] = timestampNanos;
+    }
+
+    public synchronized void reset() {
+        for (LatencyStats stats : intervals) stats.reset();
+        Arrays.fill(counts, 0);
+        Arrays.fill(windowCounts, 0);
+        Arrays.fill(ratesHz, 0.0);
+    }
+
+    public int getChannelCount() {
+        return names.length;
+    }
+
+    public synchronized long getCount(int channel) {
+        return counts[channel];
+    }
+
+    /**
+     * Events per second over the last complete window, 0 before the end of the first one
+     */
+    public synchronized double getEffectiveRateHz(int channel) {
+        return ratesHz[channel];
+    }
+
+    /**
+     * Histogram of the intervals between two events of the channel, in nanoseconds
+     */
+    public LatencyStats getIntervals(int channel) {
+        return intervals[channel];
+    }
+
+    /**
+     * One line per channel, e.g. "gyroscope 197.6 Hz (set 200.0) interval p50=5.0 p99=5.6 max=10.1 ms n=11860"
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder text = new StringBuilder();
+        for (int c = 0; c < names.length; c++) {
+            if (c > 0) text.append('\n');
+            LatencyStats stats = intervals[c];
+            text.append(String.format(Locale.US, "%s %.1f Hz", names[c], ratesHz[c]));
+            if (expectedPeriodsNanos[c] > 0) {
+                text.append(String.format(Locale.US, " (set %.1f)", 1e9 / expectedPeriodsNanos[c]));
+            }
+            text.append(String.format(Locale.US, " interval p50=%.1f p99=%.1f max=%.1f ms n=%d",
+                    stats.getPercentileNanos(50) / 1e6, stats.getPercentileNanos(99) / 1e6,
+                    stats.getMaxNanos() / 1e6, counts[c]));
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,55 @@
+package ch.ubiment.sensors.sensordemo.Sensors;
+
+/**
+ * One raw sensor event, without Android: what a SensorSource gives for every SensorEvent.
+ * A plain mutable holder, reused from one event to the next: the array is never replaced.
+ *
+ * The types are the values of the android.hardware.Sensor.TYPE_* constants, so the events of a phone, of a file
+ * and of a generator are the same.
+ */
+public class SensorSample {
+    public static final int TYPE_ACCELEROMETER = 1;
+    public static final int TYPE_MAGNETIC_FIELD = 2;
+    public static final int TYPE_GYROSCOPE = 4;
+    public static final int TYPE_GRAVITY = 9;
+    public static final int TYPE_LINEAR_ACCELERATION = 10;
+    public static final int TYPE_ROTATION_VECTOR = 11;
+    public static final int TYPE_MAGNETIC_FIELD_UNCALIBRATED = 14;
+    public static final int TYPE_GYROSCOPE_UNCALIBRATED = 16;
+    public static final int TYPE_STEP_DETECTOR = 18;
+    public static final int TYPE_STEP_COUNTER = 19;
+    public static final int TYPE_ACCELEROMETER_UNCALIBRATED = 35;
+
+    public static final int MAX_VALUES = SensorEventRing.MAX_VALUES;
+
+    public int type;
+    public long timestampNanos;     // SensorEvent.timestamp time base
+    public final float[] values = new float[MAX_VALUES];
+    public int length;              // only values[0 .. length-1] belong to the event
+
+    /**
+     * Copy an event, the first MAX_VALUES values are kept
+     */
+    public void set(int type, long timestampNanos, float[] values, int length) {
+        set(type, timestampNanos, values, 0, length);
+    }
+
+    /**
+     * @param offset: index of the first value in values
+     */
+    public void set(int type, long timestampNanos, float[] values, int offset, int length) {
+        this.type = type;
+        this.timestampNanos = timestampNanos;
+        this.length = Math.min(length, MAX_VALUES);
+        System.arraycopy(values, offset, this.values, 0, this.length);
+    }
+
+    public void set(int type, long timestampNanos, float x, float y, float z) {
+        this.type = type;
+        this.timestampNanos = timestampNanos;
+        values[0] = x;
+        values[1] = y;
+        values[2] = z;
+        length = 3;
+    }
+}
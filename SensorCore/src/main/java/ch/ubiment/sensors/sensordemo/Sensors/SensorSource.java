@@ -0,0 +1,25 @@
+package ch.ubiment.sensors.sensordemo.Sensors;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Where the raw sensor events come from: the sensors of the phone (AndroidSensorSource of the IMU app), a recorded
+ * file (CsvSensorSource) or a generator (SyntheticSensorSource). The processing does not know which one it reads,
+ * so the same chain runs on a phone and on a plain JVM (see ImuProcessor).
+ * <pre>
+ *   SensorSample event = new SensorSample();
+ *   while (source.next(event)) {
+ *       processor.accept(event, sink);
+ *   }
+ * </pre>
+ * The events of a source are in the order of their timestamps, at least per sensor type.
+ */
+public interface SensorSource extends Closeable {
+
+    /**
+     * Copy the next event into sample
+     * @return false if there is no event: at the end of a file, or when a live source has nothing pending yet
+     */
+    boolean next(SensorSample sample) throws IOException;
+}
@@ -0,0 +1,278 @@
+package ch.ubiment.sensors.sensordemo.Sensors;
+
+/**
+ * Aligns the samples of several sensors to a common time base.
+ *
+ * Every sensor (channel) keeps its last ringSize samples with their timestamps. Outputs are produced at a fixed
+ * period on a common grid: the value of every channel at the output time is interpolated between the two samples
+ * around it (INTERPOLATE), or is the last sample before it (HOLD).
+ * <pre>
+ *   synchronizer.add(ACCELEROMETER, event.timestamp, event.values);   // every event
+ *   while (synchronizer.poll()) {
+ *       fuse(synchronizer.getTimestamp(), synchronizer.getValues(ACCELEROMETER), synchronizer.getValues(GYROSCOPE), ...);
+ *   }
+ * </pre>
+ * An output is produced as soon as every channel has a sample at or after the output time. If a channel is late or
+ * stopped, the output is produced anyway once another channel is maxLatencyNanos ahead of it, with the last
+ * sample of the late channel held (see getHeldCount()). The outputs are therefore at most maxLatencyNanos behind
+ * the newest event. After a pause of the sensors, the output times which can not be produced any more are skipped.
+ *
+ * Only the timestamps of the events are used, never the time of the callbacks: all the channels must share the
+ * same time base (SensorEvent.timestamp). The first output is at the first time every channel has a sample.
+ *
+ * add() and poll() do not allocate. The arrays returned by getValues() are reused. Not thread-safe.
+ */
+public class SensorSynchronizer {
+
+    public enum Alignment {
+        INTERPOLATE,    // linear interpolation between the samples around the output time
+        HOLD            // last sample at or before the output time
+    }
+
+    private final int ringSize;
+    private final long periodNanos;
+    private final long maxLatencyNanos;
+    private final Alignment alignment;
+
+    // per channel ring of samples, oldest at (heads[c] - sizes[c]) mod ringSize
+    private final int[] dimensions;
+    private final long[][] timestamps;
+    private final float[][] samples;
+    private final int[] heads;
+    private final int[] sizes;
+
+    private final float[][] outputs;
+    private boolean started = false;
+    private long nextOutputNanos;
+    private long outputNanos;
+    private long newestNanos = Long.MIN_VALUE;  // newest timestamp over all the channels
+
+    private long emittedCount = 0;
+    private long heldCount = 0;
+    private long skippedCount = 0;
+    private long outOfOrderCount = 0;
+    private long overrunCount = 0;
+
+    /**
+     * @param dimensions: number of values of the samples of every channel, e.g. {3, 3, 3} for three vector sensors
+     * @param ringSize: samples kept per channel. Must cover maxLatencyNanos at the rate of the fastest sensor.
+     * @param periodNanos: period of the outputs
+     * @param maxLatencyNanos: how far behind the newest event an output can be before a late channel is held
+     * @param alignment: how the values of a channel are computed at the output time
+     */
+    public SensorSynchronizer(int[] dimensions, int ringSize, long periodNanos, long maxLatencyNanos,
+                              Alignment alignment) {
+        if (ringSize < 2) throw new IllegalArgumentException("ringSize must be at least 2");
+        if (periodNanos <= 0) throw new IllegalArgumentException("periodNanos must be positive");
+        this.ringSize = ringSize;
+        this.periodNanos = periodNanos;
+        this.maxLatencyNanos = maxLatencyNanos;
+        this.alignment = alignment;
+        this.dimensions = dimensions.clone();
+        int channels = dimensions.length;
+        timestamps = new long[channels][ringSize];
+        samples = new float[channels][];
+        outputs = new float[channels][];
+        for (int c = 0; c < channels; c++) {
+            samples[c] = new float[ringSize * dimensions[c]];
+            outputs[c] = new float[dimensions[c]];
+        }
+        heads = new int[channels];
+        sizes = new int[channels];
+    }
+
+    /**
+     * Record a sample of a channel.
+     * @param values: at least dimensions[channel] values, copied
+     * @return false if the sample is not newer than the previous one of the channel, it is ignored
+     */
+    public boolean add(int channel, long timestampNanos, float[] values) {
+        if (sizes[channel] > 0 && timestampNanos <= timestamps[channel][newest(channel)]) {
+            outOfOrderCount++;
+            return false;
+        }
+        int slot = heads[channel];
+        if (sizes[channel] == ringSize) {
+            // the oldest sample is overwritten: it is lost if the next output still needed it
+            if (started && timestamps[channel][slot] >= nextOutputNanos) overrunCount++;
+        } else {
+            sizes[channel]++;
+        }
+        timestamps[channel][slot] = timestampNanos;
+        int dimension = dimensions[channel];
+        System.arraycopy(values, 0, samples[channel], slot * dimension, dimension);
+        heads[channel] = (slot + 1 == ringSize) ? 0 : slot + 1;
+        if (timestampNanos > newestNanos) newestNanos = timestampNanos;
+        return true;
+    }
+
+    /**
+     * Produce the next output if it is due. Call it in a loop after every add(): several outputs can be due at once.
+     * @return true if an output was produced, see getTimestamp() and getValues()
+     */
+    public boolean poll() {
+        int channels = dimensions.length;
+        if (!started) {
+            long first = Long.MIN_VALUE;
+            for (int c = 0; c < channels; c++) {
+                if (sizes[c] == 0) return false;
+                first = Math.max(first, timestamps[c][oldest(c)]);
+            }
+            nextOutputNanos = first;
+            started = true;
+        }
+
+        // after a pause, jump to the oldest output time which still respects the latency bound
+        long behind = newestNanos - maxLatencyNanos - nextOutputNanos;
+        if (behind > periodNanos) {
+            long skipped = behind / periodNanos;
+            nextOutputNanos += skipped * periodNanos;
+            skippedCount += skipped;
+        }
+
+        long t = nextOutputNanos;
+        boolean complete = true;
+        for (int c = 0; c < channels; c++) {
+            if (timestamps[c][newest(c)] < t) {
+                complete = false;
+                break;
+            }
+        }
+        if (!complete) {
+            if (newestNanos < t + maxLatencyNanos) return false;
+            heldCount++;
+        }
+
+        for (int c = 0; c < channels; c++) {
+            sample(c, t);
+        }
+        outputNanos = t;
+        nextOutputNanos = t + periodNanos;
+        emittedCount++;
+        return true;
+    }
+
+    /**
+     * Value of a channel at time t, into outputs[channel]
+     */
+    private void sample(int channel, long t) {
+        long[] ts = timestamps[channel];
+        float[] values = samples[channel];
+        float[] output = outputs[channel];
+        int dimension = dimensions[channel];
+
+        // newest sample at or before t, the ring is small: linear scan from the newest
+        int after = -1;
+        int before = newest(channel);
+        int n = sizes[channel];
+        while (ts[before] > t) {
+            after = before;
+            if (--n == 0) {
+                // every retained sample is newer than t: use the oldest one
+                System.arraycopy(values, after * dimension, output, 0, dimension);
+                return;
+            }
+            before = (before == 0) ? ringSize - 1 : before - 1;
+        }
+        if (alignment == Alignment.HOLD || after < 0) {
+            System.arraycopy(values, before * dimension, output, 0, dimension);
+            return;
+        }
+        float w = (float) ((double) (t - ts[before]) / (ts[after] - ts[before]));
+        int b = before * dimension;
+        int a = after * dimension;
+        for (int k = 0; k < dimension; k++) {
+            output[k] = values[b + k] + w * (values[a + k] - values[b + k]);
+        }
+    }
+
+    private int newest(int channel) {
+        int head = heads[channel];
+        return (head == 0) ? ringSize - 1 : head - 1;
+    }
+
+    private int oldest(int channel) {
+        int index = heads[channel] - sizes[channel];
+        return (index < 0) ? index + ringSize : index;
+    }
+
+    /**
+     * Forget every sample, the next output will be at the first time every channel has a new sample
+     */
+    public void clear() {
+        for (int c = 0; c < dimensions.length; c++) {
+            heads[c] = 0;
+            sizes[c] = 0;
+        }
+        started = false;
+        newestNanos = Long.MIN_VALUE;
+    }
+
+    /**
+     * Time of the last output, in the time base of the samples
+     */
+    public long getTimestamp() {
+        return outputNanos;
+    }
+
+    /**
+     * Values of a channel at getTimestamp(). The array is reused by the next poll().
+     */
+    public float[] getValues(int channel) {
+        return outputs[channel];
+    }
+
+    public int getChannelCount() {
+        return dimensions.length;
+    }
+
+    public long getPeriodNanos() {
+        return periodNanos;
+    }
+
+    public long getMaxLatencyNanos() {
+        return maxLatencyNanos;
+    }
+
+    public Alignment getAlignment() {
+        return alignment;
+    }
+
+    public long getEmittedCount() {
+        return emittedCount;
+    }
+
+    /**
+     * Outputs produced while a channel had no sample after the output time, its last sample was held
+     */
+    public long getHeldCount() {
+        return heldCount;
+    }
+
+    /**
+     * Output times which were not produced because the sensors paused, or because poll() was not called
+     */
+    public long getSkippedCount() {
+        return skippedCount;
+    }
+
+    /**
+     * Samples ignored because they were not newer than the previous sample of their channel
+     */
+    public long getOutOfOrderCount() {
+        return outOfOrderCount;
+    }
+
+    /**
+     * Samples overwritten in their ring before being used: ringSize is too small for the rate of the sensor
+     */
+    public long getOverrunCount() {
+        return overrunCount;
+    }
+
+    @Override
+    public String toString() {
+        return "emitted=" + emittedCount + " held=" + heldCount + " skipped=" + skippedCount
+                + " outOfOrder=" + outOfOrderCount + " overrun=" + overrunCount;
+    }
+}
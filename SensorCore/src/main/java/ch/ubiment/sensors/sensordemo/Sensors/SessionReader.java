@@ -0,0 +1,199 @@
+package ch.ubiment.sensors.sensordemo.Sensors;
+
+import ch.ubiment.sensors.sensordemo.Communication.ImuSample;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads back the segments written by a SessionRecorder, in order. As a SensorSource it gives the raw events, and
+ * read() gives the fused samples as well.
+ * <pre>
+ *   int kind;
+ *   while ((kind = reader.read(event, sample)) != SessionReader.END) {
+ *       if (kind == SessionReader.EVENT) ... else ...
+ *   }
+ * </pre>
+ * The records after the tail of a segment are ignored: a session interrupted by a crash reads up to its last
+ * complete record, see isComplete().
+ */
+public class SessionReader implements SensorSource {
+    public static final int END = 0;
+    public static final int EVENT = SessionRecorder.EVENT;
+    public static final int SAMPLE = SessionRecorder.SAMPLE;
+
+    private final File[] segments;
+    private int nextSegment = 0;
+    private ByteBuffer buffer = null;      // current segment, up to its tail
+    private long epochOffsetNanos = 0;
+    private boolean complete = false;
+    private long eventCount = 0;
+    private long sampleCount = 0;
+
+    /**
+     * @throws IOException if the directory contains no segment
+     */
+    public SessionReader(File directory) throws IOException {
+        segments = segments(directory);
+        if (segments.length == 0) throw new IOException("no session in " + directory);
+        openNext();
+    }
+
+    /**
+     * Segment files of a directory, in the order of the session
+     */
+    static File[] segments(File directory) {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SessionRecorder.PREFIX) && name.endsWith(SessionRecorder.SUFFIX);
+            }
+        });
+        if (files == null) return new File[0];
+        // the indices are zero-padded
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * @return false after the last segment
+     * @throws IOException if a segment is not one of a SessionRecorder
+     */
+    private boolean openNext() throws IOException {
+        buffer = null;
+        if (nextSegment == segments.length) return false;
+        File file = segments[nextSegment++];
+        MappedByteBuffer mapped;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        if (mapped.capacity() < SessionRecorder.HEADER_SIZE
+                || mapped.getInt(SessionRecorder.MAGIC_OFFSET) != SessionRecorder.MAGIC) {
+            throw new IOException(file + " is not a session segment");
+        }
+        if (mapped.getShort(SessionRecorder.VERSION_OFFSET) != SessionRecorder.VERSION) {
+            throw new IOException(file + ": unknown version " + mapped.getShort(SessionRecorder.VERSION_OFFSET));
+        }
+        long tail = mapped.getLong(SessionRecorder.TAIL_OFFSET);
+        if (tail < SessionRecorder.HEADER_SIZE || tail > mapped.capacity()) {
+            throw new IOException(file + ": tail out of the file " + tail);
+        }
+        epochOffsetNanos = mapped.getLong(SessionRecorder.EPOCH_OFFSET_OFFSET);
+        complete |= mapped.getShort(SessionRecorder.STATE_OFFSET) == SessionRecorder.CLOSED;
+        mapped.position(SessionRecorder.HEADER_SIZE);
+        mapped.limit((int) tail);
+        buffer = mapped;
+        return true;
+    }
+
+    /**
+     * Read the next record into event or into sample
+     * @return EVENT, SAMPLE, or END after the last record
+     * @throws IOException if a record is malformed
+     */
+    public int read(SensorSample event, ImuSample sample) throws IOException {
+        while (buffer != null && !buffer.hasRemaining()) openNext();
+        if (buffer == null) return END;
+        try {
+            return readRecord(event, sample);
+        } catch (BufferUnderflowException e) {
+            throw malformed();
+        }
+    }
+
+    private int readRecord(SensorSample event, ImuSample sample) throws IOException {
+        byte kind = buffer.get();
+        if (kind == SessionRecorder.EVENT) {
+            event.type = buffer.getInt();
+            int length = buffer.get();
+            if (length < 0 || length > SensorSample.MAX_VALUES) throw malformed();
+            event.timestampNanos = buffer.getLong();
+            for (int i = 0; i < length; i++) event.values[i] = buffer.getFloat();
+            event.length = length;
+            eventCount++;
+            return EVENT;
+        }
+        if (kind == SessionRecorder.SAMPLE) {
+            byte flags = buffer.get();
+            sample.isStepDetectedSensor = (flags & 1) != 0;
+            sample.isStepDetected = (flags & 2) != 0;
+            sample.sequence = buffer.getInt();
+            sample.timestampNanos = buffer.getLong();
+            getFloats(sample.accelerometer);
+            getFloats(sample.linearAcceleration);
+            getFloats(sample.gravity);
+            getFloats(sample.magneticField);
+            getFloats(sample.gyroscope);
+            getFloats(sample.orientationXYZW);
+            getFloats(sample.orientationGravAccGyroXYZW);
+            getFloats(sample.orientationAccGyroXYZW);
+            sampleCount++;
+            return SAMPLE;
+        }
+        throw malformed();
+    }
+
+    private void getFloats(float[] values) {
+        for (int i = 0; i < values.length; i++) values[i] = buffer.getFloat();
+    }
+
+    private IOException malformed() {
+        return new IOException("malformed record in " + segments[nextSegment - 1] + " at " + buffer.position());
+    }
+
+    /**
+     * The raw events only, the samples are skipped
+     */
+    @Override
+    public boolean next(SensorSample sample) throws IOException {
+        while (true) {
+            while (buffer != null && !buffer.hasRemaining()) openNext();
+            if (buffer == null) return false;
+            if (buffer.get(buffer.position()) != SessionRecorder.SAMPLE) return read(sample, null) == EVENT;
+            if (buffer.remaining() < SessionRecorder.SAMPLE_SIZE) throw malformed();
+            buffer.position(buffer.position() + SessionRecorder.SAMPLE_SIZE);
+        }
+    }
+
+    /**
+     * Add it to the timestamps of the events to get nanoseconds since epoch
+     */
+    public long getEpochOffsetNanos() {
+        return epochOffsetNanos;
+    }
+
+    /**
+     * Whether the session was closed by the recorder, false after a crash. Known once every segment is read.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    public long getEventCount() {
+        return eventCount;
+    }
+
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    @Override
+    public void close() {
+        buffer = null;
+        nextSegment = segments.length;
+    }
+}
@@ -0,0 +1,354 @@
+package ch.ubiment.sensors.sensordemo.Sensors;
+
+import ch.ubiment.sensors.sensordemo.Communication.ImuSample;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records a session on the phone, whether the receiver is reachable or not: every raw sensor event and every fused
+ * sample is appended to memory-mapped segment files of a directory, segment-00000.ubs, segment-00001.ubs, ...
+ * Read them back with SessionReader.
+ * <pre>
+ *   recorder.recordEvent(event);       // every SensorSample of the source
+ *   recorder.recordSample(imuSample);  // every sample of the pipeline
+ * </pre>
+ * A segment is a header of HEADER_SIZE bytes followed by the records. The header holds the tail: the end of the last
+ * complete record, written after each record. The mapped pages belong to the kernel, so when the app crashes
+ * everything up to the tail is in the file, and the reader ignores what is after it. The kernel writes them to the
+ * disk within seconds, sync() forces it (a crash of the phone loses what was not written).
+ *
+ * The segments are preallocated (zero-filled, not sparse, so that a full disk is detected before writing) by a
+ * background thread, which also forces the full segments to the disk: when a segment is full, the recorder moves to
+ * the next one without waiting for the disk. The record methods only copy bytes into the mapped buffer, they do not
+ * allocate. Not thread-safe: record from one thread.
+ */
+public class SessionRecorder implements Closeable {
+    public static final long DEFAULT_SEGMENT_SIZE = 8L << 20;   // about 8 minutes of every sensor at 200 Hz
+    public static final int HEADER_SIZE = 64;
+
+    static final int MAGIC = 0x55425353;    // "UBSS"
+    static final short VERSION = 1;
+    static final String PREFIX = "segment-";
+    static final String SUFFIX = ".ubs";
+
+    // header
+    static final int MAGIC_OFFSET = 0;
+    static final int VERSION_OFFSET = 4;
+    static final int STATE_OFFSET = 6;
+    static final int INDEX_OFFSET = 8;
+    static final int CREATED_OFFSET = 16;
+    static final int EPOCH_OFFSET_OFFSET = 24;
+    static final int TAIL_OFFSET = 32;
+    static final int RECORDS_OFFSET = 40;
+
+    // states of a segment
+    static final short OPEN = 0;        // being written, or the recorder crashed
+    static final short FULL = 1;        // the session goes on in the next segment
+    static final short CLOSED = 2;      // last segment of a session closed by close()
+
+    // records: kind, then
+    //   EVENT:  sensor type (int), value count (byte), timestamp (long, SensorEvent time base), values (float)
+    //   SAMPLE: flags (byte), sequence (int), timestamp (long, since epoch), the 5 vectors and the 3 quaternions
+    static final byte EVENT = 1;
+    static final byte SAMPLE = 2;
+    static final int EVENT_HEADER_SIZE = 1 + 4 + 1 + 8;
+    static final int SAMPLE_SIZE = 1 + 1 + 4 + 8 + 5 * 3 * 4 + 3 * 4 * 4;
+    private static final int MAX_RECORD_SIZE = Math.max(SAMPLE_SIZE, EVENT_HEADER_SIZE + 4 * SensorSample.MAX_VALUES);
+
+    private final File directory;
+    private final long segmentSize;
+    private final long epochOffsetNanos;
+    private final ExecutorService background;
+    private Future<Segment> spare;      // next segment, allocated by the background thread
+
+    private Segment segment;
+    private int segmentCount = 0;
+    private long eventCount = 0;
+    private long sampleCount = 0;
+    private long byteCount = 0;
+    private boolean closed = false;
+
+    /**
+     * A mapped segment file
+     */
+    private static final class Segment {
+        final File file;
+        final int index;
+        final MappedByteBuffer buffer;
+        long records = 0;
+
+        Segment(File file, int index, MappedByteBuffer buffer) {
+            this.file = file;
+            this.index = index;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * @param directory: created if needed, must not contain segments already
+     * @param segmentSize: bytes per segment file, header included
+     * @param epochOffsetNanos: add it to the timestamps of the events to get nanoseconds since epoch, kept in the
+     *                          headers for the reader
+     * @throws IOException if the directory or the first segment can not be created
+     */
+    public SessionRecorder(File directory, long segmentSize, long epochOffsetNanos) throws IOException {
+        if (segmentSize < HEADER_SIZE + MAX_RECORD_SIZE || segmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("segment size out of range: " + segmentSize);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("can not create " + directory);
+        }
+        if (SessionReader.segments(directory).length > 0) {
+            throw new IOException(directory + " already contains a session");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.epochOffsetNanos = epochOffsetNanos;
+        background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SessionRecorder");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        segment = allocate(0);
+        segmentCount = 1;
+        prepareSpare(1);
+    }
+
+    /**
+     * Record a raw event, see SensorSource
+     * @throws IOException if the next segment could not be allocated, the event is lost
+     */
+    public void recordEvent(SensorSample event) throws IOException {
+        recordEvent(event.type, event.timestampNanos, event.values, event.length);
+    }
+
+    /**
+     * @param length: number of values, the first SensorSample.MAX_VALUES are kept
+     */
+    public void recordEvent(int sensorType, long timestampNanos, float[] values, int length) throws IOException {
+        int count = Math.min(length, SensorSample.MAX_VALUES);
+        MappedByteBuffer buffer = reserve(EVENT_HEADER_SIZE + 4 * count);
+        buffer.put(EVENT);
+        buffer.putInt(sensorType);
+        buffer.put((byte) count);
+        buffer.putLong(timestampNanos);
+        for (int i = 0; i < count; i++) buffer.putFloat(values[i]);
+        commit(buffer);
+        eventCount++;
+    }
+
+    /**
+     * Record a sample of the pipeline, as it would be sent
+     * @throws IOException if the next segment could not be allocated, the sample is lost
+     */
+    public void recordSample(ImuSample sample) throws IOException {
+        MappedByteBuffer buffer = reserve(SAMPLE_SIZE);
+        buffer.put(SAMPLE);
+        buffer.put((byte) ((sample.isStepDetectedSensor ? 1 : 0) | (sample.isStepDetected ? 2 : 0)));
+        buffer.putInt(sample.sequence);
+        buffer.putLong(sample.timestampNanos);
+        putFloats(buffer, sample.accelerometer);
+        putFloats(buffer, sample.linearAcceleration);
+        putFloats(buffer, sample.gravity);
+        putFloats(buffer, sample.magneticField);
+        putFloats(buffer, sample.gyroscope);
+        putFloats(buffer, sample.orientationXYZW);
+        putFloats(buffer, sample.orientationGravAccGyroXYZW);
+        putFloats(buffer, sample.orientationAccGyroXYZW);
+        commit(buffer);
+        sampleCount++;
+    }
+
+    private static void putFloats(ByteBuffer buffer, float[] values) {
+        for (float value : values) buffer.putFloat(value);
+    }
+
+    /**
+     * @return the buffer of the segment with room for size bytes at its position
+     */
+    private MappedByteBuffer reserve(int size) throws IOException {
+        if (closed) throw new IOException("recorder closed");
+        if (segment.buffer.remaining() < size) rotate();
+        return segment.buffer;
+    }
+
+    /**
+     * Publish the record written since the tail
+     */
+    private void commit(MappedByteBuffer buffer) {
+        int position = buffer.position();
+        byteCount += position - buffer.getLong(TAIL_OFFSET);
+        segment.records++;
+        buffer.putLong(RECORDS_OFFSET, segment.records);
+        // last: the reader trusts everything before the tail
+        buffer.putLong(TAIL_OFFSET, position);
+    }
+
+    private void rotate() throws IOException {
+        final Segment full = segment;
+        // waits only if the background thread is late
+        Segment next = takeSpare();
+        full.buffer.putShort(STATE_OFFSET, FULL);
+        segment = next;
+        segmentCount++;
+        background.execute(new Runnable() {
+            @Override
+            public void run() {
+                full.buffer.force();
+            }
+        });
+        prepareSpare(next.index + 1);
+    }
+
+    private void prepareSpare(final int index) {
+        spare = background.submit(new Callable<Segment>() {
+            @Override
+            public Segment call() throws IOException {
+                return allocate(index);
+            }
+        });
+    }
+
+    /**
+     * @throws IOException if the allocation of the spare segment failed, it is tried again at the next rotation
+     */
+    private Segment takeSpare() throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return spare.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            prepareSpare(segment.index + 1);
+            Throwable cause = e.getCause();
+            throw (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Create a zero-filled segment file and map it
+     */
+    private Segment allocate(int index) throws IOException {
+        File file = new File(directory, segmentName(index));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer zeros = ByteBuffer.allocateDirect(64 * 1024);
+            long position = 0;
+            while (position < segmentSize) {
+                zeros.clear();
+                zeros.limit((int) Math.min(zeros.capacity(), segmentSize - position));
+                position += channel.write(zeros, position);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            buffer.putInt(MAGIC_OFFSET, MAGIC);
+            buffer.putShort(VERSION_OFFSET, VERSION);
+            buffer.putShort(STATE_OFFSET, OPEN);
+            buffer.putInt(INDEX_OFFSET, index);
+            buffer.putLong(CREATED_OFFSET, System.currentTimeMillis());
+            buffer.putLong(EPOCH_OFFSET_OFFSET, epochOffsetNanos);
+            buffer.putLong(TAIL_OFFSET, HEADER_SIZE);
+            buffer.putLong(RECORDS_OFFSET, 0);
+            buffer.position(HEADER_SIZE);
+            return new Segment(file, index, buffer);
+        } catch (IOException e) {
+            if (!file.delete()) file.deleteOnExit();
+            throw e;
+        } finally {
+            // the mapping stays valid
+            raf.close();
+        }
+    }
+
+    static String segmentName(int index) {
+        return PREFIX + String.format(Locale.ROOT, "%05d", index) + SUFFIX;
+    }
+
+    /**
+     * Write the current segment to the disk, blocks for the time of the write
+     */
+    public void sync() {
+        if (!closed) segment.buffer.force();
+    }
+
+    /**
+     * Mark the session complete, write it to the disk and delete the unused spare segment
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        segment.buffer.putShort(STATE_OFFSET, CLOSED);
+        segment.buffer.force();
+        background.shutdown();
+        try {
+            background.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Segment unused;
+        try {
+            unused = spare.isDone() ? spare.get() : null;
+        } catch (ExecutionException | InterruptedException e) {
+            unused = null;      // no file was left
+        }
+        if (unused != null && !unused.file.delete()) throw new IOException("can not delete " + unused.file);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Segments written so far, the current one included
+     */
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    public long getEventCount() {
+        return eventCount;
+    }
+
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Size of the records, without the headers and the free space of the segments
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    @Override
+    public String toString() {
+        return eventCount + " events, " + sampleCount + " samples, " + byteCount + " bytes in " + segmentCount
+                + " segments of " + directory;
+    }
+}
@@ -0,0 +1,131 @@
+package ch.ubiment.sensors.sensordemo.Sensors;
+
+import ch.ubiment.sensors.sensordemo.Communication.FrameSerializer;
+import ch.ubiment.sensors.sensordemo.Communication.ImuSample;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a recorded session through the processing of the app again: a SessionReader (binary segments of
+ * SessionRecorder) or a CsvSensorSource (data_imu_raw.csv), into a new ImuPipeline and a FrameSerializer, the frames
+ * going to any FrameSink (FileFrameSink, SenderFrameSink, MemoryFrameSink).
+ * <pre>
+ *   SensorSource source = SessionReplay.open(new File("sessions/20240101-120000"));
+ *   SessionReplay replay = new SessionReplay(FrameSerializers.imu(FrameSerializers.BINARY, id, 0), 1.0);
+ *   replay.run(source, new SenderFrameSink(new UdpClientSend(host, port)));
+ * </pre>
+ * With AS_FAST_AS_POSSIBLE, the events are processed without waiting, to measure the throughput. With a real time
+ * factor, every event is processed when its time comes: 1.0 at the pace of the recording, 10.0 ten times faster.
+ */
+public class SessionReplay {
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+
+    private final FrameSerializer<ImuSample> serializer;
+    private final double realTimeFactor;
+    private ImuProcessor processor;
+    private long elapsedNanos = 0;
+    private long maxLagNanos = 0;
+
+    /**
+     * @param realTimeFactor: AS_FAST_AS_POSSIBLE, or the speed of the replay relative to the recording
+     */
+    public SessionReplay(FrameSerializer<ImuSample> serializer, double realTimeFactor) {
+        if (realTimeFactor < 0 || Double.isNaN(realTimeFactor) || Double.isInfinite(realTimeFactor)) {
+            throw new IllegalArgumentException("invalid real time factor: " + realTimeFactor);
+        }
+        this.serializer = serializer;
+        this.realTimeFactor = realTimeFactor;
+    }
+
+    /**
+     * @param input: a directory of SessionRecorder segments, or a csv file of the Acquisition scripts
+     */
+    public static SensorSource open(File input) throws IOException {
+        if (input.isDirectory()) return new SessionReader(input);
+        InputStream in = new FileInputStream(input);
+        try {
+            return CsvSensorSource.of(in);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Offset of the event timestamps of a source opened by open(), 0 for the others
+     */
+    public static long epochOffsetNanos(SensorSource source) {
+        if (source instanceof SessionReader) return ((SessionReader) source).getEpochOffsetNanos();
+        if (source instanceof CsvSensorSource) return ((CsvSensorSource) source).getEpochOffsetNanos();
+        return 0;
+    }
+
+    /**
+     * Replay every event of the source with a new pipeline, the frames have the timestamps of the recording.
+     * The source is not closed.
+     * @return number of frames
+     * @throws InterruptedIOException if the thread is interrupted while waiting for an event
+     */
+    public long run(SensorSource source, ImuProcessor.FrameSink sink) throws IOException {
+        serializer.reset();
+        processor = new ImuProcessor(new ImuPipeline(), serializer, epochOffsetNanos(source));
+        SensorSample event = new SensorSample();
+        long start = System.nanoTime();
+        long first = Long.MIN_VALUE;
+        long frames = 0;
+        maxLagNanos = 0;
+        while (source.next(event)) {
+            if (realTimeFactor != AS_FAST_AS_POSSIBLE) {
+                if (first == Long.MIN_VALUE) first = event.timestampNanos;
+                long due = start + (long) ((event.timestampNanos - first) / realTimeFactor);
+                long wait = due - System.nanoTime();
+                while (wait > 0) {
+                    LockSupport.parkNanos(this, wait);
+                    if (Thread.interrupted()) throw new InterruptedIOException("replay interrupted");
+                    wait = due - System.nanoTime();
+                }
+                maxLagNanos = Math.max(maxLagNanos, -wait);
+            }
+            frames += processor.accept(event, sink);
+        }
+        elapsedNanos = System.nanoTime() - start;
+        return frames;
+    }
+
+    /**
+     * Processor of the last run(), null before: its counters and its pipeline
+     */
+    public ImuProcessor getProcessor() {
+        return processor;
+    }
+
+    /**
+     * Duration of the last run()
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Largest delay of an event behind its time in the last run(), 0 with AS_FAST_AS_POSSIBLE
+     */
+    public long getMaxLagNanos() {
+        return maxLagNanos;
+    }
+
+    public double getRealTimeFactor() {
+        return realTimeFactor;
+    }
+
+    @Override
+    public String toString() {
+        String speed = (realTimeFactor == AS_FAST_AS_POSSIBLE) ? "max speed" : realTimeFactor + "x";
+        return processor + " in " + elapsedNanos / 1000000 + " ms at " + speed
+                + ", max lag " + maxLagNanos / 1000 + " us";
+    }
+}
@@ -0,0 +1,97 @@
+package ch.ubiment.sensors.sensordemo.Sensors;
+
+import java.util.Random;
+
+/**
+ * Generated events of the five sensors of ImuPipeline: a walk at stepsPerSecond with a bounce of the vertical
+ * acceleration, a slow sway and a slow turn, plus noise. Every sensor runs at the period of a SensorRateConfig with
+ * its own phase and some jitter, and the events come in timestamp order, as from the listeners of a phone.
+ *
+ * The same seed gives the same events. next() does not allocate: the source can feed benchmarks for as long as
+ * needed (durationNanos = Long.MAX_VALUE).
+ */
+public class SyntheticSensorSource implements SensorSource {
+    private static final long JITTER_NS = 200000L;
+    private static final double GRAVITY = 9.81;
+
+    private final long[] periodsNanos = new long[SensorRateConfig.NAMES.length];
+    private final long[] nextNanos = new long[SensorRateConfig.NAMES.length];
+    private final long endNanos;
+    private final double stepsPerSecond;
+    private final Random random;
+    private long count = 0;
+
+    /**
+     * 2 steps per second, every sensor at the period of config
+     */
+    public SyntheticSensorSource(SensorRateConfig config, long durationNanos, long seed) {
+        this(config, durationNanos, seed, 2.0);
+    }
+
+    /**
+     * @param durationNanos: the events are in [0, durationNanos)
+     * @param stepsPerSecond: frequency of the bounce of the vertical acceleration
+     */
+    public SyntheticSensorSource(SensorRateConfig config, long durationNanos, long seed, double stepsPerSecond) {
+        this.endNanos = durationNanos;
+        this.stepsPerSecond = stepsPerSecond;
+        this.random = new Random(seed);
+        for (int c = 0; c < periodsNanos.length; c++) {
+            periodsNanos[c] = config.getSamplingPeriodUs(c) * 1000;
+            // the sensors do not start together
+            nextNanos[c] = 1000000L + (long) random.nextInt((int) Math.min(periodsNanos[c], Integer.MAX_VALUE));
+        }
+    }
+
+    @Override
+    public boolean next(SensorSample sample) {
+        int channel = 0;
+        for (int c = 1; c < nextNanos.length; c++) {
+            if (nextNanos[c] < nextNanos[channel]) channel = c;
+        }
+        long ts = nextNanos[channel];
+        if (ts >= endNanos) return false;
+        nextNanos[channel] += periodsNanos[channel] + random.nextInt((int) (2 * JITTER_NS)) - JITTER_NS;
+
+        double t = ts * 1e-9;
+        double bounce = 1.5 * Math.sin(2 * Math.PI * stepsPerSecond * t);
+        double heading = 0.2 * t;
+        switch (channel) {
+            case ImuPipeline.ACCELEROMETER:
+                sample.set(SensorSample.TYPE_ACCELEROMETER, ts,
+                        (float) (0.3 * Math.sin(Math.PI * stepsPerSecond * t) + 0.05 * random.nextGaussian()),
+                        (float) (0.2 + 0.05 * random.nextGaussian()),
+                        (float) (GRAVITY + bounce + 0.05 * random.nextGaussian()));
+                break;
+            case ImuPipeline.LINEAR_ACCELERATION:
+                sample.set(SensorSample.TYPE_LINEAR_ACCELERATION, ts, 0, 0, (float) bounce);
+                break;
+            case ImuPipeline.GRAVITY:
+                sample.set(SensorSample.TYPE_GRAVITY, ts, 0, 0.2f, 9.79f);
+                break;
+            case ImuPipeline.MAGNETIC_FIELD:
+                sample.set(SensorSample.TYPE_MAGNETIC_FIELD, ts,
+                        (float) (20 * Math.cos(heading)), (float) (20 * Math.sin(heading)), -40);
+                break;
+            default:
+                sample.set(SensorSample.TYPE_GYROSCOPE, ts,
+                        (float) (0.1 * Math.cos(2 * Math.PI * stepsPerSecond * t) + 0.01 * random.nextGaussian()),
+                        (float) (0.01 * random.nextGaussian()),
+                        (float) (0.2 + 0.01 * random.nextGaussian()));
+                break;
+        }
+        count++;
+        return true;
+    }
+
+    /**
+     * Events generated so far
+     */
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,71 @@
+package ch.ubiment.sensors.sensordemo.Sensors;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Publishes the latest state of a writer thread to a reader thread, without lock, copy nor allocation.
+ *
+ * The three instances are used in turn: the writer fills its own, publish() swaps it with the spare one, and the
+ * reader takes the spare one in getReadBuffer() if something new was published. Both sides always own a complete
+ * instance, so the reader never sees a half written state; it only sees the latest one, older ones are skipped.
+ * <pre>
+ *   // writer
+ *   Snapshot s = buffer.getWriteBuffer();
+ *   s.x = ...;
+ *   buffer.publish();
+ *
+ *   // reader
+ *   Snapshot s = buffer.getReadBuffer();   // latest published, stays valid until the next getReadBuffer()
+ * </pre>
+ * One writer thread and one reader thread.
+ */
+public class TripleBuffer<T> {
+    private static final int INDEX_MASK = 3;
+    private static final int FRESH = 4;     // the spare instance was published and not read yet
+
+    private final Object[] buffers;
+    private final AtomicInteger spare = new AtomicInteger(1);   // index of the spare instance | FRESH
+    private int writeIndex = 0;
+    private int readIndex = 2;
+
+    /**
+     * The three instances must be distinct and should start in the same state
+     */
+    public TripleBuffer(T first, T second, T third) {
+        buffers = new Object[] {first, second, third};
+    }
+
+    /**
+     * The instance owned by the writer, to be filled before publish(). Writer thread only.
+     */
+    @SuppressWarnings("unchecked")
+    public T getWriteBuffer() {
+        return (T) buffers[writeIndex];
+    }
+
+    /**
+     * Make the write buffer the latest state and give a new write buffer to the writer.
+     * The new write buffer holds an older state: the writer must rewrite every field. Writer thread only.
+     */
+    public void publish() {
+        writeIndex = spare.getAndSet(writeIndex | FRESH) & INDEX_MASK;
+    }
+
+    /**
+     * The latest published state. Reader thread only.
+     */
+    @SuppressWarnings("unchecked")
+    public T getReadBuffer() {
+        if ((spare.get() & FRESH) != 0) {
+            readIndex = spare.getAndSet(readIndex) & INDEX_MASK;
+        }
+        return (T) buffers[readIndex];
+    }
+
+    /**
+     * True if a state was published since the last getReadBuffer(). Reader thread only.
+     */
+    public boolean hasNew() {
+        return (spare.get() & FRESH) != 0;
+    }
+}
@@ -7,6 +7,7 @@ import ch.ubiment.sensors.sensordemo.Algebra.VectorOperator;
 /**
  * Ubiment Step Detector:
  * Uses orientation, accelerometer and timestamps to detect steps.
+ * update() does not allocate.
  */
 public class UbiStepDetector {
     String TAG = this.toString();
@@ -31,6 +32,9 @@ public class UbiStepDetector {
     private float verticalPosition = 0.0f;
     private float verticalVelocity = 0.0f;
 
+    private final float[] worldZ = new float[3];
+    private final float[] bufferXYZW = new float[4];
+
 
     /**
      * Class constructor
@@ -56,8 +60,26 @@ public class UbiStepDetector {
      * @return true if a step is detected
      */
     public boolean update(float[] currentAccel, Quaternion orientation, float timeSeconds) {
-        // We use the provided orientation to get the vertical axis
-        float[] worldZ = orientation.getUpVectorFloat();
+        orientation.getFloatArrayXYZW(bufferXYZW);
+        return update(currentAccel, bufferXYZW, timeSeconds);
+    }
+
+    /**
+     * Same as update(float[], Quaternion, float) with the orientation given as {qx, qy, qz, qw}
+     */
+    public boolean update(float[] currentAccel, float[] orientationXYZW, float timeSeconds) {
+        // We use the provided orientation to get the vertical axis (last row of its rotation matrix)
+        float x = orientationXYZW[0];
+        float y = orientationXYZW[1];
+        float z = orientationXYZW[2];
+        float w = orientationXYZW[3];
+        double R20 = 2.0*x*z - 2.0*y*w;
+        double R21 = 2.0*y*z + 2.0*x*w;
+        double R22 = 1.0 - 2.0*x*x - 2.0*y*y;
+        double norm = Math.sqrt(R20*R20 + R21*R21 + R22*R22);
+        worldZ[0] = (float) (R20/norm);
+        worldZ[1] = (float) (R21/norm);
+        worldZ[2] = (float) (R22/norm);
 
         // Using dot product, we extract the tha acceleration along world Z axis
         float dotZ = VectorOperator.dot(worldZ, currentAccel);
@@ -73,9 +95,13 @@ public class UbiStepDetector {
         verticalAccelerationBuffer[currentBufferIndex] = currentZ * this.accelerometerDelay;
         float velocityEstimate = VectorOperator.sum(verticalAccelerationBuffer);
         verticalVelocityBuffer[currentBufferIndex] = velocityEstimate;
-        float[] minMax = VectorOperator.minMax(verticalVelocityBuffer);
-        float minVelocity = minMax[0];
-        float maxVelocity = minMax[1];
+        float minVelocity = Float.MAX_VALUE;
+        float maxVelocity = Float.MIN_VALUE;   // same bounds as VectorOperator.minMax(), without its array
+        for (int i = 0; i < BUFFER_SIZE; i++) {
+            float val = verticalVelocityBuffer[i];
+            minVelocity = (minVelocity > val) ? val : minVelocity;
+            maxVelocity = (maxVelocity < val) ? val : maxVelocity;
+        }
 
         //Log.d(TAG, "grav: " + gravityEstimate + "\tvelest: " + velocityEstimate + "\tvel: " + verticalVelocity + "\tpos: " + verticalPosition);
         //Log.d(TAG, "minVelocity: " + minVelocity + "\tmaxVelocity: " + maxVelocity + "\tvel: " + velocityEstimate);
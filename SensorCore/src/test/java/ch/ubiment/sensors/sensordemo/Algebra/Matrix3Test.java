@@ -0,0 +1,185 @@
+package ch.ubiment.sensors.sensordemo.Algebra;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * The kernels of Matrix3 against the naive loops of its methods and against Quaternion
+ */
+public class Matrix3Test {
+
+    private static double[] random(Random random) {
+        double[] m = new double[9];
+        for (int k = 0; k < 9; k++) m[k] = random.nextGaussian();
+        return m;
+    }
+
+    private static double[] naiveMultiply(double[] a, double[] b) {
+        double[] out = new double[9];
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                double val = 0;
+                for (int k = 0; k < 3; k++) val += a[3*i + k] * b[3*k + j];
+                out[3*i + j] = val;
+            }
+        }
+        return out;
+    }
+
+    private static double[] naiveTranspose(double[] m) {
+        double[] t = new double[9];
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) t[3*i + j] = m[3*j + i];
+        }
+        return t;
+    }
+
+    @Test
+    public void matrixProducts() {
+        Random random = new Random(1);
+        for (int n = 0; n < 1000; n++) {
+            double[] a = random(random);
+            double[] b = random(random);
+            double[] expected = naiveMultiply(a, b);
+            double[] out = new double[9];
+            Matrix3.multiplyMM(a, b, out);
+            assertArrayEquals(expected, out, 0.0);
+            assertArrayEquals(expected, new Matrix3(a).multiply(new Matrix3(b)).M, 0.0);
+
+            Matrix3.multiplyTransposedMM(a, b, out);
+            assertArrayEquals(naiveMultiply(naiveTranspose(a), b), out, 1e-12);
+            assertArrayEquals(naiveTranspose(a), new Matrix3(a).transposed().M, 0.0);
+
+            // in place
+            double[] a2 = a.clone();
+            Matrix3.multiplyMM(a2, b, a2);
+            assertArrayEquals(expected, a2, 0.0);
+            double[] b2 = b.clone();
+            Matrix3.multiplyMM(a, b2, b2);
+            assertArrayEquals(expected, b2, 0.0);
+            double[] t = a.clone();
+            Matrix3.transpose(t, t);
+            assertArrayEquals(naiveTranspose(a), t, 0.0);
+        }
+    }
+
+    @Test
+    public void matrixVectorProducts() {
+        Random random = new Random(2);
+        for (int n = 0; n < 1000; n++) {
+            double[] m = random(random);
+            double[] v = {random.nextGaussian(), random.nextGaussian(), random.nextGaussian()};
+            float[] vf = {(float) v[0], (float) v[1], (float) v[2]};
+            double[] expected = new double[3];
+            for (int i = 0; i < 3; i++) expected[i] = m[3*i] * v[0] + m[3*i + 1] * v[1] + m[3*i + 2] * v[2];
+
+            double[] out = new double[3];
+            Matrix3.multiplyMV(m, v, out);
+            assertArrayEquals(expected, out, 0.0);
+            assertArrayEquals(expected, new Matrix3(m).multiply(v), 0.0);
+
+            // the float version of Matrix3 computes in double, as before
+            double[] vd = {vf[0], vf[1], vf[2]};
+            double[] expectedF = new Matrix3(m).multiply(vd);
+            float[] outF = new float[3];
+            Matrix3.multiplyMV(m, vf, outF);
+            assertArrayEquals(new float[]{(float) expectedF[0], (float) expectedF[1], (float) expectedF[2]}, outF, 0f);
+            assertArrayEquals(outF, new Matrix3(m).multiply(vf), 0f);
+            float[] inPlace = vf.clone();
+            new Matrix3(m).multiply(inPlace, inPlace);
+            assertArrayEquals(outF, inPlace, 0f);
+
+            float[] mf = new float[9];
+            for (int k = 0; k < 9; k++) mf[k] = (float) m[k];
+            Matrix3.multiplyMV(mf, vf, outF);
+            assertArrayEquals(new float[]{(float) expectedF[0], (float) expectedF[1], (float) expectedF[2]}, outF,
+                    1e-5f);
+
+            double[] transposed = naiveTranspose(m);
+            Matrix3.multiplyTransposedMV(m, v, out);
+            assertArrayEquals(new Matrix3(transposed).multiply(v), out, 0.0);
+            Matrix3.multiplyTransposedMV(m, vf, outF);
+            assertArrayEquals(new Matrix3(transposed).multiply(vf), outF, 0f);
+            Matrix3.multiplyTransposedMV(mf, vf, outF);
+            assertArrayEquals(new Matrix3(transposed).multiply(vf), outF, 1e-5f);
+        }
+    }
+
+    @Test
+    public void rotationMatrixOfAQuaternion() {
+        Random random = new Random(3);
+        for (int n = 0; n < 1000; n++) {
+            double[] axis = {random.nextGaussian(), random.nextGaussian(), random.nextGaussian()};
+            Quaternion q = new Quaternion(random.nextDouble() * 2 * Math.PI, axis);
+            double[] expected = q.getRotationMatrix();
+            double[] R = new double[9];
+            Matrix3.fromQuaternion(q.getDoubleArrayXYZW(), R);
+            assertArrayEquals(expected, R, 0.0);
+            q.getRotationMatrix(R);
+            assertArrayEquals(expected, R, 0.0);
+
+            // the matrix rotates as conjugate(q) * v * q when transposed
+            float[] v = {(float) random.nextGaussian(), (float) random.nextGaussian(), (float) random.nextGaussian()};
+            float[] rotated = new float[3];
+            Matrix3.multiplyTransposedMV(R, v, rotated);
+            assertArrayEquals(q.rotateVector(v), rotated, 1e-5f);
+
+            float[] xyzw = q.getFloatArrayXYZW();
+            float[] R9 = new float[9];
+            Matrix3.fromQuaternion(xyzw, R9);
+            for (int k = 0; k < 9; k++) assertEquals(expected[k], R9[k], 1e-6);
+            float[] R16 = new float[16];
+            Matrix3.fromQuaternion(xyzw, R16);
+            for (int i = 0; i < 3; i++) {
+                for (int j = 0; j < 3; j++) assertEquals(R9[3*i + j], R16[4*i + j], 0f);
+                assertEquals(0f, R16[4*i + 3], 0f);
+                assertEquals(0f, R16[12 + i], 0f);
+            }
+            assertEquals(1f, R16[15], 0f);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rotationMatrixOfAnOtherLength() {
+        Matrix3.fromQuaternion(new float[]{0, 0, 0, 1}, new float[12]);
+    }
+
+    @Test
+    public void kernelsDoNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long thread = Thread.currentThread().getId();
+
+        double[] q = new Quaternion(0.1, 0.2, 0.3, 0.9).normalizeInPlace().getDoubleArrayXYZW();
+        float[] qf = {0.1f, 0.2f, 0.3f, 0.9f};
+        double[] R = new double[9];
+        double[] product = new double[9];
+        float[] gl = new float[16];
+        float[] v = {0f, 0f, 9.81f};
+        long allocated = 0;
+        // the first rounds warm up the JIT
+        for (int round = 0; round < 5; round++) {
+            long before = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < 100000; i++) {
+                Matrix3.fromQuaternion(q, R);
+                Matrix3.multiplyMM(R, R, product);
+                Matrix3.multiplyTransposedMM(R, product, product);
+                Matrix3.multiplyMV(R, v, v);
+                Matrix3.multiplyTransposedMV(R, v, v);
+                Matrix3.fromQuaternion(qf, gl);
+            }
+            allocated = threads.getThreadAllocatedBytes(thread) - before;
+        }
+        assertEquals(9.81f, v[2], 1e-3f);
+        assertEquals(0, allocated);
+    }
+}
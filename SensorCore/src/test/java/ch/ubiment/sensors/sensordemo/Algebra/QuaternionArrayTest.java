@@ -0,0 +1,153 @@
+package ch.ubiment.sensors.sensordemo.Algebra;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The batch kernels of QuaternionArray against Quaternion, one sample at a time
+ */
+public class QuaternionArrayTest {
+    private static final int N = 5000;
+
+    private static QuaternionArray random(Random random, int n) {
+        QuaternionArray q = new QuaternionArray(n);
+        for (int i = 0; i < n; i++) {
+            q.set(i, random.nextGaussian(), random.nextGaussian(), random.nextGaussian(), random.nextGaussian());
+        }
+        return q;
+    }
+
+    private static void assertQuaternionEquals(Quaternion expected, QuaternionArray q, int i, double delta) {
+        double[] actual = new double[4];
+        q.get(i, actual);
+        assertArrayEquals(expected.getDoubleArrayXYZW(), actual, delta);
+    }
+
+    @Test
+    public void normalizeAndMultiplyAreTheOnesOfQuaternion() {
+        Random random = new Random(1);
+        QuaternionArray a = random(random, N);
+        QuaternionArray b = random(random, N);
+        QuaternionArray out = new QuaternionArray(N);
+        QuaternionArray.multiply(a, b, out, N);
+        Quaternion qa = new Quaternion();
+        Quaternion qb = new Quaternion();
+        for (int i = 0; i < N; i++) {
+            assertQuaternionEquals(a.get(i, qa).times(b.get(i, qb)), out, i, 1e-12);
+        }
+
+        // by a constant, in place, on the n first quaternions only
+        double[] c = {0.1, -0.2, 0.3, 0.9};
+        Quaternion qc = new Quaternion().setXYZW(c);
+        QuaternionArray.multiply(a, c, a, N - 1);
+        QuaternionArray original = random(new Random(1), N);
+        for (int i = 0; i < N - 1; i++) {
+            assertQuaternionEquals(original.get(i, qa).times(qc), a, i, 1e-12);
+        }
+        assertQuaternionEquals(original.get(N - 1, qa), a, N - 1, 0.0);
+
+        b.normalize(N);
+        for (int i = 0; i < N; i++) {
+            assertEquals(1.0, b.get(i, qb).norm(), 1e-12);
+        }
+    }
+
+    @Test
+    public void integrationIsTheRunningProductOfTheDeltaRotations() {
+        Random random = new Random(2);
+        // 10 minutes of a gyroscope at 200 Hz, turning up to a few rad/s, with some null rates
+        int n = 120000;
+        float[] gx = new float[n], gy = new float[n], gz = new float[n], dt = new float[n];
+        for (int i = 0; i < n; i++) {
+            boolean still = (i % 1000) < 50;
+            gx[i] = still ? 0f : (float) random.nextGaussian();
+            gy[i] = still ? 0f : (float) random.nextGaussian();
+            gz[i] = still ? 0f : (float) (2 * random.nextGaussian());
+            dt[i] = 0.005f + (float) (0.0002 * random.nextGaussian());
+        }
+        double[] start = new Quaternion(0.3, new double[]{1, 2, 3}).getDoubleArrayXYZW();
+        QuaternionArray orientations = new QuaternionArray(n);
+        orientations.integrateAngularRates(start, gx, gy, gz, dt, n);
+
+        Quaternion expected = new Quaternion().setXYZW(start);
+        Quaternion delta = new Quaternion();
+        for (int i = 0; i < n; i++) {
+            double omega = Math.sqrt((double) gx[i] * gx[i] + (double) gy[i] * gy[i] + (double) gz[i] * gz[i]);
+            delta.setFromAxisAngle(omega * dt[i], gx[i], gy[i], gz[i]);
+            expected = expected.times(delta).normalized();
+            if (i % 997 == 0) assertQuaternionEquals(expected, orientations, i, 1e-9);
+        }
+        assertQuaternionEquals(expected, orientations, n - 1, 1e-9);
+        assertEquals(1.0, orientations.get(n - 1, delta).norm(), 1e-12);
+    }
+
+    @Test
+    public void integrationContinuesFromThePreviousChunk() {
+        Random random = new Random(3);
+        int n = 1000;
+        float[] gx = new float[n], gy = new float[n], gz = new float[n], dt = new float[n];
+        for (int i = 0; i < n; i++) {
+            gx[i] = (float) random.nextGaussian();
+            gy[i] = (float) random.nextGaussian();
+            gz[i] = (float) random.nextGaussian();
+            dt[i] = 0.01f;
+        }
+        double[] identity = {0, 0, 0, 1};
+        QuaternionArray whole = new QuaternionArray(n);
+        whole.integrateAngularRates(identity, gx, gy, gz, dt, n);
+
+        QuaternionArray first = new QuaternionArray(n / 2);
+        first.integrateAngularRates(identity, gx, gy, gz, dt, n / 2);
+        double[] last = new double[4];
+        first.get(n / 2 - 1, last);
+        float[] gx2 = new float[n / 2], gy2 = new float[n / 2], gz2 = new float[n / 2], dt2 = new float[n / 2];
+        System.arraycopy(gx, n / 2, gx2, 0, n / 2);
+        System.arraycopy(gy, n / 2, gy2, 0, n / 2);
+        System.arraycopy(gz, n / 2, gz2, 0, n / 2);
+        System.arraycopy(dt, n / 2, dt2, 0, n / 2);
+        QuaternionArray second = new QuaternionArray(n / 2);
+        second.integrateAngularRates(last, gx2, gy2, gz2, dt2, n / 2);
+        for (int i = 0; i < n / 2; i++) {
+            assertEquals(whole.x[n / 2 + i], second.x[i], 0.0);
+            assertEquals(whole.w[n / 2 + i], second.w[i], 0.0);
+        }
+    }
+
+    @Test
+    public void rotateToWorldIsTheInverseOfRotateVector() {
+        Random random = new Random(4);
+        QuaternionArray q = random(random, N);
+        q.normalize(N);
+        float[] vx = new float[N], vy = new float[N], vz = new float[N];
+        for (int i = 0; i < N; i++) {
+            vx[i] = (float) (10 * random.nextGaussian());
+            vy[i] = (float) (10 * random.nextGaussian());
+            vz[i] = (float) (10 * random.nextGaussian());
+        }
+        float[] wx = new float[N], wy = new float[N], wz = new float[N];
+        q.rotateToWorld(vx, vy, vz, wx, wy, wz, N);
+        Quaternion qi = new Quaternion();
+        float[] world = new float[3];
+        for (int i = 0; i < N; i++) {
+            q.get(i, qi).conjugateInPlace().rotateVector(new float[]{vx[i], vy[i], vz[i]}, world);
+            assertArrayEquals(world, new float[]{wx[i], wy[i], wz[i]}, 1e-5f);
+            // and back to the device frame
+            q.get(i, qi).rotateVector(world, world);
+            assertArrayEquals(new float[]{vx[i], vy[i], vz[i]}, world, 1e-4f);
+        }
+        // in place
+        q.rotateToWorld(vx, vy, vz, vx, vy, vz, N);
+        assertArrayEquals(wx, vx, 0f);
+        assertArrayEquals(wz, vz, 0f);
+
+        float[] packed = new float[4 * N];
+        q.getFloatArrayXYZW(packed, N);
+        float[] xyzw = new float[4];
+        q.get(N - 1, qi).getFloatArrayXYZW(xyzw);
+        for (int k = 0; k < 4; k++) assertEquals(xyzw[k], packed[4 * (N - 1) + k], 0f);
+    }
+}
@@ -0,0 +1,165 @@
+package ch.ubiment.sensors.sensordemo.Algebra;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The round trip of QuaternionCompression against getMaxComponentError(), for every supported number of bits.
+ * QuaternionCompressionReport of the Benchmarks module prints the resulting angular errors.
+ */
+public class QuaternionCompressionTest {
+    private static final int SAMPLES = 20000;
+    private static final float RANGE = (float) (1.0 / Math.sqrt(2.0));
+    // the decoded components are floats
+    private static final double FLOAT_ROUNDING = 1e-7;
+
+    private static int largest(float[] xyzw) {
+        int largest = 0;
+        for (int i = 1; i < 4; i++) {
+            if (Math.abs(xyzw[i]) > Math.abs(xyzw[largest])) largest = i;
+        }
+        return largest;
+    }
+
+    /**
+     * The three transmitted components are within getMaxComponentError() of the ones of the input, the dropped one
+     * (at least 1/2 before recomputing it) within 6 times that, and the sign is the one making the dropped component
+     * positive.
+     */
+    private static void assertRoundTrip(QuaternionCompression compression, float[] xyzw) {
+        float[] decoded = new float[4];
+        compression.unpack(compression.pack(xyzw), decoded);
+        int largest = largest(xyzw);
+        float sign = (xyzw[largest] < 0) ? -1f : 1f;
+        double maxError = compression.getMaxComponentError();
+        for (int i = 0; i < 4; i++) {
+            double error = Math.abs(decoded[i] - sign * xyzw[i]);
+            double bound = (i == largest) ? 6 * maxError : maxError;
+            assertTrue(compression.getBits() + " bits, component " + i + ": " + error, error <= bound + FLOAT_ROUNDING);
+        }
+        assertTrue(decoded[largest] >= 0);
+    }
+
+    /**
+     * Uniform random rotation (K. Shoemake, Graphics Gems III)
+     */
+    private static float[] randomUnitQuaternion(Random random) {
+        double u1 = random.nextDouble();
+        double u2 = 2 * Math.PI * random.nextDouble();
+        double u3 = 2 * Math.PI * random.nextDouble();
+        double a = Math.sqrt(1 - u1);
+        double b = Math.sqrt(u1);
+        return new float[]{(float) (a * Math.sin(u2)), (float) (a * Math.cos(u2)), (float) (b * Math.sin(u3)), (float) (b * Math.cos(u3))};
+    }
+
+    private static float[] normalized(float... xyzw) {
+        double norm = Math.sqrt(xyzw[0] * xyzw[0] + xyzw[1] * xyzw[1] + xyzw[2] * xyzw[2] + xyzw[3] * xyzw[3]);
+        return new float[]{(float) (xyzw[0] / norm), (float) (xyzw[1] / norm), (float) (xyzw[2] / norm), (float) (xyzw[3] / norm)};
+    }
+
+    @Test
+    public void maxComponentErrorOfEveryWidth() {
+        for (int bits = QuaternionCompression.MIN_BITS; bits <= QuaternionCompression.MAX_BITS; bits++) {
+            QuaternionCompression compression = new QuaternionCompression(bits);
+            // range of a transmitted component over 2^bits - 1 steps, half a step
+            assertEquals(2 * RANGE / ((1 << bits) - 1) / 2, compression.getMaxComponentError(), 1e-9);
+            assertEquals((2 + 3 * bits + 7) / 8, compression.getPackedBytes());
+        }
+    }
+
+    @Test
+    public void roundTripOfRandomRotations() {
+        for (int bits = QuaternionCompression.MIN_BITS; bits <= QuaternionCompression.MAX_BITS; bits++) {
+            QuaternionCompression compression = new QuaternionCompression(bits);
+            Random random = new Random(bits);
+            for (int i = 0; i < SAMPLES; i++) {
+                assertRoundTrip(compression, randomUnitQuaternion(random));
+            }
+            // the edges of the range of the transmitted components, and the axes
+            assertRoundTrip(compression, normalized(1, 1, 0, 0));
+            assertRoundTrip(compression, normalized(-1, 1, 0, 0));
+            assertRoundTrip(compression, normalized(1, 1, 1, 1));
+            for (int axis = 0; axis < 4; axis++) {
+                float[] xyzw = new float[4];
+                xyzw[axis] = 1;
+                assertRoundTrip(compression, xyzw);
+            }
+        }
+    }
+
+    @Test
+    public void largestComponentNegativeGivesTheOppositeQuaternion() {
+        float[] decoded = new float[4];
+        for (int bits = QuaternionCompression.MIN_BITS; bits <= QuaternionCompression.MAX_BITS; bits++) {
+            QuaternionCompression compression = new QuaternionCompression(bits);
+            for (int largest = 0; largest < 4; largest++) {
+                float[] xyzw = {0.1f, -0.2f, 0.3f, 0.15f};
+                xyzw[largest] = -0.9f;
+                xyzw = normalized(xyzw);
+                assertRoundTrip(compression, xyzw);
+
+                // -q, the same rotation: same packed value
+                long packed = compression.pack(xyzw);
+                float[] opposite = {-xyzw[0], -xyzw[1], -xyzw[2], -xyzw[3]};
+                assertEquals(packed, compression.pack(opposite));
+                assertEquals(largest, (int) (packed & 3));
+                compression.unpack(packed, decoded);
+                assertEquals(-xyzw[largest], decoded[largest], 6 * compression.getMaxComponentError());
+                assertTrue(decoded[largest] > 0);
+            }
+        }
+    }
+
+    @Test
+    public void componentsOfASlightlyNonUnitInputAreClamped() {
+        float[] decoded = new float[4];
+        for (int bits = QuaternionCompression.MIN_BITS; bits <= QuaternionCompression.MAX_BITS; bits++) {
+            QuaternionCompression compression = new QuaternionCompression(bits);
+            long mask = (1L << bits) - 1;
+            // norm 1.002: y and z are outside [-1/sqrt(2), 1/sqrt(2)], x is the largest (the first one on ties)
+            float c = RANGE * 1.002f;
+            float[] xyzw = {c, c, 0f, 0f};
+            long packed = compression.pack(xyzw);
+            assertEquals(0, (int) (packed & 3));
+            assertEquals(mask, (packed >>> 2) & mask);
+            compression.unpack(packed, decoded);
+            assertEquals(RANGE, decoded[1], FLOAT_ROUNDING);
+            assertEquals(RANGE, decoded[0], 6 * compression.getMaxComponentError());
+
+            xyzw = new float[]{0f, c, -c, 0f};
+            packed = compression.pack(xyzw);
+            assertEquals(1, (int) (packed & 3));
+            // x, z and w in that order, z below the range
+            assertEquals(0, (packed >>> (2 + bits)) & mask);
+            compression.unpack(packed, decoded);
+            assertEquals(-RANGE, decoded[2], FLOAT_ROUNDING);
+
+            // the decoded quaternion is a unit one
+            double norm = 0;
+            for (float v : decoded) norm += v * v;
+            assertEquals(1.0, Math.sqrt(norm), 4 * compression.getMaxComponentError());
+        }
+    }
+
+    @Test
+    public void writeAndReadAreLittleEndian() {
+        for (int bits = QuaternionCompression.MIN_BITS; bits <= QuaternionCompression.MAX_BITS; bits++) {
+            QuaternionCompression compression = new QuaternionCompression(bits);
+            long packed = compression.pack(normalized(0.3f, -0.5f, 0.1f, 0.8f));
+            ByteBuffer buffer = ByteBuffer.allocate(3 + compression.getPackedBytes()).order(ByteOrder.BIG_ENDIAN);
+            buffer.position(3);
+            compression.write(buffer, packed);
+            assertEquals(buffer.capacity(), buffer.position());
+            assertEquals((byte) packed, buffer.get(3));
+            assertEquals(packed, compression.read(buffer, 3));
+            buffer.position(3);
+            assertEquals(packed, compression.read(buffer));
+        }
+    }
+}
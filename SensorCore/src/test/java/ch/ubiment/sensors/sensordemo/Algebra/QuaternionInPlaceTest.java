@@ -0,0 +1,164 @@
+package ch.ubiment.sensors.sensordemo.Algebra;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * The mutable methods of Quaternion against their immutable counterparts
+ */
+public class QuaternionInPlaceTest {
+    private static final double EPS = 1e-12;
+
+    private static Quaternion random(Random random) {
+        double[] axis = {random.nextGaussian(), random.nextGaussian(), random.nextGaussian()};
+        return new Quaternion(random.nextDouble() * 2 * Math.PI, axis);
+    }
+
+    private static void assertQuaternionEquals(Quaternion expected, Quaternion actual, double delta) {
+        assertArrayEquals(expected.getDoubleArrayXYZW(), actual.getDoubleArrayXYZW(), delta);
+    }
+
+    @Test
+    public void mulIntoIsTimes() {
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            Quaternion a = random(random);
+            Quaternion b = random(random);
+            Quaternion expected = a.times(b);
+            Quaternion out = new Quaternion();
+            assertSame(out, Quaternion.mulInto(a, b, out));
+            assertQuaternionEquals(expected, out, 0.0);
+
+            // the output can be one of the operands
+            Quaternion a2 = a.copy();
+            Quaternion.mulInto(a2, b, a2);
+            assertQuaternionEquals(expected, a2, 0.0);
+            Quaternion b2 = b.copy();
+            Quaternion.mulInto(a, b2, b2);
+            assertQuaternionEquals(expected, b2, 0.0);
+        }
+    }
+
+    @Test
+    public void normalizeInPlaceIsNormalized() {
+        Quaternion q = new Quaternion(1, 2, 3, 4);
+        Quaternion expected = q.normalized();
+        assertSame(q, q.normalizeInPlace());
+        assertQuaternionEquals(expected, q, 0.0);
+        assertEquals(1.0, q.norm(), EPS);
+
+        Quaternion c = new Quaternion(1, 2, 3, 4);
+        assertQuaternionEquals(new Quaternion(1, 2, 3, 4).conjugate(), c.conjugateInPlace(), 0.0);
+    }
+
+    @Test
+    public void normalizeIfDriftedOnlyBeyondTheTolerance() {
+        Quaternion q = new Quaternion(0.5, 0.5, 0.5, 0.5);
+        assertFalse(q.normalizeIfDrifted(Quaternion.DEFAULT_NORM_TOLERANCE));
+        assertQuaternionEquals(new Quaternion(0.5, 0.5, 0.5, 0.5), q, 0.0);
+
+        q.set(0.5, 0.5, 0.5, 0.5 + 1e-6);
+        assertTrue(q.normalizeIfDrifted(Quaternion.DEFAULT_NORM_TOLERANCE));
+        assertEquals(1.0, q.norm(), EPS);
+    }
+
+    @Test
+    public void lazyRenormalisationFollowsTheImmutableIntegration() {
+        // 10 minutes of a gyroscope at 200 Hz: normalized at every sample vs. when drifted
+        Random random = new Random(2);
+        Quaternion immutable = new Quaternion();
+        Quaternion mutable = new Quaternion();
+        Quaternion delta = new Quaternion();
+        int renormalized = 0;
+        int samples = 120000;
+        for (int i = 0; i < samples; i++) {
+            delta.setFromAxisAngle(random.nextGaussian() * 0.01,
+                    random.nextGaussian(), random.nextGaussian(), random.nextGaussian());
+            immutable = immutable.times(delta).normalized();
+            Quaternion.mulInto(mutable, delta, mutable);
+            if (mutable.normalizeIfDrifted(Quaternion.DEFAULT_NORM_TOLERANCE)) renormalized++;
+        }
+        assertQuaternionEquals(immutable, mutable, 1e-9);
+        assertEquals(1.0, mutable.norm(), Quaternion.DEFAULT_NORM_TOLERANCE);
+        assertTrue("renormalized " + renormalized + " times", renormalized < samples / 100);
+    }
+
+    @Test
+    public void slerpIntoIsSlerp() {
+        Random random = new Random(3);
+        for (int i = 0; i < 1000; i++) {
+            Quaternion a = random(random);
+            Quaternion b = random(random);
+            float t = random.nextFloat();
+            Quaternion expected = a.slerp(b, t);
+            Quaternion out = new Quaternion();
+            assertSame(out, Quaternion.slerpInto(a, b, t, out));
+            assertQuaternionEquals(expected, out, 1e-9);
+            Quaternion.slerpInto(a, b, t, a);
+            assertQuaternionEquals(expected, a, 1e-9);
+        }
+        Quaternion a = new Quaternion(0, 0, 0, 2);
+        assertQuaternionEquals(new Quaternion(), Quaternion.slerpInto(a, a, 0.5, new Quaternion()), 0.0);
+    }
+
+    @Test
+    public void settersAreTheConstructors() {
+        Random random = new Random(4);
+        for (int i = 0; i < 1000; i++) {
+            double radian = random.nextDouble() * 2 * Math.PI;
+            double[] axis = {random.nextGaussian(), random.nextGaussian(), random.nextGaussian()};
+            Quaternion expected = new Quaternion(radian, axis);
+            Quaternion q = new Quaternion(1, 2, 3, 4).setFromAxisAngle(radian, axis[0], axis[1], axis[2]);
+            assertQuaternionEquals(expected, q, 0.0);
+
+            double[] R = expected.getRotationMatrix();
+            float[] Rmat = new float[9];
+            for (int k = 0; k < 9; k++) Rmat[k] = (float) R[k];
+            assertQuaternionEquals(new Quaternion(Rmat), q.setFromRotationMatrix(Rmat), 0.0);
+        }
+        assertQuaternionEquals(new Quaternion(), new Quaternion(0, 0, 0, 0).setFromAxisAngle(1.0, 0, 0, 0), 0.0);
+        assertQuaternionEquals(new Quaternion(), new Quaternion(1, 2, 3, 4).setIdentity(), 0.0);
+        Quaternion b = new Quaternion(1, 2, 3, 4);
+        assertQuaternionEquals(b, new Quaternion().set(b), 0.0);
+        assertQuaternionEquals(b, new Quaternion().setXYZW(b.getDoubleArrayXYZW()), 0.0);
+    }
+
+    @Test
+    public void mutableMethodsDoNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long thread = Thread.currentThread().getId();
+
+        Quaternion orientation = new Quaternion();
+        Quaternion delta = new Quaternion();
+        Quaternion target = new Quaternion(0.1, 0.2, 0.3, 0.9).normalizeInPlace();
+        float[] Rmat = {1, 0, 0, 0, 0, -1, 0, 1, 0};
+        long allocated = 0;
+        // the first rounds warm up the JIT
+        for (int round = 0; round < 5; round++) {
+            long before = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < 100000; i++) {
+                delta.setFromAxisAngle(0.001 * (i % 7), 1.0, 0.5, -0.25);
+                Quaternion.mulInto(orientation, delta, orientation);
+                orientation.normalizeIfDrifted(Quaternion.DEFAULT_NORM_TOLERANCE);
+                Quaternion.slerpInto(orientation, target, 0.01, orientation);
+                if (i % 1000 == 0) target.setFromRotationMatrix(Rmat);
+            }
+            allocated = threads.getThreadAllocatedBytes(thread) - before;
+        }
+        assertEquals(1.0, orientation.norm(), 1e-6);
+        assertEquals(0, allocated);
+    }
+}
@@ -0,0 +1,132 @@
+package ch.ubiment.sensors.sensordemo.Algebra;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * The closed-form rotations of Quaternion against the products of quaternions they replace
+ */
+public class QuaternionRotationTest {
+    private static final float EPS = 1e-5f;
+
+    private static Quaternion random(Random random) {
+        double[] axis = {random.nextGaussian(), random.nextGaussian(), random.nextGaussian()};
+        return new Quaternion(random.nextDouble() * 2 * Math.PI, axis);
+    }
+
+    private static float[] randomVector(Random random) {
+        return new float[]{(float) (10 * random.nextGaussian()), (float) (10 * random.nextGaussian()),
+                (float) (10 * random.nextGaussian())};
+    }
+
+    /**
+     * The previous implementation of rotateVector(): conjugate(q) * (v,0) * q
+     */
+    private static float[] products(Quaternion q, float[] v) {
+        double[] p = q.conjugate().times(new Quaternion(v[0], v[1], v[2], 0.0)).times(q).getDoubleArrayXYZW();
+        return new float[]{(float) p[0], (float) p[1], (float) p[2]};
+    }
+
+    @Test
+    public void closedFormIsTheProductOfQuaternions() {
+        Random random = new Random(1);
+        for (int i = 0; i < 10000; i++) {
+            Quaternion q = random(random);
+            float[] v = randomVector(random);
+            float[] expected = products(q, v);
+            assertArrayEquals(expected, q.rotateVector(v), EPS);
+
+            float[] out = new float[3];
+            q.rotateVector(v, out);
+            assertArrayEquals(expected, out, EPS);
+            float[] operator = new float[3];
+            QuaternionOperator.rotateVector(q.getDoubleArrayXYZW(), v, operator);
+            assertArrayEquals(out, operator, 0f);
+            // in place
+            q.rotateVector(v, v);
+            assertArrayEquals(out, v, 0f);
+        }
+        // a rotation of 90 degrees around z, applied as conjugate(q) * v * q
+        float[] x = {1, 0, 0};
+        assertArrayEquals(new float[]{0, -1, 0}, new Quaternion(Math.PI / 2, new double[]{0, 0, 1}).rotateVector(x),
+                1e-7f);
+    }
+
+    @Test
+    public void batchIsOneVectorAtATime() {
+        Random random = new Random(2);
+        int count = 1000;
+        float[] src = new float[3 + 3 * count];
+        for (int i = 0; i < src.length; i++) src[i] = (float) (10 * random.nextGaussian());
+        for (int n = 0; n < 20; n++) {
+            Quaternion q = random(random);
+            float[] dst = new float[3 * count + 6];
+            q.rotateVectors(src, 3, dst, 6, count);
+            float[] expected = new float[3];
+            float[] v = new float[3];
+            for (int i = 0; i < count; i++) {
+                System.arraycopy(src, 3 + 3 * i, v, 0, 3);
+                q.rotateVector(v, expected);
+                assertEquals(expected[0], dst[6 + 3 * i], EPS);
+                assertEquals(expected[1], dst[7 + 3 * i], EPS);
+                assertEquals(expected[2], dst[8 + 3 * i], EPS);
+            }
+            assertEquals(0f, dst[0], 0f);
+
+            float[] inPlace = src.clone();
+            q.rotateVectors(inPlace, 3, inPlace, 3, count);
+            for (int i = 0; i < 3 * count; i++) assertEquals(dst[6 + i], inPlace[3 + i], 0f);
+        }
+    }
+
+    @Test
+    public void upVectorIntoAnArray() {
+        Random random = new Random(3);
+        for (int i = 0; i < 1000; i++) {
+            Quaternion q = random(random);
+            double[] up = q.getUpVector();
+            float[] expected = {(float) up[0], (float) up[1], (float) up[2]};
+            float[] out = new float[3];
+            q.getUpVectorFloat(out);
+            assertArrayEquals(expected, out, 0f);
+            assertArrayEquals(expected, q.getUpVectorFloat(), 0f);
+            // the world up vector in the device frame
+            assertArrayEquals(q.rotateVector(new float[]{0, 0, 1}), out, EPS);
+        }
+    }
+
+    @Test
+    public void rotationsDoNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long thread = Thread.currentThread().getId();
+
+        Quaternion q = new Quaternion(0.1, 0.2, 0.3, 0.9).normalizeInPlace();
+        float[] v = {0f, 0f, 9.81f};
+        float[] up = new float[3];
+        float[] batch = new float[3 * 64];
+        for (int i = 0; i < batch.length; i++) batch[i] = i;
+        long allocated = 0;
+        // the first rounds warm up the JIT
+        for (int round = 0; round < 5; round++) {
+            long before = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < 100000; i++) {
+                q.rotateVector(v, v);
+                q.getUpVectorFloat(up);
+                if (i % 64 == 0) q.rotateVectors(batch, 0, batch, 0, 64);
+            }
+            allocated = threads.getThreadAllocatedBytes(thread) - before;
+        }
+        assertEquals(9.81f, (float) Math.sqrt(v[0] * v[0] + v[1] * v[1] + v[2] * v[2]), 1e-3f);
+        assertEquals(0, allocated);
+    }
+}
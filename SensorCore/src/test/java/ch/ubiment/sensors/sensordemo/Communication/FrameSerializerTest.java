@@ -0,0 +1,202 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes samples with every format and reads them back
+ */
+public class FrameSerializerTest {
+    private static final String PHONE_ID = "8e1d2f3a4b5c6d7e";
+    private final Random random = new Random(42);
+
+    private void randomVector(float[] v, float scale) {
+        for (int i = 0; i < v.length; i++) v[i] = (random.nextFloat() - 0.5f) * 2 * scale;
+    }
+
+    private void randomQuaternion(float[] q) {
+        randomVector(q, 1);
+        float norm = (float) Math.sqrt(q[0] * q[0] + q[1] * q[1] + q[2] * q[2] + q[3] * q[3]);
+        for (int i = 0; i < 4; i++) q[i] /= norm;
+    }
+
+    private ImuSample imuSample(int sequence) {
+        ImuSample sample = new ImuSample();
+        sample.sequence = sequence;
+        sample.timestampNanos = 1591012345678000000L + sequence * 20000000L + random.nextInt(100000);
+        randomVector(sample.accelerometer, 20);
+        randomVector(sample.linearAcceleration, 10);
+        randomVector(sample.gravity, 9.81f);
+        randomVector(sample.magneticField, 60);
+        randomVector(sample.gyroscope, 5);
+        randomQuaternion(sample.orientationXYZW);
+        randomQuaternion(sample.orientationGravAccGyroXYZW);
+        randomQuaternion(sample.orientationAccGyroXYZW);
+        sample.isStepDetected = (sequence % 25 == 0);
+        return sample;
+    }
+
+    private static void assertQuaternionEquals(float[] expected, float[] actual, float delta) {
+        // q and -q are the same rotation
+        float sign = (expected[3] < 0) ? -1f : 1f;
+        for (int i = 0; i < 4; i++) assertEquals(sign * expected[i], actual[i], delta);
+    }
+
+    private static void assertImuEquals(ImuSample expected, ImuSample actual) {
+        assertEquals(expected.sequence, actual.sequence);
+        assertEquals(expected.timestampNanos, actual.timestampNanos);
+        assertArrayEquals(expected.accelerometer, actual.accelerometer, ImuDeltaSerializer.RESOLUTION_ACCELERATION);
+        assertArrayEquals(expected.gravity, actual.gravity, ImuDeltaSerializer.RESOLUTION_ACCELERATION);
+        assertArrayEquals(expected.magneticField, actual.magneticField, ImuDeltaSerializer.RESOLUTION_MAGNETIC_FIELD);
+        assertArrayEquals(expected.gyroscope, actual.gyroscope, ImuDeltaSerializer.RESOLUTION_GYROSCOPE);
+        assertQuaternionEquals(expected.orientationAccGyroXYZW, actual.orientationAccGyroXYZW,
+                ImuDeltaSerializer.RESOLUTION_QUATERNION);
+        assertEquals(expected.isStepDetected, actual.isStepDetected);
+    }
+
+    @Test
+    public void varIntsRoundTrip() {
+        ByteBuffer buf = ByteBuffer.allocate(256);
+        long[] values = {0, 1, -1, 63, -64, 64, 300, -300, Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE};
+        for (long v : values) VarInt.putSigned(buf, v);
+        buf.flip();
+        for (long v : values) assertEquals(v, VarInt.getSigned(buf));
+        assertFalse(buf.hasRemaining());
+
+        buf.clear();
+        VarInt.putSigned(buf, -1);
+        VarInt.putUnsigned(buf, 127);
+        assertEquals(2, buf.position());
+    }
+
+    @Test
+    public void imuDeltaFramesRoundTripAndResumeAtKeyFrames() {
+        ImuDeltaSerializer writer = new ImuDeltaSerializer(PHONE_ID);
+        ImuDeltaSerializer reader = new ImuDeltaSerializer(null);
+        ImuSample decoded = new ImuSample();
+        ByteBuffer buf = ByteBuffer.allocate(ImuDeltaSerializer.MAX_FRAME_SIZE);
+
+        for (int i = 0; i < 3 * ImuDeltaSerializer.KEY_FRAME_INTERVAL; i++) {
+            ImuSample sample = imuSample(i);
+            buf.clear();
+            writer.write(sample, buf);
+            buf.flip();
+            boolean lost = (i == 10);
+            if (lost) continue;
+            boolean expected = (i < 10) || (i >= ImuDeltaSerializer.KEY_FRAME_INTERVAL);
+            assertEquals("frame " + i, expected, reader.read(buf, decoded));
+            if (expected) {
+                assertImuEquals(sample, decoded);
+                assertFalse(buf.hasRemaining());
+            }
+        }
+    }
+
+    @Test
+    public void imuBinaryFramesAreReadByTheDecoder() {
+        ImuSample sample = imuSample(7);
+        FrameSerializer<ImuSample> serializer = FrameSerializers.imu(FrameSerializers.BINARY, PHONE_ID, 0);
+        ByteBuffer buf = ByteBuffer.allocate(ImuFrame.FRAME_SIZE);
+        serializer.write(sample, buf);
+        assertEquals(ByteOrder.BIG_ENDIAN, buf.order());
+        buf.flip();
+        ImuFrameDecoder decoder = new ImuFrameDecoder();
+        assertTrue(decoder.decode(buf));
+        assertEquals(7, decoder.getSequence());
+        assertEquals(sample.timestampNanos, decoder.getTimestampNanos());
+        assertArrayEquals(sample.gyroscope, decoder.getGyroscope(), 0f);
+        assertArrayEquals(sample.orientationXYZW, decoder.getOrientationXYZW(), 0f);
+    }
+
+    @Test
+    public void imuJsonKeepsTheFieldsOfThePythonScripts() {
+        ImuSample sample = imuSample(3);
+        ByteBuffer buf = ByteBuffer.allocate(1024);
+        FrameSerializers.imu(FrameSerializers.JSON, PHONE_ID, 0).write(sample, buf);
+        String json = new String(buf.array(), 0, buf.position(), StandardCharsets.UTF_8);
+        assertTrue(json, json.startsWith("{\"timestamp\":\"" + sample.timestampNanos / 1000000L + "\",\"Phone_ID\":\"" + PHONE_ID + "\""));
+        assertTrue(json, json.contains("\"gyroscope\":\"" + JsonWriter.vectorToString(sample.gyroscope) + "\""));
+        assertTrue(json, json.endsWith("\"isStepDetected\":\"0\"}"));
+    }
+
+    private static BeaconSample beaconSample(int sequence, String address, int rssi, boolean report) {
+        BeaconSample sample = new BeaconSample();
+        sample.setAdvertisement(sequence, 1591012345000L + 1000L * sequence, address, "UbiMesh-0c 01020304 " + address,
+                1, 7, -59, rssi);
+        if (report) sample.setReport(9, rssi - 0.33f, rssi - 4, rssi + 3, rssi + 1, sample.timestamp - 950);
+        return sample;
+    }
+
+    private static void assertBeaconEquals(BeaconSample expected, BeaconSample actual) {
+        assertEquals(expected.sequence, actual.sequence);
+        assertEquals(expected.timestamp, actual.timestamp);
+        assertEquals(expected.address, actual.address);
+        assertEquals(expected.uuid, actual.uuid);
+        assertEquals(expected.major, actual.major);
+        assertEquals(expected.minor, actual.minor);
+        assertEquals(expected.txPower, actual.txPower);
+        assertEquals(expected.rssi, actual.rssi);
+        assertEquals(expected.count, actual.count);
+        if (expected.isReport()) {
+            assertEquals(expected.rssiMean, actual.rssiMean, 0.005f);
+            assertEquals(expected.rssiMin, actual.rssiMin);
+            assertEquals(expected.rssiMax, actual.rssiMax);
+            assertEquals(expected.rssiLast, actual.rssiLast);
+            assertEquals(expected.firstTimestamp, actual.firstTimestamp);
+        }
+    }
+
+    @Test
+    public void beaconBinaryFramesRoundTrip() {
+        BeaconBinarySerializer writer = new BeaconBinarySerializer(PHONE_ID);
+        BeaconBinarySerializer reader = new BeaconBinarySerializer(null);
+        BeaconSample decoded = new BeaconSample();
+        ByteBuffer buf = ByteBuffer.allocate(512);
+        for (boolean report : new boolean[]{false, true}) {
+            BeaconSample sample = beaconSample(5, "C4:7C:8D:6A:0F:3E", -71, report);
+            buf.clear();
+            writer.write(sample, buf);
+            buf.flip();
+            assertTrue(reader.read(buf, decoded));
+            assertFalse(buf.hasRemaining());
+            assertBeaconEquals(sample, decoded);
+        }
+    }
+
+    @Test
+    public void beaconDeltaFramesRoundTripPerBeacon() {
+        BeaconDeltaSerializer writer = new BeaconDeltaSerializer(PHONE_ID);
+        BeaconDeltaSerializer reader = new BeaconDeltaSerializer(null);
+        BeaconSample decoded = new BeaconSample();
+        ByteBuffer buf = ByteBuffer.allocate(512);
+        String[] addresses = {"C4:7C:8D:6A:0F:3E", "C4:7C:8D:6A:0F:3F"};
+        int sequence = 0;
+        int keyFrameSize = 0;
+        int deltaSize = 0;
+        for (int window = 0; window < 2 * BeaconDeltaSerializer.KEY_FRAME_INTERVAL; window++) {
+            for (int b = 0; b < addresses.length; b++) {
+                BeaconSample sample = beaconSample(sequence++, addresses[b], -60 - random.nextInt(20), true);
+                buf.clear();
+                writer.write(sample, buf);
+                buf.flip();
+                if (window == 0) keyFrameSize = buf.remaining();
+                if (window == 1) deltaSize = buf.remaining();
+                // one frame of the second beacon is lost: only this beacon waits for its next key frame
+                if (b == 1 && window == 3) continue;
+                boolean expected = (b == 0) || window < 3 || window >= BeaconDeltaSerializer.KEY_FRAME_INTERVAL;
+                assertEquals("window " + window + " beacon " + b, expected, reader.read(buf, decoded));
+                if (expected) assertBeaconEquals(sample, decoded);
+            }
+        }
+        assertTrue(deltaSize + " < " + keyFrameSize, deltaSize < keyFrameSize / 2);
+    }
+}
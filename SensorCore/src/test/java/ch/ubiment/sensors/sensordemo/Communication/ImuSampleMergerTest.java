@@ -0,0 +1,70 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+import ch.ubiment.sensors.sensordemo.Algebra.Quaternion;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ImuSampleMergerTest {
+    private static final float[] ZERO = {0, 0, 0};
+
+    /**
+     * Rotation of `degrees` around z
+     */
+    private static Quaternion aroundZ(double degrees) {
+        return new Quaternion(Math.toRadians(degrees), new double[]{0, 0, 1});
+    }
+
+    private static void add(ImuSampleMerger merger, long ts, float ax, Quaternion q, boolean step) {
+        merger.add(ts, new float[]{ax, 1, 2}, ZERO, ZERO, ZERO, ZERO, q, q, q, false, step);
+    }
+
+    private static double angleAroundZ(Quaternion q) {
+        float[] xyzw = q.getFloatArrayXYZW();
+        return Math.toDegrees(2 * Math.atan2(xyzw[2], xyzw[3]));
+    }
+
+    @Test
+    public void averagesVectorsAndQuaternionsAndKeepsTheSteps() {
+        ImuSampleMerger merger = new ImuSampleMerger();
+        add(merger, 10, 1, aroundZ(0), false);
+        add(merger, 20, 2, aroundZ(10), true);
+        add(merger, 30, 6, aroundZ(20), false);
+
+        assertEquals(3, merger.getCount());
+        assertEquals(30, merger.getTimestamp());
+        assertArrayEquals(new float[]{3, 1, 2}, merger.getAccelerometer(), 1e-6f);
+        assertEquals(10.0, angleAroundZ(merger.getOrientation()), 1e-3);
+        assertTrue(merger.isStepDetected());
+
+        merger.clear();
+        add(merger, 40, 5, aroundZ(30), false);
+        assertArrayEquals(new float[]{5, 1, 2}, merger.getAccelerometer(), 1e-6f);
+        assertEquals(30.0, angleAroundZ(merger.getOrientation()), 1e-3);
+        assertFalse(merger.isStepDetected());
+    }
+
+    @Test
+    public void takesTheShortPathBetweenOppositeSigns() {
+        ImuSampleMerger merger = new ImuSampleMerger();
+        Quaternion q = aroundZ(10);
+        float[] xyzw = q.getFloatArrayXYZW();
+        add(merger, 10, 0, q, false);
+        add(merger, 20, 0, new Quaternion(-xyzw[0], -xyzw[1], -xyzw[2], -xyzw[3]), false);
+        assertEquals(10.0, Math.abs(angleAroundZ(merger.getOrientation())), 1e-3);
+    }
+
+    @Test
+    public void decimationKeepsTheLastSampleAndTheSteps() {
+        ImuSampleMerger merger = new ImuSampleMerger();
+        merger.setAveraging(false);
+        add(merger, 10, 1, aroundZ(0), true);
+        add(merger, 20, 7, aroundZ(40), false);
+        assertArrayEquals(new float[]{7, 1, 2}, merger.getAccelerometer(), 1e-6f);
+        assertEquals(40.0, angleAroundZ(merger.getOrientation()), 1e-3);
+        assertTrue(merger.isStepDetected());
+    }
+}
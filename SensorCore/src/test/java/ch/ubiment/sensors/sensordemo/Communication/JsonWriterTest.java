@@ -0,0 +1,151 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * FloatFormat must print the same characters as Float.toString(), and JsonWriter the same bytes as the string
+ * concatenation it replaced in MainActivity.send_values(): the python scripts parse both.
+ * JsonWriterBenchmark of the Benchmarks module compares the speed of both.
+ */
+public class JsonWriterTest {
+    private static final String PHONE_ID = "8e1d5a3b2c4f6a7b";
+
+    private final byte[] buffer = new byte[64];
+
+    private void assertSameAsToString(float value) {
+        // not at the start of the array, and nothing written after the value
+        Arrays.fill(buffer, (byte) '#');
+        int end = FloatFormat.write(value, buffer, 3);
+        String expected = Float.toString(value);
+        assertEquals(expected, new String(buffer, 3, end - 3, StandardCharsets.US_ASCII));
+        assertTrue(expected, end - 3 <= FloatFormat.MAX_LENGTH);
+        assertEquals('#', buffer[2]);
+        assertEquals('#', buffer[end]);
+    }
+
+    private void assertSameAsToStringWithNeighbours(float value) {
+        assertSameAsToString(value);
+        assertSameAsToString(Math.nextDown(value));
+        assertSameAsToString(Math.nextUp(value));
+        assertSameAsToString(-value);
+        assertSameAsToString(-Math.nextDown(value));
+        assertSameAsToString(-Math.nextUp(value));
+    }
+
+    @Test
+    public void specialValues() {
+        assertSameAsToString(Float.NaN);
+        assertSameAsToString(Float.POSITIVE_INFINITY);
+        assertSameAsToString(Float.NEGATIVE_INFINITY);
+        assertSameAsToString(0.0f);
+        assertSameAsToString(-0.0f);
+        assertSameAsToString(Float.MAX_VALUE);
+        assertSameAsToString(-Float.MAX_VALUE);
+        assertSameAsToString(Float.MIN_NORMAL);
+        assertSameAsToString(Float.MIN_VALUE);
+        assertSameAsToString(-Float.MIN_VALUE);
+        assertSameAsToString(Math.nextDown(Float.MIN_NORMAL));
+        // longest output
+        assertSameAsToString(-1.17549435E-38f);
+        assertSameAsToString(7.4505806E-9f);
+    }
+
+    @Test
+    public void subnormals() {
+        for (int bits = 1; bits < 0x00800000; bits += 4099) {
+            assertSameAsToString(Float.intBitsToFloat(bits));
+            assertSameAsToString(Float.intBitsToFloat(bits | 0x80000000));
+        }
+    }
+
+    @Test
+    public void boundariesOfTheNotations() {
+        // the fast path is [1e-8, 1e7), Float.toString() switches to scientific notation outside [1e-3, 1e7)
+        assertSameAsToStringWithNeighbours(1e-8f);
+        assertSameAsToStringWithNeighbours(1e-3f);
+        assertSameAsToStringWithNeighbours(1e7f);
+        assertSameAsToStringWithNeighbours(9999999.0f);
+        assertSameAsToStringWithNeighbours(0.00099999994f);
+        for (int e = -12; e <= 12; e++) {
+            assertSameAsToStringWithNeighbours((float) Math.pow(10, e));
+        }
+        // rounding carries into a new digit
+        assertSameAsToStringWithNeighbours(9.999999f);
+        assertSameAsToStringWithNeighbours(0.099999994f);
+    }
+
+    @Test
+    public void sensorValues() {
+        float[] values = {1.0f, 9.81f, -9.80665f, 0.1f, 0.2f, 0.3f, 0.70710677f, -67.25f, 100.0f, 123456.79f,
+                0.001f, 0.0012345f, 45.0f, -0.5f, 3.1415927f};
+        for (float value : values) assertSameAsToStringWithNeighbours(value);
+
+        Random random = new Random(42);
+        for (int i = 0; i < 200000; i++) {
+            assertSameAsToString((float) random.nextGaussian() * 10);
+            assertSameAsToString((float) random.nextGaussian() * 0.01f);
+            assertSameAsToString((float) (random.nextGaussian() * 1000));
+        }
+    }
+
+    @Test
+    public void bitPatterns() {
+        // every 65537th float, both signs, and random ones
+        for (long bits = 0; bits <= 0xffffffffL; bits += 65537) {
+            assertSameAsToString(Float.intBitsToFloat((int) bits));
+        }
+        Random random = new Random(7);
+        for (int i = 0; i < 200000; i++) {
+            assertSameAsToString(Float.intBitsToFloat(random.nextInt()));
+        }
+    }
+
+    @Test
+    public void messageIsTheConcatenatedOne() {
+        Random random = new Random(42);
+        float[][] vectors = new float[1024][];
+        for (int i = 0; i < vectors.length; i++) {
+            vectors[i] = new float[]{(float) random.nextGaussian() * 10, (float) random.nextGaussian(),
+                    (float) random.nextGaussian() * 0.01f, (float) random.nextGaussian()};
+        }
+        JsonWriter writer = new JsonWriter(16);
+        for (int i = 0; i < vectors.length; i++) {
+            long now = 1591012345678L + i;
+            writer.beginObject()
+                    .field("timestamp", now)
+                    .field("Phone_ID", PHONE_ID)
+                    .field("accelerometer", Arrays.copyOf(vectors[i], 3))
+                    .field("orientationAccGyroQuaterionXYZW", vectors[(i + 1) & 1023])
+                    .field("isStepDetectedSensor", (i & 1) == 0)
+                    .endObject();
+            String expected = "{\"timestamp\":\"" + now
+                    + "\",\"Phone_ID\":\"" + PHONE_ID
+                    + "\",\"accelerometer\":\"" + floatVector2String(Arrays.copyOf(vectors[i], 3))
+                    + "\",\"orientationAccGyroQuaterionXYZW\":\"" + floatVector2String(vectors[(i + 1) & 1023])
+                    + "\",\"isStepDetectedSensor\":\"" + (((i & 1) == 0) ? 1 : 0)
+                    + "\"}";
+            assertArrayEquals(expected.getBytes(StandardCharsets.UTF_8), Arrays.copyOf(writer.buffer(), writer.size()));
+            assertEquals(floatVector2String(vectors[i]), JsonWriter.vectorToString(vectors[i]));
+        }
+    }
+
+    /**
+     * The helper of MainActivity before JsonWriter
+     */
+    private static String floatVector2String(float[] vector) {
+        String msg = "[" + vector[0];
+        for (int i = 1; i < vector.length; i++) {
+            msg += ", " + vector[i];
+        }
+        msg += "]";
+        return msg;
+    }
+}
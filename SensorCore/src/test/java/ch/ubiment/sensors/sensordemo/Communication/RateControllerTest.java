@@ -0,0 +1,100 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds the controller with the counters of a transport which degrades then recovers, 50 samples per second
+ */
+public class RateControllerTest {
+    private static final long WINDOW_NS = RateController.DEFAULT_WINDOW_MS * 1000000L;
+    private static final int CAPACITY = 256;
+
+    private final RateController controller = new RateController();
+    private long now = 0;
+    private long lost = 0;
+    private long latencyCount = 0;
+    private long latencyTotal = 0;
+
+    /**
+     * One window of 25 samples, of which `lostInWindow` were dropped, the others waited `latencyMs` in a queue of `depth`
+     * @return the number of samples to send
+     */
+    private int window(int depth, int lostInWindow, long latencyMs) {
+        int sent = 0;
+        for (int i = 0; i < 25; i++) {
+            if (controller.onSample()) sent++;
+        }
+        now += WINDOW_NS;
+        lost += lostInWindow;
+        latencyCount += 25 - lostInWindow;
+        latencyTotal += (25 - lostInWindow) * latencyMs * 1000000L;
+        controller.update(now, depth, CAPACITY, lost, latencyCount, latencyTotal);
+        return sent;
+    }
+
+    @Test
+    public void healthyTransportKeepsTheFullRate() {
+        controller.update(now, 0, CAPACITY, 0, 0, 0);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(25, window(0, 0, 1));
+        }
+        assertEquals(1, controller.getFactor());
+        assertEquals(50.0, controller.getOutputRateHz(), 0.01);
+        assertEquals(0, controller.getDecreaseCount());
+    }
+
+    @Test
+    public void pressureStepsDownAtOnceAndRecoveryStepsUpSlowly() {
+        controller.update(now, 0, CAPACITY, 0, 0, 0);
+        window(0, 3, 1);
+        assertEquals(2, controller.getFactor());
+        assertTrue(controller.getLastDecision(), controller.getLastDecision().contains("lost"));
+        window(200, 0, 1);
+        assertEquals(4, controller.getFactor());
+        assertTrue(controller.getLastDecision(), controller.getLastDecision().contains("queue"));
+        window(0, 0, 30);
+        assertEquals(8, controller.getFactor());
+        assertTrue(controller.getLastDecision(), controller.getLastDecision().contains("latency"));
+        // already at the lowest rate
+        window(0, 5, 30);
+        assertEquals(8, controller.getFactor());
+        assertEquals(3, controller.getDecreaseCount());
+        assertEquals(50.0 / 8, controller.getOutputRateHz(), 0.01);
+
+        // between the thresholds: no change
+        for (int i = 0; i < 10; i++) window(0, 0, 10);
+        assertEquals(8, controller.getFactor());
+
+        for (int i = 0; i < RateController.DEFAULT_RECOVER_WINDOWS - 1; i++) window(0, 0, 1);
+        assertEquals(8, controller.getFactor());
+        window(0, 0, 1);
+        assertEquals(4, controller.getFactor());
+        assertEquals("1/4: recovered", controller.getLastDecision());
+        for (int i = 0; i < 2 * RateController.DEFAULT_RECOVER_WINDOWS; i++) window(0, 0, 1);
+        assertEquals(1, controller.getFactor());
+        assertEquals(3, controller.getIncreaseCount());
+    }
+
+    @Test
+    public void decimationSendsOneSampleOutOfFactor() {
+        controller.update(now, 0, CAPACITY, 0, 0, 0);
+        window(0, 1, 1);
+        window(0, 1, 1);
+        assertEquals(4, controller.getFactor());
+        int sent = 0;
+        int gap = 0;
+        for (int i = 0; i < 40; i++) {
+            if (controller.onSample()) {
+                sent++;
+                if (sent > 1) assertEquals(4, gap);
+                gap = 1;
+            } else {
+                gap++;
+            }
+        }
+        assertEquals(10, sent);
+    }
+}
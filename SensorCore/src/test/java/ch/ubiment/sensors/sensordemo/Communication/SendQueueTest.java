@@ -0,0 +1,187 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The overflow policies of SendQueue, and the slots going back to the pool
+ */
+public class SendQueueTest {
+
+    private static boolean offer(SendQueue queue, int value) {
+        return queue.offer(new byte[]{(byte) value}, 0, 1);
+    }
+
+    /**
+     * Poll the next payload and release its slot
+     */
+    private static int poll(SendQueue queue) throws InterruptedException {
+        SendQueue.Slot slot = queue.poll(0);
+        assertNotNull(slot);
+        assertEquals(1, slot.buffer().remaining());
+        int value = slot.buffer().get(0);
+        queue.release(slot);
+        return value;
+    }
+
+    /**
+     * Wait until the thread blocks in claim()
+     */
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (thread.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(Thread.State.WAITING, thread.getState());
+    }
+
+    private static Thread claimInThread(final SendQueue queue, final AtomicReference<SendQueue.Slot> claimed) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                claimed.set(queue.claim());
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    @Test
+    public void payloadsComeOutInOrder() throws Exception {
+        SendQueue queue = new SendQueue(4, 16, SendQueue.OverflowPolicy.DROP_NEWEST);
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 4; i++) assertTrue(offer(queue, 10 * round + i));
+            assertEquals(4, queue.getDepth());
+            for (int i = 0; i < 4; i++) assertEquals(10 * round + i, poll(queue));
+        }
+        assertEquals(0, queue.getDepth());
+        assertNull(queue.poll(0));
+        assertEquals(12, queue.getEnqueuedCount());
+        assertEquals(0, queue.getDroppedCount());
+    }
+
+    @Test
+    public void dropOldestReusesTheOldestQueuedSlot() throws Exception {
+        SendQueue queue = new SendQueue(3, 16, SendQueue.OverflowPolicy.DROP_OLDEST);
+        for (int i = 0; i < 5; i++) assertTrue(offer(queue, i));
+        assertEquals(2, queue.getDroppedCount());
+        assertEquals(3, queue.getDepth());
+        assertEquals(2, poll(queue));
+        assertEquals(3, poll(queue));
+        assertEquals(4, poll(queue));
+    }
+
+    @Test
+    public void dropOldestCanNotDropTheSlotsInUse() {
+        SendQueue queue = new SendQueue(2, 16, SendQueue.OverflowPolicy.DROP_OLDEST);
+        // being filled, nothing is queued
+        assertNotNull(queue.claim());
+        assertNotNull(queue.claim());
+        assertNull(queue.claim());
+        assertEquals(1, queue.getDroppedCount());
+    }
+
+    @Test
+    public void dropNewestRejectsThePayload() throws Exception {
+        SendQueue queue = new SendQueue(3, 16, SendQueue.OverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < 3; i++) assertTrue(offer(queue, i));
+        assertFalse(offer(queue, 3));
+        assertFalse(offer(queue, 4));
+        assertEquals(2, queue.getDroppedCount());
+        assertEquals(3, queue.getEnqueuedCount());
+        for (int i = 0; i < 3; i++) assertEquals(i, poll(queue));
+        assertTrue(offer(queue, 5));
+        assertEquals(5, poll(queue));
+    }
+
+    @Test
+    public void blockWaitsForTheSenderToReleaseASlot() throws Exception {
+        SendQueue queue = new SendQueue(1, 16, SendQueue.OverflowPolicy.BLOCK);
+        assertTrue(offer(queue, 7));
+        AtomicReference<SendQueue.Slot> claimed = new AtomicReference<>();
+        Thread producer = claimInThread(queue, claimed);
+        awaitWaiting(producer);
+        assertNull(claimed.get());
+
+        SendQueue.Slot slot = queue.poll(0);
+        queue.release(slot);
+        producer.join(2000);
+        assertFalse(producer.isAlive());
+        // the single slot of the pool
+        assertSame(slot, claimed.get());
+        assertEquals(0, claimed.get().buffer().position());
+        assertEquals(0, queue.getDroppedCount());
+    }
+
+    @Test
+    public void cancelReturnsTheSlotToThePool() {
+        SendQueue queue = new SendQueue(2, 16, SendQueue.OverflowPolicy.DROP_NEWEST);
+        SendQueue.Slot first = queue.claim();
+        SendQueue.Slot second = queue.claim();
+        assertNull(queue.claim());
+        first.buffer().put((byte) 1);
+        queue.cancel(first);
+        assertEquals(0, queue.getDepth());
+        SendQueue.Slot again = queue.claim();
+        assertSame(first, again);
+        // cleared by claim()
+        assertEquals(0, again.buffer().position());
+        queue.cancel(again);
+        queue.cancel(second);
+        assertNotNull(queue.claim());
+        assertNotNull(queue.claim());
+        assertEquals(0, queue.getEnqueuedCount());
+    }
+
+    @Test
+    public void closeWakesUpABlockedProducer() throws Exception {
+        SendQueue queue = new SendQueue(1, 16, SendQueue.OverflowPolicy.BLOCK);
+        assertNotNull(queue.claim());
+        AtomicReference<SendQueue.Slot> claimed = new AtomicReference<>();
+        Thread producer = claimInThread(queue, claimed);
+        awaitWaiting(producer);
+
+        queue.close();
+        producer.join(2000);
+        assertFalse(producer.isAlive());
+        assertNull(claimed.get());
+        assertTrue(queue.isClosed());
+    }
+
+    @Test
+    public void queuedPayloadsCanBeDrainedAfterClose() throws Exception {
+        SendQueue queue = new SendQueue(4, 16, SendQueue.OverflowPolicy.BLOCK);
+        assertTrue(offer(queue, 1));
+        SendQueue.Slot filling = queue.claim();
+        queue.close();
+        assertNull(queue.claim());
+        assertFalse(offer(queue, 2));
+        filling.buffer().put((byte) 3);
+        assertFalse(queue.publish(filling));
+
+        assertEquals(1, poll(queue));
+        // closed and empty: does not wait
+        assertNull(queue.poll(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void pollTimesOut() throws Exception {
+        SendQueue queue = new SendQueue(1, 16, SendQueue.OverflowPolicy.BLOCK);
+        long start = System.nanoTime();
+        assertNull(queue.poll(20000000L));
+        assertTrue(System.nanoTime() - start >= 20000000L);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void payloadLargerThanASlot() {
+        new SendQueue(1, 16, SendQueue.OverflowPolicy.BLOCK).offer(new byte[17], 0, 17);
+    }
+}
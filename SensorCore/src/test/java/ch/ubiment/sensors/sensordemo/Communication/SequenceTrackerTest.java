@@ -0,0 +1,178 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+/**
+ * Loss, reordering, duplicates and jitter of SequenceTracker, as seen by a receiver
+ */
+public class SequenceTrackerTest {
+    private static final String PHONE = "8f3a5c7e9b1d2f40";
+
+    private final SequenceTracker tracker = new SequenceTracker();
+
+    private SequenceTracker.Stream receive(long... sequences) {
+        SequenceTracker.Stream stream = null;
+        for (long sequence : sequences) {
+            stream = tracker.onPacket(PHONE, sequence, 0, 0);
+        }
+        return stream;
+    }
+
+    @Test
+    public void inOrder() {
+        SequenceTracker.Stream stream = null;
+        for (int i = 0; i < 100; i++) stream = receive(i);
+        assertEquals(100, stream.getReceivedCount());
+        assertEquals(100, stream.getExpectedCount());
+        assertEquals(0, stream.getLostCount());
+        assertEquals(0, stream.getLateCount());
+        assertEquals(0, stream.getDuplicateCount());
+        assertEquals(99, stream.getHighestSequence());
+    }
+
+    @Test
+    public void lossesAndLateArrivals() {
+        SequenceTracker.Stream stream = receive(10, 11, 13, 14, 17);
+        assertEquals(8, stream.getExpectedCount());
+        assertEquals(3, stream.getLostCount());
+        assertEquals(3 / 8.0, stream.getLossRate(), 1e-12);
+
+        // a late packet is not lost anymore
+        receive(12);
+        assertEquals(2, stream.getLostCount());
+        assertEquals(1, stream.getLateCount());
+        // 5 behind the highest sequence number
+        assertEquals(5, stream.getMaxReorderDepth());
+        receive(15);
+        assertEquals(1, stream.getLostCount());
+        assertEquals(2, stream.getLateCount());
+        assertEquals(5, stream.getMaxReorderDepth());
+        assertEquals(17, stream.getHighestSequence());
+        assertEquals(0, stream.getDuplicateCount());
+    }
+
+    @Test
+    public void duplicates() {
+        SequenceTracker.Stream stream = receive(0, 1, 2, 2, 0, 4, 3, 3);
+        // 2 twice, 0 again, and 3 twice after arriving late
+        assertEquals(3, stream.getDuplicateCount());
+        assertEquals(5, stream.getReceivedCount());
+        assertEquals(5, stream.getExpectedCount());
+        assertEquals(1, stream.getLateCount());
+        assertEquals(0, stream.getLostCount());
+    }
+
+    @Test
+    public void duplicatesAreRecognisedWithinTheWindow() {
+        int last = SequenceTracker.WINDOW - 1;
+        SequenceTracker.Stream stream = receive(0);
+        receive(last);
+        // WINDOW - 1 behind the highest: the last bit of the bitmap
+        receive(0);
+        assertEquals(1, stream.getDuplicateCount());
+        receive(1);
+        assertEquals(1, stream.getLateCount());
+        receive(1);
+        assertEquals(2, stream.getDuplicateCount());
+
+        // WINDOW behind: out of the bitmap, late but can not be told from a duplicate
+        receive(last + 1, 0);
+        assertEquals(2, stream.getDuplicateCount());
+        assertEquals(2, stream.getLateCount());
+        assertEquals(SequenceTracker.WINDOW, stream.getMaxReorderDepth());
+    }
+
+    @Test
+    public void aJumpLargerThanTheWindowClearsTheBitmap() {
+        SequenceTracker.Stream stream = receive(0, 1, 2, 3);
+        receive(3 + 2 * SequenceTracker.WINDOW);
+        assertEquals(2 * SequenceTracker.WINDOW - 1, stream.getLostCount());
+        // a packet missed by the jump, within the new window: late, not a duplicate
+        receive(3 + SequenceTracker.WINDOW + 1);
+        assertEquals(0, stream.getDuplicateCount());
+        assertEquals(1, stream.getLateCount());
+        receive(3 + SequenceTracker.WINDOW + 1);
+        assertEquals(1, stream.getDuplicateCount());
+    }
+
+    @Test
+    public void sequenceNumbersWrapAround() {
+        // the int sequence of the binary frames, read as unsigned (sequence & 0xffffffffL)
+        long max = 0xffffffffL;
+        SequenceTracker.Stream stream = receive(max - 2, max - 1, 0, 1);
+        assertEquals(0, stream.getRestartCount());
+        assertEquals(5, stream.getExpectedCount());
+        assertEquals(1, stream.getLostCount());
+        assertEquals(1, stream.getHighestSequence());
+
+        // the missing one, across the wrap
+        receive(max);
+        assertEquals(0, stream.getLostCount());
+        assertEquals(1, stream.getLateCount());
+        assertEquals(2, stream.getMaxReorderDepth());
+        receive(max);
+        assertEquals(1, stream.getDuplicateCount());
+        assertEquals(0, stream.getRestartCount());
+    }
+
+    @Test
+    public void largeJumpBackwardsIsARestart() {
+        long start = 5000;
+        SequenceTracker.Stream stream = receive(start);
+        // exactly RESTART_THRESHOLD behind: a (very) late packet
+        receive(start - SequenceTracker.RESTART_THRESHOLD);
+        assertEquals(0, stream.getRestartCount());
+        assertEquals(1, stream.getLateCount());
+        assertEquals(start, stream.getHighestSequence());
+
+        // one more: the sender restarted, the tracking continues from the new sequence number
+        receive(start - SequenceTracker.RESTART_THRESHOLD - 1);
+        assertEquals(1, stream.getRestartCount());
+        assertEquals(start - SequenceTracker.RESTART_THRESHOLD - 1, stream.getHighestSequence());
+        long expected = stream.getExpectedCount();
+        receive(0, 1, 2);
+        assertEquals(2, stream.getRestartCount());
+        receive(3, 4);
+        assertEquals(expected + 5, stream.getExpectedCount());
+        assertEquals(0, stream.getDuplicateCount());
+    }
+
+    @Test
+    public void jitterOfRfc3550() {
+        // constant transit time, whatever the clock offset: no jitter
+        SequenceTracker.Stream stream = null;
+        for (int i = 0; i < 100; i++) {
+            stream = tracker.onPacket(PHONE, i, 1000L * i, 1000L * i + 123456);
+        }
+        assertEquals(0.0, stream.getJitter(), 0.0);
+
+        // transit alternating between 0 and D: J += (|D(i) - D(i-1)| - J) / 16
+        SequenceTracker.Stream other = null;
+        double d = 800;
+        double expected = 0;
+        for (int i = 0; i < 200; i++) {
+            long transit = (i % 2 == 0) ? 0 : (long) d;
+            other = tracker.onPacket("other", i, 1000L * i, 1000L * i + transit);
+            if (i > 0) expected += (d - expected) / 16.0;
+        }
+        assertEquals(expected, other.getJitter(), 1e-9);
+        assertEquals(d * (1 - Math.pow(15 / 16.0, 199)), other.getJitter(), 1e-6);
+        assertNotSame(stream, other);
+    }
+
+    @Test
+    public void devicesAreTrackedSeparately() {
+        tracker.onPacket("a", 0, 0, 0);
+        tracker.onPacket("b", 100, 0, 0);
+        tracker.onPacket("a", 1, 0, 0);
+        tracker.onPacket("b", 102, 0, 0);
+        assertEquals(2, tracker.getStreams().size());
+        assertEquals(0, tracker.getStream("a").getLostCount());
+        assertEquals(1, tracker.getStream("b").getLostCount());
+        assertEquals(1, tracker.getStream("a").getHighestSequence());
+        assertEquals(102, tracker.getStream("b").getHighestSequence());
+    }
+}
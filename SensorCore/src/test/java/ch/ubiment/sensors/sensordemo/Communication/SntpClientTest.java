@@ -0,0 +1,93 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs an SNTP exchange over the loopback interface, against a server whose clock is 5 s ahead of the client
+ */
+public class SntpClientTest {
+    private static final long OFFSET_1900_TO_1970 = ((365L * 70L) + 17L) * 24L * 60L * 60L;
+    private static final long SERVER_AHEAD_MS = 5000;
+
+    /**
+     * Wall clock stuck at 1000000 ms, elapsedRealtime() advances by 10 ms at every call
+     */
+    private static class FakeClock implements Clock {
+        long ticks = 0;
+
+        @Override
+        public long currentTimeMillis() {
+            return 1000000L;
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            ticks += 10;
+            return ticks;
+        }
+    }
+
+    @Test
+    public void offsetAndRoundTripComeFromTheClock() throws Exception {
+        final DatagramSocket server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        Thread serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    byte[] buffer = new byte[48];
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    server.receive(packet);
+                    // originate = transmit time of the client, receive = transmit = that time on the server clock
+                    System.arraycopy(buffer, 40, buffer, 24, 8);
+                    long originate = readTimeStamp(buffer, 24);
+                    writeTimeStamp(buffer, 32, originate + SERVER_AHEAD_MS + 5);
+                    writeTimeStamp(buffer, 40, originate + SERVER_AHEAD_MS + 5);
+                    server.send(new DatagramPacket(buffer, buffer.length, packet.getSocketAddress()));
+                } catch (Exception e) {
+                    // the client times out
+                }
+            }
+        });
+        serverThread.start();
+
+        FakeClock clock = new FakeClock();
+        SntpClient client = new SntpClient(clock, Logger.SYSTEM);
+        assertTrue(client.requestTime("127.0.0.1", server.getLocalPort(), 5000));
+        serverThread.join();
+        server.close();
+
+        // request at tick 10, response at tick 20
+        assertEquals(10, client.getRoundTripTime(), 1);
+        assertEquals(20, client.getNtpTimeReference());
+        // the timestamps are truncated to the millisecond on the wire
+        assertEquals(1000000L + 10 + SERVER_AHEAD_MS, client.getNtpTime(), 1);
+        // now() follows elapsedRealtime(): the next call returns tick 30
+        assertEquals(client.getNtpTime() + 10, client.now());
+    }
+
+    private static long readTimeStamp(byte[] buffer, int offset) {
+        long seconds = 0;
+        long fraction = 0;
+        for (int i = 0; i < 4; i++) {
+            seconds = (seconds << 8) | (buffer[offset + i] & 0xff);
+            fraction = (fraction << 8) | (buffer[offset + 4 + i] & 0xff);
+        }
+        return (seconds - OFFSET_1900_TO_1970) * 1000 + Math.round(fraction * 1000.0 / 0x100000000L);
+    }
+
+    private static void writeTimeStamp(byte[] buffer, int offset, long time) {
+        long seconds = time / 1000 + OFFSET_1900_TO_1970;
+        long fraction = (time % 1000) * 0x100000000L / 1000;
+        for (int i = 0; i < 4; i++) {
+            buffer[offset + i] = (byte) (seconds >> (24 - 8 * i));
+            buffer[offset + 4 + i] = (byte) (fraction >> (24 - 8 * i));
+        }
+    }
+}
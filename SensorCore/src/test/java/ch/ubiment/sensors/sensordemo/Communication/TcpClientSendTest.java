@@ -0,0 +1,103 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs TcpClientSend against TcpRecordingServer over the loopback interface
+ */
+public class TcpClientSendTest {
+    private TcpRecordingServer server;
+    private TcpClientSend client;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new TcpRecordingServer(0);
+        client = new TcpClientSend("127.0.0.1", server.getPort(), 256, 64, SendQueue.OverflowPolicy.BLOCK, Logger.SYSTEM);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        server.close();
+    }
+
+    private void send(int from, int to) {
+        for (int i = from; i < to; i++) {
+            SendQueue.Slot slot = client.claim();
+            slot.buffer().putInt(i);
+            // variable length, to check the framing
+            for (int j = 0; j < i % 7; j++) slot.buffer().put((byte) j);
+            assertTrue(client.publish(slot));
+        }
+    }
+
+    private void assertReceivedInOrder(int count) {
+        List<byte[]> payloads = server.getPayloads();
+        assertEquals(count, payloads.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(4 + i % 7, payloads.get(i).length);
+            assertEquals(i, ByteBuffer.wrap(payloads.get(i)).getInt());
+        }
+    }
+
+    @Test
+    public void framesArriveInOrderAndAreAcknowledged() throws Exception {
+        send(0, 1000);
+        assertTrue(client.awaitAcknowledged(5000));
+        assertReceivedInOrder(1000);
+        assertEquals(1000, client.getSentCount());
+        assertEquals(0, client.getUnacknowledgedCount());
+        assertEquals(0, client.getDroppedCount());
+    }
+
+    @Test
+    public void resumesAfterTheLastAcknowledgedFrame() throws Exception {
+        send(0, 100);
+        assertTrue(client.awaitAcknowledged(5000));
+
+        // received but not acknowledged: the server gives the resume point in WELCOME
+        server.setAcking(false);
+        send(100, 200);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.getPayloads().size() < 200 && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        assertEquals(100, client.getUnacknowledgedCount());
+
+        server.dropConnections();
+        server.setAcking(true);
+        // queued while the connection is down
+        send(200, 300);
+        assertTrue(client.awaitAcknowledged(10000));
+
+        assertReceivedInOrder(300);
+        assertEquals(1, server.getSessionCount());
+        assertEquals(2, client.getConnectionCount());
+        // the server resumes at 200: what was written into the broken connection is sent again, nothing else
+        assertTrue(server.getDuplicateCount() <= client.getRetransmittedCount());
+        assertTrue(client.getRetransmittedCount() <= 100);
+        assertEquals(300, client.getSentCount());
+    }
+
+    @Test
+    public void waitsForTheServer() throws Exception {
+        server.close();
+        int port = server.getPort();
+        client.close();
+        client = new TcpClientSend("127.0.0.1", port, 256, 64, SendQueue.OverflowPolicy.BLOCK, Logger.SYSTEM);
+        send(0, 50);
+        Thread.sleep(300);
+        assertEquals(0, client.getSentCount());
+        assertTrue(client.getErrorCount() > 0);
+
+        server = new TcpRecordingServer(port);
+        assertTrue(client.awaitAcknowledged(10000));
+        assertReceivedInOrder(50);
+    }
+}
@@ -0,0 +1,191 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stand-in for the recording server of TcpClientSend (see TcpFraming), for the tests and for trying the apps
+ * without the python scripts:
+ * <pre>
+ *   java ch.ubiment.sensors.sensordemo.Communication.TcpRecordingServer [port]
+ * </pre>
+ * It keeps every payload in memory, per session, and prints the number of frames received every second.
+ * The tests can stop acknowledging and break the connections to exercise the resume.
+ */
+public class TcpRecordingServer {
+
+    private static class Session {
+        int next = 0;
+        final List<byte[]> payloads = new ArrayList<>();
+    }
+
+    private final ServerSocket serverSocket;
+    private final Map<Long, Session> sessions = new HashMap<>();
+    private final List<Socket> connections = new ArrayList<>();
+    private volatile boolean acking = true;
+    private volatile boolean running = true;
+    private long duplicateCount = 0;
+
+    public TcpRecordingServer(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "TcpRecordingServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                final Socket socket = serverSocket.accept();
+                synchronized (this) {
+                    // close() does not wait for a pending accept(): a client can still be accepted after it
+                    if (!running) {
+                        socket.close();
+                        break;
+                    }
+                    connections.add(socket);
+                }
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                }, "TcpRecordingServer:" + socket.getPort());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (running) System.err.println("accept failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            DataInputStream data = new DataInputStream(in);
+
+            byte[] hello = new byte[TcpFraming.HELLO_SIZE];
+            data.readFully(hello);
+            long sessionId = TcpFraming.getHello(ByteBuffer.wrap(hello));
+            Session session;
+            ByteBuffer welcome = ByteBuffer.allocate(TcpFraming.WELCOME_SIZE);
+            synchronized (this) {
+                session = sessions.get(sessionId);
+                if (session == null) {
+                    session = new Session();
+                    sessions.put(sessionId, session);
+                    TcpFraming.putWelcome(welcome, TcpFraming.NEW_SESSION);
+                } else {
+                    TcpFraming.putWelcome(welcome, session.next);
+                }
+            }
+            out.write(welcome.array());
+
+            byte[] header = new byte[TcpFraming.FRAME_HEADER_SIZE];
+            ByteBuffer headerView = ByteBuffer.wrap(header).order(TcpFraming.BYTE_ORDER);
+            ByteBuffer ack = ByteBuffer.allocate(TcpFraming.ACK_SIZE).order(TcpFraming.BYTE_ORDER);
+            while (running) {
+                data.readFully(header);
+                int length = headerView.getInt(0);
+                int sequence = headerView.getInt(4);
+                byte[] payload = new byte[length];
+                data.readFully(payload);
+                synchronized (this) {
+                    if (sequence == session.next) {
+                        session.payloads.add(payload);
+                        session.next++;
+                    } else if (sequence < session.next) {
+                        duplicateCount++;
+                    } else {
+                        throw new IOException("frame " + sequence + " received while expecting " + session.next);
+                    }
+                    ack.putInt(0, session.next);
+                }
+                // acknowledge once the frames written together by the client are read
+                if (acking && in.available() == 0) out.write(ack.array());
+            }
+        } catch (IOException e) {
+            if (running) System.err.println("connection closed: " + e.getMessage());
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Stop or resume the acknowledgments, the frames received meanwhile are sent again after a reconnection
+     */
+    public void setAcking(boolean acking) {
+        this.acking = acking;
+    }
+
+    /**
+     * Close every open connection, as if the network was lost
+     */
+    public synchronized void dropConnections() throws IOException {
+        for (Socket socket : connections) socket.close();
+        connections.clear();
+    }
+
+    /**
+     * Payloads received by every session, in order within a session
+     */
+    public synchronized List<byte[]> getPayloads() {
+        List<byte[]> payloads = new ArrayList<>();
+        for (Session session : sessions.values()) payloads.addAll(session.payloads);
+        return payloads;
+    }
+
+    public synchronized int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * Frames received twice, and ignored
+     */
+    public synchronized long getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    public void close() throws IOException {
+        running = false;
+        serverSocket.close();
+        dropConnections();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : 7587;
+        TcpRecordingServer server = new TcpRecordingServer(port);
+        System.out.println("recording server on port " + server.getPort());
+        int previous = 0;
+        while (true) {
+            Thread.sleep(1000);
+            int received = server.getPayloads().size();
+            System.out.println(server.getSessionCount() + " sessions, " + received + " frames (+" + (received - previous)
+                    + "), " + server.getDuplicateCount() + " duplicates");
+            previous = received;
+        }
+    }
+}
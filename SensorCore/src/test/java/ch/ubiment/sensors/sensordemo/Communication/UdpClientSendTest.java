@@ -0,0 +1,148 @@
+package ch.ubiment.sensors.sensordemo.Communication;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sends through UdpClientSend to a socket on the loopback interface
+ */
+public class UdpClientSendTest {
+    private DatagramSocket receiver;
+    private UdpClientSend client;
+
+    @Before
+    public void setUp() throws Exception {
+        receiver = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        receiver.setSoTimeout(2000);
+        client = new UdpClientSend("127.0.0.1", receiver.getLocalPort(), Logger.SYSTEM);
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+        receiver.close();
+    }
+
+    private String receive() throws Exception {
+        DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+        receiver.receive(packet);
+        return new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The counters are updated by the sender thread after the write, possibly after the datagram was received
+     */
+    private void waitForSent(long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (client.getSentCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void messagesArriveInOrder() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            client.send("{\"sequence\":\"" + i + "\"}");
+        }
+        for (int i = 0; i < 20; i++) {
+            assertEquals("{\"sequence\":\"" + i + "\"}", receive());
+        }
+        waitForSent(20);
+        assertEquals(20, client.getSentCount());
+        assertEquals(0, client.getErrorCount());
+    }
+
+    @Test
+    public void stringsAreSentAsUtf8() throws Exception {
+        client.send("{\"name\":\"Z\u00fcrich \u00b0C\"}");
+        assertEquals("{\"name\":\"Z\u00fcrich \u00b0C\"}", receive());
+    }
+
+    @Test
+    public void claimedSlotsAreBatched() throws Exception {
+        client.enableBatching(1472, 50);
+        for (int i = 0; i < 3; i++) {
+            SendQueue.Slot slot = client.claim();
+            slot.buffer().put(("frame" + i).getBytes(StandardCharsets.UTF_8));
+            assertTrue(client.publish(slot));
+        }
+
+        DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+        receiver.receive(packet);
+        ByteBuffer datagram = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+        assertTrue(FrameUnbatcher.isBatch(datagram));
+        FrameUnbatcher unbatcher = new FrameUnbatcher();
+        unbatcher.reset(datagram);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(unbatcher.next());
+            byte[] frame = new byte[datagram.remaining()];
+            datagram.get(frame);
+            assertEquals("frame" + i, new String(frame, StandardCharsets.UTF_8));
+        }
+        waitForSent(3);
+        assertEquals(1, client.getDatagramCount());
+        assertEquals(3, client.getSentCount());
+    }
+
+    /**
+     * The frames are published faster than they are sent, so the queue never runs empty
+     * and the deadline must be checked after every append
+     */
+    @Test
+    public void batchDeadlineIsHonouredUnderABacklog() throws Exception {
+        receiver.setReceiveBufferSize(1 << 20);
+        client.enableBatching(1472, 0);
+        for (int i = 0; i < 50; i++) {
+            SendQueue.Slot slot = client.claim();
+            slot.buffer().put(("frame" + i).getBytes(StandardCharsets.UTF_8));
+            assertTrue(client.publish(slot));
+        }
+        waitForSent(50);
+        assertEquals(50, client.getSentCount());
+        assertEquals(50, client.getDatagramCount());
+    }
+
+    @Test
+    public void drainAndCloseSendsTheQueuedMessages() throws Exception {
+        client.close();
+        receiver.setReceiveBufferSize(1 << 20);
+        client = new UdpClientSend("127.0.0.1", receiver.getLocalPort(), UdpClientSend.DEFAULT_QUEUE_CAPACITY,
+                UdpClientSend.DEFAULT_SLOT_SIZE, SendQueue.OverflowPolicy.BLOCK);
+        // the last ones are still in the queue or in a partially filled batch when drainAndClose() is called
+        client.enableBatching(1472, 10000);
+        int count = 500;
+        for (int i = 0; i < count; i++) {
+            client.send("{\"sequence\":\"" + i + "\"}");
+        }
+        assertTrue(client.drainAndClose(2000));
+        assertEquals(count, client.getSentCount());
+        assertEquals(0, client.getErrorCount());
+        assertFalse(client.send(new byte[1], 0, 1));
+
+        FrameUnbatcher unbatcher = new FrameUnbatcher();
+        DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+        int received = 0;
+        while (received < count) {
+            receiver.receive(packet);
+            ByteBuffer datagram = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+            unbatcher.reset(datagram);
+            while (unbatcher.next()) {
+                byte[] frame = new byte[datagram.remaining()];
+                datagram.get(frame);
+                assertEquals("{\"sequence\":\"" + received + "\"}", new String(frame, StandardCharsets.UTF_8));
+                received++;
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package ch.ubiment.sensors.sensordemo.Sensors;
+
+import ch.ubiment.sensors.sensordemo.Communication.FrameSerializer;
+import ch.ubiment.sensors.sensordemo.Communication.FrameSerializers;
+import ch.ubiment.sensors.sensordemo.Communication.ImuSample;
+import ch.ubiment.sensors.sensordemo.Communication.ImuSampleMerger;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Replays a recorded-like walk through the processing path of the IMU app (ImuPipeline, ImuSampleMerger,
+ * ImuSample and the serializers) and checks with ThreadMXBean that the steady state allocates nothing.
+ */
+public class ImuPipelineAllocationTest {
+    private static final int SECONDS = 60;
+
+    /**
+     * Events of every sensor, sorted by timestamp, as the listeners deliver them
+     */
+    private static class Trace {
+        final int[] channels;
+        final long[] timestamps;
+        final float[][] values;
+
+        Trace(int capacity) {
+            channels = new int[capacity];
+            timestamps = new long[capacity];
+            values = new float[capacity][];
+        }
+    }
+
+    /**
+     * Walk at 2 steps/s while slowly turning, each sensor at its own rate and phase with some jitter and noise
+     */
+    private static Trace walk(int seconds, long seed) {
+        Random random = new Random(seed);
+        long[] periods = {10000000L, 10000000L, 10000000L, 20000000L, 5000000L};   // acc, lin, grav, mag, gyro
+        long[] next = {1000000L, 3000000L, 4000000L, 7000000L, 2000000L};
+        long end = seconds * 1000000000L;
+        int capacity = 0;
+        for (long period : periods) capacity += (int) (end / period) + 1;
+        Trace trace = new Trace(capacity);
+        int n = 0;
+        while (true) {
+            int channel = 0;
+            for (int c = 1; c < periods.length; c++) {
+                if (next[c] < next[channel]) channel = c;
+            }
+            long ts = next[channel];
+            if (ts >= end) break;
+            next[channel] += periods[channel] + random.nextInt(400000) - 200000;
+
+            double t = ts * 1e-9;
+            double bounce = 1.5 * Math.sin(2 * Math.PI * 2.0 * t);
+            double heading = 0.2 * t;
+            float[] v = new float[3];
+            switch (channel) {
+                case ImuPipeline.ACCELEROMETER:
+                    v[0] = (float) (0.3 * Math.sin(2 * Math.PI * 1.0 * t) + 0.05 * random.nextGaussian());
+                    v[1] = (float) (0.2 + 0.05 * random.nextGaussian());
+                    v[2] = (float) (9.81 + bounce + 0.05 * random.nextGaussian());
+                    break;
+                case ImuPipeline.LINEAR_ACCELERATION:
+                    v[2] = (float) bounce;
+                    break;
+                case ImuPipeline.GRAVITY:
+                    v[1] = 0.2f;
+                    v[2] = 9.79f;
+                    break;
+                case ImuPipeline.MAGNETIC_FIELD:
+                    v[0] = (float) (20 * Math.cos(heading));
+                    v[1] = (float) (20 * Math.sin(heading));
+                    v[2] = -40;
+                    break;
+                case ImuPipeline.GYROSCOPE:
+                    v[0] = (float) (0.1 * Math.cos(2 * Math.PI * 2.0 * t) + 0.01 * random.nextGaussian());
+                    v[1] = (float) (0.01 * random.nextGaussian());
+                    v[2] = (float) (0.2 + 0.01 * random.nextGaussian());
+                    break;
+            }
+            trace.channels[n] = channel;
+            trace.timestamps[n] = ts;
+            trace.values[n] = v;
+            n++;
+        }
+        Trace sorted = new Trace(n);
+        System.arraycopy(trace.channels, 0, sorted.channels, 0, n);
+        System.arraycopy(trace.timestamps, 0, sorted.timestamps, 0, n);
+        System.arraycopy(trace.values, 0, sorted.values, 0, n);
+        return sorted;
+    }
+
+    /**
+     * What the processing thread of the app does for every event: every 4th fused sample is sent, the others are
+     * merged into it (RateController at a quarter of the rate)
+     */
+    private static class Processor {
+        final ImuPipeline pipeline = new ImuPipeline();
+        final ImuSampleMerger merger = new ImuSampleMerger();
+        final ImuSample sample = new ImuSample();
+        final FrameSerializer<ImuSample> serializer;
+        final ByteBuffer frame = ByteBuffer.allocate(2048);
+        int sequence = 0;
+        long bytes = 0;
+
+        Processor(String format) {
+            serializer = FrameSerializers.imu(format, "8e1d5a4f2c3b7d60", 0);
+        }
+
+        void replay(Trace trace, int from, int to) {
+            for (int i = from; i < to; i++) {
+                pipeline.add(trace.channels[i], trace.timestamps[i], trace.values[i]);
+                while (pipeline.poll()) {
+                    merger.add(pipeline.getTimestamp(),
+                            pipeline.getAccelerometer(), pipeline.getLinearAcceleration(), pipeline.getGravity(),
+                            pipeline.getMagneticField(), pipeline.getGyroscope(),
+                            pipeline.getOrientationXYZW(), pipeline.getOrientationGravAccGyroXYZW(),
+                            pipeline.getOrientationAccGyroXYZW(),
+                            false, pipeline.isStepDetected());
+                    if (merger.getCount() < 4) continue;
+                    sample.set(sequence++, merger.getTimestamp(),
+                            merger.getAccelerometer(), merger.getLinearAcceleration(), merger.getGravity(),
+                            merger.getMagneticField(), merger.getGyroscope(),
+                            merger.getOrientationXYZW(), merger.getOrientationGravAccGyroXYZW(),
+                            merger.getOrientationAccGyroXYZW(),
+                            merger.isStepDetectedSensor(), merger.isStepDetected());
+                    merger.clear();
+                    frame.clear();
+                    serializer.write(sample, frame);
+                    bytes += frame.position();
+                }
+            }
+        }
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        return threads;
+    }
+
+    @Test
+    public void steadyStateDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threads = threadBean();
+        long thread = Thread.currentThread().getId();
+        Trace trace = walk(SECONDS, 7);
+        int half = trace.channels.length / 2;
+
+        for (String format : FrameSerializers.NAMES) {
+            Processor processor = new Processor(format);
+            // warm up: fills the rings and the buffers, loads the classes and lets the JIT compile the path
+            processor.replay(trace, 0, half);
+
+            // cost of the measure itself, if any
+            long overhead = -threads.getThreadAllocatedBytes(thread);
+            overhead += threads.getThreadAllocatedBytes(thread);
+
+            long before = threads.getThreadAllocatedBytes(thread);
+            processor.replay(trace, half, trace.channels.length);
+            long allocated = threads.getThreadAllocatedBytes(thread) - before - overhead;
+
+            assertTrue(format + ": no frame", processor.bytes > 0);
+            assertEquals(format + ": bytes allocated for " + (trace.channels.length - half) + " events",
+                    0, allocated);
+        }
+    }
+
+    @Test
+    public void detectsTheStepsOfTheWalk() {
+        ImuPipeline pipeline = new ImuPipeline();
+        Trace trace = walk(SECONDS, 11);
+        long samples = 0;
+        for (int i = 0; i < trace.channels.length; i++) {
+            pipeline.add(trace.channels[i], trace.timestamps[i], trace.values[i]);
+            while (pipeline.poll()) samples++;
+        }
+        // 50 Hz, the first output waits for the last sensor to start
+        assertEquals(SECONDS * 50, samples, 2);
+        // 2 steps/s, the detector needs a few seconds to settle
+        int steps = pipeline.getStepCount();
+        assertTrue("steps: " + steps, steps > SECONDS && steps <= 2 * SECONDS);
+        for (float[] q : new float[][] {pipeline.getOrientationXYZW(), pipeline.getOrientationGravAccGyroXYZW(),
+                pipeline.getOrientationAccGyroXYZW()}) {
+            assertEquals(1.0, Math.sqrt(q[0]*q[0] + q[1]*q[1] + q[2]*q[2] + q[3]*q[3]), 1e-5);
+        }
+    }
+}
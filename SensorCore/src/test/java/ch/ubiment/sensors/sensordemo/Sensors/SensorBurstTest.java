@@ -0,0 +1,235 @@
+package ch.ubiment.sensors.sensordemo.Sensors;
+
+import ch.ubiment.sensors.sensordemo.Communication.BatchSender;
+import ch.ubiment.sensors.sensordemo.Communication.FrameSerializer;
+import ch.ubiment.sensors.sensordemo.Communication.FrameSerializers;
+import ch.ubiment.sensors.sensordemo.Communication.FrameUnbatcher;
+import ch.ubiment.sensors.sensordemo.Communication.ImuSample;
+import ch.ubiment.sensors.sensordemo.Communication.Logger;
+import ch.ubiment.sensors.sensordemo.Communication.UdpClientSend;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Synthetic FIFO flushes: every BURST_NS, the events of each sensor since the previous flush are delivered one
+ * sensor after the other, as the sensor hub does with a max report latency
+ */
+public class SensorBurstTest {
+    private static final long MS = 1000000L;
+    private static final long US = 1000L;
+    private static final long BURST_NS = 200 * MS;
+    // acc, lin, grav, mag, gyro; the phases avoid equal timestamps between sensors
+    private static final long[] PERIODS = {10 * MS, 20 * MS, 20 * MS, 20 * MS, 5 * MS};
+    private static final long[] PHASES = {1 * MS + 3 * US, 2 * MS + 7 * US, 3 * MS + 11 * US, 4 * MS + 13 * US, 17 * US};
+
+    private static float[] values(int channel, long t) {
+        double s = t * 1e-9;
+        switch (channel) {
+            case ImuPipeline.ACCELEROMETER:
+                return new float[] {(float) (0.3 * Math.sin(2 * Math.PI * s)), 0.2f,
+                        (float) (9.81 + 1.5 * Math.sin(4 * Math.PI * s))};
+            case ImuPipeline.GRAVITY:
+                return new float[] {0, 0.2f, 9.79f};
+            case ImuPipeline.MAGNETIC_FIELD:
+                return new float[] {20, 0, -40};
+            case ImuPipeline.GYROSCOPE:
+                return new float[] {(float) (0.1 * Math.cos(4 * Math.PI * s)), 0, 0.2f};
+            default:
+                return new float[] {0, 0, (float) (1.5 * Math.sin(4 * Math.PI * s))};
+        }
+    }
+
+    /**
+     * The events of [start, start + BURST_NS) in the order of a FIFO flush: grouped by sensor
+     */
+    private static void flush(SensorBurst burst, long start) {
+        for (int c = 0; c < PERIODS.length; c++) {
+            long first = PHASES[c] + Math.max(0, (start - PHASES[c] + PERIODS[c] - 1) / PERIODS[c]) * PERIODS[c];
+            for (long t = first; t < start + BURST_NS; t += PERIODS[c]) burst.add(c, t, values(c, t));
+        }
+    }
+
+    private static class Samples implements ImuPipeline.Listener {
+        final List<Long> timestamps = new ArrayList<>();
+        final List<float[]> orientations = new ArrayList<>();
+        int steps = 0;
+
+        @Override
+        public void onSample(ImuPipeline pipeline) {
+            timestamps.add(pipeline.getTimestamp());
+            float[] q = new float[12];
+            System.arraycopy(pipeline.getOrientationXYZW(), 0, q, 0, 4);
+            System.arraycopy(pipeline.getOrientationGravAccGyroXYZW(), 0, q, 4, 4);
+            System.arraycopy(pipeline.getOrientationAccGyroXYZW(), 0, q, 8, 4);
+            orientations.add(q);
+            if (pipeline.isStepDetected()) steps++;
+        }
+    }
+
+    private static ImuPipeline newPipeline() {
+        return new ImuPipeline(SensorRateConfig.parse("gyroscope=5000/200000,accelerometer=10000/200000"),
+                Logger.SYSTEM);
+    }
+
+    @Test
+    public void sortRestoresTheTimestampOrderAndKeepsTheOrderOfEqualTimestamps() {
+        SensorBurst burst = new SensorBurst(16, 3);
+        burst.add(4, 30, new float[] {4, 30, 0});
+        burst.add(4, 40, new float[] {4, 40, 0});
+        burst.add(4, 50, new float[] {4, 50, 0});
+        burst.add(0, 10, new float[] {0, 10, 0});
+        burst.add(0, 40, new float[] {0, 40, 0});
+        burst.add(3, 40, new float[] {3, 40, 0});
+        burst.add(3, 45, new float[] {3, 45, 0});
+        burst.sort();
+
+        long[] timestamps = {10, 30, 40, 40, 40, 45, 50};
+        int[] channels = {0, 4, 4, 0, 3, 3, 4};
+        assertEquals(timestamps.length, burst.size());
+        for (int i = 0; i < burst.size(); i++) {
+            assertEquals(timestamps[i], burst.getTimestamp(i));
+            assertEquals(channels[i], burst.getChannel(i));
+            assertArrayEquals(new float[] {channels[i], timestamps[i], 0}, burst.getValues(i), 0);
+        }
+    }
+
+    @Test
+    public void aFullBurstDropsTheEvents() {
+        SensorBurst burst = new SensorBurst(2, 3);
+        assertTrue(burst.add(0, 1, new float[3]));
+        assertTrue(burst.add(0, 2, new float[3]));
+        assertFalse(burst.add(0, 3, new float[3]));
+        assertEquals(1, burst.getDroppedCount());
+        burst.clear();
+        assertTrue(burst.isEmpty());
+        assertTrue(burst.add(0, 3, new float[3]));
+    }
+
+    @Test
+    public void burstsGiveTheSamplesOfTheEventsInTimestampOrder() {
+        SensorBurst burst = new SensorBurst(1024, 3);
+        SensorBurst reference = new SensorBurst(100000, 3);
+        ImuPipeline bursts = newPipeline();
+        Samples burstSamples = new Samples();
+        for (long start = 0; start < 20000 * MS; start += BURST_NS) {
+            flush(burst, start);
+            flush(reference, start);
+            bursts.process(burst, burstSamples);
+            assertTrue(burst.isEmpty());
+        }
+
+        // the same events, one by one in timestamp order
+        reference.sort();
+        ImuPipeline sorted = newPipeline();
+        Samples sortedSamples = new Samples();
+        for (int i = 0; i < reference.size(); i++) {
+            sorted.add(reference.getChannel(i), reference.getTimestamp(i), reference.getValues(i));
+            while (sorted.poll()) sortedSamples.onSample(sorted);
+        }
+
+        assertEquals(sortedSamples.timestamps.size(), burstSamples.timestamps.size());
+        // 50 Hz over 20 s, the last burst is still waiting for the next one
+        assertTrue(burstSamples.timestamps.size() >= 20 * 50 - 15);
+        for (int i = 0; i < sortedSamples.timestamps.size(); i++) {
+            assertEquals(sortedSamples.timestamps.get(i), burstSamples.timestamps.get(i));
+            assertArrayEquals(sortedSamples.orientations.get(i), burstSamples.orientations.get(i), 0);
+        }
+        assertEquals(sortedSamples.steps, burstSamples.steps);
+        assertTrue("steps " + burstSamples.steps, burstSamples.steps > 10);
+        assertEquals(0, bursts.getSynchronizer().getHeldCount());
+        assertEquals(0, bursts.getSynchronizer().getSkippedCount());
+    }
+
+    @Test
+    public void sortedBurstsDoNotNeedALargerLatency() {
+        // a pipeline sized for unbatched sensors: 60 ms of latency, 80 ms of gyroscope history
+        ImuPipeline inFlushOrder = new ImuPipeline();
+        ImuPipeline sorted = new ImuPipeline();
+        SensorBurst burst = new SensorBurst(1024, 3);
+        Samples samples = new Samples();
+        for (long start = 0; start < 5000 * MS; start += BURST_NS) {
+            flush(burst, start);
+            for (int i = 0; i < burst.size(); i++) {
+                inFlushOrder.add(burst.getChannel(i), burst.getTimestamp(i), burst.getValues(i));
+                while (inFlushOrder.poll()) {
+                    // drained
+                }
+            }
+            sorted.process(burst, samples);
+        }
+        // the gyroscope runs 200 ms ahead of the others, which are held
+        SensorSynchronizer ahead = inFlushOrder.getSynchronizer();
+        assertTrue(ahead.toString(), ahead.getHeldCount() > 0);
+        assertEquals(0, sorted.getSynchronizer().getHeldCount());
+        assertEquals(0, sorted.getSynchronizer().getOverrunCount());
+        assertTrue(samples.timestamps.size() >= 5 * 50 - 15);
+    }
+
+    @Test
+    public void theSamplesOfABurstAreSentInOneDatagram() throws Exception {
+        DatagramSocket receiver = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        receiver.setSoTimeout(2000);
+        final UdpClientSend sender = new UdpClientSend("127.0.0.1", receiver.getLocalPort(), Logger.SYSTEM);
+        try {
+            final BatchSender batchSender = new BatchSender(1472);
+            final FrameSerializer<ImuSample> serializer = FrameSerializers.imu(FrameSerializers.BINARY,
+                    "8e1d5a4f2c3b7d60", 12);
+            final ImuSample sample = new ImuSample();
+            final ByteBuffer frame = ByteBuffer.allocate(2048);
+            ImuPipeline pipeline = newPipeline();
+            ImuPipeline.Listener listener = new ImuPipeline.Listener() {
+                int sequence = 0;
+
+                @Override
+                public void onSample(ImuPipeline p) {
+                    sample.set(sequence++, p.getTimestamp(), p.getAccelerometer(), p.getLinearAcceleration(),
+                            p.getGravity(), p.getMagneticField(), p.getGyroscope(), p.getOrientationXYZW(),
+                            p.getOrientationGravAccGyroXYZW(), p.getOrientationAccGyroXYZW(),
+                            false, p.isStepDetected());
+                    frame.clear();
+                    serializer.write(sample, frame);
+                    frame.flip();
+                    assertTrue(batchSender.append(sender, frame));
+                }
+            };
+            SensorBurst burst = new SensorBurst(1024, 3);
+            // the first burst starts the synchronizer, the second one gives the samples of 200 ms
+            flush(burst, 0);
+            pipeline.process(burst, listener);
+            assertTrue(batchSender.flush(sender));
+            receiver.receive(new DatagramPacket(new byte[2048], 2048));
+            long before = batchSender.getFrameCount();
+            flush(burst, BURST_NS);
+            int samples = pipeline.process(burst, listener);
+            assertEquals(samples, batchSender.getPendingCount());
+            assertTrue(batchSender.flush(sender));
+
+            assertEquals(BURST_NS / ImuPipeline.DEFAULT_PERIOD_NS, samples);
+            assertEquals(samples, batchSender.getFrameCount() - before);
+            DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+            receiver.receive(packet);
+            ByteBuffer datagram = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+            assertTrue(FrameUnbatcher.isBatch(datagram));
+            FrameUnbatcher unbatcher = new FrameUnbatcher();
+            unbatcher.reset(datagram);
+            int frames = 0;
+            while (unbatcher.next()) frames++;
+            assertEquals(samples, frames);
+            assertEquals(0, batchSender.getDroppedCount());
+        } finally {
+            sender.close();
+            receiver.close();
+        }
+    }
+}
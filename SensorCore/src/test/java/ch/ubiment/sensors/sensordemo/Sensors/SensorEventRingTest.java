@@ -0,0 +1,86 @@
+package ch.ubiment.sensors.sensordemo.Sensors;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SensorEventRingTest {
+
+    private static class Recorder implements SensorEventRing.Consumer {
+        long count = 0;
+        long lastTimestamp = -1;
+        boolean ordered = true;
+
+        @Override
+        public void onSensorEvent(int type, long timestampNanos, float[] values, int length) {
+            // the producer sends type = timestamp % 7 and values = {timestamp, -timestamp, 1}
+            if (timestampNanos != lastTimestamp + 1 || type != timestampNanos % 7 || length != 3
+                    || values[0] != (float) timestampNanos || values[1] != -(float) timestampNanos || values[2] != 1) {
+                ordered = false;
+            }
+            lastTimestamp = timestampNanos;
+            count++;
+        }
+    }
+
+    @Test
+    public void fullRingDropsTheNewEvents() {
+        SensorEventRing ring = new SensorEventRing(4);
+        float[] values = new float[3];
+        for (int i = 0; i < 6; i++) {
+            values[0] = i;
+            values[1] = -i;
+            values[2] = 1;
+            assertEquals(i < 4, ring.offer(i % 7, i, values));
+        }
+        assertEquals(2, ring.getDroppedCount());
+        assertEquals(4, ring.size());
+
+        Recorder recorder = new Recorder();
+        assertEquals(3, ring.drain(recorder, 3));
+        assertEquals(1, ring.drain(recorder, 64));
+        assertTrue(ring.isEmpty());
+        assertTrue(recorder.ordered);
+        assertEquals(4, recorder.count);
+    }
+
+    @Test
+    public void capacityIsAPowerOfTwo() {
+        assertEquals(2, new SensorEventRing(1).getCapacity());
+        assertEquals(64, new SensorEventRing(64).getCapacity());
+        assertEquals(128, new SensorEventRing(65).getCapacity());
+    }
+
+    @Test
+    public void eventsCrossThreadsInOrder() throws InterruptedException {
+        final SensorEventRing ring = new SensorEventRing(64);
+        final int events = 1000000;
+        final Recorder recorder = new Recorder();
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (recorder.count < events) {
+                    if (ring.drain(recorder, 16) == 0) ring.await(1000000L);
+                }
+            }
+        });
+        consumer.start();
+
+        float[] values = new float[3];
+        values[2] = 1;
+        for (long t = 0; t < events; t++) {
+            values[0] = t;
+            values[1] = -t;
+            // the listener thread never waits, but here every event must arrive
+            while (!ring.offer((int) (t % 7), t, values)) {
+                Thread.yield();
+            }
+        }
+        consumer.join(10000);
+        assertFalse(consumer.isAlive());
+        assertTrue(recorder.ordered);
+        assertEquals(events, recorder.count);
+    }
+}
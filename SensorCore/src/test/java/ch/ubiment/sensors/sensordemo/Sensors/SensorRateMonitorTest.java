@@ -0,0 +1,101 @@
+package ch.ubiment.sensors.sensordemo.Sensors;
+
+import ch.ubiment.sensors.sensordemo.Communication.Logger;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SensorRateMonitorTest {
+    private static final long MS = 1000000L;
+    private static final long US = 1000L;
+
+    @Test
+    public void configParsesTheSensorsWhichDifferFromTheDefault() {
+        SensorRateConfig config = SensorRateConfig.parse("gyroscope=5000, magnetic_field=100000/200000");
+        assertEquals(5000, config.getSamplingPeriodUs(ImuPipeline.GYROSCOPE));
+        assertEquals(0, config.getMaxReportLatencyUs(ImuPipeline.GYROSCOPE));
+        assertEquals(100000, config.getSamplingPeriodUs(ImuPipeline.MAGNETIC_FIELD));
+        assertEquals(200000, config.getMaxReportLatencyUs(ImuPipeline.MAGNETIC_FIELD));
+        assertEquals(SensorRateConfig.DEFAULT_SAMPLING_PERIOD_US, config.getSamplingPeriodUs(ImuPipeline.GRAVITY));
+        assertEquals(5000, config.getMinSamplingPeriodUs());
+        assertEquals(200000, config.getMaxReportLatencyUs());
+
+        // the text form gives the same configuration back
+        SensorRateConfig copy = SensorRateConfig.parse(config.toString());
+        assertEquals(config.toString(), copy.toString());
+        assertEquals(new SensorRateConfig().toString(), SensorRateConfig.parse("").toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void configRejectsAnUnknownSensor() {
+        SensorRateConfig.parse("barometer=20000");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void configRejectsANegativeLatency() {
+        SensorRateConfig.parse("gyroscope=5000/-1");
+    }
+
+    @Test
+    public void measuresTheRateAndTheIntervalsOfEveryChannel() {
+        SensorRateConfig config = new SensorRateConfig()
+                .set(ImuPipeline.GYROSCOPE, 5000, 0)
+                .set(ImuPipeline.MAGNETIC_FIELD, 100000, 0);
+        SensorRateMonitor monitor = new SensorRateMonitor(config);
+        Random random = new Random(3);
+        // the gyroscope runs a bit faster than requested, with jitter; the magnetometer exactly at 10 Hz
+        long gyro = 0;
+        for (int i = 0; i < 2000; i++) {
+            monitor.record(ImuPipeline.GYROSCOPE, gyro);
+            gyro += 4900 * US + random.nextInt(200) * US - 100 * US;
+        }
+        for (long t = 0; t <= 10000 * MS; t += 100 * MS) monitor.record(ImuPipeline.MAGNETIC_FIELD, t);
+
+        assertEquals(1e9 / 4900 / US, monitor.getEffectiveRateHz(ImuPipeline.GYROSCOPE), 2.0);
+        assertEquals(10.0, monitor.getEffectiveRateHz(ImuPipeline.MAGNETIC_FIELD), 1e-9);
+        assertEquals(2000, monitor.getCount(ImuPipeline.GYROSCOPE));
+        assertEquals(1999, monitor.getIntervals(ImuPipeline.GYROSCOPE).getCount());
+        // histogram buckets are accurate to 12.5%
+        long median = monitor.getIntervals(ImuPipeline.GYROSCOPE).getPercentileNanos(50);
+        assertTrue("median " + median, median >= 4900 * US && median <= 4900 * US * 1.125);
+        assertEquals(100 * MS, monitor.getIntervals(ImuPipeline.MAGNETIC_FIELD).getMaxNanos());
+        // no event, no rate
+        assertEquals(0.0, monitor.getEffectiveRateHz(ImuPipeline.GRAVITY), 0);
+        assertTrue(monitor.toString(), monitor.toString().contains("gyroscope 20"));
+        assertTrue(monitor.toString(), monitor.toString().contains("(set 200.0)"));
+    }
+
+    @Test
+    public void batchedEventsKeepTheIntervalsOfTheirTimestamps() {
+        SensorRateMonitor monitor = new SensorRateMonitor(new SensorRateConfig());
+        // 50 Hz sampling, delivered 10 at a time: only the timestamps count, not the callbacks
+        for (long t = 0; t < 5000 * MS; t += 20 * MS) monitor.record(ImuPipeline.ACCELEROMETER, t);
+        assertEquals(50.0, monitor.getEffectiveRateHz(ImuPipeline.ACCELEROMETER), 1e-9);
+        assertEquals(20 * MS, monitor.getIntervals(ImuPipeline.ACCELEROMETER).getMinNanos());
+        assertEquals(20 * MS, monitor.getIntervals(ImuPipeline.ACCELEROMETER).getMaxNanos());
+    }
+
+    @Test
+    public void olderEventsAreCountedButHaveNoInterval() {
+        SensorRateMonitor monitor = new SensorRateMonitor(new SensorRateConfig());
+        monitor.record(ImuPipeline.GRAVITY, 100 * MS);
+        monitor.record(ImuPipeline.GRAVITY, 90 * MS);
+        monitor.record(ImuPipeline.GRAVITY, 110 * MS);
+        assertEquals(3, monitor.getCount(ImuPipeline.GRAVITY));
+        assertEquals(1, monitor.getIntervals(ImuPipeline.GRAVITY).getCount());
+        assertEquals(20 * MS, monitor.getIntervals(ImuPipeline.GRAVITY).getMaxNanos());
+    }
+
+    @Test
+    public void pipelineCoversTheReportLatencyOfTheBatchedSensors() {
+        SensorRateConfig config = SensorRateConfig.parse("gyroscope=5000,magnetic_field=100000/200000");
+        ImuPipeline pipeline = new ImuPipeline(config, Logger.SYSTEM);
+        assertEquals(ImuPipeline.DEFAULT_MAX_LATENCY_NS + 200 * MS, pipeline.getSynchronizer().getMaxLatencyNanos());
+        assertEquals(ImuPipeline.DEFAULT_PERIOD_NS, pipeline.getSynchronizer().getPeriodNanos());
+        pipeline.add(ImuPipeline.GYROSCOPE, 5 * MS, new float[3]);
+        assertEquals(1, pipeline.getRateMonitor().getCount(ImuPipeline.GYROSCOPE));
+    }
+}
@@ -0,0 +1,139 @@
+package ch.ubiment.sensors.sensordemo.Sensors;
+
+import ch.ubiment.sensors.sensordemo.Communication.FrameSerializers;
+import ch.ubiment.sensors.sensordemo.Communication.ImuFrameDecoder;
+import ch.ubiment.sensors.sensordemo.Communication.ImuSample;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SensorSourceTest {
+    private static final long MS = 1000000L;
+    private static final long S = 1000000000L;
+
+    // the columns of imu_raw_fields, one row per frame of the app
+    private static final String CSV_HEADER = "timestamp,device_id,system_id,"
+            + "accelerometer_x,accelerometer_y,accelerometer_z,magnetic_field_x,magnetic_field_y,magnetic_field_z,"
+            + "gravity_x,gravity_y,gravity_z,linear_acceleration_x,linear_acceleration_y,linear_acceleration_z,"
+            + "gyroscope_x,gyroscope_y,gyroscope_z,orientation_qx,orientation_qy,orientation_qz,orientation_qw,"
+            + "is_step_detected_sensor,is_step_detected\n";
+
+    @Test
+    public void syntheticEventsAreInTimestampOrderAndRepeatable() {
+        SensorRateConfig config = SensorRateConfig.parse("gyroscope=5000");
+        SyntheticSensorSource first = new SyntheticSensorSource(config, 2 * S, 42);
+        SyntheticSensorSource second = new SyntheticSensorSource(config, 2 * S, 42);
+        SensorSample a = new SensorSample();
+        SensorSample b = new SensorSample();
+        int[] counts = new int[SensorRateConfig.NAMES.length];
+        long previous = 0;
+        while (first.next(a)) {
+            assertTrue(second.next(b));
+            assertEquals(a.type, b.type);
+            assertEquals(a.timestampNanos, b.timestampNanos);
+            assertArrayEquals(a.values, b.values, 0f);
+            assertTrue(a.timestampNanos >= previous);
+            assertTrue(a.timestampNanos < 2 * S);
+            previous = a.timestampNanos;
+            counts[ImuPipeline.channelOf(a.type)]++;
+        }
+        assertFalse(second.next(b));
+        assertEquals(first.getCount(), second.getCount());
+        // 2 s at 200 Hz and at 50 Hz
+        assertEquals(400, counts[ImuPipeline.GYROSCOPE], 2);
+        assertEquals(100, counts[ImuPipeline.ACCELEROMETER], 2);
+    }
+
+    @Test
+    public void csvRowsGiveOneEventPerSensor() throws IOException {
+        String csv = CSV_HEADER
+                + "1600000000000.0,abc,0,0.1,0.2,9.8,20,0,-40,0,0,9.8,0,0,0.1,0.01,0.02,0.03,0,0,0,1,False,False\n"
+                + "\n"
+                + "1600000000020.0,abc,0,0.1,0.2,9.9,NaN,NaN,NaN,0,0,9.8,0,0,0.2,0.01,0.02,0.03,0,0,0,1,True,False\n";
+        CsvSensorSource source = new CsvSensorSource(new StringReader(csv));
+        SensorSample event = new SensorSample();
+
+        int[] firstRow = {SensorSample.TYPE_ACCELEROMETER, SensorSample.TYPE_LINEAR_ACCELERATION,
+                SensorSample.TYPE_GRAVITY, SensorSample.TYPE_MAGNETIC_FIELD, SensorSample.TYPE_GYROSCOPE};
+        for (int type : firstRow) {
+            assertTrue(source.next(event));
+            assertEquals(type, event.type);
+            assertEquals(0, event.timestampNanos);
+            assertEquals(3, event.length);
+        }
+        assertEquals(1600000000000.0, source.getOriginMillis(), 0);
+
+        // no magnetic field in the second row, but a step
+        int[] secondRow = {SensorSample.TYPE_ACCELEROMETER, SensorSample.TYPE_LINEAR_ACCELERATION,
+                SensorSample.TYPE_GRAVITY, SensorSample.TYPE_GYROSCOPE, SensorSample.TYPE_STEP_DETECTOR};
+        for (int type : secondRow) {
+            assertTrue(source.next(event));
+            assertEquals(type, event.type);
+            assertEquals(20 * MS, event.timestampNanos);
+            if (type == SensorSample.TYPE_ACCELEROMETER) assertEquals(9.9f, event.values[2], 0f);
+        }
+        assertFalse(source.next(event));
+        source.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void csvRejectsAMalformedRow() throws IOException {
+        CsvSensorSource source = new CsvSensorSource(new StringReader(CSV_HEADER + "1600000000000.0,abc\n"));
+        source.next(new SensorSample());
+    }
+
+    @Test
+    public void ringIsASourceOfTheEventsOffered() {
+        SensorEventRing ring = new SensorEventRing(4);
+        SensorSample event = new SensorSample();
+        assertFalse(ring.poll(event));
+        ring.offer(SensorSample.TYPE_GYROSCOPE, 5, new float[] {1, 2, 3});
+        ring.offer(SensorSample.TYPE_STEP_COUNTER, 6, new float[] {12});
+        assertTrue(ring.poll(event));
+        assertEquals(SensorSample.TYPE_GYROSCOPE, event.type);
+        assertEquals(5, event.timestampNanos);
+        assertEquals(3, event.length);
+        assertEquals(3f, event.values[2], 0f);
+        assertTrue(ring.poll(event));
+        assertEquals(1, event.length);
+        assertEquals(12f, event.values[0], 0f);
+        assertFalse(ring.poll(event));
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void processorEncodesTheSamplesOfASourceWithoutAndroid() throws IOException {
+        final long epochOffset = 1600000000L * S;
+        ImuProcessor processor = new ImuProcessor(new ImuPipeline(),
+                FrameSerializers.imu(FrameSerializers.BINARY, "0123456789abcdef", 0), epochOffset);
+        final ImuFrameDecoder decoder = new ImuFrameDecoder();
+        final int[] frames = {0};
+        final long[] previous = {0};
+        long count = processor.run(new SyntheticSensorSource(new SensorRateConfig(), 10 * S, 7),
+                new ImuProcessor.FrameSink() {
+                    @Override
+                    public void onFrame(ImuSample sample, ByteBuffer frame) {
+                        assertTrue(decoder.decode(frame));
+                        assertEquals(frames[0], decoder.getSequence());
+                        assertEquals(sample.timestampNanos, decoder.getTimestampNanos());
+                        assertTrue(sample.timestampNanos > Math.max(previous[0], epochOffset));
+                        assertArrayEquals(sample.accelerometer, decoder.getAccelerometer(), 0f);
+                        previous[0] = sample.timestampNanos;
+                        frames[0]++;
+                    }
+                });
+        assertEquals(frames[0], count);
+        assertEquals(count, processor.getFrameCount());
+        // the samples of the pipeline are at 50 Hz
+        assertEquals(500, count, 5);
+        // the synthetic walk bounces at 2 steps per second
+        assertTrue(processor.getPipeline().getStepCount() > 0);
+    }
+}
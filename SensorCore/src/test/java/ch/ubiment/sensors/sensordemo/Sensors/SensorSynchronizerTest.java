@@ -0,0 +1,131 @@
+package ch.ubiment.sensors.sensordemo.Sensors;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The samples are linear functions of their timestamp, so the interpolated outputs are known exactly
+ */
+public class SensorSynchronizerTest {
+    private static final long MS = 1000000L;
+    private static final int FAST = 0;
+    private static final int SLOW = 1;
+
+    private final float[] buffer = new float[3];
+
+    private SensorSynchronizer newSynchronizer(SensorSynchronizer.Alignment alignment) {
+        return new SensorSynchronizer(new int[]{3, 3}, 16, 20 * MS, 60 * MS, alignment);
+    }
+
+    private float[] ramp(long t, float slope) {
+        float ms = t / (float) MS;
+        buffer[0] = slope * ms;
+        buffer[1] = -slope * ms;
+        buffer[2] = 1;
+        return buffer;
+    }
+
+    @Test
+    public void channelsAreInterpolatedToTheOutputTime() {
+        SensorSynchronizer sync = newSynchronizer(SensorSynchronizer.Alignment.INTERPOLATE);
+        int outputs = 0;
+        long previous = -1;
+        // 100 Hz and 50 Hz sensors, not in phase, delivered in timestamp order
+        for (long t = 1000 * MS; t < 3000 * MS; t += MS) {
+            if (t % (10 * MS) == 0) sync.add(FAST, t, ramp(t, 1));
+            if (t % (20 * MS) == 7 * MS) sync.add(SLOW, t, ramp(t, 2));
+            while (sync.poll()) {
+                long ts = sync.getTimestamp();
+                if (previous >= 0) assertEquals(20 * MS, ts - previous);
+                previous = ts;
+                float ms = ts / (float) MS;
+                assertEquals(ms, sync.getValues(FAST)[0], 1e-3);
+                assertEquals(-ms, sync.getValues(FAST)[1], 1e-3);
+                assertEquals(2 * ms, sync.getValues(SLOW)[0], 1e-3);
+                assertEquals(1, sync.getValues(SLOW)[2], 0);
+                outputs++;
+            }
+        }
+        // from the first sample of the slow sensor to its last one: 1007 ms to 2987 ms
+        assertEquals(100, outputs);
+        assertEquals(0, sync.getHeldCount());
+        assertEquals(0, sync.getSkippedCount());
+        assertEquals(0, sync.getOverrunCount());
+    }
+
+    @Test
+    public void holdKeepsTheLastSampleBeforeTheOutputTime() {
+        SensorSynchronizer sync = newSynchronizer(SensorSynchronizer.Alignment.HOLD);
+        sync.add(FAST, 0, ramp(0, 1));
+        sync.add(SLOW, 5 * MS, ramp(5 * MS, 1));
+        assertFalse(sync.poll());   // the fast sensor has no sample at or after 5 ms yet
+        sync.add(FAST, 10 * MS, ramp(10 * MS, 1));
+        assertTrue(sync.poll());
+        assertEquals(5 * MS, sync.getTimestamp());
+        assertEquals(0, sync.getValues(FAST)[0], 0);
+        assertEquals(5, sync.getValues(SLOW)[0], 0);
+        assertFalse(sync.poll());
+    }
+
+    @Test
+    public void lateChannelIsHeldWithinTheLatencyBound() {
+        SensorSynchronizer sync = newSynchronizer(SensorSynchronizer.Alignment.INTERPOLATE);
+        long t = 0;
+        for (; t <= 100 * MS; t += 10 * MS) {
+            sync.add(FAST, t, ramp(t, 1));
+            sync.add(SLOW, t, ramp(t, 2));
+            while (sync.poll()) ;
+        }
+        long emitted = sync.getEmittedCount();
+        // the slow sensor stops: the outputs go on, at most 60 ms behind the fast one
+        for (; t <= 500 * MS; t += 10 * MS) {
+            sync.add(FAST, t, ramp(t, 1));
+            while (sync.poll()) {
+                assertTrue(t - sync.getTimestamp() <= 60 * MS);
+                assertEquals(sync.getTimestamp() / (float) MS, sync.getValues(FAST)[0], 1e-3);
+                assertEquals(200, sync.getValues(SLOW)[0], 1e-3);
+            }
+        }
+        // 120 ms to 440 ms
+        assertEquals(17, sync.getEmittedCount() - emitted);
+        assertEquals(17, sync.getHeldCount());
+        assertEquals(0, sync.getSkippedCount());
+    }
+
+    @Test
+    public void pauseIsSkipped() {
+        SensorSynchronizer sync = newSynchronizer(SensorSynchronizer.Alignment.INTERPOLATE);
+        for (long t = 0; t <= 100 * MS; t += 10 * MS) {
+            sync.add(FAST, t, ramp(t, 1));
+            sync.add(SLOW, t, ramp(t, 1));
+            while (sync.poll()) ;
+        }
+        long emitted = sync.getEmittedCount();
+        // ten seconds without events, e.g. the listeners were unregistered
+        int outputs = 0;
+        for (long t = 10000 * MS; t <= 10100 * MS; t += 10 * MS) {
+            sync.add(FAST, t, ramp(t, 1));
+            sync.add(SLOW, t, ramp(t, 1));
+            while (sync.poll()) {
+                outputs++;
+                assertTrue(t - sync.getTimestamp() <= 60 * MS);
+            }
+        }
+        // 60 ms before the first sample after the pause, to the last one
+        assertEquals(9, outputs);
+        assertEquals(emitted + outputs, sync.getEmittedCount());
+        assertTrue(sync.getSkippedCount() > 400);
+    }
+
+    @Test
+    public void outOfOrderSamplesAreIgnored() {
+        SensorSynchronizer sync = newSynchronizer(SensorSynchronizer.Alignment.INTERPOLATE);
+        assertTrue(sync.add(FAST, 10 * MS, ramp(10 * MS, 1)));
+        assertFalse(sync.add(FAST, 10 * MS, ramp(10 * MS, 1)));
+        assertFalse(sync.add(FAST, 5 * MS, ramp(5 * MS, 1)));
+        assertEquals(2, sync.getOutOfOrderCount());
+    }
+}
@@ -0,0 +1,191 @@
+package ch.ubiment.sensors.sensordemo.Sensors;
+
+import ch.ubiment.sensors.sensordemo.Communication.FrameSerializer;
+import ch.ubiment.sensors.sensordemo.Communication.ImuSample;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class SessionRecorderTest {
+    private static final long S = 1000000000L;
+    private static final long EPOCH_OFFSET = 1600000000L * S;
+    private static final int WARM_UP_CALLS = 10000;
+    private static final int STEADY_ROUNDS = 5;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Records the events of a synthetic walk and the samples of the pipeline, in the order of the app
+     */
+    private static void record(final SessionRecorder recorder, long durationNanos) throws IOException {
+        ImuProcessor processor = new ImuProcessor(new ImuPipeline(), new NullSerializer(), EPOCH_OFFSET);
+        SyntheticSensorSource source = new SyntheticSensorSource(new SensorRateConfig(), durationNanos, 3);
+        ImuProcessor.FrameSink sink = new ImuProcessor.FrameSink() {
+            @Override
+            public void onFrame(ImuSample sample, ByteBuffer frame) throws IOException {
+                recorder.recordSample(sample);
+            }
+        };
+        SensorSample event = new SensorSample();
+        while (source.next(event)) {
+            recorder.recordEvent(event);
+            processor.accept(event, sink);
+        }
+    }
+
+    private static class NullSerializer implements FrameSerializer<ImuSample> {
+        @Override
+        public String getName() {
+            return "null";
+        }
+
+        @Override
+        public void write(ImuSample sample, ByteBuffer dst) {
+        }
+
+        @Override
+        public void reset() {
+        }
+    }
+
+    @Test
+    public void sessionIsReadBackAcrossTheSegments() throws IOException {
+        File directory = new File(folder.getRoot(), "session");
+        SessionRecorder recorder = new SessionRecorder(directory, 16 * 1024, EPOCH_OFFSET);
+        record(recorder, 20 * S);
+        recorder.close();
+        assertTrue(recorder.getSegmentCount() > 10);
+        // the spare segment is deleted
+        assertEquals(recorder.getSegmentCount(), SessionReader.segments(directory).length);
+
+        // the same events, in the same order, and the samples between them
+        SyntheticSensorSource expected = new SyntheticSensorSource(new SensorRateConfig(), 20 * S, 3);
+        SensorSample expectedEvent = new SensorSample();
+        SensorSample event = new SensorSample();
+        ImuSample sample = new ImuSample();
+        SessionReader reader = new SessionReader(directory);
+        int kind;
+        int sequence = 0;
+        while ((kind = reader.read(event, sample)) != SessionReader.END) {
+            if (kind == SessionReader.EVENT) {
+                assertTrue(expected.next(expectedEvent));
+                assertEquals(expectedEvent.type, event.type);
+                assertEquals(expectedEvent.timestampNanos, event.timestampNanos);
+                assertEquals(expectedEvent.length, event.length);
+                assertArrayEquals(expectedEvent.values, event.values, 0f);
+            } else {
+                assertEquals(sequence++, sample.sequence);
+                assertTrue(sample.timestampNanos > EPOCH_OFFSET);
+                assertEquals(1.0, norm(sample.orientationAccGyroXYZW), 1e-5);
+            }
+        }
+        assertFalse(expected.next(expectedEvent));
+        assertEquals(recorder.getEventCount(), reader.getEventCount());
+        assertEquals(recorder.getSampleCount(), reader.getSampleCount());
+        assertEquals(EPOCH_OFFSET, reader.getEpochOffsetNanos());
+        assertTrue(reader.isComplete());
+
+        // as a SensorSource, the events only
+        SessionReader source = new SessionReader(directory);
+        long events = 0;
+        while (source.next(event)) events++;
+        assertEquals(recorder.getEventCount(), events);
+    }
+
+    @Test
+    public void interruptedSessionIsReadUpToTheTail() throws IOException {
+        File directory = new File(folder.getRoot(), "crashed");
+        SessionRecorder recorder = new SessionRecorder(directory, 16 * 1024, EPOCH_OFFSET);
+        record(recorder, 5 * S);
+        // not closed, as after a crash of the app. A record being written when it happened:
+        File[] segments = SessionReader.segments(directory);
+        File last = segments[recorder.getSegmentCount() - 1];
+        RandomAccessFile raf = new RandomAccessFile(last, "rw");
+        raf.seek(SessionRecorder.TAIL_OFFSET);
+        long tail = raf.readLong();
+        raf.seek(tail);
+        raf.write(new byte[] {SessionRecorder.EVENT, 0, 0});
+        raf.close();
+
+        SessionReader reader = new SessionReader(directory);
+        SensorSample event = new SensorSample();
+        ImuSample sample = new ImuSample();
+        while (reader.read(event, sample) != SessionReader.END) {
+        }
+        assertEquals(recorder.getEventCount(), reader.getEventCount());
+        assertEquals(recorder.getSampleCount(), reader.getSampleCount());
+        assertFalse(reader.isComplete());
+        recorder.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void doesNotOverwriteASession() throws IOException {
+        File directory = new File(folder.getRoot(), "twice");
+        new SessionRecorder(directory, SessionRecorder.DEFAULT_SEGMENT_SIZE, 0).close();
+        new SessionRecorder(directory, SessionRecorder.DEFAULT_SEGMENT_SIZE, 0);
+    }
+
+    @Test
+    public void recordingDoesNotAllocate() throws IOException {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long thread = Thread.currentThread().getId();
+
+        SessionRecorder recorder = new SessionRecorder(new File(folder.getRoot(), "steady"), 32L << 20, 0);
+        float[] values = {0.1f, 0.2f, 9.81f};
+        ImuSample sample = new ImuSample();
+        // the warm-up loads the classes and lets the JIT compile recordGyroscope() in many short calls. The first call
+        // allocates the Class objects and constant strings, and the switch of a long running loop to its compiled
+        // version (OSR) can allocate a few bytes once, whenever the compiler thread is done with it: not per event
+        int next = 0;
+        for (int call = 0; call < WARM_UP_CALLS; call++) {
+            next = recordGyroscope(recorder, next, 20, values, sample);
+        }
+        // then every round of 100 s of gyroscope at 200 Hz and of samples at 25 Hz, within the first segment, must
+        // not allocate at all
+        for (int round = 0; round < STEADY_ROUNDS; round++) {
+            long overhead = -threads.getThreadAllocatedBytes(thread);
+            overhead += threads.getThreadAllocatedBytes(thread);
+            long before = threads.getThreadAllocatedBytes(thread);
+            next = recordGyroscope(recorder, next, 20000, values, sample);
+            long allocated = threads.getThreadAllocatedBytes(thread) - before - overhead;
+            assertEquals("round " + round, 0, allocated);
+        }
+        assertEquals(1, recorder.getSegmentCount());
+        recorder.close();
+    }
+
+    /**
+     * Records count gyroscope events from the first one on, and a sample every 8 events
+     * @return the next event
+     */
+    private static int recordGyroscope(SessionRecorder recorder, int first, int count, float[] values, ImuSample sample)
+            throws IOException {
+        int end = first + count;
+        for (int i = first; i < end; i++) {
+            recorder.recordEvent(SensorSample.TYPE_GYROSCOPE, i, values, 3);
+            if (i % 8 == 0) recorder.recordSample(sample);
+        }
+        return end;
+    }
+
+    private static double norm(float[] q) {
+        return Math.sqrt(q[0] * q[0] + q[1] * q[1] + q[2] * q[2] + q[3] * q[3]);
+    }
+}
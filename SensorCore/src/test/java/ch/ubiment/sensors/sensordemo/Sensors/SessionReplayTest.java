@@ -0,0 +1,194 @@
+package ch.ubiment.sensors.sensordemo.Sensors;
+
+import ch.ubiment.sensors.sensordemo.Communication.FrameSerializer;
+import ch.ubiment.sensors.sensordemo.Communication.FrameSerializers;
+import ch.ubiment.sensors.sensordemo.Communication.ImuSample;
+import ch.ubiment.sensors.sensordemo.Communication.SendQueue;
+import ch.ubiment.sensors.sensordemo.Communication.UdpClientSend;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SessionReplayTest {
+    private static final long MS = 1000000L;
+    private static final long S = 1000000000L;
+    private static final long EPOCH_OFFSET = 1600000000L * S;
+    private static final String DEVICE_ID = "0123456789abcdef";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static FrameSerializer<ImuSample> binary() {
+        return FrameSerializers.imu(FrameSerializers.BINARY, DEVICE_ID, 0);
+    }
+
+    /**
+     * A session recorded as by the app: the events of a synthetic walk and the samples of its pipeline
+     */
+    private File recordSession(long durationNanos) throws IOException {
+        File directory = new File(folder.getRoot(), "session");
+        final SessionRecorder recorder = new SessionRecorder(directory, 64 * 1024, EPOCH_OFFSET);
+        ImuProcessor processor = new ImuProcessor(new ImuPipeline(), binary(), EPOCH_OFFSET);
+        SyntheticSensorSource source = new SyntheticSensorSource(new SensorRateConfig(), durationNanos, 5);
+        ImuProcessor.FrameSink sink = new ImuProcessor.FrameSink() {
+            @Override
+            public void onFrame(ImuSample sample, ByteBuffer frame) throws IOException {
+                recorder.recordSample(sample);
+            }
+        };
+        SensorSample event = new SensorSample();
+        while (source.next(event)) {
+            recorder.recordEvent(event);
+            processor.accept(event, sink);
+        }
+        recorder.close();
+        return directory;
+    }
+
+    @Test
+    public void replayOfASessionGivesTheSamplesOfTheRecording() throws IOException {
+        File directory = recordSession(30 * S);
+        List<ImuSample> recorded = new ArrayList<>();
+        SessionReader reader = new SessionReader(directory);
+        SensorSample event = new SensorSample();
+        ImuSample sample = new ImuSample();
+        int kind;
+        while ((kind = reader.read(event, sample)) != SessionReader.END) {
+            if (kind != SessionReader.SAMPLE) continue;
+            recorded.add(sample);
+            sample = new ImuSample();
+        }
+
+        SessionReplay replay = new SessionReplay(binary(), SessionReplay.AS_FAST_AS_POSSIBLE);
+        MemoryFrameSink sink = new MemoryFrameSink();
+        SensorSource source = SessionReplay.open(directory);
+        assertEquals(recorded.size(), replay.run(source, sink));
+        source.close();
+        assertEquals(recorded.size(), sink.size());
+        for (int i = 0; i < recorded.size(); i++) {
+            ImuSample expected = recorded.get(i);
+            ImuSample replayed = sink.getSamples().get(i);
+            assertEquals(expected.timestampNanos, replayed.timestampNanos);
+            assertArrayEquals(expected.accelerometer, replayed.accelerometer, 0f);
+            assertArrayEquals(expected.orientationGravAccGyroXYZW, replayed.orientationGravAccGyroXYZW, 0f);
+            assertArrayEquals(expected.orientationAccGyroXYZW, replayed.orientationAccGyroXYZW, 0f);
+            assertEquals(expected.isStepDetected, replayed.isStepDetected);
+        }
+        assertTrue(replay.getProcessor().getPipeline().getStepCount() > 0);
+    }
+
+    @Test
+    public void replayOfACsvFileHasTheTimestampsOfTheFile() throws IOException {
+        File csv = folder.newFile("data_imu_raw.csv");
+        Writer out = new FileWriter(csv);
+        out.write("timestamp,accelerometer_x,accelerometer_y,accelerometer_z,magnetic_field_x,magnetic_field_y,"
+                + "magnetic_field_z,gravity_x,gravity_y,gravity_z,linear_acceleration_x,linear_acceleration_y,"
+                + "linear_acceleration_z,gyroscope_x,gyroscope_y,gyroscope_z,is_step_detected_sensor\n");
+        double origin = 1600000000000.0;
+        for (int i = 0; i < 250; i++) {
+            double z = 9.81 + 1.5 * Math.sin(2 * Math.PI * 2.0 * i * 0.02);
+            out.write(String.format(Locale.ROOT, "%.1f,0.1,0.2,%.4f,20,0,-40,0,0.2,9.79,0,0,%.4f,0.01,0,0.2,%s\n",
+                    origin + 20 * i, z, z - 9.81, (i % 25 == 0) ? "True" : "False"));
+        }
+        out.close();
+
+        SessionReplay replay = new SessionReplay(binary(), SessionReplay.AS_FAST_AS_POSSIBLE);
+        MemoryFrameSink sink = new MemoryFrameSink();
+        SensorSource source = SessionReplay.open(csv);
+        long frames = replay.run(source, sink);
+        source.close();
+        // one row per 20 ms, as many samples at 50 Hz, less the start of the synchronizer
+        assertEquals(250, frames, 5);
+        long first = sink.getSamples().get(0).timestampNanos;
+        assertTrue(first >= (long) (origin * MS) && first < (long) (origin * MS) + 100 * MS);
+        int steps = 0;
+        for (ImuSample sample : sink.getSamples()) if (sample.isStepDetectedSensor) steps++;
+        assertEquals(10, steps, 1);
+    }
+
+    @Test
+    public void realTimeFactorPacesTheEvents() throws IOException {
+        SessionReplay replay = new SessionReplay(binary(), 10.0);
+        long frames = replay.run(new SyntheticSensorSource(new SensorRateConfig(), 2 * S, 9), new MemoryFrameSink());
+        assertEquals(100, frames, 5);
+        // 2 s of events at 10 times the pace of the recording
+        assertTrue("elapsed " + replay.getElapsedNanos(), replay.getElapsedNanos() >= 190 * MS);
+        assertTrue("elapsed " + replay.getElapsedNanos(), replay.getElapsedNanos() < 2 * S);
+
+        SessionReplay fast = new SessionReplay(binary(), SessionReplay.AS_FAST_AS_POSSIBLE);
+        fast.run(new SyntheticSensorSource(new SensorRateConfig(), 2 * S, 9), new MemoryFrameSink());
+        assertEquals(0, fast.getMaxLagNanos());
+    }
+
+    @Test
+    public void fileSinkKeepsTheFrames() throws IOException {
+        File file = folder.newFile("frames.bin");
+        MemoryFrameSink memory = new MemoryFrameSink();
+        new SessionReplay(binary(), SessionReplay.AS_FAST_AS_POSSIBLE)
+                .run(new SyntheticSensorSource(new SensorRateConfig(), 5 * S, 1), memory);
+        FileFrameSink sink = new FileFrameSink(file);
+        new SessionReplay(binary(), SessionReplay.AS_FAST_AS_POSSIBLE)
+                .run(new SyntheticSensorSource(new SensorRateConfig(), 5 * S, 1), sink);
+        sink.close();
+        assertEquals(memory.size(), sink.getFrameCount());
+
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        byte[] frame = new byte[ImuProcessor.FRAME_CAPACITY];
+        int length;
+        int i = 0;
+        while ((length = FileFrameSink.read(in, frame)) >= 0) {
+            byte[] expected = memory.getFrames().get(i++);
+            assertEquals(expected.length, length);
+            for (int b = 0; b < length; b++) assertEquals(expected[b], frame[b]);
+        }
+        in.close();
+        assertEquals(memory.size(), i);
+    }
+
+    @Test
+    public void senderSinkSendsOneDatagramPerFrame() throws IOException {
+        DatagramSocket receiver = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        receiver.setSoTimeout(2000);
+        UdpClientSend client = new UdpClientSend("127.0.0.1", receiver.getLocalPort(),
+                UdpClientSend.DEFAULT_QUEUE_CAPACITY, UdpClientSend.DEFAULT_SLOT_SIZE, SendQueue.OverflowPolicy.BLOCK);
+        SenderFrameSink sink = new SenderFrameSink(client);
+        long frames = new SessionReplay(binary(), 20.0)
+                .run(new SyntheticSensorSource(new SensorRateConfig(), 2 * S, 2), sink);
+        assertEquals(frames, sink.getSentCount());
+        assertEquals(0, sink.getDroppedCount());
+
+        DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+        int received = 0;
+        try {
+            while (received < frames) {
+                receiver.receive(packet);
+                received++;
+            }
+        } catch (SocketTimeoutException e) {
+            // counted below
+        }
+        client.close();
+        receiver.close();
+        assertEquals(frames, received);
+    }
+}
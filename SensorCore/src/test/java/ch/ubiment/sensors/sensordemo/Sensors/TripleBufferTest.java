@@ -0,0 +1,61 @@
+package ch.ubiment.sensors.sensordemo.Sensors;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TripleBufferTest {
+
+    private static class State {
+        long a;
+        long b;     // always -a in a published state
+    }
+
+    @Test
+    public void readerGetsTheLatestState() {
+        TripleBuffer<State> buffer = new TripleBuffer<>(new State(), new State(), new State());
+        assertFalse(buffer.hasNew());
+        for (int i = 1; i <= 3; i++) {
+            buffer.getWriteBuffer().a = i;
+            buffer.publish();
+        }
+        assertTrue(buffer.hasNew());
+        assertEquals(3, buffer.getReadBuffer().a);
+        assertFalse(buffer.hasNew());
+        // nothing new: the same state again
+        assertEquals(3, buffer.getReadBuffer().a);
+    }
+
+    @Test
+    public void readerNeverSeesAHalfWrittenState() throws InterruptedException {
+        final TripleBuffer<State> buffer = new TripleBuffer<>(new State(), new State(), new State());
+        final long states = 2000000;
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (long i = 1; i <= states; i++) {
+                    State s = buffer.getWriteBuffer();
+                    s.a = i;
+                    s.b = -i;
+                    buffer.publish();
+                }
+            }
+        });
+        writer.start();
+
+        long last = 0;
+        boolean consistent = true;
+        boolean monotonic = true;
+        while (last < states) {
+            State s = buffer.getReadBuffer();
+            if (s.b != -s.a) consistent = false;
+            if (s.a < last) monotonic = false;
+            last = s.a;
+        }
+        writer.join();
+        assertTrue(consistent);
+        assertTrue(monotonic);
+    }
+}
@@ -0,0 +1,45 @@
+package ch.ubiment.sensors.sensordemo.Platform;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import ch.ubiment.sensors.sensordemo.Communication.Clock;
+import ch.ubiment.sensors.sensordemo.Communication.Logger;
+
+/**
+ * Android implementations of the Clock and Logger interfaces of SensorCore, shared by the IMU and BeaconDetector apps
+ */
+public final class AndroidPlatform {
+
+    public static final Clock CLOCK = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            return SystemClock.elapsedRealtime();
+        }
+    };
+
+    public static final Logger LOGGER = new Logger() {
+        @Override
+        public void d(String tag, String message) {
+            Log.d(tag, message);
+        }
+
+        @Override
+        public void w(String tag, String message) {
+            Log.w(tag, message);
+        }
+
+        @Override
+        public void e(String tag, String message, Throwable throwable) {
+            Log.e(tag, message, throwable);
+        }
+    };
+
+    private AndroidPlatform() {
+    }
+}